@@ -8,11 +8,13 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.weeaboo.lua2.compiler.JavaBytecodeCompiler;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.lib.ClassLoaderResourceFinder;
 import nl.weeaboo.lua2.lib.ILuaResourceFinder;
 import nl.weeaboo.lua2.lib.LuaResource;
 import nl.weeaboo.lua2.luajava.ITypeCoercions;
+import nl.weeaboo.lua2.profiler.LuaProfiler;
 import nl.weeaboo.lua2.stdlib.DebugLib;
 import nl.weeaboo.lua2.stdlib.StandardLibrary;
 import nl.weeaboo.lua2.vm.LuaClosure;
@@ -40,12 +42,14 @@ public final class LuaRunState implements ILuaResourceFinder {
     private boolean destroyed;
     private boolean debugEnabled = true;
     private int instructionCountLimit = 10 * 1000 * 1000;
+    private int compileThreshold;
 
     private ILuaResourceFinder resourceFinder = new ClassLoaderResourceFinder();
     private ITypeCoercions typeCoercions = ITypeCoercions.getDefault();
 
     private transient @Nullable LuaThread currentThread;
     private transient int instructionCount;
+    private transient @Nullable LuaProfiler profiler;
 
     @SuppressWarnings("deprecation")
     private LuaRunState() {
@@ -95,6 +99,9 @@ public final class LuaRunState implements ILuaResourceFinder {
         LOG.debug("Destroying LuaRunState: {}", this);
 
         destroyed = true;
+        if (profiler != null) {
+            profiler.stop();
+        }
         threadGroup.destroy();
 
         currentThread = null;
@@ -145,7 +152,8 @@ public final class LuaRunState implements ILuaResourceFinder {
     }
 
     /**
-     * Called by the interpreter on every instruction (if {@link LuaRunState#isDebugEnabled()}).
+     * Called by the interpreter on every instruction (if {@link LuaRunState#isDebugEnabled()} and the running thread
+     * has a line hook or count hook).
      *
      * @param pc The current program counter
      * @throws LuaException If an internal assertion fails.
@@ -166,6 +174,12 @@ public final class LuaRunState implements ILuaResourceFinder {
 
     /**
      * Returns {@code true} if debug mode is enabled (switches on some assertions as well as the {@link DebugLib}).
+     * <p>
+     * When debug mode is disabled, the interpreter runs in budgeted mode: the instruction limit is only checked at
+     * backward jumps and function calls, and debug hooks aren't called. With debug mode enabled, budgeted mode is
+     * still used while the running thread has no line hook or count hook installed.
+     *
+     * @see #getInstructionCountLimit()
      */
     public boolean isDebugEnabled() {
         return debugEnabled;
@@ -180,6 +194,23 @@ public final class LuaRunState implements ILuaResourceFinder {
         this.debugEnabled = debugEnabled;
     }
 
+    /**
+     * Returns the profiler that's currently attached to this Lua context, or {@code null} if none is attached.
+     *
+     * @see LuaProfiler#start()
+     */
+    public @Nullable LuaProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @deprecated Meant for internal use only, use {@link LuaProfiler#start()} instead.
+     */
+    @Deprecated
+    public void setProfiler(@Nullable LuaProfiler profiler) {
+        this.profiler = profiler;
+    }
+
     /**
      * Returns the main thread for this Lua context.
      */
@@ -214,7 +245,11 @@ public final class LuaRunState implements ILuaResourceFinder {
 
     /**
      * Returns the single-invocation instruction limit. If a threads runs more than this number of instructions
-     * without yielding, an error is thrown.
+     * without yielding, an error is thrown. A limit of {@link Integer#MAX_VALUE} disables the check.
+     * <p>
+     * Unless the running thread has a line hook or count hook installed, the number of executed instructions is
+     * estimated, in debug mode as well: loops are charged for their full body on every iteration, and each call is
+     * charged as a single instruction.
      */
     public int getInstructionCountLimit() {
         return instructionCountLimit;
@@ -227,6 +262,29 @@ public final class LuaRunState implements ILuaResourceFinder {
         instructionCountLimit = lim;
     }
 
+    /**
+     * Returns the number of calls after which a Lua function is compiled to Java bytecode, or {@code 0} if
+     * compilation is disabled (default).
+     * <p>
+     * Compilation only happens when debug mode is disabled, and only for functions that can't yield (see
+     * {@link JavaBytecodeCompiler}). It requires a platform that can load Java bytecode at runtime.
+     *
+     * @see #isDebugEnabled()
+     */
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * @see #getCompileThreshold()
+     */
+    public void setCompileThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        }
+        this.compileThreshold = threshold;
+    }
+
     /**
      * @deprecated Meant for internal use only.
      */
@@ -0,0 +1,379 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal Java class file writer. Supports just enough of the class file format to emit the classes generated by
+ * {@link JavaBytecodeCompiler} and {@link LibInvokerCompiler}.
+ * <p>
+ * Generated classes use class file version 49 (Java 5), which doesn't require stack map frames.
+ */
+final class ClassFileWriter {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int MAJOR_VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    private final int thisClass;
+    private final int superClass;
+
+    /**
+     * @param className Internal name of the class to generate.
+     * @param superName Internal name of the superclass.
+     */
+    ClassFileWriter(String className, String superName) {
+        thisClass = classRef(className);
+        superClass = classRef(superName);
+    }
+
+    int utf8(String value) {
+        Integer index = poolIndices.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addPoolEntry("U" + value);
+    }
+
+    int classRef(String internalName) {
+        return ref("C" + internalName, CONSTANT_CLASS, utf8(internalName));
+    }
+
+    int stringConst(String value) {
+        return ref("S" + value, CONSTANT_STRING, utf8(value));
+    }
+
+    int intConst(int value) {
+        Integer index = poolIndices.get("I" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addPoolEntry("I" + value);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, desc);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return memberRef(CONSTANT_METHODREF, owner, name, desc);
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        String key = "M" + tag + owner + "." + name + desc;
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        int classIndex = classRef(owner);
+        int nameAndTypeIndex = ref("N" + name + desc, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(desc));
+        return ref(key, tag, classIndex, nameAndTypeIndex);
+    }
+
+    private int ref(String key, int tag, int... indices) {
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            for (int i : indices) {
+                pool.writeShort(i);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addPoolEntry(key);
+    }
+
+    private int addPoolEntry(String key) {
+        if (poolCount >= 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow");
+        }
+        int index = poolCount++;
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    /** Adds a method with the given bytecode. */
+    void addMethod(int access, String name, String desc, Code code) {
+        byte[] bytecode = code.toByteArray();
+        if (bytecode.length > 0xFFFF) {
+            throw new IllegalStateException("Method too large: " + bytecode.length);
+        }
+
+        try {
+            methods.writeShort(access);
+            methods.writeShort(utf8(name));
+            methods.writeShort(utf8(desc));
+            methods.writeShort(1); // Attribute count
+
+            methods.writeShort(utf8("Code"));
+            methods.writeInt(12 + bytecode.length);
+            methods.writeShort(code.maxStack);
+            methods.writeShort(code.maxLocals);
+            methods.writeInt(bytecode.length);
+            methods.write(bytecode);
+            methods.writeShort(0); // Exception table length
+            methods.writeShort(0); // Attribute count
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0); // Minor version
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interface count
+            out.writeShort(0); // Field count
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0); // Attribute count
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    /** A branch target within a {@link Code} block. */
+    static final class Label {
+
+        private int position = -1;
+        private int[] fixups = new int[2];
+        private int fixupCount;
+
+        private void addFixup(int instructionPos) {
+            if (fixupCount == fixups.length) {
+                fixups = Arrays.copyOf(fixups, fixupCount * 2);
+            }
+            fixups[fixupCount++] = instructionPos;
+        }
+
+    }
+
+    /** Bytecode for a single method. */
+    static final class Code {
+
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ASTORE = 0x3A;
+        static final int AASTORE = 0x53;
+        static final int DUP = 0x59;
+        static final int SWAP = 0x5F;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        static final int GOTO = 0xA7;
+        static final int ARETURN = 0xB0;
+        static final int RETURN = 0xB1;
+        static final int GETSTATIC = 0xB2;
+        static final int GETFIELD = 0xB4;
+        static final int INVOKEVIRTUAL = 0xB6;
+        static final int INVOKESPECIAL = 0xB7;
+        static final int INVOKESTATIC = 0xB8;
+        static final int NEW = 0xBB;
+        static final int ANEWARRAY = 0xBD;
+        static final int CHECKCAST = 0xC0;
+        static final int WIDE = 0xC4;
+
+        private final ClassFileWriter cw;
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        int maxStack;
+        int maxLocals;
+
+        Code(ClassFileWriter cw) {
+            this.cw = cw;
+        }
+
+        private void put1(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte)b;
+        }
+
+        private void put2(int s) {
+            put1(s >> 8);
+            put1(s);
+        }
+
+        void op(int opcode) {
+            put1(opcode);
+        }
+
+        void aload(int local) {
+            localOp(ALOAD, local);
+        }
+
+        void astore(int local) {
+            localOp(ASTORE, local);
+        }
+
+        private void localOp(int opcode, int local) {
+            maxLocals = Math.max(maxLocals, local + 1);
+            if (local <= 0xFF) {
+                put1(opcode);
+                put1(local);
+            } else {
+                put1(WIDE);
+                put1(opcode);
+                put2(local);
+            }
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                put1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put1(BIPUSH);
+                put1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put1(SIPUSH);
+                put2(value);
+            } else {
+                put1(LDC_W);
+                put2(cw.intConst(value));
+            }
+        }
+
+        void ldcString(String value) {
+            put1(LDC_W);
+            put2(cw.stringConst(value));
+        }
+
+        void getstatic(String owner, String name, String desc) {
+            put1(GETSTATIC);
+            put2(cw.fieldRef(owner, name, desc));
+        }
+
+        void getfield(String owner, String name, String desc) {
+            put1(GETFIELD);
+            put2(cw.fieldRef(owner, name, desc));
+        }
+
+        void invokevirtual(String owner, String name, String desc) {
+            put1(INVOKEVIRTUAL);
+            put2(cw.methodRef(owner, name, desc));
+        }
+
+        void invokespecial(String owner, String name, String desc) {
+            put1(INVOKESPECIAL);
+            put2(cw.methodRef(owner, name, desc));
+        }
+
+        void invokestatic(String owner, String name, String desc) {
+            put1(INVOKESTATIC);
+            put2(cw.methodRef(owner, name, desc));
+        }
+
+        void newObject(String internalName) {
+            put1(NEW);
+            put2(cw.classRef(internalName));
+        }
+
+        void anewarray(String internalName) {
+            put1(ANEWARRAY);
+            put2(cw.classRef(internalName));
+        }
+
+        void checkcast(String internalName) {
+            put1(CHECKCAST);
+            put2(cw.classRef(internalName));
+        }
+
+        /** Emits a branch instruction ({@code goto}, {@code ifeq}, ...) to the given label. */
+        void jump(int opcode, Label label) {
+            label.addFixup(size);
+            put1(opcode);
+            put2(0); // Filled in by resolve()
+        }
+
+        /** Binds the label to the current position. */
+        void mark(Label label) {
+            label.position = size;
+        }
+
+        private void resolve(Label label) {
+            for (int n = 0; n < label.fixupCount; n++) {
+                int instructionPos = label.fixups[n];
+                int offset = label.position - instructionPos;
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Branch offset too large: " + offset);
+                }
+                bytes[instructionPos + 1] = (byte)(offset >> 8);
+                bytes[instructionPos + 2] = (byte)offset;
+            }
+        }
+
+        /** Fills in the branch offsets for the given labels. All labels must be marked. */
+        void resolveAll(Label[] labels) {
+            for (Label label : labels) {
+                if (label.fixupCount > 0) {
+                    if (label.position < 0) {
+                        throw new IllegalStateException("Unmarked label");
+                    }
+                    resolve(label);
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+    }
+}
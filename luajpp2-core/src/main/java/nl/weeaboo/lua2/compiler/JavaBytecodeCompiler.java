@@ -0,0 +1,581 @@
+package nl.weeaboo.lua2.compiler;
+
+import static nl.weeaboo.lua2.vm.Lua.getArgA;
+import static nl.weeaboo.lua2.vm.Lua.getArgB;
+import static nl.weeaboo.lua2.vm.Lua.getArgBx;
+import static nl.weeaboo.lua2.vm.Lua.getArgC;
+import static nl.weeaboo.lua2.vm.Lua.getArgSBx;
+import static nl.weeaboo.lua2.vm.Lua.getIndexK;
+import static nl.weeaboo.lua2.vm.Lua.getOpcode;
+import static nl.weeaboo.lua2.vm.Lua.isK;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.weeaboo.lua2.compiler.ClassFileWriter.Code;
+import nl.weeaboo.lua2.compiler.ClassFileWriter.Label;
+import nl.weeaboo.lua2.vm.CompiledFunction;
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Compiles a {@link Prototype} to a Java class, allowing the JVM's JIT compiler to optimize it like regular Java
+ * code.
+ * <p>
+ * Only leaf functions are supported: functions which don't call other functions, create closures or use varargs.
+ * Such functions can't yield, so their state never needs to be stored in a stack frame. This makes it possible to
+ * keep the Lua registers in local variables of the generated method. Other functions keep running in the
+ * interpreter.
+ * <p>
+ * Generated classes are loaded through a new class loader, so this doesn't work on platforms which can't load
+ * Java bytecode at runtime (Android).
+ */
+public final class JavaBytecodeCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JavaBytecodeCompiler.class);
+
+    private static final AtomicInteger classIdGenerator = new AtomicInteger();
+
+    private static final String CLASS_PREFIX = "nl/weeaboo/lua2/compiled/LuaFunction";
+
+    private static final String COMPILED_FUNCTION = "nl/weeaboo/lua2/vm/CompiledFunction";
+    private static final String LUA_VALUE = "nl/weeaboo/lua2/vm/LuaValue";
+    private static final String LUA_TABLE = "nl/weeaboo/lua2/vm/LuaTable";
+    private static final String PROTOTYPE = "nl/weeaboo/lua2/vm/Prototype";
+    private static final String UP_VALUE = "nl/weeaboo/lua2/vm/UpValue";
+    private static final String BUFFER = "nl/weeaboo/lua2/vm/Buffer";
+
+    private static final String LUA_VALUE_DESC = "L" + LUA_VALUE + ";";
+    private static final String BUFFER_DESC = "L" + BUFFER + ";";
+    private static final String VARARGS_DESC = "Lnl/weeaboo/lua2/vm/Varargs;";
+    private static final String CALL_DESC = "(Lnl/weeaboo/lua2/vm/LuaClosure;" + VARARGS_DESC
+            + "Lnl/weeaboo/lua2/vm/LuaThread;)" + VARARGS_DESC;
+
+    private static final String BINARY_OP_DESC = "(" + LUA_VALUE_DESC + ")" + LUA_VALUE_DESC;
+    private static final String COMPARE_DESC = "(" + LUA_VALUE_DESC + ")Z";
+    private static final String GET_CACHED_DESC = "(Lnl/weeaboo/lua2/vm/LuaClosure;I" + LUA_VALUE_DESC
+            + LUA_VALUE_DESC + ")" + LUA_VALUE_DESC;
+
+    // Local variable layout of the generated call method
+    private static final int LOCAL_CLOSURE = 1;
+    private static final int LOCAL_ARGS = 2;
+    private static final int LOCAL_THREAD = 3;
+    private static final int LOCAL_K = 4;
+    private static final int LOCAL_UPVALUES = 5;
+    private static final int LOCAL_REGISTERS = 6;
+
+    private static final int MAX_STACK = 8;
+
+    private final Prototype p;
+    private final int[] code;
+    private final ClassFileWriter cw;
+    private final Code mv;
+    private final Label[] labels;
+
+    private JavaBytecodeCompiler(Prototype p, String className) {
+        this.p = p;
+        this.code = p.code;
+
+        cw = new ClassFileWriter(className, COMPILED_FUNCTION);
+        mv = new Code(cw);
+        labels = new Label[code.length];
+        for (int n = 0; n < labels.length; n++) {
+            labels[n] = new Label();
+        }
+    }
+
+    /**
+     * Compiles the given prototype.
+     *
+     * @return The compiled function, or {@code null} if the prototype can't be compiled.
+     */
+    public static @Nullable CompiledFunction compile(Prototype p) {
+        if (!isCompilable(p)) {
+            return null;
+        }
+
+        String className = CLASS_PREFIX + classIdGenerator.incrementAndGet();
+        try {
+            byte[] classBytes = generate(p, className);
+
+            GeneratedClassLoader classLoader = new GeneratedClassLoader();
+            Class<?> generatedClass = classLoader.define(className.replace('/', '.'), classBytes);
+            CompiledFunction result = (CompiledFunction)generatedClass.getDeclaredConstructor().newInstance();
+            LOG.debug("Compiled {} to {}", p, className);
+            return result;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOG.warn("Unable to compile function: {}", p, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the prototype can be compiled. Functions that may yield (or call any other
+     * functions) aren't supported.
+     */
+    public static boolean isCompilable(Prototype p) {
+        if (p.isVararg != 0) {
+            return false;
+        }
+
+        final int[] code = p.code;
+        for (int pc = 0; pc < code.length; pc++) {
+            final int i = code[pc];
+            switch (getOpcode(i)) {
+            case Lua.OP_CALL:
+            case Lua.OP_TAILCALL:
+            case Lua.OP_TFORLOOP:
+            case Lua.OP_CLOSURE:
+            case Lua.OP_VARARG:
+                return false;
+            case Lua.OP_RETURN:
+                if (getArgB(i) == 0) {
+                    return false; // Variable number of return values
+                }
+                break;
+            case Lua.OP_SETLIST:
+                if (getArgB(i) == 0) {
+                    return false; // Variable number of values
+                }
+                if (getArgC(i) == 0) {
+                    pc++; // Next 'instruction' is the C argument
+                }
+                break;
+            default:
+                // Supported
+            }
+        }
+        return true;
+    }
+
+    static byte[] generate(Prototype p, String className) {
+        JavaBytecodeCompiler compiler = new JavaBytecodeCompiler(p, className);
+        compiler.generateConstructor();
+        compiler.generateCall();
+        return compiler.cw.toByteArray();
+    }
+
+    private void generateConstructor() {
+        Code init = new Code(cw);
+        init.aload(0);
+        init.invokespecial(COMPILED_FUNCTION, "<init>", "()V");
+        init.op(Code.RETURN);
+        init.maxStack = 1;
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init);
+    }
+
+    private void generateCall() {
+        // Cache constants and upvalues in local variables
+        mv.aload(LOCAL_CLOSURE);
+        mv.invokevirtual("nl/weeaboo/lua2/vm/LuaClosure", "getPrototype", "()L" + PROTOTYPE + ";");
+        mv.getfield(PROTOTYPE, "k", "[" + LUA_VALUE_DESC);
+        mv.astore(LOCAL_K);
+        mv.aload(LOCAL_CLOSURE);
+        mv.invokevirtual("nl/weeaboo/lua2/vm/LuaClosure", "getUpValues", "()[L" + UP_VALUE + ";");
+        mv.astore(LOCAL_UPVALUES);
+
+        // Initialize registers; the parameters first, the rest with nil
+        for (int r = 0; r < p.maxstacksize; r++) {
+            if (r < p.numparams) {
+                mv.aload(LOCAL_ARGS);
+                mv.iconst(r + 1);
+                mv.invokevirtual("nl/weeaboo/lua2/vm/Varargs", "arg", "(I)" + LUA_VALUE_DESC);
+            } else {
+                loadNil();
+            }
+            mv.astore(register(r));
+        }
+        // Reserve one extra local variable for temporary values
+        mv.maxLocals = Math.max(mv.maxLocals, temp() + 1);
+
+        for (int pc = 0; pc < code.length; pc++) {
+            mv.mark(labels[pc]);
+            pc = generateInstruction(pc);
+        }
+
+        mv.resolveAll(labels);
+        mv.maxStack = MAX_STACK;
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "call", CALL_DESC, mv);
+    }
+
+    /**
+     * Emits the Java bytecode for a single Lua instruction.
+     *
+     * @return The program counter of the last instruction word consumed.
+     */
+    private int generateInstruction(int pc) {
+        final int i = code[pc];
+        final int a = getArgA(i);
+        final int opcode = getOpcode(i);
+        switch (opcode) {
+        case Lua.OP_MOVE: /* A B R(A):= R(B) */
+            mv.aload(register(getArgB(i)));
+            mv.astore(register(a));
+            break;
+        case Lua.OP_LOADK: /* A Bx R(A):= Kst(Bx) */
+            loadConstant(getArgBx(i));
+            mv.astore(register(a));
+            break;
+        case Lua.OP_LOADBOOL: /* A B C R(A):= (Bool)B: if (C) pc++ */
+            mv.getstatic("nl/weeaboo/lua2/vm/LuaBoolean", getArgB(i) != 0 ? "TRUE" : "FALSE",
+                    "Lnl/weeaboo/lua2/vm/LuaBoolean;");
+            mv.astore(register(a));
+            if (getArgC(i) != 0) {
+                jump(Code.GOTO, pc + 2);
+            }
+            break;
+        case Lua.OP_LOADNIL: /* A B R(A):= ...:= R(B):= nil */
+            for (int r = a; r <= getArgB(i); r++) {
+                loadNil();
+                mv.astore(register(r));
+            }
+            break;
+        case Lua.OP_GETUPVAL: /* A B R(A):= UpValue[B] */
+            mv.aload(LOCAL_UPVALUES);
+            mv.iconst(getArgB(i));
+            mv.op(Code.AALOAD);
+            mv.invokevirtual(UP_VALUE, "getValue", "()" + LUA_VALUE_DESC);
+            mv.astore(register(a));
+            break;
+        case Lua.OP_GETGLOBAL: /* A Bx R(A):= Gbl[Kst(Bx)] */
+            mv.aload(LOCAL_CLOSURE);
+            mv.iconst(pc);
+            loadEnv();
+            loadConstant(getArgBx(i));
+            mv.invokestatic(COMPILED_FUNCTION, "getCached", GET_CACHED_DESC);
+            mv.astore(register(a));
+            break;
+        case Lua.OP_GETTABLE: /* A B C R(A):= R(B)[RK(C)] */
+            loadTable(pc, getArgB(i));
+            loadGet(pc, getArgC(i));
+            mv.astore(register(a));
+            break;
+        case Lua.OP_SETGLOBAL: /* A Bx Gbl[Kst(Bx)]:= R(A) */
+            loadEnv();
+            loadConstant(getArgBx(i));
+            mv.aload(register(a));
+            mv.invokevirtual(LUA_VALUE, "set", "(" + LUA_VALUE_DESC + LUA_VALUE_DESC + ")V");
+            break;
+        case Lua.OP_SETUPVAL: /* A B UpValue[B]:= R(A) */
+            mv.aload(LOCAL_UPVALUES);
+            mv.iconst(getArgB(i));
+            mv.op(Code.AALOAD);
+            mv.aload(register(a));
+            mv.invokevirtual(UP_VALUE, "setValue", "(" + LUA_VALUE_DESC + ")V");
+            break;
+        case Lua.OP_SETTABLE: /* A B C R(A)[RK(B)]:= RK(C) */
+            mv.aload(register(a));
+            loadRK(getArgB(i));
+            loadRK(getArgC(i));
+            mv.invokevirtual(LUA_VALUE, "set", "(" + LUA_VALUE_DESC + LUA_VALUE_DESC + ")V");
+            break;
+        case Lua.OP_NEWTABLE: /* A B C R(A):= {} (size = B,C) */
+            mv.newObject(LUA_TABLE);
+            mv.op(Code.DUP);
+            mv.iconst(getArgB(i));
+            mv.iconst(getArgC(i));
+            mv.invokespecial(LUA_TABLE, "<init>", "(II)V");
+            mv.astore(register(a));
+            break;
+        case Lua.OP_SELF: /* A B C R(A+1):= R(B): R(A):= R(B)[RK(C)] */
+            loadTable(pc, getArgB(i));
+            mv.aload(register(getArgB(i)));
+            mv.astore(register(a + 1));
+            loadGet(pc, getArgC(i));
+            mv.astore(register(a));
+            break;
+        case Lua.OP_ADD:
+        case Lua.OP_SUB:
+        case Lua.OP_MUL:
+        case Lua.OP_DIV:
+        case Lua.OP_MOD:
+        case Lua.OP_POW:
+            loadRK(getArgB(i));
+            loadRK(getArgC(i));
+            mv.invokevirtual(LUA_VALUE, getArithmeticMethod(opcode), BINARY_OP_DESC);
+            mv.astore(register(a));
+            break;
+        case Lua.OP_UNM: /* A B R(A):= -R(B) */
+            unaryOp(a, getArgB(i), "neg");
+            break;
+        case Lua.OP_NOT: /* A B R(A):= not R(B) */
+            unaryOp(a, getArgB(i), "not");
+            break;
+        case Lua.OP_LEN: /* A B R(A):= length of R(B) */
+            unaryOp(a, getArgB(i), "len");
+            break;
+        case Lua.OP_CONCAT: /* A B C R(A):= R(B).. ... ..R(C) */
+            concat(a, getArgB(i), getArgC(i));
+            break;
+        case Lua.OP_JMP: /* sBx pc+=sBx */
+            jumpWithBudget(pc, getArgSBx(i));
+            break;
+        case Lua.OP_EQ: /* A B C if ((RK(B) == RK(C)) ~= A) then pc++ */
+        case Lua.OP_LT: /* A B C if ((RK(B) < RK(C)) ~= A) then pc++ */
+        case Lua.OP_LE: /* A B C if ((RK(B) <= RK(C)) ~= A) then pc++ */
+            loadRK(getArgB(i));
+            loadRK(getArgC(i));
+            mv.invokevirtual(LUA_VALUE, getCompareMethod(opcode), COMPARE_DESC);
+            // Skip the next instruction if the comparison result isn't equal to A
+            jump(a != 0 ? Code.IFEQ : Code.IFNE, pc + 2);
+            break;
+        case Lua.OP_TEST: /* A C if not (R(A) <=> C) then pc++ */
+            mv.aload(register(a));
+            mv.invokevirtual(LUA_VALUE, "toboolean", "()Z");
+            jump(getArgC(i) != 0 ? Code.IFEQ : Code.IFNE, pc + 2);
+            break;
+        case Lua.OP_TESTSET: /* A B C if (R(B) <=> C) then R(A):= R(B) else pc++ */
+            mv.aload(register(getArgB(i)));
+            mv.invokevirtual(LUA_VALUE, "toboolean", "()Z");
+            jump(getArgC(i) != 0 ? Code.IFEQ : Code.IFNE, pc + 2);
+            mv.aload(register(getArgB(i)));
+            mv.astore(register(a));
+            break;
+        case Lua.OP_RETURN: /* A B return R(A), ... ,R(A+B-2) */
+            generateReturn(a, getArgB(i));
+            break;
+        case Lua.OP_FORLOOP: /* A sBx R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) } */
+            forLoop(pc, a, getArgSBx(i));
+            break;
+        case Lua.OP_FORPREP: /* A sBx R(A)-=R(A+2): pc+=sBx */
+            forPrep(pc, a, getArgSBx(i));
+            break;
+        case Lua.OP_SETLIST: { /* A B C R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B */
+            int c = getArgC(i);
+            if (c == 0) {
+                c = code[++pc];
+            }
+            setList(a, getArgB(i), c);
+            break;
+        }
+        case Lua.OP_CLOSE:
+            // Leaf functions don't create closures, so there are no open upvalues to close
+            break;
+        default:
+            throw new IllegalStateException("Unsupported opcode: " + opcode);
+        }
+        return pc;
+    }
+
+    private static String getArithmeticMethod(int opcode) {
+        switch (opcode) {
+        case Lua.OP_ADD: return "add";
+        case Lua.OP_SUB: return "sub";
+        case Lua.OP_MUL: return "mul";
+        case Lua.OP_DIV: return "div";
+        case Lua.OP_MOD: return "mod";
+        case Lua.OP_POW: return "pow";
+        default: throw new IllegalArgumentException("Unsupported opcode: " + opcode);
+        }
+    }
+
+    private static String getCompareMethod(int opcode) {
+        switch (opcode) {
+        case Lua.OP_EQ: return "eq_b";
+        case Lua.OP_LT: return "lt_b";
+        case Lua.OP_LE: return "lteq_b";
+        default: throw new IllegalArgumentException("Unsupported opcode: " + opcode);
+        }
+    }
+
+    private static int register(int r) {
+        return LOCAL_REGISTERS + r;
+    }
+
+    private int temp() {
+        return register(p.maxstacksize);
+    }
+
+    private void loadNil() {
+        mv.getstatic("nl/weeaboo/lua2/vm/LuaNil", "NIL", "Lnl/weeaboo/lua2/vm/LuaNil;");
+    }
+
+    private void loadEnv() {
+        mv.aload(LOCAL_CLOSURE);
+        mv.invokevirtual(LUA_VALUE, "getfenv", "()" + LUA_VALUE_DESC);
+    }
+
+    private void loadConstant(int index) {
+        mv.aload(LOCAL_K);
+        mv.iconst(index);
+        mv.op(Code.AALOAD);
+    }
+
+    /**
+     * Pushes the table operand of a table lookup. Lookups with a constant key go through an inline cache, which
+     * needs the closure and program counter on the stack before the table.
+     *
+     * @see #loadGet(int, int)
+     */
+    private void loadTable(int pc, int tableRegister) {
+        if (isK(getArgC(code[pc]))) {
+            mv.aload(LOCAL_CLOSURE);
+            mv.iconst(pc);
+        }
+        mv.aload(register(tableRegister));
+    }
+
+    /** Pushes the key, then performs the table lookup started by {@link #loadTable(int, int)}. */
+    private void loadGet(int pc, int rk) {
+        loadRK(rk);
+        if (isK(rk)) {
+            mv.invokestatic(COMPILED_FUNCTION, "getCached", GET_CACHED_DESC);
+        } else {
+            mv.invokevirtual(LUA_VALUE, "get", BINARY_OP_DESC);
+        }
+    }
+
+    /** Loads a register or constant */
+    private void loadRK(int rk) {
+        if (isK(rk)) {
+            loadConstant(getIndexK(rk));
+        } else {
+            mv.aload(register(rk));
+        }
+    }
+
+    private void jump(int opcode, int targetPc) {
+        mv.jump(opcode, labels[targetPc]);
+    }
+
+    /** Jumps relative to the next instruction, charging backward jumps against the thread's instruction budget. */
+    private void jumpWithBudget(int pc, int sbx) {
+        if (sbx < 0) {
+            mv.aload(LOCAL_THREAD);
+            mv.iconst(-sbx);
+            mv.invokestatic(COMPILED_FUNCTION, "consumeInstructionBudget", "(Lnl/weeaboo/lua2/vm/LuaThread;I)V");
+        }
+        jump(Code.GOTO, pc + 1 + sbx);
+    }
+
+    private void unaryOp(int a, int b, String methodName) {
+        mv.aload(register(b));
+        mv.invokevirtual(LUA_VALUE, methodName, "()" + LUA_VALUE_DESC);
+        mv.astore(register(a));
+    }
+
+    private void concat(int a, int b, int c) {
+        if (c > b + 1) {
+            mv.aload(register(c));
+            mv.invokevirtual(LUA_VALUE, "buffer", "()" + BUFFER_DESC);
+            while (--c >= b) {
+                mv.aload(register(c));
+                mv.op(Code.SWAP);
+                mv.invokevirtual(LUA_VALUE, "concat", "(" + BUFFER_DESC + ")" + BUFFER_DESC);
+            }
+            mv.invokevirtual(BUFFER, "value", "()" + LUA_VALUE_DESC);
+        } else {
+            mv.aload(register(c - 1));
+            mv.aload(register(c));
+            mv.invokevirtual(LUA_VALUE, "concat", BINARY_OP_DESC);
+        }
+        mv.astore(register(a));
+    }
+
+    private void generateReturn(int a, int b) {
+        if (b == 1) {
+            mv.getstatic("nl/weeaboo/lua2/vm/LuaConstants", "NONE", LUA_VALUE_DESC);
+        } else if (b == 2) {
+            mv.aload(register(a));
+        } else {
+            mv.iconst(b - 1);
+            mv.anewarray(LUA_VALUE);
+            for (int n = 0; n < b - 1; n++) {
+                mv.op(Code.DUP);
+                mv.iconst(n);
+                mv.aload(register(a + n));
+                mv.op(Code.AASTORE);
+            }
+            mv.invokestatic(LUA_VALUE, "varargsOf", "([" + LUA_VALUE_DESC + ")" + VARARGS_DESC);
+        }
+        mv.op(Code.ARETURN);
+    }
+
+    private void forPrep(int pc, int a, int sbx) {
+        checkNumber(a, "'for' initial value must be a number");
+        checkNumber(a + 1, "'for' limit must be a number");
+        checkNumber(a + 2, "'for' step must be a number");
+
+        mv.aload(register(a));
+        mv.aload(register(a + 2));
+        mv.invokevirtual(LUA_VALUE, "sub", BINARY_OP_DESC);
+        mv.astore(register(a));
+
+        jump(Code.GOTO, pc + 1 + sbx);
+    }
+
+    private void checkNumber(int r, String message) {
+        mv.aload(register(r));
+        mv.ldcString(message);
+        mv.invokevirtual(LUA_VALUE, "checknumber", "(Ljava/lang/String;)Lnl/weeaboo/lua2/vm/LuaNumber;");
+        mv.astore(register(r));
+    }
+
+    private void forLoop(int pc, int a, int sbx) {
+        final int idx = temp();
+        final Label negativeStep = new Label();
+        final Label compared = new Label();
+        final Label exit = new Label();
+
+        // idx = step + R(A)
+        mv.aload(register(a + 2));
+        mv.aload(register(a));
+        mv.invokevirtual(LUA_VALUE, "add", BINARY_OP_DESC);
+        mv.astore(idx);
+
+        // step > 0 ? idx <= limit : idx >= limit
+        mv.aload(register(a + 2));
+        mv.iconst(0);
+        mv.invokevirtual(LUA_VALUE, "gt_b", "(I)Z");
+        mv.jump(Code.IFEQ, negativeStep);
+        mv.aload(idx);
+        mv.aload(register(a + 1));
+        mv.invokevirtual(LUA_VALUE, "lteq_b", COMPARE_DESC);
+        mv.jump(Code.GOTO, compared);
+        mv.mark(negativeStep);
+        mv.aload(idx);
+        mv.aload(register(a + 1));
+        mv.invokevirtual(LUA_VALUE, "gteq_b", COMPARE_DESC);
+        mv.mark(compared);
+        mv.jump(Code.IFEQ, exit);
+
+        mv.aload(idx);
+        mv.op(Code.DUP);
+        mv.astore(register(a));
+        mv.astore(register(a + 3));
+        jumpWithBudget(pc, sbx);
+
+        mv.mark(exit);
+        mv.resolveAll(new Label[] {negativeStep, compared, exit});
+    }
+
+    private void setList(int a, int b, int c) {
+        int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+
+        mv.aload(register(a));
+        mv.iconst(offset + b);
+        mv.invokevirtual(LUA_VALUE, "presize", "(I)V");
+        for (int j = 1; j <= b; j++) {
+            mv.aload(register(a));
+            mv.iconst(offset + j);
+            mv.aload(register(a + j));
+            mv.invokevirtual(LUA_VALUE, "set", "(I" + LUA_VALUE_DESC + ")V");
+        }
+    }
+
+    private static final class GeneratedClassLoader extends ClassLoader {
+
+        GeneratedClassLoader() {
+            super(CompiledFunction.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+}
@@ -0,0 +1,129 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.weeaboo.lua2.compiler.ClassFileWriter.Code;
+import nl.weeaboo.lua2.lib.LibFunctionInvoker;
+import nl.weeaboo.lua2.lib.LuaBoundFunction;
+import nl.weeaboo.lua2.lib.LuaLib;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Generates a {@link LibFunctionInvoker} for a {@link LuaBoundFunction} method. The generated class calls the method
+ * directly, which avoids the boxing, access checks and exception wrapping of {@link Method#invoke}.
+ * <p>
+ * Like {@link JavaBytecodeCompiler}, this doesn't work on platforms which can't load Java bytecode at runtime
+ * (Android). Callers should fall back to reflection when no invoker can be generated.
+ */
+public final class LibInvokerCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LibInvokerCompiler.class);
+
+    private static final AtomicInteger classIdGenerator = new AtomicInteger();
+
+    private static final String CLASS_PREFIX = "nl/weeaboo/lua2/compiled/LibInvoker";
+    private static final String INVOKER = "nl/weeaboo/lua2/lib/LibFunctionInvoker";
+    private static final String LUA_LIB_DESC = "Lnl/weeaboo/lua2/lib/LuaLib;";
+    private static final String VARARGS_DESC = "Lnl/weeaboo/lua2/vm/Varargs;";
+
+    /** Set when class generation isn't supported by the platform, so we don't keep trying. */
+    private static volatile boolean unsupported;
+
+    private LibInvokerCompiler() {
+    }
+
+    /**
+     * Generates an invoker for the given method.
+     *
+     * @return The invoker, or {@code null} if no invoker can be generated for this method.
+     */
+    public static @Nullable LibFunctionInvoker compile(Method method) {
+        if (unsupported || !isCompilable(method)) {
+            return null;
+        }
+
+        String className = CLASS_PREFIX + classIdGenerator.incrementAndGet();
+        try {
+            byte[] classBytes = generate(method, className);
+
+            GeneratedClassLoader classLoader = new GeneratedClassLoader(method.getDeclaringClass().getClassLoader());
+            Class<?> generatedClass = classLoader.define(className.replace('/', '.'), classBytes);
+            return (LibFunctionInvoker)generatedClass.getDeclaredConstructor().newInstance();
+        } catch (UnsupportedOperationException e) {
+            LOG.info("Runtime class generation not supported, using reflection for library functions");
+            unsupported = true;
+            return null;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOG.warn("Unable to generate invoker for method: {}", method, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if a generated class is able to access the method.
+     */
+    static boolean isCompilable(Method method) {
+        if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())) {
+            return false;
+        }
+        for (Class<?> c = method.getDeclaringClass(); c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+
+        Class<?>[] paramTypes = method.getParameterTypes();
+        Class<?> returnType = method.getReturnType();
+        return LuaLib.class.isAssignableFrom(method.getDeclaringClass())
+                && paramTypes.length == 1 && paramTypes[0] == Varargs.class
+                && (returnType == Varargs.class || returnType == Void.TYPE);
+    }
+
+    static byte[] generate(Method method, String className) {
+        ClassFileWriter cw = new ClassFileWriter(className, INVOKER);
+
+        Code init = new Code(cw);
+        init.aload(0);
+        init.invokespecial(INVOKER, "<init>", "()V");
+        init.op(Code.RETURN);
+        init.maxStack = 1;
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+        // return ((LibClass)lib).method(args);
+        String owner = method.getDeclaringClass().getName().replace('.', '/');
+        boolean isVoid = (method.getReturnType() == Void.TYPE);
+        Code mv = new Code(cw);
+        mv.aload(1);
+        mv.checkcast(owner);
+        mv.aload(2);
+        mv.invokevirtual(owner, method.getName(), "(" + VARARGS_DESC + ")" + (isVoid ? "V" : VARARGS_DESC));
+        if (isVoid) {
+            mv.getstatic("nl/weeaboo/lua2/vm/LuaConstants", "NONE", "Lnl/weeaboo/lua2/vm/LuaValue;");
+        }
+        mv.op(Code.ARETURN);
+        mv.maxStack = 2;
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "invoke", "(" + LUA_LIB_DESC + VARARGS_DESC + ")" + VARARGS_DESC,
+                mv);
+
+        return cw.toByteArray();
+    }
+
+    private static final class GeneratedClassLoader extends ClassLoader {
+
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+}
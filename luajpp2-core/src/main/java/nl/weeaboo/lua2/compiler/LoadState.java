@@ -49,6 +49,7 @@ import nl.weeaboo.lua2.vm.LuaDouble;
 import nl.weeaboo.lua2.vm.LuaFunction;
 import nl.weeaboo.lua2.vm.LuaInteger;
 import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaStringPool;
 import nl.weeaboo.lua2.vm.LuaValue;
 import nl.weeaboo.lua2.vm.Prototype;
 
@@ -209,7 +210,12 @@ public final class LoadState {
         int offset = alloc.reserve(size);
         byte[] bytes = alloc.getReserved();
         is.readFully(bytes, offset, size);
-        return LuaString.valueOf(bytes, offset, size - 1);
+        LuaString str = LuaString.valueOf(bytes, offset, size - 1);
+        LuaString pooled = LuaStringPool.autoIntern(str);
+        if (pooled != str) {
+            alloc.unreserve(offset, size);
+        }
+        return pooled;
     }
 
     /**
@@ -35,6 +35,7 @@ import nl.weeaboo.lua2.vm.LocVars;
 import nl.weeaboo.lua2.vm.Lua;
 import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaStringPool;
 import nl.weeaboo.lua2.vm.LuaValue;
 import nl.weeaboo.lua2.vm.Prototype;
 
@@ -137,6 +138,11 @@ public final class LuaC extends Lua implements ILuaCompiler {
             byte[] copy = sba.getReserved();
             System.arraycopy(bytes, offset, copy, n, len);
             v = LuaString.valueOf(copy, n, len);
+            LuaString pooled = LuaStringPool.autoIntern(v);
+            if (pooled != v) {
+                sba.unreserve(n, len);
+                v = pooled;
+            }
             strings.put(v, v);
         }
         return v;
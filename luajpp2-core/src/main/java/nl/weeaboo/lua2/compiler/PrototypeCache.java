@@ -0,0 +1,163 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Thread-safe cache of compiled {@link Prototype}s, keyed by chunk name and a hash of the chunk's contents. This
+ * avoids compiling the same script again for every {@link nl.weeaboo.lua2.LuaRunState}.
+ * <p>
+ * The cached prototypes are never run. Each lookup returns a {@link Prototype#copy() copy}, which shares the code and
+ * constants of the cached prototype, but has its own call counts and inline caches. This means prototypes loaded by
+ * different run states never affect each other.
+ *
+ * @see ScriptLoader#loadFile(String)
+ */
+public final class PrototypeCache {
+
+    /** Default value for {@link #getMaxSize()}. */
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final PrototypeCache DEFAULT_INSTANCE = new PrototypeCache(DEFAULT_MAX_SIZE);
+
+    private final LinkedHashMap<Key, Prototype> prototypes = new LinkedHashMap<>(16, .75f, true);
+    private int maxSize;
+
+    /**
+     * @param maxSize The maximum number of prototypes to keep, or {@code 0} to disable caching.
+     */
+    public PrototypeCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the cache shared by all run states, used by {@link ScriptLoader#loadFile(String)}.
+     */
+    public static PrototypeCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Returns the maximum number of prototypes kept in the cache. When the cache is full, the least recently used
+     * prototype is removed.
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @see #getMaxSize()
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid max size: " + maxSize);
+        }
+
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /** Returns the number of prototypes in the cache. */
+    public synchronized int size() {
+        return prototypes.size();
+    }
+
+    /** Removes all prototypes from the cache. */
+    public synchronized void clear() {
+        prototypes.clear();
+    }
+
+    /**
+     * Compiles a Lua source or binary chunk read from the input stream, or returns a copy of the prototype compiled
+     * earlier for the same chunk name and contents. The input stream isn't closed.
+     *
+     * @throws IOException If an I/O error occurs.
+     * @see LuaC#compile(InputStream, String)
+     */
+    public Prototype compile(InputStream in, String name) throws IOException {
+        if (getMaxSize() == 0) {
+            return LuaC.compile(in, name);
+        }
+
+        byte[] contents = readFully(in);
+        Key key = new Key(name, sha256(contents));
+        Prototype cached = get(key);
+        if (cached == null) {
+            // Compile errors aren't cached
+            cached = LuaC.compile(new ByteArrayInputStream(contents), name);
+            put(key, cached);
+        }
+        return cached.copy();
+    }
+
+    private synchronized @Nullable Prototype get(Key key) {
+        return prototypes.get(key);
+    }
+
+    private synchronized void put(Key key, Prototype prototype) {
+        prototypes.put(key, prototype);
+        trim();
+    }
+
+    private void trim() {
+        while (prototypes.size() > maxSize) {
+            Key eldest = prototypes.keySet().iterator().next();
+            prototypes.remove(eldest);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int r = in.read(buf); r >= 0; r = in.read(buf)) {
+            bout.write(buf, 0, r);
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key {
+
+        private final String name;
+        private final byte[] hash;
+
+        Key(String name, byte[] hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() ^ Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return name.equals(other.name) && Arrays.equals(hash, other.hash);
+        }
+
+    }
+
+}
@@ -11,7 +11,9 @@ import java.io.StringWriter;
 
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.lib.LuaResource;
+import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaThread;
+import nl.weeaboo.lua2.vm.Prototype;
 import nl.weeaboo.lua2.vm.Varargs;
 
 /**
@@ -23,7 +25,8 @@ public final class ScriptLoader {
     }
 
     /**
-     * Load from a named file, returning the loaded chunk or {@code nil,error} if unable to load.
+     * Load from a named file, returning the loaded chunk or {@code nil,error} if unable to load. Compiled prototypes
+     * are shared between run states using the {@link PrototypeCache#getDefault() default prototype cache}.
      */
     public static Varargs loadFile(String filename) {
         LuaRunState lrs = LuaRunState.getCurrent();
@@ -35,7 +38,7 @@ public final class ScriptLoader {
         try {
             final InputStream in = r.open();
             try {
-                return loadStream(in, "@" + r.getCanonicalName());
+                return loadStream(in, "@" + r.getCanonicalName(), true);
             } finally {
                 in.close();
             }
@@ -48,11 +51,20 @@ public final class ScriptLoader {
      * Load from an unnamed input stream, returning the loaded chunk or {@code nil,error} if unable to load.
      */
     public static Varargs loadStream(InputStream is, String chunkname) {
+        return loadStream(is, chunkname, false);
+    }
+
+    private static Varargs loadStream(InputStream is, String chunkname, boolean cached) {
         try {
             if (is == null) {
                 return varargsOf(NIL, valueOf("not found: " + chunkname));
             }
             LuaThread running = LuaThread.getRunning();
+            if (cached) {
+                // The whole stream is read before compiling, which is fine for files
+                Prototype p = PrototypeCache.getDefault().compile(is, chunkname);
+                return new LuaClosure(p, running.getfenv());
+            }
             return LoadState.load(is, chunkname, running.getfenv());
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
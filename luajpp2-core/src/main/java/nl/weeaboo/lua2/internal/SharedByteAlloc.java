@@ -1,5 +1,7 @@
 package nl.weeaboo.lua2.internal;
 
+import java.lang.ref.WeakReference;
+
 import nl.weeaboo.lua2.vm.LuaString;
 
 /**
@@ -19,6 +21,11 @@ public final class SharedByteAlloc {
     private byte[] current;
     private int offset;
 
+    /** Byte array of the last large concatenation result, which may be extended in-place. */
+    private WeakReference<byte[]> concatBuffer = new WeakReference<byte[]>(null);
+    private int concatEnd;
+    private int concatOffset;
+
     private SharedByteAlloc() {
     }
 
@@ -37,6 +44,59 @@ public final class SharedByteAlloc {
         return result;
     }
 
+    /**
+     * Releases a segment previously reserved using {@link #reserve(int)}, if it was the last segment reserved.
+     * Otherwise, this method does nothing.
+     */
+    public void unreserve(int off, int len) {
+        if (off + len == offset) {
+            offset = off;
+        }
+    }
+
+    /**
+     * Reserves space for the result of a string concatenation of total length {@code len}, whose first part is
+     * {@code prefixLength} bytes at {@code prefixOffset} in {@code prefixBytes}.
+     * <p>
+     * Large concatenation results are allocated with room to spare. If the prefix is the most recent of those
+     * results, the new result is allocated directly behind it in the same array. In that case, the returned array
+     * is {@code prefixBytes}, the reserved offset is equal to {@code prefixOffset} and the prefix bytes don't need
+     * to be copied. This turns repeated appends ({@code s = s .. x}) into an amortized linear time operation.
+     *
+     * @return The array containing the reserved segment. Use {@link #getConcatOffset()} to get the offset of the
+     *         reserved segment within the array.
+     */
+    public byte[] reserveConcat(byte[] prefixBytes, int prefixOffset, int prefixLength, int len) {
+        LuaString.assertValidStringLength(len);
+
+        byte[] buffer = concatBuffer.get();
+        if (buffer == prefixBytes && prefixOffset + prefixLength == concatEnd
+                && buffer.length - prefixOffset >= len) {
+            concatEnd = prefixOffset + len;
+            concatOffset = prefixOffset;
+            return buffer;
+        }
+
+        if (len < ALLOC_SIZE) {
+            concatOffset = reserve(len);
+            return current;
+        }
+
+        buffer = new byte[len + (len >> 1)];
+        concatBuffer = new WeakReference<byte[]>(buffer);
+        concatEnd = len;
+        concatOffset = 0;
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the segment reserved by the last call to
+     * {@link #reserveConcat(byte[], int, int, int)}.
+     */
+    public int getConcatOffset() {
+        return concatOffset;
+    }
+
     /**
      * Returns the backing array of the chunk previously reserver using {@link #reserve(int)}.
      */
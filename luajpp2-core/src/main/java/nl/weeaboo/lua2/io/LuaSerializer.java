@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import javax.annotation.Nullable;
+
 /**
  * Reads/writes Lua objects to a binary stream.
  */
@@ -31,6 +33,15 @@ public class LuaSerializer {
         return previous;
     }
 
+    /**
+     * Makes a previously active {@link LuaSerializer} current again.
+     *
+     * @param previous The value returned by {@link #makeCurrent()}
+     */
+    protected static void restoreCurrent(@Nullable LuaSerializer previous) {
+        CURRENT.set(previous);
+    }
+
     /**
      * Returns the {@link LuaSerializer} that's in use on the current thread.
      */
@@ -79,7 +90,6 @@ public class LuaSerializer {
                 return new Callable<Void>() {
                     @Override
                     public Void call() throws Exception {
-                        makeCurrent();
                         inner.call();
                         writeDelayed();
                         return null;
@@ -135,7 +145,6 @@ public class LuaSerializer {
                 return new Callable<Object>() {
                     @Override
                     public Object call() throws Exception {
-                        makeCurrent();
                         Object result = inner.call();
                         readDelayed();
                         return result;
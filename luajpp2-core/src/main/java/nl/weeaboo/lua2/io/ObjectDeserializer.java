@@ -4,9 +4,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -23,7 +20,6 @@ public class ObjectDeserializer extends ObjectInputStream {
     private static final Logger LOG = LoggerFactory.getLogger(ObjectDeserializer.class);
 
     private final @Nullable Environment env;
-    private final ExecutorService executor;
 
     private boolean collectStats = true;
     private int depthWarnLimit = 100;
@@ -32,20 +28,10 @@ public class ObjectDeserializer extends ObjectInputStream {
         super(in);
 
         env = (e.size() > 0 ? e : null);
-        executor = new DelayedIoExecutor("LuaObjectDeserializer");
 
         updateEnableReplace();
     }
 
-    @Override
-    public void close() throws IOException {
-        try {
-            super.close();
-        } finally {
-            executor.shutdown();
-        }
-    }
-
     private void updateEnableReplace() {
         boolean replace = (env != null || collectStats);
 
@@ -57,20 +43,22 @@ public class ObjectDeserializer extends ObjectInputStream {
     }
 
     /**
-     * Calls {@link ObjectInputStream#readObject()} on a new thread and returns the result.
-     * <p>
-     * This method can be used to avoid stack space issues when deserializing large object graphs.
+     * Calls {@link ObjectInputStream#readObject()} and returns the result. Despite its name, the object is read on
+     * the calling thread.
      *
-     * @throws IOException If the thread throws an exception, or if the wait for the thread's result is interrupted.
+     * @throws IOException If an I/O error occurs, or if the class of one of the objects can't be found.
+     * @deprecated Starting a new thread doesn't provide more stack space than the current thread has. Use
+     *             {@link nl.weeaboo.lua2.vm.SnapshotSerializer} to read large object graphs without a deep call
+     *             stack.
      */
+    @Deprecated
     public Object readObjectOnNewThread() throws IOException {
-        Future<Object> future = executor.submit(createAsyncReadTask());
         try {
-            return future.get();
-        } catch (InterruptedException e) {
-            throw new IOException("Async read interrupted: " + e);
-        } catch (ExecutionException e) {
-            throw new IOException("Error during async read", e.getCause());
+            return createAsyncReadTask().call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error during read", e);
         }
     }
 
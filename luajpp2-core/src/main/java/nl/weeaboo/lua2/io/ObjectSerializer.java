@@ -17,9 +17,6 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -45,7 +42,6 @@ public class ObjectSerializer extends ObjectOutputStream {
     private final @Nullable Environment env; // Null if empty or not used
     private final Set<String> validPackages = new HashSet<>();
     private final Set<Class<?>> validClasses = new HashSet<>();
-    private final ExecutorService executor;
 
     private final List<String> errors = new ArrayList<>();
     private final List<String> warnings = new ArrayList<>();
@@ -59,7 +55,6 @@ public class ObjectSerializer extends ObjectOutputStream {
         super(out);
 
         env = (e.size() != 0 ? e : null);
-        executor = new DelayedIoExecutor("LuaObjectSerializer");
 
         resetValidPackages();
         resetValidClasses();
@@ -67,15 +62,6 @@ public class ObjectSerializer extends ObjectOutputStream {
         onPackageLimitChanged();
     }
 
-    @Override
-    public void close() throws IOException {
-        try {
-            super.close();
-        } finally {
-            executor.shutdown();
-        }
-    }
-
     private static String toErrorString(String[] errors) {
         StringBuilder sb = new StringBuilder();
         sb.append(errors.length).append(" error(s) occurred while writing objects:");
@@ -192,20 +178,22 @@ public class ObjectSerializer extends ObjectOutputStream {
     }
 
     /**
-     * Calls {@link ObjectOutputStream#writeObject(Object)} on a new thread.
-     * <p>
-     * This method can be used to avoid stack space issues when serializing large object graphs.
+     * Calls {@link ObjectOutputStream#writeObject(Object)}. Despite its name, the object is written on the calling
+     * thread.
      *
-     * @throws IOException If the thread throws an exception, or if the wait for the thread to finish is interrupted.
+     * @throws IOException If an I/O error occurs, or if one of the objects can't be serialized.
+     * @deprecated Starting a new thread doesn't provide more stack space than the current thread has. Use
+     *             {@link nl.weeaboo.lua2.vm.SnapshotSerializer} to write large object graphs without a deep call
+     *             stack.
      */
+    @Deprecated
     public void writeObjectOnNewThread(final Object obj) throws IOException {
-        Future<?> future = executor.submit(createAsyncWriteTask(obj));
         try {
-            future.get();
-        } catch (InterruptedException e) {
-            throw new IOException("Async write interrupted: " + e);
-        } catch (ExecutionException e) {
-            throw new IOException("Error during async write", e.getCause());
+            createAsyncWriteTask(obj).call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error during write", e);
         }
     }
 
@@ -0,0 +1,22 @@
+package nl.weeaboo.lua2.lib;
+
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Calls a single {@link LuaBoundFunction} method of a {@link LuaLib}. Implementations are generated at runtime, so
+ * library functions can be called without going through reflection.
+ *
+ * @see nl.weeaboo.lua2.compiler.LibInvokerCompiler
+ */
+public abstract class LibFunctionInvoker {
+
+    /**
+     * Calls the library function.
+     *
+     * @param lib The library object to call the method on.
+     * @param args The function arguments.
+     * @return The return values of the function, or {@code NONE} if the Java method returns {@code void}.
+     */
+    public abstract Varargs invoke(LuaLib lib, Varargs args);
+
+}
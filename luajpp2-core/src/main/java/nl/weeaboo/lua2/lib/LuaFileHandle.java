@@ -1,8 +1,11 @@
 package nl.weeaboo.lua2.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 
+import javax.annotation.Nullable;
+
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.vm.LuaConstants;
@@ -114,6 +117,35 @@ public abstract class LuaFileHandle extends LuaValue implements Serializable {
         throw new IOException("read not supported");
     }
 
+    /**
+     * Reads bytes up to and including the next line ending. The line ending itself and any carriage return
+     * characters are not included in the result.
+     *
+     * @return The line, or {@code null} if the end of the file was reached before any bytes could be read.
+     * @throws IOException If the file isn't readable.
+     */
+    public @Nullable LuaString readLine() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int c;
+        loop:
+        while ((c = read()) > 0) {
+            switch (c) {
+            case '\r':
+                break;
+            case '\n':
+                break loop;
+            default:
+                baos.write(c);
+                break;
+            }
+        }
+
+        if (c < 0 && baos.size() == 0) {
+            return null;
+        }
+        return LuaString.valueOf(baos.toByteArray());
+    }
+
     /**
      * @param string The string to write
      * @throws IOException If writing fails.
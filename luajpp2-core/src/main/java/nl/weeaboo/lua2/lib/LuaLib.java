@@ -1,11 +1,16 @@
 package nl.weeaboo.lua2.lib;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.LibInvokerCompiler;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaNil;
@@ -17,6 +22,9 @@ public abstract class LuaLib implements ILuaLib {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Map<Class<?>, Map<String, WeakReference<LibFunctionInvoker>>> invokers =
+            new WeakHashMap<>();
+
     @Override
     public abstract void register() throws LuaException;
 
@@ -64,6 +72,34 @@ public abstract class LuaLib implements ILuaLib {
         return functionWrapper;
     }
 
+    /**
+     * Returns an invoker for the given library method. Invokers are generated once per method and shared between
+     * all instances of the library class.
+     */
+    static LibFunctionInvoker getInvoker(Class<?> libClass, String javaMethodName, Class<?>[] parameterTypes)
+            throws NoSuchMethodException {
+
+        synchronized (invokers) {
+            Map<String, WeakReference<LibFunctionInvoker>> classInvokers = invokers.get(libClass);
+            if (classInvokers == null) {
+                classInvokers = new HashMap<>();
+                invokers.put(libClass, classInvokers);
+            }
+
+            WeakReference<LibFunctionInvoker> ref = classInvokers.get(javaMethodName);
+            LibFunctionInvoker invoker = (ref != null ? ref.get() : null);
+            if (invoker == null) {
+                Method method = libClass.getMethod(javaMethodName, parameterTypes);
+                invoker = LibInvokerCompiler.compile(method);
+                if (invoker == null) {
+                    invoker = new ReflectionInvoker(method);
+                }
+                classInvokers.put(javaMethodName, new WeakReference<>(invoker));
+            }
+            return invoker;
+        }
+    }
+
     @LuaSerializable
     private static class FunctionWrapper extends VarArgFunction {
 
@@ -73,7 +109,7 @@ public abstract class LuaLib implements ILuaLib {
         private final String javaMethodName;
         private final Class<?>[] parameterTypes;
 
-        private transient Method method;
+        private transient LibFunctionInvoker invoker;
 
         public FunctionWrapper(LuaLib object, String luaMethodName, String javaMethodName, Class<?>[] parameterTypes) {
             name = luaMethodName;
@@ -86,22 +122,11 @@ public abstract class LuaLib implements ILuaLib {
         @Override
         public Varargs invoke(Varargs args) {
             try {
-                if (method == null) {
-                    method = object.getClass().getMethod(javaMethodName, parameterTypes);
-                }
-                Object result = method.invoke(object, args);
-                if (result instanceof Varargs) {
-                    return (Varargs)result;
-                } else if (result == null && method.getReturnType() == Void.TYPE) {
-                    return LuaConstants.NONE;
-                } else {
-                    // This may happen if the methods return type changed (can happen due to serialization)
-                    throw new LuaException("Java method (" + method + ") returned non-varargs: "
-                            + (result != null ? result.getClass().getName() : "null"));
+                if (invoker == null) {
+                    invoker = getInvoker(object.getClass(), javaMethodName, parameterTypes);
                 }
-            } catch (InvocationTargetException ite) {
-                throw LuaException.wrap(createErrorMessage(args, ite.getCause()), ite.getCause());
-            } catch (Exception e) {
+                return invoker.invoke(object, args);
+            } catch (Exception | StackOverflowError e) {
                 throw LuaException.wrap(createErrorMessage(args, e), e);
             }
         }
@@ -120,4 +145,42 @@ public abstract class LuaLib implements ILuaLib {
         }
     }
 
+    /** Fallback for platforms which don't support runtime class generation. */
+    private static final class ReflectionInvoker extends LibFunctionInvoker {
+
+        private final Method method;
+
+        ReflectionInvoker(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        public Varargs invoke(LuaLib lib, Varargs args) {
+            Object result;
+            try {
+                result = method.invoke(lib, args);
+            } catch (InvocationTargetException ite) {
+                Throwable cause = ite.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw LuaException.wrap("Error invoking Java method: " + method, cause);
+            } catch (IllegalAccessException e) {
+                throw LuaException.wrap("Error invoking Java method: " + method, e);
+            }
+
+            if (result instanceof Varargs) {
+                return (Varargs)result;
+            } else if (result == null && method.getReturnType() == Void.TYPE) {
+                return LuaConstants.NONE;
+            } else {
+                // This may happen if the methods return type changed (can happen due to serialization)
+                throw new LuaException("Java method (" + method + ") returned non-varargs: "
+                        + (result != null ? result.getClass().getName() : "null"));
+            }
+        }
+    }
+
 }
@@ -7,7 +7,8 @@ import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -34,12 +35,17 @@ final class ClassMetaTable extends LuaTable implements IWriteReplaceSerializable
     private JavaClass classInfo;
     private LuaFunction metaIndex;
     private LuaFunction metaNewIndex;
-    private transient ArrayList<LuaMethod> cachedMethods;
+    private transient Map<LuaString, LuaMethod> methods;
     //--- Uses manual serialization, don't add variables ---
 
     ClassMetaTable(JavaClass ci) {
         classInfo = ci;
-        cachedMethods = new ArrayList<>();
+
+        // Create all methods up front, so the metatable doesn't change after construction (and is thread-safe)
+        methods = new HashMap<>();
+        for (LuaString methodName : ci.getMethodNames()) {
+            methods.put(methodName, new LuaMethod(ci, methodName));
+        }
 
         metaIndex = newMetaFunction(classInfo, this, true);
         metaNewIndex = newMetaFunction(classInfo, this, false);
@@ -120,21 +126,7 @@ final class ClassMetaTable extends LuaTable implements IWriteReplaceSerializable
     }
 
     @Nullable LuaMethod getMethod(LuaValue name) {
-        final int cachedMethodsL = cachedMethods.size();
-        for (int n = 0; n < cachedMethodsL; n++) {
-            LuaMethod method = cachedMethods.get(n);
-            if (name.equals(method.methodName)) {
-                return method;
-            }
-        }
-
-        if (classInfo.hasMethod(name)) {
-            LuaMethod method = new LuaMethod(classInfo, name);
-            cachedMethods.add(method);
-            return method;
-        }
-
-        return null;
+        return methods.get(name);
     }
 
     @LuaSerializable
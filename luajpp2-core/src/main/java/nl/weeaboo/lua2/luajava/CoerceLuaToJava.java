@@ -19,6 +19,10 @@ public final class CoerceLuaToJava {
     }
 
     static void coerceArgs(Object[] out, Varargs luaArgs, List<Class<?>> javaParams) {
+        coerceArgs(ITypeCoercions.getCurrent(), out, luaArgs, javaParams);
+    }
+
+    static void coerceArgs(ITypeCoercions typeCoercions, Object[] out, Varargs luaArgs, List<Class<?>> javaParams) {
         final int jlen = javaParams.size();
         if (jlen == 0) {
             return;
@@ -30,7 +34,7 @@ public final class CoerceLuaToJava {
 
         // Treat java functions ending in an array param as varargs
         for (int n = 0; n < jlast; n++) {
-            out[n] = coerceArg(luaArgs.arg(1 + n), javaParams.get(n));
+            out[n] = typeCoercions.toJava(luaArgs.arg(1 + n), javaParams.get(n));
         }
 
         final int vaCount = llen - jlast;
@@ -40,17 +44,17 @@ public final class CoerceLuaToJava {
                     .getComponentType();
             Object temp = Array.newInstance(vaType, vaCount);
             for (int n = 0; n < vaCount; n++) {
-                Array.set(temp, n, coerceArg(luaArgs.arg(1 + jlast + n), vaType));
+                Array.set(temp, n, typeCoercions.toJava(luaArgs.arg(1 + jlast + n), vaType));
             }
             out[jlast] = temp;
         } else if (llen > jlen && javaParams.get(jlast) == Varargs.class) {
             out[jlast] = luaArgs.subargs(1 + jlast);
         } else {
             if (jlast >= 0) {
-                out[jlast] = coerceArg(luaArgs.arg(1 + jlast), javaParams.get(jlast));
+                out[jlast] = typeCoercions.toJava(luaArgs.arg(1 + jlast), javaParams.get(jlast));
             }
             for (int n = minlen; n < jlen; n++) {
-                out[n] = CoerceLuaToJava.coerceArg(NIL, javaParams.get(n));
+                out[n] = typeCoercions.toJava(NIL, javaParams.get(n));
             }
         }
     }
@@ -72,6 +76,10 @@ public final class CoerceLuaToJava {
      * @return The score, lower scores are better matches
      */
     public static int scoreParamTypes(Varargs luaArgs, List<Class<?>> javaParams) {
+        return scoreParamTypes(ITypeCoercions.getCurrent(), luaArgs, javaParams);
+    }
+
+    static int scoreParamTypes(ITypeCoercions typeCoercions, Varargs luaArgs, List<Class<?>> javaParams) {
         // Init score & minimum length
         int score;
         final int llen = luaArgs.narg();
@@ -90,7 +98,6 @@ public final class CoerceLuaToJava {
         }
 
         // Compare args
-        ITypeCoercions typeCoercions = ITypeCoercions.getCurrent();
         for (int n = 0; n < len; n++) {
             score += typeCoercions.scoreParam(luaArgs.arg(1 + n), javaParams.get(n));
         }
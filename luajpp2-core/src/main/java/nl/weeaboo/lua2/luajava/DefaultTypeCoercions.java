@@ -202,13 +202,22 @@ enum DefaultTypeCoercions implements ITypeCoercions {
      *
      * @return The type coercion, or {@code null} if not found.
      */
-    private <T> ILuaToJava<T> findLuaToJava(Class<T> javaType) {
+    <T> ILuaToJava<T> findLuaToJava(Class<T> javaType) {
         // This cast is safe -- coercions are stored mapped from Class<T> -> ILuaToJava<T>
         @SuppressWarnings("unchecked")
         ILuaToJava<T> typed = (ILuaToJava<T>)luaToJavaCoercions.get(javaType);
         return typed;
     }
 
+    /**
+     * Returns the registered type coercion for converting Java objects of the given type to Lua objects.
+     *
+     * @return The type coercion, or {@code null} if not found.
+     */
+    @Nullable IJavaToLua findJavaToLua(Class<?> javaType) {
+        return javaToLuaCoercions.get(javaType);
+    }
+
     private interface JavaToLua {
         IJavaToLua NULL = new IJavaToLua() {
             @Override
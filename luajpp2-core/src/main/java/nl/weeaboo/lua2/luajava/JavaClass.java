@@ -6,8 +6,11 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -34,15 +37,25 @@ final class JavaClass implements IWriteReplaceSerializable {
     private final Class<?> clazz;
     private final boolean isArray;
 
-    private transient ClassMetaTable metaTable;
-
-    private transient JavaConstructor[] constrs;
-    private transient Map<LuaString, Field> fields;
-    private transient Map<LuaString, JavaMethod[]> methods;
+    /*
+     * Reflection data is collected up front, so instances are effectively immutable and can be shared between threads
+     * (and run states) without synchronization.
+     */
+    private final transient JavaConstructor[] constrs;
+    private final transient Map<LuaString, Field> fields;
+    private final transient Map<LuaString, JavaMethod[]> methods;
+    private final transient ClassMetaTable metaTable;
 
     public JavaClass(Class<?> c) {
         clazz = c;
         isArray = c.isArray();
+
+        constrs = findConstructors(c);
+        fields = findFields(c);
+        methods = findMethods(c);
+
+        // Must be done last, the metatable needs the methods
+        metaTable = new ClassMetaTable(this);
     }
 
     @Override
@@ -107,63 +120,106 @@ final class JavaClass implements IWriteReplaceSerializable {
     }
 
     public JavaConstructor[] getConstructors() {
-        if (constrs == null) {
-            Constructor<?>[] cs = clazz.getConstructors();
+        return constrs;
+    }
 
-            JavaConstructor[] result = new JavaConstructor[cs.length];
-            for (int n = 0; n < cs.length; n++) {
-                result[n] = new JavaConstructor(cs[n]);
-            }
-            constrs = result;
+    private static JavaConstructor[] findConstructors(Class<?> clazz) {
+        Constructor<?>[] cs = clazz.getConstructors();
+
+        JavaConstructor[] result = new JavaConstructor[cs.length];
+        for (int n = 0; n < cs.length; n++) {
+            result[n] = new JavaConstructor(cs[n]);
         }
-        return constrs;
+        return result;
     }
 
     public ClassMetaTable getMetatable() {
-        if (metaTable == null) {
-            metaTable = new ClassMetaTable(this);
-        }
         return metaTable;
     }
 
     public @Nullable Field getField(LuaValue name) {
-        if (fields == null) {
-            fields = new HashMap<>();
-            for (Field f : clazz.getFields()) {
-                fields.put(valueOf(f.getName()), f);
-            }
-        }
         return fields.get(name);
     }
 
+    private static Map<LuaString, Field> findFields(Class<?> clazz) {
+        Map<LuaString, Field> result = new HashMap<>();
+        for (Field f : clazz.getFields()) {
+            result.put(valueOf(f.getName()), f);
+        }
+        return result;
+    }
+
     public JavaMethod[] getMethods(LuaValue name) {
-        if (methods == null) {
-            Method[] marr = clazz.getMethods();
-            Arrays.sort(marr, methodSorter);
+        return methods.get(name);
+    }
+
+    /** Returns the names of all public methods. */
+    Collection<LuaString> getMethodNames() {
+        return Collections.unmodifiableSet(methods.keySet());
+    }
+
+    private static Map<LuaString, JavaMethod[]> findMethods(Class<?> clazz) {
+        Method[] marr = clazz.getMethods();
+        Arrays.sort(marr, methodSorter);
+
+        Map<LuaString, JavaMethod[]> result = new HashMap<>();
+
+        String curName = null;
+        List<JavaMethod> list = new ArrayList<>();
+        for (Method m : marr) {
+            if (!m.getName().equals(curName)) {
+                if (curName != null) {
+                    result.put(valueOf(curName), list.toArray(new JavaMethod[list.size()]));
+                }
+                curName = m.getName();
+                list.clear();
+            }
+            list.add(new JavaMethod(toAccessibleMethod(clazz, m)));
+        }
 
-            methods = new HashMap<>();
+        if (curName != null) {
+            result.put(LuaString.valueOf(curName), list.toArray(new JavaMethod[list.size()]));
+        }
+        return result;
+    }
 
-            String curName = null;
-            List<JavaMethod> list = new ArrayList<>();
-            for (Method m : marr) {
-                // Workaround for https://bugs.openjdk.java.net/browse/JDK-4283544
-                m.setAccessible(true);
+    /**
+     * Public methods inherited from a non-public class can't be called through reflection without calling
+     * {@link Method#setAccessible(boolean)} first (https://bugs.openjdk.java.net/browse/JDK-4283544). That fails for
+     * classes in modules that aren't open to us, such as {@code Collections.unmodifiableList()}'s implementation
+     * class. The same method declared by a public supertype is used instead, if there is one.
+     */
+    private static Method toAccessibleMethod(Class<?> clazz, Method m) {
+        try {
+            m.setAccessible(true);
+            return m;
+        } catch (RuntimeException e) {
+            // InaccessibleObjectException (Java 9+) or SecurityException
+        }
 
-                if (!m.getName().equals(curName)) {
-                    if (curName != null) {
-                        methods.put(valueOf(curName), list.toArray(new JavaMethod[list.size()]));
+        List<Class<?>> supertypes = new ArrayList<>();
+        supertypes.add(clazz);
+        for (int n = 0; n < supertypes.size(); n++) {
+            Class<?> type = supertypes.get(n);
+            if (Modifier.isPublic(type.getModifiers())) {
+                try {
+                    Method declared = type.getDeclaredMethod(m.getName(), m.getParameterTypes());
+                    if (Modifier.isPublic(declared.getModifiers())) {
+                        return declared;
                     }
-                    curName = m.getName();
-                    list.clear();
+                } catch (NoSuchMethodException e) {
+                    // Not declared by this type, try its supertypes
                 }
-                list.add(new JavaMethod(m));
             }
 
-            if (curName != null) {
-                methods.put(LuaString.valueOf(curName), list.toArray(new JavaMethod[list.size()]));
+            if (type.getSuperclass() != null) {
+                supertypes.add(type.getSuperclass());
             }
+            supertypes.addAll(Arrays.asList(type.getInterfaces()));
         }
-        return methods.get(name);
+
+        // Fails with an IllegalAccessException if it's ever called
+        return m;
     }
 
     public boolean hasMethod(LuaValue name) {
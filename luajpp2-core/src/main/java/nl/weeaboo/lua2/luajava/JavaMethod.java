@@ -5,6 +5,8 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import nl.weeaboo.lua2.vm.LuaValue;
 import nl.weeaboo.lua2.vm.Varargs;
 
@@ -15,25 +17,85 @@ final class JavaMethod {
     private final Method method;
     private final List<Class<?>> paramTypes;
     private final int paramCount;
+    private final Class<?> returnType;
+    private final boolean hasArrayParam;
+
+    /*
+     * Coercions resolved in advance from the default type coercions, so they don't need to be looked up for every
+     * call. Only used while the default type coercions are active.
+     */
+    private final @Nullable ILuaToJava<?>[] primitiveParamCoercions;
+    private final @Nullable IJavaToLua returnCoercion;
 
     public JavaMethod(Method m) {
         method = m;
         paramTypes = Arrays.asList(m.getParameterTypes());
         paramCount = paramTypes.size();
+        returnType = m.getReturnType();
+
+        boolean arrayParam = false;
+        for (Class<?> paramType : paramTypes) {
+            arrayParam |= paramType.isArray();
+        }
+        hasArrayParam = arrayParam;
+
+        primitiveParamCoercions = findPrimitiveParamCoercions(paramTypes);
+        returnCoercion = DefaultTypeCoercions.INSTANCE.findJavaToLua(returnType);
+    }
+
+    /**
+     * Returns the coercions for each of the parameters if all parameters have a primitive type, or {@code null}
+     * otherwise. For primitive types, the default type coercions always use the registered coercion.
+     */
+    private static @Nullable ILuaToJava<?>[] findPrimitiveParamCoercions(List<Class<?>> paramTypes) {
+        if (paramTypes.isEmpty()) {
+            return null;
+        }
+
+        ILuaToJava<?>[] result = new ILuaToJava<?>[paramTypes.size()];
+        for (int n = 0; n < result.length; n++) {
+            Class<?> paramType = paramTypes.get(n);
+            if (!paramType.isPrimitive()) {
+                return null;
+            }
+            result[n] = DefaultTypeCoercions.INSTANCE.findLuaToJava(paramType);
+            if (result[n] == null) {
+                return null;
+            }
+        }
+        return result;
     }
 
     public LuaValue luaInvoke(Object instance, Varargs args)
             throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
 
+        return luaInvoke(ITypeCoercions.getCurrent(), instance, args);
+    }
+
+    LuaValue luaInvoke(ITypeCoercions typeCoercions, Object instance, Varargs args)
+            throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+
+        final boolean defaultCoercions = (typeCoercions == DefaultTypeCoercions.INSTANCE);
+
         Object[] javaArgs = EMPTY_ARGS;
         if (paramCount > 0) {
             javaArgs = new Object[paramCount];
-            CoerceLuaToJava.coerceArgs(javaArgs, args, paramTypes);
+            if (defaultCoercions && primitiveParamCoercions != null) {
+                // Missing args are passed as nil, just like CoerceLuaToJava.coerceArgs does
+                for (int n = 0; n < paramCount; n++) {
+                    javaArgs[n] = primitiveParamCoercions[n].toJava(args.arg(1 + n));
+                }
+            } else {
+                CoerceLuaToJava.coerceArgs(typeCoercions, javaArgs, args, paramTypes);
+            }
         }
 
         Object javaResult = method.invoke(instance, javaArgs);
 
-        return CoerceJavaToLua.coerce(javaResult, method.getReturnType());
+        if (defaultCoercions && returnCoercion != null && javaResult != null) {
+            return returnCoercion.toLua(javaResult);
+        }
+        return typeCoercions.toLua(javaResult, returnType);
     }
 
     public List<Class<?>> getParamTypes() {
@@ -41,7 +103,14 @@ final class JavaMethod {
     }
 
     public Class<?> getReturnType() {
-        return method.getReturnType();
+        return returnType;
+    }
+
+    /**
+     * @return {@code true} if any of the parameters has an array type.
+     */
+    boolean hasArrayParam() {
+        return hasArrayParam;
     }
 
-}
\ No newline at end of file
+}
@@ -10,6 +10,9 @@ import nl.weeaboo.lua2.io.IReadResolveSerializable;
 import nl.weeaboo.lua2.io.IWriteReplaceSerializable;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.lib.VarArgFunction;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaTable;
+import nl.weeaboo.lua2.vm.LuaUserdata;
 import nl.weeaboo.lua2.vm.LuaValue;
 import nl.weeaboo.lua2.vm.Varargs;
 
@@ -18,14 +21,30 @@ final class LuaMethod extends VarArgFunction implements IWriteReplaceSerializabl
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of resolved overloads to remember for methods with multiple overloads. */
+    private static final int OVERLOAD_CACHE_SIZE = 4;
+
+    /** Signature type for string args which can be converted to a number (these score differently). */
+    private static final Object NUMERIC_STRING = new Object();
+
     final JavaClass classInfo;
     final LuaValue methodName;
 
-    private transient JavaMethod[] javaMethods;
+    private final transient JavaMethod[] javaMethods;
+
+    /*
+     * Class metadata is shared between threads, but these fields are deliberately not volatile or synchronized. A
+     * thread may miss entries stored by another thread, or overwrite them, which just means the best overload is
+     * looked up again. Entries only have final fields, so a thread that does see an entry always sees it complete.
+     * The stored index is always in range, so a stale overloadCacheNext is harmless as well.
+     */
+    private transient OverloadCacheEntry[] overloadCache;
+    private transient int overloadCacheNext;
 
     public LuaMethod(JavaClass c, LuaValue nm) {
         classInfo = c;
         methodName = nm;
+        javaMethods = c.getMethods(nm);
     }
 
     @Override
@@ -49,12 +68,13 @@ final class LuaMethod extends VarArgFunction implements IWriteReplaceSerializabl
         Varargs methodArgs = args.subargs(2);
 
         try {
-            JavaMethod method = findMethod(methodArgs);
+            ITypeCoercions typeCoercions = ITypeCoercions.getCurrent();
+            JavaMethod method = findMethod(typeCoercions, methodArgs);
             if (method == null) {
                 throw new NoSuchMethodException();
             }
 
-            return method.luaInvoke(instance, methodArgs);
+            return method.luaInvoke(typeCoercions, instance, methodArgs);
         } catch (InvocationTargetException ite) {
             throw invokeError(args, ite.getCause());
         } catch (Exception e) {
@@ -68,17 +88,40 @@ final class LuaMethod extends VarArgFunction implements IWriteReplaceSerializabl
     }
 
     protected @Nullable JavaMethod findMethod(Varargs args) {
-        JavaMethod[] methods = getMatchingJavaMethods();
+        return findMethod(ITypeCoercions.getCurrent(), args);
+    }
+
+    private @Nullable JavaMethod findMethod(ITypeCoercions typeCoercions, Varargs args) {
+        JavaMethod[] methods = javaMethods;
         if (methods.length == 1) {
             // Fast path: No need to score alternatives if there's only one method
             return methods[0];
         }
 
+        /*
+         * The default type coercions score params based only on their signature type. Custom type coercions may look
+         * at the actual values, so their results can't be cached.
+         */
+        boolean cacheable = (typeCoercions == DefaultTypeCoercions.INSTANCE) && isSignatureCacheable(methods, args);
+        OverloadCacheEntry[] cache = null;
+        if (cacheable) {
+            cache = overloadCache;
+            if (cache == null) {
+                cache = new OverloadCacheEntry[OVERLOAD_CACHE_SIZE];
+                overloadCache = cache;
+            }
+            for (OverloadCacheEntry entry : cache) {
+                if (entry != null && entry.matches(args)) {
+                    return entry.method;
+                }
+            }
+        }
+
         JavaMethod bestMatch = null;
         int bestScore = Integer.MAX_VALUE;
         for (JavaMethod curMethod : methods) {
             List<Class<?>> params = curMethod.getParamTypes();
-            int score = CoerceLuaToJava.scoreParamTypes(args, params);
+            int score = CoerceLuaToJava.scoreParamTypes(typeCoercions, args, params);
             if (score <= bestScore) {
                 if (bestMatch != null && score == bestScore) {
                     // Parameter score is equal, select the method with the more specific return type
@@ -92,14 +135,69 @@ final class LuaMethod extends VarArgFunction implements IWriteReplaceSerializabl
             }
         }
 
+        if (cache != null && bestMatch != null) {
+            // Replace the entries in round-robin order
+            int index = overloadCacheNext;
+            cache[index] = new OverloadCacheEntry(args, bestMatch);
+            overloadCacheNext = (index + 1) % OVERLOAD_CACHE_SIZE;
+        }
         return bestMatch;
     }
 
-    private JavaMethod[] getMatchingJavaMethods() {
-        if (javaMethods == null) {
-            javaMethods = classInfo.getMethods(methodName);
+    /**
+     * When a table is passed for an array param, the score depends on the contents of the table.
+     */
+    private static boolean isSignatureCacheable(JavaMethod[] methods, Varargs args) {
+        for (int n = 1; n <= args.narg(); n++) {
+            if (args.arg(n) instanceof LuaTable) {
+                for (JavaMethod method : methods) {
+                    if (method.hasArrayParam()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the type of the arg as far as the default type coercions are concerned when scoring overloads.
+     */
+    private static Object getSignatureType(LuaValue arg) {
+        if (arg instanceof LuaUserdata) {
+            return ((LuaUserdata)arg).userdata().getClass();
+        } else if (arg instanceof LuaString && arg.isnumber()) {
+            return NUMERIC_STRING;
+        }
+        return arg.getClass();
+    }
+
+    /** Immutable, so entries can be safely shared between threads without synchronization. */
+    private static final class OverloadCacheEntry {
+
+        private final Object[] signature;
+        final JavaMethod method;
+
+        OverloadCacheEntry(Varargs args, JavaMethod method) {
+            signature = new Object[args.narg()];
+            for (int n = 0; n < signature.length; n++) {
+                signature[n] = getSignatureType(args.arg(1 + n));
+            }
+            this.method = method;
+        }
+
+        boolean matches(Varargs args) {
+            if (args.narg() != signature.length) {
+                return false;
+            }
+            for (int n = 0; n < signature.length; n++) {
+                if (signature[n] != getSignatureType(args.arg(1 + n))) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return javaMethods;
     }
 
     @LuaSerializable
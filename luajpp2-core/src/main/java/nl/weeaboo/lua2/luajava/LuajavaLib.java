@@ -23,8 +23,8 @@
 package nl.weeaboo.lua2.luajava;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.io.LuaSerializable;
@@ -43,7 +43,8 @@ public final class LuajavaLib extends LuaModule {
 
     private static final long serialVersionUID = 2L;
 
-    private static final Map<Class<?>, JavaClass> classInfoMap = new HashMap<>();
+    /** Shared between all threads and run states. {@link JavaClass} instances are immutable. */
+    private static final ConcurrentMap<Class<?>, JavaClass> classInfoMap = new ConcurrentHashMap<>();
 
     private boolean allowUnsafeClassLoading;
 
@@ -123,8 +124,12 @@ public final class LuajavaLib extends LuaModule {
     static JavaClass getClassInfo(Class<?> clazz) {
         JavaClass info = classInfoMap.get(clazz);
         if (info == null) {
-            info = new JavaClass(clazz);
-            classInfoMap.put(clazz, info);
+            // If another thread got there first, use its instance so the metatables are shared
+            JavaClass newInfo = new JavaClass(clazz);
+            info = classInfoMap.putIfAbsent(clazz, newInfo);
+            if (info == null) {
+                info = newInfo;
+            }
         }
         return info;
     }
@@ -0,0 +1,74 @@
+package nl.weeaboo.lua2.profiler;
+
+/**
+ * Profiling results for a single Lua function.
+ *
+ * @see ProfileReport#getFunctions()
+ */
+public final class FunctionStats {
+
+    private final String name;
+    private final String fileName;
+    private final int lineDefined;
+    private final long calls;
+    private final long selfSamples;
+    private final long totalSamples;
+
+    FunctionStats(String name, String fileName, int lineDefined, long calls, long selfSamples, long totalSamples) {
+        this.name = name;
+        this.fileName = fileName;
+        this.lineDefined = lineDefined;
+        this.calls = calls;
+        this.selfSamples = selfSamples;
+        this.totalSamples = totalSamples;
+    }
+
+    /**
+     * The name of the function, as determined from the code calling it. Returns {@code "?"} if the name is unknown.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The file name of the source file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * The line in the source file on which the function is defined, or {@code 0} for a main chunk.
+     */
+    public int getLineDefined() {
+        return lineDefined;
+    }
+
+    /**
+     * The number of times the function was called.
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * The number of samples in which the function was executing (exclusive time).
+     */
+    public long getSelfSamples() {
+        return selfSamples;
+    }
+
+    /**
+     * The number of samples in which the function was on the call stack (inclusive time).
+     */
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s:%d) calls=%d, self=%d, total=%d",
+                name, fileName, lineDefined, calls, selfSamples, totalSamples);
+    }
+
+}
@@ -0,0 +1,77 @@
+package nl.weeaboo.lua2.profiler;
+
+/**
+ * Profiling results for a single line of Lua code.
+ *
+ * @see ProfileReport#getLines()
+ */
+public final class LineStats {
+
+    private final String functionName;
+    private final String fileName;
+    private final int line;
+    private final long calls;
+    private final long selfSamples;
+    private final long totalSamples;
+
+    LineStats(String functionName, String fileName, int line, long calls, long selfSamples, long totalSamples) {
+        this.functionName = functionName;
+        this.fileName = fileName;
+        this.line = line;
+        this.calls = calls;
+        this.selfSamples = selfSamples;
+        this.totalSamples = totalSamples;
+    }
+
+    /**
+     * The name of the function containing the line.
+     *
+     * @see FunctionStats#getName()
+     */
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    /**
+     * The file name of the source file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * The line number in the source file, or {@code -1} if unknown.
+     */
+    public int getLineNumber() {
+        return line;
+    }
+
+    /**
+     * The number of Lua function calls made from this line.
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * The number of samples in which this line was executing (exclusive time).
+     */
+    public long getSelfSamples() {
+        return selfSamples;
+    }
+
+    /**
+     * The number of samples in which this line was executing, or was waiting for a function called from this line to
+     * return (inclusive time).
+     */
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s:%d) calls=%d, self=%d, total=%d",
+                functionName, fileName, line, calls, selfSamples, totalSamples);
+    }
+
+}
@@ -0,0 +1,488 @@
+package nl.weeaboo.lua2.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.stdlib.DebugTrace;
+import nl.weeaboo.lua2.vm.LuaThread;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Sampling profiler for Lua code.
+ * <p>
+ * While running, a background thread periodically records the call stack of the Lua thread that's currently running
+ * in the profiled {@link LuaRunState}. The samples are aggregated into self/total time per function and per source
+ * line, and into collapsed stacks which can be turned into a flame graph. Function calls are counted exactly, by the
+ * interpreter.
+ * <p>
+ * Only Lua functions appear in the results. Time spent in Java functions is attributed to the line of the Lua
+ * function that called them. Functions compiled to Java bytecode (see {@link LuaRunState#getCompileThreshold()})
+ * don't have a stack frame, so their time is attributed to their caller and their calls aren't counted.
+ *
+ * <pre>
+ * LuaProfiler profiler = new LuaProfiler(luaRunState);
+ * profiler.start();
+ * ...
+ * profiler.stop();
+ * profiler.getReport().writeCollapsedStacks(writer, false);
+ * </pre>
+ */
+public final class LuaProfiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LuaProfiler.class);
+
+    /** Maximum number of stack frames recorded per sample. Deeper frames (closest to the root) are dropped. */
+    private static final int MAX_SAMPLE_DEPTH = 256;
+
+    private final LuaRunState luaRunState;
+    private long sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private @Nullable ScheduledExecutorService sampler;
+
+    /*
+     * Updated on every call by the thread running the Lua code, so it doesn't use the lock taken by the sampler.
+     * Prototypes use identity equality.
+     */
+    private final ConcurrentMap<Prototype, CallCounts> callCounts = new ConcurrentHashMap<>();
+
+    // --- Guarded by this ---
+    private final Map<Prototype, FunctionData> functions = new IdentityHashMap<>();
+    private final Map<StackKey, long[]> stacks = new HashMap<>();
+    private final Map<Prototype, Map<Integer, String>> calledNames = new IdentityHashMap<>();
+    private final Prototype[] samplePrototypes = new Prototype[MAX_SAMPLE_DEPTH];
+    private final int[] samplePcs = new int[MAX_SAMPLE_DEPTH];
+    private long sampleCount;
+    // --- Guarded by this ---
+
+    public LuaProfiler(LuaRunState luaRunState) {
+        this.luaRunState = luaRunState;
+    }
+
+    /**
+     * Starts sampling and attaches the profiler to the Lua context, replacing any previously attached profiler. Does
+     * nothing if this profiler is already running.
+     *
+     * @see #stop()
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+
+        LuaProfiler previous = luaRunState.getProfiler();
+        if (previous != null) {
+            previous.stop();
+        }
+        luaRunState.setProfiler(this);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LuaProfiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::sample, sampleIntervalNanos, sampleIntervalNanos, TimeUnit.NANOSECONDS);
+        sampler = executor;
+    }
+
+    /**
+     * Stops sampling and detaches the profiler from the Lua context. The results collected so far are kept.
+     *
+     * @see #getReport()
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized void stop() {
+        if (sampler == null) {
+            return;
+        }
+
+        sampler.shutdownNow();
+        sampler = null;
+
+        if (luaRunState.getProfiler() == this) {
+            luaRunState.setProfiler(null);
+        }
+    }
+
+    /** Returns {@code true} if the profiler is currently sampling. */
+    public synchronized boolean isRunning() {
+        return sampler != null;
+    }
+
+    /** Discards the results collected so far. */
+    public synchronized void reset() {
+        callCounts.clear();
+        functions.clear();
+        stacks.clear();
+        calledNames.clear();
+        sampleCount = 0;
+    }
+
+    /**
+     * Returns the time between samples.
+     */
+    public synchronized long getSampleInterval(TimeUnit unit) {
+        return unit.convert(sampleIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time between samples. Changes take effect the next time the profiler is started. The default is one
+     * millisecond.
+     */
+    public synchronized void setSampleInterval(long interval, TimeUnit unit) {
+        long nanos = unit.toNanos(interval);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("Invalid sample interval: " + interval + " " + unit);
+        }
+        sampleIntervalNanos = nanos;
+    }
+
+    /**
+     * Called by the interpreter whenever a Lua function is called while the profiler is attached.
+     *
+     * @param function The called function.
+     * @param caller The function making the call, or {@code null} if unknown (tail calls, or functions called from
+     *        Java).
+     * @param callerPc Index of the call instruction in {@code caller}.
+     */
+    public void onCall(Prototype function, @Nullable Prototype caller, int callerPc) {
+        getCallCounts(function).calls.incrementAndGet();
+
+        if (caller != null) {
+            AtomicLongArray callsByPc = getCallCounts(caller).callsByPc;
+            if (callerPc >= 0 && callerPc < callsByPc.length()) {
+                callsByPc.incrementAndGet(callerPc);
+            }
+        }
+    }
+
+    private CallCounts getCallCounts(Prototype prototype) {
+        CallCounts counts = callCounts.get(prototype);
+        if (counts == null) {
+            counts = new CallCounts(prototype.code.length);
+            CallCounts existing = callCounts.putIfAbsent(prototype, counts);
+            if (existing != null) {
+                counts = existing;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Records the call stack of the Lua thread that's currently running, if any. Called periodically from the
+     * sampler thread while the profiler is running.
+     */
+    synchronized void sample() {
+        try {
+            LuaThread thread = luaRunState.getRunningThread();
+            if (!thread.isRunning()) {
+                return; // Lua isn't running, nothing to sample
+            }
+
+            int depth = thread.sampleCallstack(samplePrototypes, samplePcs);
+            if (depth > 0) {
+                addSample(depth);
+            }
+        } catch (RuntimeException e) {
+            // The call stack is read while it's being modified, so a sample can occasionally be inconsistent
+            LOG.trace("Discarded inconsistent sample", e);
+        } finally {
+            // Don't keep the prototypes alive
+            Arrays.fill(samplePrototypes, null);
+        }
+    }
+
+    private void addSample(int depth) {
+        final long sampleId = ++sampleCount;
+
+        Frame[] frames = new Frame[depth];
+        for (int n = 0; n < depth; n++) {
+            Prototype prototype = samplePrototypes[n];
+            FunctionData function = getFunctionData(prototype);
+            if (function.name == null && n + 1 < depth) {
+                // Determine the name of the function from its call site
+                String name = getCalledName(samplePrototypes[n + 1], samplePcs[n + 1]);
+                if (!name.equals("?")) {
+                    function.name = name;
+                }
+            }
+
+            int line = getLine(prototype, samplePcs[n]);
+            LineData lineData = function.getLineData(line);
+            if (n == 0) {
+                function.selfSamples++;
+                lineData.selfSamples++;
+            }
+
+            // Recursive calls only count once towards the total
+            if (function.lastSampleId != sampleId) {
+                function.lastSampleId = sampleId;
+                function.totalSamples++;
+            }
+            if (lineData.lastSampleId != sampleId) {
+                lineData.lastSampleId = sampleId;
+                lineData.totalSamples++;
+            }
+
+            // Collapsed stacks are ordered from the root to the leaf
+            frames[depth - 1 - n] = new Frame(prototype, line);
+        }
+
+        getOrCreate(stacks, new StackKey(frames))[0]++;
+    }
+
+    private FunctionData getFunctionData(Prototype prototype) {
+        FunctionData data = functions.get(prototype);
+        if (data == null) {
+            data = new FunctionData();
+            functions.put(prototype, data);
+        }
+        return data;
+    }
+
+    private String getCalledName(Prototype caller, int pc) {
+        Map<Integer, String> names = calledNames.get(caller);
+        if (names == null) {
+            names = new HashMap<>();
+            calledNames.put(caller, names);
+        }
+
+        String name = names.get(pc);
+        if (name == null) {
+            name = DebugTrace.getCalledFunctionName(caller, pc);
+            names.put(pc, name);
+        }
+        return name;
+    }
+
+    private static int getLine(Prototype prototype, int pc) {
+        int[] lineinfo = prototype.lineinfo;
+        if (lineinfo == null || pc < 0 || pc >= lineinfo.length) {
+            return -1;
+        }
+        return lineinfo[pc];
+    }
+
+    /**
+     * Returns a snapshot of the results collected so far.
+     */
+    public synchronized ProfileReport getReport() {
+        // Functions which were called but never sampled are included as well
+        Set<Prototype> prototypes = Collections.newSetFromMap(new IdentityHashMap<Prototype, Boolean>());
+        prototypes.addAll(functions.keySet());
+        prototypes.addAll(callCounts.keySet());
+
+        List<FunctionStats> functionStats = new ArrayList<>();
+        List<LineStats> lineStats = new ArrayList<>();
+        for (Prototype prototype : prototypes) {
+            FunctionData data = functions.get(prototype);
+            if (data == null) {
+                data = new FunctionData();
+            }
+            CallCounts counts = callCounts.get(prototype);
+
+            Map<Integer, long[]> lineCalls = new HashMap<>();
+            if (counts != null) {
+                for (int pc = 0; pc < counts.callsByPc.length(); pc++) {
+                    long calls = counts.callsByPc.get(pc);
+                    if (calls != 0) {
+                        getOrCreate(lineCalls, getLine(prototype, pc))[0] += calls;
+                    }
+                }
+            }
+
+            String source = getSourceName(prototype);
+            String name = getFunctionName(prototype, data);
+            functionStats.add(new FunctionStats(name, source, prototype.linedefined,
+                    (counts != null ? counts.calls.get() : 0), data.selfSamples, data.totalSamples));
+            for (Map.Entry<Integer, LineData> lineEntry : data.lines.entrySet()) {
+                Integer line = lineEntry.getKey();
+                LineData lineData = lineEntry.getValue();
+                long[] calls = lineCalls.remove(line);
+                lineStats.add(new LineStats(name, source, line, (calls != null ? calls[0] : 0),
+                        lineData.selfSamples, lineData.totalSamples));
+            }
+            for (Map.Entry<Integer, long[]> lineEntry : lineCalls.entrySet()) {
+                lineStats.add(new LineStats(name, source, lineEntry.getKey(), lineEntry.getValue()[0], 0, 0));
+            }
+        }
+
+        Map<String, long[]> functionStacks = new HashMap<>();
+        Map<String, long[]> lineStacks = new HashMap<>();
+        StringBuilder functionKey = new StringBuilder();
+        StringBuilder lineKey = new StringBuilder();
+        for (Map.Entry<StackKey, long[]> entry : stacks.entrySet()) {
+            functionKey.setLength(0);
+            lineKey.setLength(0);
+            for (Frame frame : entry.getKey().frames) {
+                Prototype prototype = frame.prototype;
+                String name = getFunctionName(prototype, functions.get(prototype));
+                String source = getSourceName(prototype);
+
+                if (functionKey.length() > 0) {
+                    functionKey.append(';');
+                    lineKey.append(';');
+                }
+                appendFrame(functionKey, name, source, prototype.linedefined);
+                appendFrame(lineKey, name, source, frame.line);
+            }
+
+            long count = entry.getValue()[0];
+            getOrCreate(functionStacks, functionKey.toString())[0] += count;
+            getOrCreate(lineStacks, lineKey.toString())[0] += count;
+        }
+
+        return new ProfileReport(sampleIntervalNanos, sampleCount, functionStats, lineStats,
+                toCounts(functionStacks), toCounts(lineStacks));
+    }
+
+    private static <K> long[] getOrCreate(Map<K, long[]> counts, K key) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            count = new long[1];
+            counts.put(key, count);
+        }
+        return count;
+    }
+
+    private static Map<String, Long> toCounts(Map<String, long[]> counts) {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return result;
+    }
+
+    private static String getFunctionName(Prototype prototype, @Nullable FunctionData data) {
+        if (data != null && data.name != null) {
+            return data.name;
+        }
+        return (prototype.linedefined == 0 ? "main chunk" : "?");
+    }
+
+    private static String getSourceName(Prototype prototype) {
+        String s = (prototype.source != null ? prototype.source.tojstring() : "?");
+        return (s.startsWith("@") || s.startsWith("=") ? s.substring(1) : s);
+    }
+
+    private static void appendFrame(StringBuilder out, String name, String source, int line) {
+        // The collapsed stack format uses ';' as the frame separator, and a newline as the stack separator
+        int start = out.length();
+        out.append(name).append(" (").append(source).append(':').append(line).append(')');
+        for (int n = start; n < out.length(); n++) {
+            char c = out.charAt(n);
+            if (c == ';' || c == '\n' || c == '\r') {
+                out.setCharAt(n, '_');
+            }
+        }
+    }
+
+    private static class LineData {
+
+        long selfSamples;
+        long totalSamples;
+        long lastSampleId;
+
+    }
+
+    private static final class FunctionData extends LineData {
+
+        @Nullable String name;
+        final Map<Integer, LineData> lines = new HashMap<>();
+
+        LineData getLineData(int line) {
+            LineData data = lines.get(line);
+            if (data == null) {
+                data = new LineData();
+                lines.put(line, data);
+            }
+            return data;
+        }
+
+    }
+
+    private static final class CallCounts {
+
+        final AtomicLong calls = new AtomicLong();
+
+        /** Calls made by the function, indexed by the program counter of the call instruction. */
+        final AtomicLongArray callsByPc;
+
+        CallCounts(int codeLength) {
+            callsByPc = new AtomicLongArray(codeLength);
+        }
+
+    }
+
+    private static final class Frame {
+
+        final Prototype prototype;
+        final int line;
+
+        Frame(Prototype prototype, int line) {
+            this.prototype = prototype;
+            this.line = line;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(prototype) * 31 + line;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Frame)) {
+                return false;
+            }
+            Frame other = (Frame)obj;
+            return prototype == other.prototype && line == other.line;
+        }
+
+    }
+
+    private static final class StackKey {
+
+        final Frame[] frames;
+        private final int hash;
+
+        StackKey(Frame[] frames) {
+            this.frames = frames;
+            this.hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StackKey)) {
+                return false;
+            }
+            StackKey other = (StackKey)obj;
+            return hash == other.hash && Arrays.equals(frames, other.frames);
+        }
+
+    }
+
+}
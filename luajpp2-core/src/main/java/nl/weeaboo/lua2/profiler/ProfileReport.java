@@ -0,0 +1,95 @@
+package nl.weeaboo.lua2.profiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the results collected by a {@link LuaProfiler}.
+ */
+public final class ProfileReport {
+
+    private static final Comparator<FunctionStats> FUNCTION_ORDER = Comparator
+            .comparingLong(FunctionStats::getSelfSamples).reversed()
+            .thenComparing(Comparator.comparingLong(FunctionStats::getTotalSamples).reversed())
+            .thenComparing(Comparator.comparingLong(FunctionStats::getCalls).reversed());
+
+    private static final Comparator<LineStats> LINE_ORDER = Comparator
+            .comparingLong(LineStats::getSelfSamples).reversed()
+            .thenComparing(Comparator.comparingLong(LineStats::getTotalSamples).reversed())
+            .thenComparing(Comparator.comparingLong(LineStats::getCalls).reversed());
+
+    private final long sampleIntervalNanos;
+    private final long sampleCount;
+    private final List<FunctionStats> functions;
+    private final List<LineStats> lines;
+    private final Map<String, Long> functionStacks;
+    private final Map<String, Long> lineStacks;
+
+    ProfileReport(long sampleIntervalNanos, long sampleCount, List<FunctionStats> functions, List<LineStats> lines,
+            Map<String, Long> functionStacks, Map<String, Long> lineStacks) {
+
+        this.sampleIntervalNanos = sampleIntervalNanos;
+        this.sampleCount = sampleCount;
+
+        List<FunctionStats> sortedFunctions = new ArrayList<>(functions);
+        Collections.sort(sortedFunctions, FUNCTION_ORDER);
+        this.functions = Collections.unmodifiableList(sortedFunctions);
+
+        List<LineStats> sortedLines = new ArrayList<>(lines);
+        Collections.sort(sortedLines, LINE_ORDER);
+        this.lines = Collections.unmodifiableList(sortedLines);
+
+        this.functionStacks = Collections.unmodifiableMap(new TreeMap<>(functionStacks));
+        this.lineStacks = Collections.unmodifiableMap(new TreeMap<>(lineStacks));
+    }
+
+    /**
+     * The number of samples in which Lua code was running.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Converts a number of samples to an (estimated) amount of time.
+     */
+    public long toTime(long samples, TimeUnit unit) {
+        return unit.convert(samples * sampleIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Results per function, ordered by decreasing self time.
+     */
+    public List<FunctionStats> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Results per source line, ordered by decreasing self time. Only contains lines which were sampled or made calls.
+     */
+    public List<LineStats> getLines() {
+        return lines;
+    }
+
+    /**
+     * Writes the sampled call stacks in the collapsed stack format used by flame graph tools (such as
+     * {@code flamegraph.pl} or speedscope): one line per unique call stack, with the frames ordered from the root to
+     * the leaf and separated by {@code ';'}, followed by a space and the number of samples.
+     *
+     * @param perLine If {@code true}, frames are split by the line being executed in each function. Otherwise, each
+     *        frame identifies a function by the line on which it's defined.
+     */
+    public void writeCollapsedStacks(Appendable out, boolean perLine) throws IOException {
+        Map<String, Long> stacks = (perLine ? lineStacks : functionStacks);
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue())).append('\n');
+        }
+    }
+
+}
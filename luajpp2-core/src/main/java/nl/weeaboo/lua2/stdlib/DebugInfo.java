@@ -31,7 +31,6 @@ final class DebugInfo implements Externalizable {
 
     // --- Uses manual serialization, don't add variables ---
     LuaValue func;
-    String functionName = "?";
     @Nullable LuaClosure closure;
     LuaValue[] stack;
     Varargs varargs;
@@ -40,6 +39,14 @@ final class DebugInfo implements Externalizable {
     int top;
     // --- Uses manual serialization, don't add variables ---
 
+    /*
+     * The name of the function, or null if it should be determined from the call site. Determining the name is
+     * relatively expensive, so it's only done when the name is actually used.
+     */
+    private transient @Nullable String functionName;
+    private transient @Nullable LuaClosure callSiteClosure;
+    private transient int callSitePc = -1;
+
     public DebugInfo() {
         func = NIL;
     }
@@ -76,10 +83,34 @@ final class DebugInfo implements Externalizable {
         this.stack = stack;
     }
 
-    void setfunction(LuaValue func, String functionName) {
+    void setfunction(LuaValue func, @Nullable String functionName) {
         this.func = func;
         this.closure = (func instanceof LuaClosure ? (LuaClosure)func : null);
-        this.functionName = functionName != null ? functionName : "?";
+        this.functionName = functionName;
+        this.callSiteClosure = null;
+        this.callSitePc = -1;
+    }
+
+    /**
+     * Sets the location the function was called from, used to determine the function name if no name was set.
+     *
+     * @param closure The calling function.
+     * @param pc The call instruction in {@code closure}.
+     */
+    void setCallSite(@Nullable LuaClosure closure, int pc) {
+        this.callSiteClosure = closure;
+        this.callSitePc = pc;
+    }
+
+    /**
+     * The name of the function at the place where it was called from.
+     */
+    String getFunctionName() {
+        if (functionName == null) {
+            functionName = toObjectName(DebugTrace.getobjname(callSiteClosure, callSitePc,
+                    getStackPos(callSiteClosure, callSitePc)));
+        }
+        return functionName;
     }
 
     void clear() {
@@ -88,6 +119,9 @@ final class DebugInfo implements Externalizable {
         stack = LuaConstants.NOVALS;
         varargs = extras = LuaConstants.NONE;
         pc = top = 0;
+        functionName = null;
+        callSiteClosure = null;
+        callSitePc = -1;
     }
 
     public @Nullable LuaString[] getnamewhat() {
@@ -95,7 +129,10 @@ final class DebugInfo implements Externalizable {
     }
 
     String getObjectName() {
-        LuaString[] namewhat = getnamewhat();
+        return toObjectName(getnamewhat());
+    }
+
+    private static String toObjectName(@Nullable LuaString[] namewhat) {
         if (namewhat == null || namewhat.length == 0) {
             return "?";
         }
@@ -103,6 +140,10 @@ final class DebugInfo implements Externalizable {
     }
 
     int getStackPos() {
+        return getStackPos(closure, pc);
+    }
+
+    private static int getStackPos(@Nullable LuaClosure closure, int pc) {
         if (closure == null || pc < 0) {
             return -1;
         }
@@ -149,7 +190,7 @@ final class DebugInfo implements Externalizable {
     }
 
     public LuaStackTraceElement getStackTraceElement() {
-        return new LuaStackTraceElement(source(), currentline(), functionName);
+        return new LuaStackTraceElement(source(), currentline(), getFunctionName());
     }
 
     @Override
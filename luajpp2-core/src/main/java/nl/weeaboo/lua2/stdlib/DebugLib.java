@@ -221,6 +221,7 @@ public final class DebugLib extends LuaModule {
      * @return The name of the local variable, or {@code nil} if no local variable was found with that index.
      */
     @LuaBoundFunction
+    @SuppressWarnings("deprecation")
     public Varargs setlocal(Varargs args) {
         int a = 1;
         LuaThread thread = args.isthread(a) ? args.checkthread(a++) : LuaThread.getRunning();
@@ -237,6 +238,7 @@ public final class DebugLib extends LuaModule {
         LuaString name = di.getlocalname(local);
         if (name != null) {
             di.stack[local - 1] = value;
+            thread.markDirty();
             return name;
         } else {
             return NIL;
@@ -566,6 +568,15 @@ public final class DebugLib extends LuaModule {
         return LuaRunState.getCurrent().isDebugEnabled();
     }
 
+    /**
+     * Returns {@code true} if the thread has a line hook or count hook, which need to be called for every
+     * instruction.
+     */
+    public static boolean hasInstructionHook(LuaThread thread) {
+        DebugState ds = (DebugState)thread.debugState;
+        return ds != null && ds.hasInstructionHook();
+    }
+
     /** Called by Closures to set up stack and arguments to next call */
     public static void debugSetupCall(LuaThread thread, Varargs args, LuaValue[] stack) {
         DebugState ds = getDebugState(thread);
@@ -580,12 +591,13 @@ public final class DebugLib extends LuaModule {
      *
      * @param thread the thread for the call
      * @param func the function called
+     * @param functionName The name of the function, or {@code null} to determine the name from the call site if
+     *        it's needed later.
      */
-    public static void debugOnCall(LuaThread thread, LuaFunction func, String functionName) {
+    public static void debugOnCall(LuaThread thread, LuaFunction func, @Nullable String functionName) {
         DebugState ds = getDebugState(thread);
 
-        DebugInfo di = ds.pushInfo();
-        di.setfunction(func, functionName);
+        DebugInfo di = ds.pushCall(func, functionName);
 
         LOG.trace("debugOnCall: {}", di);
 
@@ -594,6 +606,17 @@ public final class DebugLib extends LuaModule {
         }
     }
 
+    /**
+     * Called by Closures before making a tail call. The debug info of the calling function is popped before the
+     * called function is pushed, so its call site is remembered until then.
+     *
+     * @param thread the thread for the call
+     */
+    public static void debugOnTailCall(LuaThread thread) {
+        DebugState ds = getDebugState(thread);
+        ds.setTailCallSite(ds.getDebugInfo());
+    }
+
     /**
      * Called by Closures and recursing java functions on return
      *
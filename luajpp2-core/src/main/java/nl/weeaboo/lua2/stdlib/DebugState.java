@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaThread;
 import nl.weeaboo.lua2.vm.LuaValue;
@@ -38,6 +39,14 @@ final class DebugState implements Externalizable {
     int line;
     // --- Uses manual serialization, don't add variables ---
 
+    /*
+     * Call site of a tail call in progress. Only set in between popping the debug info of the calling function and
+     * pushing the debug info of the called function, so it doesn't need to be serialized.
+     */
+    private transient boolean tailCallPending;
+    private transient @Nullable LuaClosure tailCallClosure;
+    private transient int tailCallPc;
+
     /**
      * Do not use. Required for efficient serialization.
      */
@@ -107,6 +116,44 @@ final class DebugState implements Externalizable {
         return debugInfo[debugCalls - 1];
     }
 
+    /**
+     * Pushes the debug info for a function call.
+     *
+     * @param functionName The name of the function, or {@code null} to determine it from the call site when needed.
+     * @see #setTailCallSite(DebugInfo)
+     */
+    DebugInfo pushCall(LuaValue func, @Nullable String functionName) {
+        LuaClosure callSiteClosure = null;
+        int callSitePc = -1;
+        if (tailCallPending) {
+            tailCallPending = false;
+            callSiteClosure = tailCallClosure;
+            callSitePc = tailCallPc;
+            tailCallClosure = null;
+        } else {
+            DebugInfo caller = getDebugInfo();
+            if (caller != null) {
+                callSiteClosure = caller.closure;
+                callSitePc = caller.pc;
+            }
+        }
+
+        DebugInfo di = pushInfo();
+        di.setfunction(func, functionName);
+        di.setCallSite(callSiteClosure, callSitePc);
+        return di;
+    }
+
+    /**
+     * Remembers the call site of a tail call. The next call to {@link #pushCall(LuaValue, String)} uses this call
+     * site instead of the debug info below it, which belongs to the caller of the function making the tail call.
+     */
+    void setTailCallSite(@Nullable DebugInfo caller) {
+        tailCallPending = true;
+        tailCallClosure = (caller != null ? caller.closure : null);
+        tailCallPc = (caller != null ? caller.pc : -1);
+    }
+
     public void popInfo() {
         if (debugCalls <= 0) {
             LOG.warn("No debug info left to pop");
@@ -144,13 +191,33 @@ final class DebugState implements Externalizable {
         return getDebugInfo(1);
     }
 
+    boolean hasInstructionHook() {
+        return hookfunc != null && (hookline || hookcount > 0);
+    }
+
     @Nullable DebugInfo getDebugInfo(int level) {
         if (level <= 0 || level > debugCalls) {
             return null;
         }
+        updateCurrentPc();
         return debugInfo[debugCalls - level];
     }
 
+    /**
+     * Without instruction hooks, the interpreter doesn't report each instruction it executes. The program counter of
+     * the innermost function is then read back from the interpreter when it's needed.
+     */
+    @SuppressWarnings("deprecation")
+    private void updateCurrentPc() {
+        DebugInfo di = debugInfo[debugCalls - 1];
+        if (di.closure != null && thread != null) {
+            int pc = thread.getCurrentPc(di.stack);
+            if (pc >= 0) {
+                di.pc = pc;
+            }
+        }
+    }
+
     public DebugInfo findDebugInfo(LuaValue func) {
         for (int i = debugCalls; --i >= 0;) {
             if (debugInfo[i].func == func) {
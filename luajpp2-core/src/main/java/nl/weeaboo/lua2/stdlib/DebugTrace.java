@@ -10,6 +10,7 @@ import javax.annotation.Nullable;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaStackTraceElement;
 import nl.weeaboo.lua2.vm.LuaString;
@@ -190,6 +191,25 @@ public final class DebugTrace {
         return "?";
     }
 
+    /**
+     * The name used to call a function from a particular call site. A function can be known by multiple names.
+     *
+     * @param caller The function containing the call instruction.
+     * @param pc Index of the call instruction in {@code caller}.
+     * @return The function name, or {@code "?"} if it can't be determined.
+     */
+    public static String getCalledFunctionName(Prototype caller, int pc) {
+        if (pc < 0 || pc >= caller.code.length) {
+            return "?";
+        }
+
+        LuaString[] namewhat = getobjname(caller, pc, Lua.getArgA(caller.code[pc]));
+        if (namewhat == null || namewhat.length == 0) {
+            return "?";
+        }
+        return namewhat[0].tojstring();
+    }
+
     /**
      * @return StrValue[] { name, namewhat } if found, null if not
      */
@@ -228,12 +248,26 @@ public final class DebugTrace {
      * @return StrValue[] { name, namewhat } if found, null if not
      */
     static @Nullable LuaString[] getobjname(DebugInfo di, int stackpos) {
-        if (di.closure == null || stackpos < 0) {
-            return null; // Not a Lua function or stack pos invalid
+        return getobjname(di.closure, di.pc, stackpos);
+    }
+
+    /**
+     * @param closure The function containing the code which uses the stack position.
+     * @param pc The current instruction in {@code closure}.
+     * @return StrValue[] { name, namewhat } if found, null if not
+     */
+    static @Nullable LuaString[] getobjname(@Nullable LuaClosure closure, int pc, int stackpos) {
+        if (closure == null) {
+            return null; // Not a Lua function
+        }
+        return getobjname(closure.getPrototype(), pc, stackpos);
+    }
+
+    private static @Nullable LuaString[] getobjname(Prototype p, int pc, int stackpos) {
+        if (stackpos < 0) {
+            return null; // Stack pos invalid
         }
 
-        Prototype p = di.closure.getPrototype();
-        int pc = di.pc; // currentpc(L, ci);
         LuaString name = p.getlocalname(stackpos + 1, pc);
         if (name != null) { /* is a local? */
             return new LuaString[] { name, LOCAL };
@@ -251,7 +285,7 @@ public final class DebugTrace {
             int a = Lua.getArgA(i);
             int b = Lua.getArgB(i); /* move from `b' to `a' */
             if (b < a) {
-                return getobjname(di, b); /* get name for `b' */
+                return getobjname(p, pc, b); /* get name for `b' */
             }
             break;
         }
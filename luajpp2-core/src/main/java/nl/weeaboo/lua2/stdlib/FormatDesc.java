@@ -3,6 +3,8 @@ package nl.weeaboo.lua2.stdlib;
 import java.io.Serializable;
 import java.util.Locale;
 
+import javax.annotation.Nullable;
+
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.vm.Buffer;
@@ -14,6 +16,16 @@ final class FormatDesc implements Serializable {
     private static final long serialVersionUID = 1L;
     private static final int MAX_FLAGS = 5;
 
+    /** Precision used by '%f' when no precision is specified. */
+    private static final int DEFAULT_FLOAT_PRECISION = 6;
+
+    /** Numbers (multiplied by 10^precision) above this value are formatted using {@link String#format}. */
+    private static final double MAX_FIXED_VALUE = 1e12;
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
     private boolean leftAdjust;
     private boolean zeroPad;
     private boolean explicitPlus;
@@ -25,6 +37,8 @@ final class FormatDesc implements Serializable {
     public final int conversion;
     public final int length;
 
+    private transient @Nullable String javaFormat;
+
     public FormatDesc(LuaString strfrmt, final int start) {
         int p = start;
         int n = strfrmt.length();
@@ -92,36 +106,15 @@ final class FormatDesc implements Serializable {
     }
 
     public void format(Buffer buf, long number) {
-        String digits;
-
-        if (number == 0 && precision == 0) {
-            digits = "";
-        } else {
-            int radix;
-            switch (conversion) {
-            case 'x':
-            case 'X':
-                radix = 16;
-                break;
-            case 'o':
-                radix = 8;
-                break;
-            default:
-                radix = 10;
-                break;
-            }
-            digits = Long.toString(number, radix);
-            if (conversion == 'X') {
-                digits = digits.toUpperCase(Locale.ROOT);
-            }
-        }
+        final int radix = getRadix();
+        final boolean negative = (number < 0);
+        final int ndigits = (number == 0 && precision == 0 ? 0 : digitCount(number, radix));
 
-        int minwidth = digits.length();
-        int ndigits = minwidth;
+        int minwidth = ndigits;
         int nzeros;
 
-        if (number < 0) {
-            ndigits--;
+        if (negative) {
+            minwidth++;
         } else if (explicitPlus || space) {
             minwidth++;
         }
@@ -141,11 +134,8 @@ final class FormatDesc implements Serializable {
             pad(buf, ' ', nspaces);
         }
 
-        if (number < 0) {
-            if (nzeros > 0) {
-                buf.append((byte)'-');
-                digits = digits.substring(1);
-            }
+        if (negative) {
+            buf.append((byte)'-');
         } else if (explicitPlus) {
             buf.append((byte)'+');
         } else if (space) {
@@ -156,14 +146,121 @@ final class FormatDesc implements Serializable {
             pad(buf, '0', nzeros);
         }
 
-        buf.append(digits);
+        if (ndigits > 0) {
+            appendDigits(buf, number, radix, ndigits, conversion == 'X');
+        }
 
         if (leftAdjust) {
             pad(buf, ' ', nspaces);
         }
     }
 
+    private int getRadix() {
+        switch (conversion) {
+        case 'x':
+        case 'X':
+            return 16;
+        case 'o':
+            return 8;
+        default:
+            return 10;
+        }
+    }
+
+    /** Returns the number of digits needed to represent {@code number}, excluding the sign. */
+    private static int digitCount(long number, int radix) {
+        // Work with negative numbers to avoid overflow for Long.MIN_VALUE
+        long q = (number < 0 ? number : -number);
+        int count = 1;
+        while (q <= -radix) {
+            q /= radix;
+            count++;
+        }
+        return count;
+    }
+
+    /** Appends the digits of {@code number} to the buffer, without a sign. */
+    private static void appendDigits(Buffer buf, long number, int radix, int ndigits, boolean upperCase) {
+        if (number == Long.MIN_VALUE) {
+            // The magnitude doesn't fit in a long
+            String digits = Long.toString(number, radix).substring(1);
+            buf.append(upperCase ? digits.toUpperCase(Locale.ROOT) : digits);
+            return;
+        }
+
+        long q = Math.abs(number);
+        long div = 1;
+        for (int n = 1; n < ndigits; n++) {
+            div *= radix;
+        }
+
+        final char alpha = (upperCase ? 'A' : 'a');
+        for (; div > 0; div /= radix) {
+            int d = (int)(q / div);
+            q -= d * div;
+            buf.append((byte)(d < 10 ? '0' + d : alpha + d - 10));
+        }
+    }
+
     public void format(Buffer buf, double x) {
+        if (!formatFixed(buf, x)) {
+            String format = javaFormat;
+            if (format == null) {
+                format = createJavaFormat();
+                javaFormat = format;
+            }
+            buf.append(String.format(Locale.ROOT, format, x));
+        }
+    }
+
+    /**
+     * Appends {@code x} in fixed-point notation without going through {@link String#format(String, Object...)}.
+     *
+     * @return {@code false} if the number can't be formatted this way. This is the case for very large numbers, for
+     *         a large precision, and for numbers that are too close to halfway between two rounding results to
+     *         reliably determine how {@link String#format(String, Object...)} would round them.
+     */
+    private boolean formatFixed(Buffer buf, double x) {
+        final int prec = (precision >= 0 ? precision : DEFAULT_FLOAT_PRECISION);
+        if (prec >= POWERS_OF_TEN.length) {
+            return false;
+        }
+
+        final long pow = POWERS_OF_TEN[prec];
+        final double scaled = Math.abs(x) * pow;
+        if (!(scaled < MAX_FIXED_VALUE)) {
+            return false; // Also handles NaN/infinity
+        }
+
+        long value = (long)scaled;
+        final double frac = scaled - value;
+        if (Math.abs(frac - .5) <= scaled * 0x1p-50 + 1e-9) {
+            return false;
+        } else if (frac > .5) {
+            value++;
+        }
+
+        final long intPart = value / pow;
+        final long fracPart = value % pow;
+        final boolean negative = (Double.doubleToRawLongBits(x) < 0);
+        final int intDigits = digitCount(intPart, 10);
+
+        int len = intDigits + (prec > 0 ? 1 + prec : 0) + (negative ? 1 : 0);
+        pad(buf, ' ', width - len);
+        if (negative) {
+            buf.append((byte)'-');
+        }
+        appendDigits(buf, intPart, 10, intDigits, false);
+        if (prec > 0) {
+            buf.append((byte)'.');
+            int fracDigits = digitCount(fracPart, 10);
+            pad(buf, '0', prec - fracDigits);
+            appendDigits(buf, fracPart, 10, fracDigits, false);
+        }
+        return true;
+    }
+
+    private String createJavaFormat() {
         StringBuilder format = new StringBuilder("%");
         if (width >= 0) {
             format.append(width);
@@ -173,35 +270,29 @@ final class FormatDesc implements Serializable {
             format.append(precision);
         }
         format.append('f');
-
-        String str = String.format(Locale.ROOT, format.toString(), x);
-        buf.append(str);
+        return format.toString();
     }
 
     public void format(Buffer buf, LuaString str) {
+        int len = str.length();
+
         int nullindex = str.indexOf((byte)'\0', 0);
         if (nullindex >= 0) {
-            str = str.substring(0, nullindex);
+            len = nullindex;
         }
 
         // Trim to precision
-        str = trimToPrecision(str);
+        if (precision >= 0) {
+            len = Math.min(len, precision);
+        }
 
-        int pad = Math.max(0, width - str.length());
+        int pad = Math.max(0, width - len);
         if (leftAdjust) {
-            buf.append(str);
+            buf.append(str, 0, len);
             pad(buf, ' ', pad);
         } else {
             pad(buf, ' ', pad);
-            buf.append(str);
-        }
-    }
-
-    private LuaString trimToPrecision(LuaString str) {
-        if (precision >= 0) {
-            return str.substring(0, Math.min(str.length(), precision));
-        } else {
-            return str;
+            buf.append(str, 0, len);
         }
     }
 
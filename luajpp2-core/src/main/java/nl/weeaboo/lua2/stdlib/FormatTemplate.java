@@ -0,0 +1,124 @@
+package nl.weeaboo.lua2.stdlib;
+
+import static nl.weeaboo.lua2.stdlib.StringLib.L_ESC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.vm.LuaString;
+
+/**
+ * Pre-parsed format string for {@code string.format}.
+ * <p>
+ * The format string is split into a sequence of items, each consisting of literal text followed by an optional
+ * conversion specification. An invalid conversion specification is stored as an error which is thrown when the
+ * formatter reaches it, so errors are reported at the same moment as they would be when parsing the format string
+ * while formatting.
+ */
+final class FormatTemplate {
+
+    private final LuaString source;
+    private final Item[] items;
+
+    private FormatTemplate(LuaString source, Item[] items) {
+        this.source = source;
+        this.items = items;
+    }
+
+    /** Parses a format string. */
+    static FormatTemplate parse(LuaString fmt) {
+        final int n = fmt.length();
+        List<Item> items = new ArrayList<>();
+
+        int textStart = 0;
+        int i = 0;
+        while (i < n) {
+            if (fmt.luaByte(i++) != L_ESC) {
+                continue;
+            }
+
+            if (i >= n) {
+                // A trailing '%' is ignored
+                items.add(new Item(textStart, i - 1, null, null));
+                textStart = n;
+            } else if (fmt.luaByte(i) == L_ESC) {
+                // Escaped '%', include one of them in the literal text
+                items.add(new Item(textStart, i, null, null));
+                textStart = ++i;
+            } else {
+                FormatDesc desc;
+                try {
+                    desc = new FormatDesc(fmt, i);
+                } catch (LuaException e) {
+                    // Stop parsing, since the formatter can never get past this item
+                    items.add(new Item(textStart, i - 1, null, e.getMessage()));
+                    textStart = n;
+                    break;
+                }
+                items.add(new Item(textStart, i - 1, desc, null));
+                i += desc.length;
+                textStart = i;
+            }
+        }
+        if (textStart < n) {
+            items.add(new Item(textStart, n, null, null));
+        }
+
+        return new FormatTemplate(fmt, items.toArray(new Item[items.size()]));
+    }
+
+    /** The format string. */
+    LuaString source() {
+        return source;
+    }
+
+    /** The number of items in the template. */
+    int size() {
+        return items.length;
+    }
+
+    /** Start offset in the format string of the literal text of the {@code index}'th item. */
+    int textStart(int index) {
+        return items[index].textStart;
+    }
+
+    /** Length of the literal text of the {@code index}'th item. */
+    int textLength(int index) {
+        Item item = items[index];
+        return item.textEnd - item.textStart;
+    }
+
+    /**
+     * Returns the conversion specification following the literal text of the {@code index}'th item, or
+     * {@code null} if the item only consists of literal text.
+     *
+     * @throws LuaException If the conversion specification is invalid.
+     */
+    @Nullable FormatDesc conversion(int index) {
+        Item item = items[index];
+        if (item.error != null) {
+            throw new LuaException(item.error);
+        }
+        return item.desc;
+    }
+
+    private static final class Item {
+
+        final int textStart;
+        final int textEnd;
+        final @Nullable FormatDesc desc;
+        final @Nullable String error;
+
+        Item(int textStart, int textEnd, @Nullable FormatDesc desc, @Nullable String error) {
+            this.textStart = textStart;
+            this.textEnd = textEnd;
+            this.desc = desc;
+            this.error = error;
+        }
+
+    }
+
+}
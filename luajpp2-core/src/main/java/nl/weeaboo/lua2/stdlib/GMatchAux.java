@@ -10,20 +10,28 @@ import nl.weeaboo.lua2.vm.Varargs;
 @LuaSerializable
 final class GMatchAux extends VarArgFunction {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
+    private final LuaString src;
     private final int srclen;
+    private final LuaPattern pattern;
     private final MatchState ms;
     private int soffset;
 
-    public GMatchAux(Varargs args, LuaString src, LuaString pat) {
+    public GMatchAux(Varargs args, LuaString src, LuaPattern pattern) {
+        this.src = src;
         this.srclen = src.length();
-        this.ms = new MatchState(args, src, pat);
+        this.pattern = pattern;
+        this.ms = new MatchState(args, src, pattern.program(false));
         this.soffset = 0;
     }
 
     @Override
     public Varargs invoke(Varargs args) {
+        if (pattern.isLiteral()) {
+            return nextLiteral();
+        }
+
         while (soffset <= srclen) {
             ms.reset();
             int res = ms.match(soffset, 0);
@@ -39,4 +47,17 @@ final class GMatchAux extends VarArgFunction {
         }
         return NIL;
     }
+
+    private Varargs nextLiteral() {
+        int start = pattern.indexIn(src, soffset);
+        if (start < 0) {
+            soffset = srclen + 1;
+            return NIL;
+        }
+
+        int end = start + pattern.source().length();
+        soffset = Math.max(start + 1, end); // Move ahead at least one char, even when result empty
+        return src.substring(start, end);
+    }
+
 }
@@ -401,26 +401,16 @@ public final class IoLib extends LuaModule {
         return LuaString.valueOf(b, 0, r);
     }
 
-    static LuaValue freaduntil(LuaFileHandle f, boolean lineonly) throws IOException {
+    static LuaValue freadline(LuaFileHandle f) throws IOException {
+        LuaString line = f.readLine();
+        return (line != null ? line : NIL);
+    }
+
+    private static LuaValue freaduntileof(LuaFileHandle f) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         int c;
-        if (lineonly) {
-            loop:
-            while ((c = f.read()) > 0) {
-                switch (c) {
-                case '\r':
-                    break;
-                case '\n':
-                    break loop;
-                default:
-                    baos.write(c);
-                    break;
-                }
-            }
-        } else {
-            while ((c = f.read()) > 0) {
-                baos.write(c);
-            }
+        while ((c = f.read()) > 0) {
+            baos.write(c);
         }
 
         if (c < 0 && baos.size() == 0) {
@@ -430,16 +420,12 @@ public final class IoLib extends LuaModule {
         }
     }
 
-    static LuaValue freadline(LuaFileHandle f) throws IOException {
-        return freaduntil(f, true);
-    }
-
     static LuaValue freadall(LuaFileHandle f) throws IOException {
         int n = f.remaining();
         if (n >= 0) {
             return freadbytes(f, n);
         } else {
-            return freaduntil(f, false);
+            return freaduntileof(f);
         }
     }
 
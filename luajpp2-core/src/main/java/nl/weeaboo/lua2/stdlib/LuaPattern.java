@@ -0,0 +1,508 @@
+package nl.weeaboo.lua2.stdlib;
+
+import static nl.weeaboo.lua2.stdlib.StringLib.L_ESC;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.vm.LuaString;
+
+/**
+ * Pre-parsed Lua pattern.
+ * <p>
+ * The pattern is split into a sequence of items (single character classes, captures, anchors, etc.) with all
+ * character classes expanded into 256-bit sets. Malformed parts of a pattern are compiled into an item that raises
+ * the corresponding error when the matcher reaches it, so errors are reported at the same moment as they would be
+ * when interpreting the pattern directly.
+ */
+@LuaSerializable
+final class LuaPattern implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final LuaString SPECIALS = LuaString.valueOf("^$*+?.([%-");
+
+    /** Literal patterns shorter than this are searched for without a skip table. */
+    private static final int MIN_SKIP_TABLE_LENGTH = 4;
+
+    private static final byte MASK_ALPHA = 0x01;
+    private static final byte MASK_LOWERCASE = 0x02;
+    private static final byte MASK_UPPERCASE = 0x04;
+    private static final byte MASK_DIGIT = 0x08;
+    private static final byte MASK_PUNCT = 0x10;
+    private static final byte MASK_SPACE = 0x20;
+    private static final byte MASK_CONTROL = 0x40;
+    private static final byte MASK_HEXDIGIT = (byte)0x80;
+
+    private static final byte[] CHAR_TABLE;
+
+    static {
+        CHAR_TABLE = new byte[256];
+
+        for (int i = 0; i < 256; ++i) {
+            final char c = (char)i;
+            CHAR_TABLE[i] = (byte)((Character.isDigit(c) ? MASK_DIGIT : 0)
+                    | (Character.isLowerCase(c) ? MASK_LOWERCASE : 0)
+                    | (Character.isUpperCase(c) ? MASK_UPPERCASE : 0)
+                    | ((c < ' ' || c == 0x7F) ? MASK_CONTROL : 0));
+            if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || (c >= '0' && c <= '9')) {
+                CHAR_TABLE[i] |= MASK_HEXDIGIT;
+            }
+            if ((c >= '!' && c <= '/') || (c >= ':' && c <= '@')) {
+                CHAR_TABLE[i] |= MASK_PUNCT;
+            }
+            if ((CHAR_TABLE[i] & (MASK_LOWERCASE | MASK_UPPERCASE)) != 0) {
+                CHAR_TABLE[i] |= MASK_ALPHA;
+            }
+        }
+
+        CHAR_TABLE[' '] = MASK_SPACE;
+        CHAR_TABLE['\r'] |= MASK_SPACE;
+        CHAR_TABLE['\n'] |= MASK_SPACE;
+        CHAR_TABLE['\t'] |= MASK_SPACE;
+        CHAR_TABLE[0x0C /* '\v' */] |= MASK_SPACE;
+        CHAR_TABLE['\f'] |= MASK_SPACE;
+    }
+
+    private final LuaString source;
+    private final boolean plain;
+    private final boolean literal;
+    private final @Nullable int[] skipTable;
+
+    private @Nullable Program program;
+    private @Nullable Program anchoredProgram;
+
+    private LuaPattern(LuaString source) {
+        this.source = source;
+
+        plain = (source.indexOfAny(SPECIALS) < 0);
+        literal = plain && source.indexOf((byte)')', 0) < 0;
+        skipTable = (plain && source.length() >= MIN_SKIP_TABLE_LENGTH ? source.horspoolSkipTable() : null);
+    }
+
+    /** Creates a new pattern. The pattern items are only parsed when first needed. */
+    static LuaPattern compile(LuaString source) {
+        return new LuaPattern(source);
+    }
+
+    /** The pattern string. */
+    LuaString source() {
+        return source;
+    }
+
+    /**
+     * Returns {@code true} if the pattern doesn't contain any special characters, so {@code string.find} can
+     * treat it as a plain substring.
+     */
+    boolean isPlain() {
+        return plain;
+    }
+
+    /**
+     * Returns {@code true} if the pattern only ever matches itself. Unlike {@link #isPlain()}, a literal pattern
+     * also can't contain any capture-related characters that would raise an error when matched.
+     */
+    boolean isLiteral() {
+        return literal;
+    }
+
+    /** Returns {@code true} if the pattern starts with a {@code '^'} anchor. */
+    boolean isAnchored() {
+        return source.length() > 0 && source.luaByte(0) == '^';
+    }
+
+    /**
+     * Finds the pattern string as a plain substring of {@code s}, starting at {@code start}.
+     *
+     * @return The index of the first occurrence, or {@code -1} if not found.
+     */
+    int indexIn(LuaString s, int start) {
+        if (start > s.length()) {
+            return -1;
+        }
+
+        int[] skip = skipTable;
+        if (skip != null) {
+            return s.indexOf(source, start, skip);
+        } else {
+            return s.indexOf(source, start);
+        }
+    }
+
+    /**
+     * Returns the parsed pattern items.
+     *
+     * @param skipAnchor If {@code true}, skip the leading {@code '^'} of an anchored pattern.
+     */
+    Program program(boolean skipAnchor) {
+        if (skipAnchor && isAnchored()) {
+            Program result = anchoredProgram;
+            if (result == null) {
+                result = new ProgramBuilder(source, 1).build();
+                anchoredProgram = result;
+            }
+            return result;
+        } else {
+            Program result = program;
+            if (result == null) {
+                result = new ProgramBuilder(source, 0).build();
+                program = result;
+            }
+            return result;
+        }
+    }
+
+    private static boolean matchClass(int c, int cl) {
+        final char lcl = Character.toLowerCase((char)cl);
+        int cdata = CHAR_TABLE[c];
+
+        boolean res;
+        switch (lcl) {
+        case 'a':
+            res = (cdata & MASK_ALPHA) != 0;
+            break;
+        case 'd':
+            res = (cdata & MASK_DIGIT) != 0;
+            break;
+        case 'l':
+            res = (cdata & MASK_LOWERCASE) != 0;
+            break;
+        case 'u':
+            res = (cdata & MASK_UPPERCASE) != 0;
+            break;
+        case 'c':
+            res = (cdata & MASK_CONTROL) != 0;
+            break;
+        case 'p':
+            res = (cdata & MASK_PUNCT) != 0;
+            break;
+        case 's':
+            res = (cdata & MASK_SPACE) != 0;
+            break;
+        case 'w':
+            res = (cdata & (MASK_ALPHA | MASK_DIGIT)) != 0;
+            break;
+        case 'x':
+            res = (cdata & MASK_HEXDIGIT) != 0;
+            break;
+        case 'z':
+            res = (c == 0);
+            break;
+        default:
+            return cl == c;
+        }
+        return (lcl == cl) ? res : !res;
+    }
+
+    /**
+     * @param poff Offset of the opening {@code '['}.
+     * @param ec Offset of the closing {@code ']'}.
+     */
+    private static boolean matchBracketClass(LuaString p, int c, int poff, int ec) {
+        boolean sig = true;
+        if (p.luaByte(poff + 1) == '^') {
+            sig = false;
+            poff++;
+        }
+        while (++poff < ec) {
+            if (p.luaByte(poff) == L_ESC) {
+                poff++;
+                if (matchClass(c, p.luaByte(poff))) {
+                    return sig;
+                }
+            } else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
+                poff += 2;
+                if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff)) {
+                    return sig;
+                }
+            } else if (p.luaByte(poff) == c) {
+                return sig;
+            }
+        }
+        return !sig;
+    }
+
+    /** Parsed pattern items. Character sets are stored as four 64-bit words each. */
+    @LuaSerializable
+    static final class Program implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** A single character class, optionally followed by a quantifier. */
+        static final int OP_SINGLE = 0;
+        static final int OP_CAPTURE_START = 1;
+        static final int OP_POSITION_CAPTURE = 2;
+        static final int OP_CAPTURE_END = 3;
+        static final int OP_BALANCE = 4;
+        static final int OP_FRONTIER = 5;
+        static final int OP_BACK_REFERENCE = 6;
+        static final int OP_END_ANCHOR = 7;
+        /** Raises an error for a malformed pattern. */
+        static final int OP_ERROR = 8;
+
+        final int length;
+        final int[] ops;
+        /**
+         * <ul>
+         * <li>{@link #OP_SINGLE}, {@link #OP_FRONTIER}: Index of the character set in {@link #sets}.
+         * <li>{@link #OP_BALANCE}: Opening character.
+         * <li>{@link #OP_BACK_REFERENCE}: The capture index character ({@code '1'} for the first capture).
+         * <li>{@link #OP_ERROR}: Index of the message in {@link #errors}.
+         * </ul>
+         */
+        final int[] args;
+        /**
+         * <ul>
+         * <li>{@link #OP_SINGLE}: The quantifier character, or {@code 0} if the item has no quantifier.
+         * <li>{@link #OP_BALANCE}: Closing character.
+         * </ul>
+         */
+        final int[] args2;
+        final long[] sets;
+        final String[] errors;
+
+        Program(int[] ops, int[] args, int[] args2, long[] sets, String[] errors) {
+            this.length = ops.length;
+            this.ops = ops;
+            this.args = args;
+            this.args2 = args2;
+            this.sets = sets;
+            this.errors = errors;
+        }
+
+        boolean inSet(int setIndex, int c) {
+            return (sets[(setIndex << 2) + (c >> 6)] & (1L << c)) != 0;
+        }
+
+    }
+
+    private static final class ProgramBuilder {
+
+        private final LuaString p;
+        private final int plen;
+
+        private int poffset;
+        private int count;
+        private int[] ops = new int[8];
+        private int[] args = new int[8];
+        private int[] args2 = new int[8];
+        private long[] sets = new long[4 * 4];
+        private int setCount;
+        private final List<String> errors = new ArrayList<>();
+
+        ProgramBuilder(LuaString p, int poffset) {
+            this.p = p;
+            this.plen = p.length();
+            this.poffset = poffset;
+        }
+
+        Program build() {
+            while (poffset < plen) {
+                if (!parseItem()) {
+                    break; // Everything after an error item is unreachable
+                }
+            }
+
+            return new Program(trim(ops), trim(args), trim(args2), Arrays.copyOf(sets, setCount << 2),
+                    errors.toArray(new String[0]));
+        }
+
+        private int[] trim(int[] array) {
+            return Arrays.copyOf(array, count);
+        }
+
+        /**
+         * Parses the item at the current offset.
+         *
+         * @return {@code false} if the pattern is malformed at this point.
+         */
+        private boolean parseItem() {
+            switch (p.luaByte(poffset)) {
+            case '(':
+                if (++poffset < plen && p.luaByte(poffset) == ')') {
+                    poffset++;
+                    add(Program.OP_POSITION_CAPTURE, 0, 0);
+                } else {
+                    add(Program.OP_CAPTURE_START, 0, 0);
+                }
+                return true;
+            case ')':
+                poffset++;
+                add(Program.OP_CAPTURE_END, 0, 0);
+                return true;
+            case L_ESC:
+                if (poffset + 1 == plen) {
+                    return addError("malformed pattern (ends with '%')");
+                }
+                switch (p.luaByte(poffset + 1)) {
+                case 'b':
+                    if (poffset + 2 >= plen - 1) {
+                        return addError("unbalanced pattern");
+                    }
+                    add(Program.OP_BALANCE, p.luaByte(poffset + 2), p.luaByte(poffset + 3));
+                    poffset += 4;
+                    return true;
+                case 'f': {
+                    poffset += 2;
+                    if (poffset == plen || p.luaByte(poffset) != '[') {
+                        return addError("Missing [ after %f in pattern");
+                    }
+                    int ep = classEnd(poffset);
+                    if (ep < 0) {
+                        return addError("malformed pattern (missing ])");
+                    }
+                    add(Program.OP_FRONTIER, addBracketSet(poffset, ep - 1), 0);
+                    poffset = ep;
+                    return true;
+                }
+                default: {
+                    int c = p.luaByte(poffset + 1);
+                    if (Character.isDigit((char)c)) {
+                        add(Program.OP_BACK_REFERENCE, c, 0);
+                        poffset += 2;
+                        return true;
+                    }
+                }
+                }
+                break;
+            case '$':
+                if (poffset + 1 == plen) {
+                    poffset++;
+                    add(Program.OP_END_ANCHOR, 0, 0);
+                    return true;
+                }
+                break;
+            default:
+                break;
+            }
+
+            return parseSingle();
+        }
+
+        private boolean parseSingle() {
+            int ep = classEnd(poffset);
+            if (ep < 0) {
+                return addError(ep == -1 ? "malformed pattern (ends with %)" : "malformed pattern (missing ])");
+            }
+
+            int setIndex;
+            switch (p.luaByte(poffset)) {
+            case '.':
+                setIndex = newSet();
+                for (int c = 0; c < 256; c++) {
+                    addToSet(setIndex, c);
+                }
+                break;
+            case L_ESC: {
+                int cl = p.luaByte(poffset + 1);
+                setIndex = newSet();
+                for (int c = 0; c < 256; c++) {
+                    if (matchClass(c, cl)) {
+                        addToSet(setIndex, c);
+                    }
+                }
+                break;
+            }
+            case '[':
+                setIndex = addBracketSet(poffset, ep - 1);
+                break;
+            default:
+                setIndex = newSet();
+                addToSet(setIndex, p.luaByte(poffset));
+                break;
+            }
+
+            int quantifier = 0;
+            if (ep < plen) {
+                int pc = p.luaByte(ep);
+                if (pc == '?' || pc == '*' || pc == '+' || pc == '-') {
+                    quantifier = pc;
+                    ep++;
+                }
+            }
+
+            add(Program.OP_SINGLE, setIndex, quantifier);
+            poffset = ep;
+            return true;
+        }
+
+        /**
+         * Finds the end of the single character class starting at {@code poff}.
+         *
+         * @return The offset just past the class, {@code -1} if the pattern ends with {@code '%'}, or {@code -2}
+         *         if a bracket class is missing its closing {@code ']'}.
+         */
+        private int classEnd(int poff) {
+            switch (p.luaByte(poff++)) {
+            case L_ESC:
+                if (poff == plen) {
+                    return -1;
+                }
+                return poff + 1;
+
+            case '[':
+                if (poff < plen && p.luaByte(poff) == '^') {
+                    poff++;
+                }
+                do {
+                    if (poff >= plen) {
+                        return -2;
+                    }
+                    if (p.luaByte(poff++) == L_ESC && poff != plen) {
+                        poff++;
+                    }
+                } while (poff >= plen || p.luaByte(poff) != ']');
+                return poff + 1;
+            default:
+                return poff;
+            }
+        }
+
+        private int addBracketSet(int poff, int ec) {
+            int setIndex = newSet();
+            for (int c = 0; c < 256; c++) {
+                if (matchBracketClass(p, c, poff, ec)) {
+                    addToSet(setIndex, c);
+                }
+            }
+            return setIndex;
+        }
+
+        private int newSet() {
+            if ((setCount + 1) << 2 > sets.length) {
+                sets = Arrays.copyOf(sets, sets.length << 1);
+            }
+            return setCount++;
+        }
+
+        private void addToSet(int setIndex, int c) {
+            sets[(setIndex << 2) + (c >> 6)] |= (1L << c);
+        }
+
+        private boolean addError(String message) {
+            add(Program.OP_ERROR, errors.size(), 0);
+            errors.add(message);
+            return false;
+        }
+
+        private void add(int op, int arg, int arg2) {
+            if (count == ops.length) {
+                int newLength = count << 1;
+                ops = Arrays.copyOf(ops, newLength);
+                args = Arrays.copyOf(args, newLength);
+                args2 = Arrays.copyOf(args2, newLength);
+            }
+            ops[count] = op;
+            args[count] = arg;
+            args2[count] = arg2;
+            count++;
+        }
+
+    }
+
+}
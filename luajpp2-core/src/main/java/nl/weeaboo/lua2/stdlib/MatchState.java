@@ -13,6 +13,7 @@ import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
 import java.io.Serializable;
 
 import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.stdlib.LuaPattern.Program;
 import nl.weeaboo.lua2.vm.Buffer;
 import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaValue;
@@ -21,60 +22,21 @@ import nl.weeaboo.lua2.vm.Varargs;
 @LuaSerializable
 final class MatchState implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private static final int MAX_CAPTURES = 32;
 
     private static final int CAP_UNFINISHED = -1;
     private static final int CAP_POSITION = -2;
 
-    private static final byte MASK_ALPHA = 0x01;
-    private static final byte MASK_LOWERCASE = 0x02;
-    private static final byte MASK_UPPERCASE = 0x04;
-    private static final byte MASK_DIGIT = 0x08;
-    private static final byte MASK_PUNCT = 0x10;
-    private static final byte MASK_SPACE = 0x20;
-    private static final byte MASK_CONTROL = 0x40;
-    private static final byte MASK_HEXDIGIT = (byte)0x80;
-
-    private static final byte[] CHAR_TABLE;
-
-    static {
-        CHAR_TABLE = new byte[256];
-
-        for (int i = 0; i < 256; ++i) {
-            final char c = (char)i;
-            CHAR_TABLE[i] = (byte)((Character.isDigit(c) ? MASK_DIGIT : 0)
-                    | (Character.isLowerCase(c) ? MASK_LOWERCASE : 0)
-                    | (Character.isUpperCase(c) ? MASK_UPPERCASE : 0)
-                    | ((c < ' ' || c == 0x7F) ? MASK_CONTROL : 0));
-            if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || (c >= '0' && c <= '9')) {
-                CHAR_TABLE[i] |= MASK_HEXDIGIT;
-            }
-            if ((c >= '!' && c <= '/') || (c >= ':' && c <= '@')) {
-                CHAR_TABLE[i] |= MASK_PUNCT;
-            }
-            if ((CHAR_TABLE[i] & (MASK_LOWERCASE | MASK_UPPERCASE)) != 0) {
-                CHAR_TABLE[i] |= MASK_ALPHA;
-            }
-        }
-
-        CHAR_TABLE[' '] = MASK_SPACE;
-        CHAR_TABLE['\r'] |= MASK_SPACE;
-        CHAR_TABLE['\n'] |= MASK_SPACE;
-        CHAR_TABLE['\t'] |= MASK_SPACE;
-        CHAR_TABLE[0x0C /* '\v' */] |= MASK_SPACE;
-        CHAR_TABLE['\f'] |= MASK_SPACE;
-    }
-
     final LuaString s;
-    final LuaString p;
+    final Program p;
     final Varargs args;
     int level;
     int[] cinit;
     int[] clen;
 
-    MatchState(Varargs args, LuaString s, LuaString pattern) {
+    MatchState(Varargs args, LuaString s, Program pattern) {
         this.s = s;
         this.p = pattern;
         this.args = args;
@@ -191,213 +153,93 @@ final class MatchState implements Serializable {
         return 0;
     }
 
-    int classend(int poffset) {
-        switch (p.luaByte(poffset++)) {
-        case L_ESC:
-            if (poffset == p.length()) {
-                error("malformed pattern (ends with %)");
-            }
-            return poffset + 1;
-
-        case '[':
-            if (p.luaByte(poffset) == '^') {
-                poffset++;
-            }
-            do {
-                if (poffset == p.length()) {
-                    error("malformed pattern (missing ])");
-                }
-                if (p.luaByte(poffset++) == L_ESC && poffset != p.length()) {
-                    poffset++;
-                }
-            } while (p.luaByte(poffset) != ']');
-            return poffset + 1;
-        default:
-            return poffset;
-        }
-    }
-
-    static boolean match_class(int c, int cl) {
-        final char lcl = Character.toLowerCase((char)cl);
-        int cdata = CHAR_TABLE[c];
-
-        boolean res;
-        switch (lcl) {
-        case 'a':
-            res = (cdata & MASK_ALPHA) != 0;
-            break;
-        case 'd':
-            res = (cdata & MASK_DIGIT) != 0;
-            break;
-        case 'l':
-            res = (cdata & MASK_LOWERCASE) != 0;
-            break;
-        case 'u':
-            res = (cdata & MASK_UPPERCASE) != 0;
-            break;
-        case 'c':
-            res = (cdata & MASK_CONTROL) != 0;
-            break;
-        case 'p':
-            res = (cdata & MASK_PUNCT) != 0;
-            break;
-        case 's':
-            res = (cdata & MASK_SPACE) != 0;
-            break;
-        case 'w':
-            res = (cdata & (MASK_ALPHA | MASK_DIGIT)) != 0;
-            break;
-        case 'x':
-            res = (cdata & MASK_HEXDIGIT) != 0;
-            break;
-        case 'z':
-            res = (c == 0);
-            break;
-        default:
-            return cl == c;
-        }
-        return (lcl == cl) ? res : !res;
-    }
-
-    boolean matchbracketclass(int c, int poff, int ec) {
-        boolean sig = true;
-        if (p.luaByte(poff + 1) == '^') {
-            sig = false;
-            poff++;
-        }
-        while (++poff < ec) {
-            if (p.luaByte(poff) == L_ESC) {
-                poff++;
-                if (match_class(c, p.luaByte(poff))) {
-                    return sig;
-                }
-            } else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
-                poff += 2;
-                if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff)) {
-                    return sig;
-                }
-            } else if (p.luaByte(poff) == c) {
-                return sig;
-            }
-        }
-        return !sig;
-    }
-
-    boolean singlematch(int c, int poff, int ep) {
-        switch (p.luaByte(poff)) {
-        case '.':
-            return true;
-        case L_ESC:
-            return match_class(c, p.luaByte(poff + 1));
-        case '[':
-            return matchbracketclass(c, poff, ep - 1);
-        default:
-            return p.luaByte(poff) == c;
-        }
-    }
-
     /**
      * Perform pattern matching. If there is a match, returns offset into s where match ends, otherwise
      * returns -1.
+     *
+     * @param pi Index of the pattern item to start matching from.
      */
-    int match(int soffset, int poffset) {
+    int match(int soffset, int pi) {
+        final Program p = this.p;
         while (true) {
-            // Check if we are at the end of the pattern -
-            // equivalent to the '\0' case in the C version, but our pattern
-            // string is not NUL-terminated.
-            if (poffset == p.length()) {
+            if (pi == p.length) {
                 return soffset;
             }
-            switch (p.luaByte(poffset)) {
-            case '(':
-                if (++poffset < p.length() && p.luaByte(poffset) == ')') {
-                    return start_capture(soffset, poffset + 1, CAP_POSITION);
-                } else {
-                    return start_capture(soffset, poffset, CAP_UNFINISHED);
-                }
-            case ')':
-                return end_capture(soffset, poffset + 1);
-            case L_ESC:
-                if (poffset + 1 == p.length()) {
-                    error("malformed pattern (ends with '%')");
-                }
-                switch (p.luaByte(poffset + 1)) {
-                case 'b':
-                    soffset = matchbalance(soffset, poffset + 2);
-                    if (soffset == -1) {
-                        return -1;
-                    }
-                    poffset += 4;
-                    continue;
-                case 'f': {
-                    poffset += 2;
-                    if (p.luaByte(poffset) != '[') {
-                        error("Missing [ after %f in pattern");
-                    }
-                    int ep = classend(poffset);
-                    int previous = (soffset == 0) ? '\0' : s.luaByte(soffset - 1);
-                    int current = (soffset == s.length()) ? '\0' : s.luaByte(soffset);
-                    if (matchbracketclass(previous, poffset, ep - 1)
-                            || !matchbracketclass(current, poffset, ep - 1)) {
-
-                        return -1;
-                    }
-                    poffset = ep;
-                    continue;
+            switch (p.ops[pi]) {
+            case Program.OP_CAPTURE_START:
+                return start_capture(soffset, pi + 1, CAP_UNFINISHED);
+            case Program.OP_POSITION_CAPTURE:
+                return start_capture(soffset, pi + 1, CAP_POSITION);
+            case Program.OP_CAPTURE_END:
+                return end_capture(soffset, pi + 1);
+            case Program.OP_BALANCE:
+                soffset = matchbalance(soffset, p.args[pi], p.args2[pi]);
+                if (soffset == -1) {
+                    return -1;
                 }
-                default: {
-                    int c = p.luaByte(poffset + 1);
-                    if (Character.isDigit((char)c)) {
-                        soffset = match_capture(soffset, c);
-                        if (soffset == -1) {
-                            return -1;
-                        }
-                        return match(soffset, poffset + 2);
-                    }
+                pi++;
+                continue;
+            case Program.OP_FRONTIER: {
+                int set = p.args[pi];
+                int previous = (soffset == 0) ? '\0' : s.luaByte(soffset - 1);
+                int current = (soffset == s.length()) ? '\0' : s.luaByte(soffset);
+                if (p.inSet(set, previous) || !p.inSet(set, current)) {
+                    return -1;
                 }
+                pi++;
+                continue;
+            }
+            case Program.OP_BACK_REFERENCE:
+                soffset = match_capture(soffset, p.args[pi]);
+                if (soffset == -1) {
+                    return -1;
                 }
+                pi++;
+                continue;
+            case Program.OP_END_ANCHOR:
+                return (soffset == s.length()) ? soffset : -1;
+            case Program.OP_ERROR:
+                throw error(p.errors[p.args[pi]]);
+            default:
                 break;
-            case '$':
-                if (poffset + 1 == p.length()) {
-                    return (soffset == s.length()) ? soffset : -1;
-                }
             }
-            int ep = classend(poffset);
-            boolean m = soffset < s.length() && singlematch(s.luaByte(soffset), poffset, ep);
-            int pc = (ep < p.length()) ? p.luaByte(ep) : '\0';
 
-            switch (pc) {
+            // Single character class
+            final int set = p.args[pi];
+            boolean m = soffset < s.length() && p.inSet(set, s.luaByte(soffset));
+            switch (p.args2[pi]) {
             case '?':
                 int res;
-                if (m && ((res = match(soffset + 1, ep + 1)) != -1)) {
+                if (m && ((res = match(soffset + 1, pi + 1)) != -1)) {
                     return res;
                 }
-                poffset = ep + 1;
+                pi++;
                 continue;
             case '*':
-                return max_expand(soffset, poffset, ep);
+                return max_expand(soffset, set, pi);
             case '+':
-                return (m ? max_expand(soffset + 1, poffset, ep) : -1);
+                return (m ? max_expand(soffset + 1, set, pi) : -1);
             case '-':
-                return min_expand(soffset, poffset, ep);
+                return min_expand(soffset, set, pi);
             default:
                 if (!m) {
                     return -1;
                 }
                 soffset++;
-                poffset = ep;
+                pi++;
                 continue;
             }
         }
     }
 
-    int max_expand(int soff, int poff, int ep) {
+    int max_expand(int soff, int set, int pi) {
+        final int slen = s.length();
         int i = 0;
-        while (soff + i < s.length() && singlematch(s.luaByte(soff + i), poff, ep)) {
+        while (soff + i < slen && p.inSet(set, s.luaByte(soff + i))) {
             i++;
         }
         while (i >= 0) {
-            int res = match(soff + i, ep + 1);
+            int res = match(soff + i, pi + 1);
             if (res != -1) {
                 return res;
             }
@@ -406,12 +248,12 @@ final class MatchState implements Serializable {
         return -1;
     }
 
-    int min_expand(int soff, int poff, int ep) {
+    int min_expand(int soff, int set, int pi) {
         for (;;) {
-            int res = match(soff, ep + 1);
+            int res = match(soff, pi + 1);
             if (res != -1) {
                 return res;
-            } else if (soff < s.length() && singlematch(s.luaByte(soff), poff, ep)) {
+            } else if (soff < s.length() && p.inSet(set, s.luaByte(soff))) {
                 soff++;
             } else {
                 return -1;
@@ -419,7 +261,7 @@ final class MatchState implements Serializable {
         }
     }
 
-    int start_capture(int soff, int poff, int what) {
+    int start_capture(int soff, int pi, int what) {
         int level = this.level;
         if (level >= MAX_CAPTURES) {
             error("too many captures");
@@ -427,18 +269,18 @@ final class MatchState implements Serializable {
         cinit[level] = soff;
         clen[level] = what;
         this.level = level + 1;
-        int res = match(soff, poff);
+        int res = match(soff, pi);
         if (res == -1) {
             this.level--;
         }
         return res;
     }
 
-    int end_capture(int soff, int poff) {
+    int end_capture(int soff, int pi) {
         int l = capture_to_close();
         int res;
         clen[l] = soff - cinit[l];
-        if ((res = match(soff, poff)) == -1) {
+        if ((res = match(soff, pi)) == -1) {
             clen[l] = CAP_UNFINISHED;
         }
         return res;
@@ -454,16 +296,10 @@ final class MatchState implements Serializable {
         }
     }
 
-    int matchbalance(int soff, int poff) {
-        final int plen = p.length();
-        if (poff == plen || poff + 1 == plen) {
-            error("unbalanced pattern");
-        }
-        if (soff >= s.length() || s.luaByte(soff) != p.luaByte(poff)) {
+    int matchbalance(int soff, int b, int e) {
+        if (soff >= s.length() || s.luaByte(soff) != b) {
             return -1;
         } else {
-            int b = p.luaByte(poff);
-            int e = p.luaByte(poff + 1);
             int cont = 1;
             while (++soff < s.length()) {
                 if (s.luaByte(soff) == e) {
@@ -13,6 +13,8 @@ public final class StandardLibrary {
 
     private boolean debugEnabled = true;
     private boolean unsafeIo;
+    private long mappedReadThreshold;
+    private int lineChunkSize = 8 << 10;
 
     public StandardLibrary() {
         packageLib = new PackageLib();
@@ -29,6 +31,32 @@ public final class StandardLibrary {
         unsafeIo = allow;
     }
 
+    /**
+     * Files opened for reading only that are at least {@code minFileSize} bytes are memory-mapped instead of being
+     * read through a buffer. Only applies when unsafe I/O is allowed. The default value of {@code 0} disables
+     * memory-mapping.
+     *
+     * @see #setAllowUnsafeIO(boolean)
+     */
+    public void setMappedReadThreshold(long minFileSize) {
+        mappedReadThreshold = minFileSize;
+    }
+
+    /**
+     * Lines read from files are slices of shared chunks of {@code chunkSize} bytes. A line keeps its entire chunk in
+     * memory for as long as the line itself is referenced, so smaller chunks reduce the memory retained by long-lived
+     * lines. The value {@code 0} copies each line into its own byte array instead. Only applies when unsafe I/O is
+     * allowed. The default chunk size is 8 KiB.
+     *
+     * @see #setAllowUnsafeIO(boolean)
+     */
+    public void setLineChunkSize(int chunkSize) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        lineChunkSize = chunkSize;
+    }
+
     /** Enables loading/instantiation of arbitrary Java classes. */
     public void setAllowUnsafeClassLoading(boolean allow) {
         luajavaLib.setAllowUnsafeClassLoading(allow);
@@ -58,7 +86,7 @@ public final class StandardLibrary {
 
     private ILuaIoImpl createIoImpl() {
         if (unsafeIo) {
-            return new UnsafeIo();
+            return new UnsafeIo(mappedReadThreshold, lineChunkSize);
         } else {
             return new SafeIo();
         }
@@ -9,7 +9,11 @@ import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
@@ -34,7 +38,19 @@ public final class StringLib extends LuaModule {
     static final int L_ESC = '%';
 
     private static final long serialVersionUID = 1L;
-    private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
+
+    /** Maximum number of compiled patterns to keep in {@link #patternCache}. */
+    private static final int PATTERN_CACHE_SIZE = 64;
+
+    /** Maximum number of parsed format strings to keep in {@link #formatCache}. */
+    private static final int FORMAT_CACHE_SIZE = 64;
+
+    /** Buffers grown beyond this size aren't reused by {@link #format(Varargs)}. */
+    private static final int MAX_REUSED_FORMAT_BUFFER = 4096;
+
+    private transient @Nullable LruCache<LuaPattern> patternCache;
+    private transient @Nullable LruCache<FormatTemplate> formatCache;
+    private transient @Nullable Buffer formatBuffer;
 
     StringLib() {
         super("string");
@@ -221,72 +237,71 @@ public final class StringLib extends LuaModule {
      */
     @LuaBoundFunction
     public Varargs format(Varargs args) {
-        LuaString fmt = args.checkstring(1);
-        final int n = fmt.length();
-        Buffer result = new Buffer(n);
+        final FormatTemplate template = compileFormat(args.checkstring(1));
+        final LuaString fmt = template.source();
+
+        Buffer result = formatBuffer;
+        if (result == null) {
+            result = new Buffer(fmt.length());
+            formatBuffer = result;
+        }
+        result.reset();
+
         int arg = 1;
-        int c;
+        for (int i = 0; i < template.size(); i++) {
+            result.append(fmt, template.textStart(i), template.textLength(i));
 
-        for (int i = 0; i < n;) {
-            switch (c = fmt.luaByte(i++)) {
-            case '\n':
-                result.append("\n");
+            FormatDesc fdsc = template.conversion(i);
+            if (fdsc == null) {
+                continue;
+            }
+
+            arg++;
+            switch (fdsc.conversion) {
+            case 'c':
+                fdsc.format(result, (byte)args.checkint(arg));
                 break;
-            default:
-                result.append((byte)c);
+            case 'i':
+            case 'd':
+                fdsc.format(result, args.checkint(arg));
                 break;
-            case L_ESC:
-                if (i < n) {
-                    if ((c = fmt.luaByte(i)) == L_ESC) {
-                        ++i;
-                        result.append((byte)L_ESC);
-                    } else {
-                        arg++;
-                        FormatDesc fdsc = new FormatDesc(fmt, i);
-                        i += fdsc.length;
-                        switch (fdsc.conversion) {
-                        case 'c':
-                            fdsc.format(result, (byte)args.checkint(arg));
-                            break;
-                        case 'i':
-                        case 'd':
-                            fdsc.format(result, args.checkint(arg));
-                            break;
-                        case 'o':
-                        case 'u':
-                        case 'x':
-                        case 'X':
-                            fdsc.format(result, args.checklong(arg));
-                            break;
-                        case 'e':
-                        case 'E':
-                        case 'f':
-                        case 'g':
-                        case 'G':
-                            fdsc.format(result, args.checkdouble(arg));
-                            break;
-                        case 'q':
-                            addquoted(result, args.checkstring(arg));
-                            break;
-                        case 's': {
-                            LuaString s = args.checkstring(arg);
-                            if (fdsc.getPrecision() == -1 && s.length() >= 100) {
-                                // No precision specified and the string is too long to be formatted
-                                result.append(s);
-                            } else {
-                                fdsc.format(result, s);
-                            }
-                        }
-                            break;
-                        default:
-                            throw new LuaException("invalid option '%" + (char)fdsc.conversion + "' to 'format'");
-                        }
-                    }
+            case 'o':
+            case 'u':
+            case 'x':
+            case 'X':
+                fdsc.format(result, args.checklong(arg));
+                break;
+            case 'e':
+            case 'E':
+            case 'f':
+            case 'g':
+            case 'G':
+                fdsc.format(result, args.checkdouble(arg));
+                break;
+            case 'q':
+                addquoted(result, args.checkstring(arg));
+                break;
+            case 's': {
+                LuaString s = args.checkstring(arg);
+                if (fdsc.getPrecision() == -1 && s.length() >= 100) {
+                    // No precision specified and the string is too long to be formatted
+                    result.append(s);
+                } else {
+                    fdsc.format(result, s);
                 }
             }
+                break;
+            default:
+                throw new LuaException("invalid option '%" + (char)fdsc.conversion + "' to 'format'");
+            }
         }
 
-        return result.tostring();
+        LuaString str = result.tostringCopy();
+        if (str.length() > MAX_REUSED_FORMAT_BUFFER) {
+            // Don't hold on to large buffers
+            formatBuffer = null;
+        }
+        return str;
     }
 
     /**
@@ -309,7 +324,7 @@ public final class StringLib extends LuaModule {
     public Varargs gmatch(Varargs args) {
         LuaString src = args.checkstring(1);
         LuaString pat = args.checkstring(2);
-        return new GMatchAux(args, src, pat);
+        return new GMatchAux(args, src, compilePattern(pat));
     }
 
     /**
@@ -357,19 +372,22 @@ public final class StringLib extends LuaModule {
     public Varargs gsub(Varargs args) {
         LuaString src = args.checkstring(1);
         final int srclen = src.length();
-        LuaString p = args.checkstring(2);
+        LuaPattern p = compilePattern(args.checkstring(2));
         LuaValue repl = args.arg(3);
         int maxS = args.optint(4, srclen + 1);
-        final boolean anchor = p.length() > 0 && p.luaByte(0) == '^';
+        final boolean anchor = p.isAnchored();
 
         Buffer lbuf = new Buffer(srclen);
-        MatchState ms = new MatchState(args, src, p);
+        MatchState ms = new MatchState(args, src, p.program(true));
+        if (p.isLiteral()) {
+            return gsubLiteral(src, p, repl, maxS, lbuf, ms);
+        }
 
         int soffset = 0;
         int n = 0;
         while (n < maxS) {
             ms.reset();
-            int res = ms.match(soffset, anchor ? 1 : 0);
+            int res = ms.match(soffset, 0);
             if (res != -1) {
                 n++;
                 ms.add_value(lbuf, soffset, res, repl);
@@ -389,6 +407,41 @@ public final class StringLib extends LuaModule {
         return varargsOf(lbuf.tostring(), valueOf(n));
     }
 
+    /**
+     * Implementation of {@code gsub} for patterns that only match themselves. Skips directly to each occurrence of
+     * the pattern instead of attempting a match at every offset.
+     */
+    private static Varargs gsubLiteral(LuaString src, LuaPattern p, LuaValue repl, int maxS, Buffer lbuf,
+            MatchState ms) {
+
+        final int srclen = src.length();
+        final int plen = p.source().length();
+
+        int soffset = 0;
+        int n = 0;
+        while (n < maxS) {
+            int start = p.indexIn(src, soffset);
+            if (start < 0) {
+                break;
+            }
+            lbuf.append(src.substring(soffset, start));
+
+            n++;
+            ms.add_value(lbuf, start, start + plen, repl);
+            if (plen > 0) {
+                soffset = start + plen;
+            } else if (start < srclen) {
+                lbuf.append((byte)src.luaByte(start));
+                soffset = start + 1;
+            } else {
+                soffset = start;
+                break;
+            }
+        }
+        lbuf.append(src.substring(soffset, srclen));
+        return varargsOf(lbuf.tostring(), valueOf(n));
+    }
+
     /**
      * string.match (s, pattern [, init])
      *
@@ -481,9 +534,9 @@ public final class StringLib extends LuaModule {
     /**
      * This utility method implements both string.find and string.match.
      */
-    private static Varargs strFindAux(Varargs args, boolean find) {
+    private Varargs strFindAux(Varargs args, boolean find) {
         LuaString s = args.checkstring(1);
-        LuaString pat = args.checkstring(2);
+        LuaPattern pat = compilePattern(args.checkstring(2));
         int init = args.optint(3, 1);
 
         if (init > 0) {
@@ -492,28 +545,27 @@ public final class StringLib extends LuaModule {
             init = Math.max(0, s.length() + init);
         }
 
-        boolean fastMatch = find && (args.arg(4).toboolean() || pat.indexOfAny(SPECIALS) == -1);
+        boolean fastMatch = (find ? args.arg(4).toboolean() || pat.isPlain() : pat.isLiteral());
 
         if (fastMatch) {
-            int result = s.indexOf(pat, init);
+            int result = pat.indexIn(s, init);
             if (result != -1) {
-                return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
+                int end = result + pat.source().length();
+                if (find) {
+                    return varargsOf(valueOf(result + 1), valueOf(end));
+                } else {
+                    return s.substring(result, end);
+                }
             }
         } else {
-            MatchState ms = new MatchState(args, s, pat);
-
-            boolean anchor = false;
-            int poff = 0;
-            if (pat.luaByte(0) == '^') {
-                anchor = true;
-                poff = 1;
-            }
+            MatchState ms = new MatchState(args, s, pat.program(true));
 
+            boolean anchor = pat.isAnchored();
             int soff = init;
             do {
                 int res;
                 ms.reset();
-                if ((res = ms.match(soff, poff)) != -1) {
+                if ((res = ms.match(soff, 0)) != -1) {
                     if (find) {
                         return varargsOf(valueOf(soff + 1), valueOf(res), ms.push_captures(false, soff, res));
                     } else {
@@ -525,4 +577,60 @@ public final class StringLib extends LuaModule {
         return NIL;
     }
 
+    /**
+     * Returns the compiled form of a pattern, reusing a previously compiled pattern if possible.
+     */
+    private LuaPattern compilePattern(LuaString pattern) {
+        LruCache<LuaPattern> cache = patternCache;
+        if (cache == null) {
+            cache = new LruCache<>(PATTERN_CACHE_SIZE);
+            patternCache = cache;
+        }
+
+        LuaPattern result = cache.get(pattern);
+        if (result == null) {
+            result = LuaPattern.compile(pattern);
+            cache.put(pattern, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the parsed form of a format string, reusing a previously parsed format string if possible.
+     */
+    private FormatTemplate compileFormat(LuaString fmt) {
+        LruCache<FormatTemplate> cache = formatCache;
+        if (cache == null) {
+            cache = new LruCache<>(FORMAT_CACHE_SIZE);
+            formatCache = cache;
+        }
+
+        FormatTemplate result = cache.get(fmt);
+        if (result == null) {
+            result = FormatTemplate.parse(fmt);
+            cache.put(fmt, result);
+        }
+        return result;
+    }
+
+    /** Bounded cache keyed by string, evicting the least recently used entry when full. */
+    private static final class LruCache<V> extends LinkedHashMap<LuaString, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        LruCache(int maxSize) {
+            super(16, .75f, true);
+
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LuaString, V> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
 }
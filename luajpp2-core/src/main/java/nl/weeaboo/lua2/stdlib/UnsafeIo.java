@@ -3,6 +3,7 @@ package nl.weeaboo.lua2.stdlib;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.lib.LuaFileHandle;
@@ -13,6 +14,20 @@ final class UnsafeIo implements ILuaIoImpl {
 
     private static final long serialVersionUID = 1L;
 
+    private final long mappedReadThreshold;
+    private final int lineChunkSize;
+
+    /**
+     * @param mappedReadThreshold Read-only files of at least this many bytes are memory-mapped. {@code 0} disables
+     *        memory-mapping.
+     * @param lineChunkSize Size of the shared chunks that lines read from a file are sliced out of. {@code 0} copies
+     *        each line into its own byte array.
+     */
+    UnsafeIo(long mappedReadThreshold, int lineChunkSize) {
+        this.mappedReadThreshold = mappedReadThreshold;
+        this.lineChunkSize = lineChunkSize;
+    }
+
     @Override
     public LuaFileHandle openProgram(String prog, String mode) throws IOException {
         throw new IOException("openProgram is not implemented yet");
@@ -24,16 +39,33 @@ final class UnsafeIo implements ILuaIoImpl {
         tempFile.deleteOnExit();
 
         RandomAccessFile rfile = new RandomAccessFile(tempFile, "rw");
-        return new UnsafeLuaFileHandle(fileTable, tempFile.getAbsolutePath(), rfile, FileOpenMode.fromString("r+"));
+        return new UnsafeLuaFileHandle(fileTable, tempFile.getAbsolutePath(), rfile.getChannel(),
+                FileOpenMode.fromString("r+"), false, lineChunkSize);
     }
 
     @Override
     public LuaFileHandle openFile(LuaTable fileTable, String filename, FileOpenMode mode) throws IOException {
         RandomAccessFile rfile = new RandomAccessFile(filename, mode.isWritable() ? "rw" : "r");
-        if (mode.isTruncate()) {
-            rfile.setLength(0);
+        FileChannel channel = rfile.getChannel();
+        try {
+            if (mode.isTruncate()) {
+                channel.truncate(0);
+            }
+            return new UnsafeLuaFileHandle(fileTable, filename, channel, mode, shouldMap(channel, mode),
+                    lineChunkSize);
+        } catch (IOException | RuntimeException e) {
+            rfile.close();
+            throw e;
+        }
+    }
+
+    private boolean shouldMap(FileChannel channel, FileOpenMode mode) throws IOException {
+        if (mappedReadThreshold <= 0 || mode.isWritable()) {
+            return false;
         }
-        return new UnsafeLuaFileHandle(fileTable, filename, rfile, mode);
+
+        long size = channel.size();
+        return size >= mappedReadThreshold && size <= Integer.MAX_VALUE;
     }
 
     @Override
@@ -1,8 +1,10 @@
 package nl.weeaboo.lua2.stdlib;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -12,34 +14,80 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.weeaboo.lua2.lib.LuaFileHandle;
+import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaTable;
 
+/**
+ * File handle backed by a {@link FileChannel}.
+ * <p>
+ * Reads go through a read-ahead buffer, or through a read-only memory mapping of the entire file. Writes are
+ * unbuffered unless a buffer was set using {@link #setvbuf(String, int)}.
+ * <p>
+ * Lines returned by {@link #readLine()} can share the byte array of the read buffer (a chunk). Once a line has been
+ * handed out, the next refill reads into a new chunk instead of overwriting the old one. A line keeps its entire
+ * chunk in memory for as long as the line is referenced, so the chunk size bounds the memory retained per line.
+ */
 final class UnsafeLuaFileHandle extends LuaFileHandle {
 
     private static final long serialVersionUID = 1L;
     private static final Logger LOG = LoggerFactory.getLogger(UnsafeLuaFileHandle.class);
 
+    /** Read buffer size used when lines don't share chunks. */
+    private static final int READ_BUFFER_SIZE = 16 << 10;
+    /** Line buffers larger than this aren't kept around between calls to {@link #readLine()}. */
+    private static final int MAX_RETAINED_LINE_BUFFER = 64 << 10;
+
     private static final Set<String> openFiles = new CopyOnWriteArraySet<>();
 
     private final String fileName;
     private final FileOpenMode mode;
+    private final boolean memoryMapped;
+    private final int lineChunkSize;
 
     private FileBufferMode bufferMode = FileBufferMode.NO;
-    private transient @Nullable ByteBuffer buffer; // Must have a backing array
+    private transient @Nullable ByteBuffer writeBuffer; // Must have a backing array
 
     // Mark file as transient so it 'auto-closes' during serialization
-    private transient @Nullable RandomAccessFile file;
+    private transient @Nullable FileChannel channel;
+
+    /**
+     * Bytes read ahead from the channel. The buffer position is the logical file position, the channel position is
+     * at the end of the buffered bytes. When memory-mapped, this buffer contains the entire file.
+     */
+    private transient @Nullable ByteBuffer readBuffer;
+    /** If {@code true}, the backing array of the read buffer is referenced by a line and may not be overwritten. */
+    private transient boolean readBufferShared;
+    private transient @Nullable byte[] lineBuffer;
+
+    /**
+     * @param memoryMapped If {@code true}, map the file into memory instead of reading it through a buffer. The
+     *        file must be opened in a read-only mode and may not be larger than {@link Integer#MAX_VALUE} bytes.
+     * @param lineChunkSize Size of the chunks from which lines are sliced, or {@code 0} to copy each line into its
+     *        own byte array. Not used for memory-mapped files.
+     * @throws IOException If the file can't be memory-mapped.
+     */
+    public UnsafeLuaFileHandle(LuaTable fileMethods, String fileName, FileChannel channel, FileOpenMode mode,
+            boolean memoryMapped, int lineChunkSize) throws IOException {
 
-    public UnsafeLuaFileHandle(LuaTable fileMethods, String fileName, RandomAccessFile file, FileOpenMode mode) {
         super(fileMethods);
 
+        if (memoryMapped && mode.isWritable()) {
+            throw new IllegalArgumentException("Only read-only files can be memory-mapped: " + fileName);
+        }
+
         this.fileName = fileName;
-        this.file = file;
+        this.channel = channel;
         this.mode = mode;
+        this.memoryMapped = memoryMapped;
+        this.lineChunkSize = lineChunkSize;
+
+        if (memoryMapped) {
+            readBuffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
 
         openFiles.add(fileName);
-        LOG.debug("Opening file: {}", fileName);
+        LOG.debug("Opening file: {} (memoryMapped={})", fileName, memoryMapped);
     }
 
     @SuppressWarnings("checkstyle:NoFinalizer")
@@ -47,7 +95,7 @@ final class UnsafeLuaFileHandle extends LuaFileHandle {
     protected void finalize() throws Throwable {
 
         try {
-            if (file != null) {
+            if (channel != null) {
                 doClose();
 
                 LOG.warn("File handle leak closed by finalizer: {}", fileName);
@@ -57,11 +105,11 @@ final class UnsafeLuaFileHandle extends LuaFileHandle {
         }
     }
 
-    private RandomAccessFile checkOpen() throws IOException {
-        if (file == null) {
+    private FileChannel checkOpen() throws IOException {
+        if (channel == null) {
             throw new IOException("File is closed");
         }
-        return file;
+        return channel;
     }
 
     private void checkReadable() throws IOException {
@@ -82,50 +130,94 @@ final class UnsafeLuaFileHandle extends LuaFileHandle {
 
         super.close();
 
-        if (file != null) {
+        if (channel != null) {
             doClose();
         }
     }
 
     private void doClose() throws IOException {
-        if (file == null) {
+        if (channel == null) {
             return;
         }
 
         LOG.debug("Closing file: {}", fileName);
         openFiles.remove(fileName);
         try {
-            file.close();
+            channel.close();
         } finally {
-            file = null;
+            channel = null;
+            // A mapping stays valid until garbage collected, so make sure we don't hold on to it
+            readBuffer = null;
+            lineBuffer = null;
         }
     }
 
     @Override
     public boolean isClosed() {
-        return file == null;
+        return channel == null;
     }
 
     @Override
     public int seek(String whence, int bytecount) throws IOException {
-        RandomAccessFile file = checkOpen();
+        FileChannel channel = checkOpen();
         flushBuffer();
 
+        long pos;
         if (whence.equals("set")) {
-            file.seek(bytecount);
+            pos = bytecount;
         } else if (whence.equals("cur")) {
-            file.seek(file.getFilePointer() + bytecount);
+            pos = position(channel) + bytecount;
         }  else if (whence.equals("end")) {
-            file.seek(file.length() + bytecount);
+            pos = channel.size() + bytecount;
         } else {
             throw new IOException("Unsupported whence: " + whence);
         }
 
-        long cur = file.getFilePointer();
-        if (cur > Integer.MAX_VALUE) {
+        if (pos < 0) {
+            throw new IOException("Negative seek offset: " + pos);
+        }
+        setPosition(channel, pos);
+
+        if (pos > Integer.MAX_VALUE) {
             throw new IOException("File offset overflow: greater than INT_MAX");
         }
-        return (int)cur;
+        return (int)pos;
+    }
+
+    /** Returns the file position from which the next read or write takes place. */
+    private long position(FileChannel channel) throws IOException {
+        ByteBuffer readBuffer = this.readBuffer;
+        if (memoryMapped) {
+            return readBuffer.position();
+        } else if (readBuffer != null) {
+            return channel.position() - readBuffer.remaining();
+        } else {
+            return channel.position();
+        }
+    }
+
+    private void setPosition(FileChannel channel, long pos) throws IOException {
+        ByteBuffer readBuffer = this.readBuffer;
+        if (memoryMapped) {
+            // Seeking past the end of the file is allowed, reading from there returns end-of-file
+            readBuffer.position((int)Math.min(readBuffer.limit(), pos));
+        } else {
+            channel.position(pos);
+            if (readBuffer != null) {
+                readBuffer.position(readBuffer.limit());
+            }
+        }
+    }
+
+    /**
+     * Drops any bytes that were read ahead, moving the channel position back to the logical file position. This
+     * must be done before writing to the channel.
+     */
+    private void discardReadBuffer(FileChannel channel) throws IOException {
+        ByteBuffer readBuffer = this.readBuffer;
+        if (!memoryMapped && readBuffer != null && readBuffer.hasRemaining()) {
+            setPosition(channel, position(channel));
+        }
     }
 
     @Override
@@ -135,110 +227,322 @@ final class UnsafeLuaFileHandle extends LuaFileHandle {
 
         bufferMode = FileBufferMode.fromString(mode);
         if (bufferMode == FileBufferMode.NO || size == 0) {
-            buffer = null;
+            writeBuffer = null;
         } else {
-            buffer = ByteBuffer.allocate(size);
+            writeBuffer = ByteBuffer.allocate(size);
         }
     }
 
     @Override
     public int remaining() {
         try {
-            RandomAccessFile file = checkOpen();
+            FileChannel channel = checkOpen();
             flushBuffer(); // Not strictly necessary, but it saves us a bit of complexity here.
 
-            return (int)Math.min(Integer.MAX_VALUE, file.length() - file.getFilePointer());
+            long remaining = Math.max(0, channel.size() - position(channel));
+            return (int)Math.min(Integer.MAX_VALUE, remaining);
         } catch (IOException ioe) {
             LOG.trace("Unable to determine remaining bytes for {} due to an I/O error", this, ioe);
             return -1;
         }
     }
 
-    @Override
-    public int peek() throws IOException {
-        RandomAccessFile file = checkOpen();
+    /**
+     * Prepares for reading from the file.
+     *
+     * @return The read buffer.
+     */
+    private ByteBuffer startRead(FileChannel channel) throws IOException {
         checkReadable();
         flushBuffer();
 
-        long oldpos = file.getFilePointer();
-        int r = file.read();
-        file.seek(oldpos);
-        return r;
+        ByteBuffer buf = readBuffer;
+        if (buf == null) {
+            buf = newReadBuffer(0);
+            buf.flip(); // Start out empty
+            readBuffer = buf;
+        }
+        return buf;
+    }
+
+    private ByteBuffer newReadBuffer(int minCapacity) {
+        int capacity = (lineChunkSize > 0 ? lineChunkSize : READ_BUFFER_SIZE);
+        readBufferShared = false;
+        return ByteBuffer.allocate(Math.max(minCapacity, capacity));
+    }
+
+    /**
+     * Refills the read buffer if it's empty.
+     *
+     * @return The read buffer, or {@code null} if no more bytes can be read because the end of the file was reached.
+     */
+    private @Nullable ByteBuffer fillReadBuffer(FileChannel channel) throws IOException {
+        ByteBuffer buf = readBuffer;
+        if (buf.hasRemaining()) {
+            return buf;
+        } else if (memoryMapped) {
+            return null;
+        }
+
+        if (readBufferShared) {
+            buf = newReadBuffer(0);
+            readBuffer = buf;
+        }
+        buf.clear();
+        int r = channel.read(buf);
+        buf.flip();
+        return (r > 0 ? buf : null);
+    }
+
+    /**
+     * Reads more bytes for a line that doesn't fit in the remaining part of the read buffer. The first
+     * {@code partialLength} bytes of the line are moved to the start of the (possibly new) read buffer.
+     *
+     * @return {@code false} if the end of the file was reached.
+     */
+    private boolean refillLine(FileChannel channel, int lineStart, int partialLength) throws IOException {
+        ByteBuffer oldBuf = readBuffer;
+        ByteBuffer buf = oldBuf;
+        if (readBufferShared || partialLength > buf.capacity() / 2) {
+            buf = newReadBuffer(partialLength << 1);
+        }
+        System.arraycopy(oldBuf.array(), lineStart, buf.array(), 0, partialLength);
+        readBuffer = buf;
+
+        buf.clear();
+        buf.position(partialLength);
+        int r = channel.read(buf);
+        buf.flip();
+        return r > 0;
+    }
+
+    @Override
+    public int peek() throws IOException {
+        FileChannel channel = checkOpen();
+        startRead(channel);
+
+        ByteBuffer buf = fillReadBuffer(channel);
+        if (buf == null) {
+            return -1;
+        }
+        return buf.get(buf.position()) & 0xFF;
     }
 
     @Override
     public int read() throws IOException {
-        RandomAccessFile file = checkOpen();
-        checkReadable();
-        flushBuffer();
+        FileChannel channel = checkOpen();
+        startRead(channel);
 
-        return file.read();
+        ByteBuffer buf = fillReadBuffer(channel);
+        if (buf == null) {
+            return -1;
+        }
+        return buf.get() & 0xFF;
     }
 
     @Override
     public int read(byte[] bytes, int offset, int length) throws IOException {
-        RandomAccessFile file = checkOpen();
-        checkReadable();
-        flushBuffer();
+        FileChannel channel = checkOpen();
+        ByteBuffer buf = startRead(channel);
+
+        int total = 0;
+        while (total < length) {
+            buf = readBuffer;
+            if (!buf.hasRemaining() && !memoryMapped && length - total >= buf.capacity()) {
+                // Large read, no point in copying through the read buffer
+                int r = channel.read(ByteBuffer.wrap(bytes, offset + total, length - total));
+                if (r < 0) {
+                    break;
+                }
+                total += r;
+                continue;
+            }
 
-        return file.read(bytes, offset, length);
+            buf = fillReadBuffer(channel);
+            if (buf == null) {
+                break;
+            }
+            int n = Math.min(buf.remaining(), length - total);
+            buf.get(bytes, offset + total, n);
+            total += n;
+        }
+
+        if (total == 0 && length > 0) {
+            return -1;
+        }
+        return total;
+    }
+
+    @Override
+    public @Nullable LuaString readLine() throws IOException {
+        FileChannel channel = checkOpen();
+        ByteBuffer buf = startRead(channel);
+        if (memoryMapped) {
+            return readMappedLine(buf);
+        }
+
+        int lineStart = buf.position();
+        int lineEnd = lineStart; // Bytes are moved back over any skipped carriage returns
+        int scan = lineStart;
+        boolean eof = false;
+        scanLoop:
+        while (true) {
+            final byte[] bytes = buf.array();
+            final int limit = buf.limit();
+            while (scan < limit) {
+                byte b = bytes[scan++];
+                if (b == '\n' || b == 0) {
+                    break scanLoop;
+                } else if (b != '\r') {
+                    bytes[lineEnd++] = b;
+                }
+            }
+
+            // Reached the end of the buffered bytes without finding the end of the line
+            int partialLength = lineEnd - lineStart;
+            if (!refillLine(channel, lineStart, partialLength)) {
+                eof = true;
+                buf = readBuffer;
+                lineStart = 0;
+                lineEnd = partialLength;
+                scan = buf.limit();
+                break;
+            }
+            buf = readBuffer;
+            lineStart = 0;
+            lineEnd = partialLength;
+            scan = partialLength;
+        }
+        buf.position(scan);
+
+        int lineLength = lineEnd - lineStart;
+        if (lineLength == 0) {
+            return (eof ? null : LuaConstants.EMPTYSTRING);
+        } else if (lineChunkSize <= 0) {
+            return LuaString.valueOf(Arrays.copyOfRange(buf.array(), lineStart, lineEnd));
+        } else {
+            readBufferShared = true;
+            return LuaString.valueOf(buf.array(), lineStart, lineLength);
+        }
+    }
+
+    private @Nullable LuaString readMappedLine(ByteBuffer buf) throws IOException {
+        byte[] line = lineBuffer;
+        if (line == null) {
+            line = new byte[128];
+        }
+
+        int lineLength = 0;
+        boolean eof = false;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                eof = true;
+                break;
+            }
+
+            // Find the next byte that ends the line or needs to be left out of it
+            final int start = buf.position();
+            final int limit = buf.limit();
+            int end = start;
+            while (end < limit) {
+                byte b = buf.get(end);
+                if (b == '\n' || b == '\r' || b == 0) {
+                    break;
+                }
+                end++;
+            }
+
+            int n = end - start;
+            if (lineLength + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(lineLength + n, line.length << 1));
+            }
+            buf.get(line, lineLength, n);
+            lineLength += n;
+
+            if (end < limit && buf.get() != '\r') {
+                break; // Consumed the end-of-line byte
+            }
+        }
+
+        lineBuffer = (line.length <= MAX_RETAINED_LINE_BUFFER ? line : null);
+
+        if (eof && lineLength == 0) {
+            return null;
+        }
+        return LuaString.valueOf(Arrays.copyOf(line, lineLength));
     }
 
     @Override
     public void write(LuaString string) throws IOException {
-        checkOpen();
+        FileChannel channel = checkOpen();
         checkWritable();
+        discardReadBuffer(channel);
 
-        if (buffer == null) {
-            writeToFile(string);
+        if (writeBuffer == null) {
+            writeToChannel(channel, string.toByteBuffer(0, string.rawlen()));
         } else {
-            writeToBuffer(buffer, string);
+            writeToBuffer(writeBuffer, string);
         }
     }
 
     private void writeToBuffer(ByteBuffer buffer, LuaString string) throws IOException {
-        for (int n = 0; n < string.rawlen(); n++) {
-            int b = string.luaByte(n);
-            buffer.put((byte)b);
+        final int length = string.rawlen();
+
+        int offset = 0;
+        while (offset < length) {
+            int n = Math.min(length - offset, buffer.remaining());
+
+            boolean lineEnd = false;
+            if (bufferMode == FileBufferMode.LINE) {
+                int newline = string.indexOf((byte)'\n', offset);
+                if (newline >= 0 && newline < offset + n) {
+                    n = newline + 1 - offset;
+                    lineEnd = true;
+                }
+            }
+
+            string.copyInto(offset, buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            buffer.position(buffer.position() + n);
+            offset += n;
 
-            if (buffer.remaining() == 0 || (bufferMode == FileBufferMode.LINE && b == '\n')) {
+            if (lineEnd || !buffer.hasRemaining()) {
                 flushBuffer();
             }
         }
     }
 
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        flushBuffer();
+    }
+
     private void flushBuffer() throws IOException {
+        ByteBuffer buffer = writeBuffer;
         if (buffer == null || buffer.position() == 0) {
             return;
         }
 
-        RandomAccessFile file = checkOpen();
-        if (mode.isAppend()) {
-            final long oldpos = file.getFilePointer();
-            file.seek(file.length());
-            try {
-                file.write(buffer.array(), buffer.arrayOffset(), buffer.position());
-            } finally {
-                file.seek(oldpos);
-            }
-        } else {
-            file.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        FileChannel channel = checkOpen();
+        buffer.flip();
+        try {
+            writeToChannel(channel, buffer);
+        } finally {
+            buffer.clear();
         }
-        buffer.rewind();
     }
 
-    private void writeToFile(LuaString string) throws IOException {
-        RandomAccessFile file = checkOpen();
+    private void writeToChannel(FileChannel channel, ByteBuffer bytes) throws IOException {
         if (mode.isAppend()) {
-            final long oldpos = file.getFilePointer();
-            file.seek(file.length());
-            try {
-                string.write(file, 0, string.length());
-            } finally {
-                file.seek(oldpos);
+            // Positional writes leave the channel position unchanged
+            long pos = channel.size();
+            while (bytes.hasRemaining()) {
+                pos += channel.write(bytes, pos);
             }
         } else {
-            string.write(file, 0, string.length());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
         }
     }
 
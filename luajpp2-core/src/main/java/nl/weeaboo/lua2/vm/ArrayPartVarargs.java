@@ -20,10 +20,10 @@ final class ArrayPartVarargs extends Varargs implements Serializable {
 
     private static final long serialVersionUID = 5311707858805030821L;
 
-    private final int offset;
-    private final LuaValue[] v;
-    private final int length;
-    private final Varargs more;
+    final int offset;
+    final LuaValue[] v;
+    final int length;
+    final Varargs more;
 
     /**
      * Construct a Varargs from an array of LuaValue.
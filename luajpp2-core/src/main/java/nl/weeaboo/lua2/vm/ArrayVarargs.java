@@ -18,8 +18,8 @@ final class ArrayVarargs extends Varargs implements Serializable {
 
     private static final long serialVersionUID = -7227599572095569753L;
 
-    private final LuaValue[] v;
-    private final Varargs r;
+    final LuaValue[] v;
+    final Varargs r;
 
     /**
      * Construct a Varargs from an array of LuaValue.
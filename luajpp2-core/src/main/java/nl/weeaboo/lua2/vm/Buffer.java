@@ -26,6 +26,7 @@ import java.io.Serializable;
 
 import javax.annotation.Nullable;
 
+import nl.weeaboo.lua2.internal.SharedByteAlloc;
 import nl.weeaboo.lua2.io.LuaSerializable;
 
 /**
@@ -130,6 +131,36 @@ public final class Buffer implements Serializable {
         return LuaString.valueOf(bytes, offset, length);
     }
 
+    /**
+     * Copy the buffer contents to a new {@link LuaString}. Unlike {@link #tostring()}, the buffer's internal storage
+     * isn't shared with the returned string, so the buffer may be {@link #reset()} and reused afterwards.
+     *
+     * @return the value as a {@link LuaString}
+     */
+    public final LuaString tostringCopy() {
+        if (value != null) {
+            return value.strvalue();
+        }
+
+        SharedByteAlloc sba = SharedByteAlloc.getInstance();
+        int off = sba.reserve(length);
+        byte[] b = sba.getReserved();
+        System.arraycopy(bytes, offset, b, off, length);
+        return LuaString.valueOf(b, off, length);
+    }
+
+    /**
+     * Clears the buffer contents, but keeps its internal storage for reuse. Don't use this after calling
+     * {@link #tostring()}, since the string returned by that method may share the buffer's storage.
+     *
+     * @return {@code this} to allow call chaining
+     */
+    public final Buffer reset() {
+        offset = length = 0;
+        value = null;
+        return this;
+    }
+
     /**
      * Convert the buffer to a Java String
      *
@@ -183,6 +214,21 @@ public final class Buffer implements Serializable {
         return this;
     }
 
+    /**
+     * Append part of a {@link LuaString} to the buffer.
+     *
+     * @param str the string to copy bytes from
+     * @param off offset of the first byte to append
+     * @param len the number of bytes to append
+     * @return {@code this} to allow call chaining
+     */
+    public final Buffer append(LuaString str, int off, int len) {
+        makeroom(0, len);
+        str.copyInto(off, bytes, offset + length, len);
+        length += len;
+        return this;
+    }
+
     /**
      * Append a Java String to the buffer. The Java string will be converted to
      * bytes using the UTF8 encoding.
@@ -0,0 +1,46 @@
+package nl.weeaboo.lua2.vm;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.JavaBytecodeCompiler;
+
+/**
+ * Base class for Java classes generated from a {@link Prototype} by the {@link JavaBytecodeCompiler}. Only functions
+ * which can't yield are compiled, so a compiled function never needs to be suspended and resumed.
+ * <p>
+ * Internal API, only public so generated classes can access it.
+ *
+ * @see LuaRunState#getCompileThreshold()
+ */
+public abstract class CompiledFunction {
+
+    /**
+     * Runs the compiled function.
+     *
+     * @param closure The closure containing the prototype this function was compiled from.
+     * @param args The function arguments.
+     * @param thread The thread that's running the function.
+     */
+    public abstract Varargs call(LuaClosure closure, Varargs args, LuaThread thread);
+
+    /**
+     * Table lookup with a constant key, equivalent to {@code table.get(key)}.
+     *
+     * @param pc Program counter of the instruction performing the lookup, used to find its inline cache.
+     */
+    protected static LuaValue getCached(LuaClosure closure, int pc, LuaValue table, LuaValue key) {
+        return InlineCache.get(closure.getPrototype(), pc, table, key);
+    }
+
+    /**
+     * Charges a number of instructions against the thread's instruction budget.
+     *
+     * @throws nl.weeaboo.lua2.LuaException If the instruction limit is exceeded.
+     */
+    protected static void consumeInstructionBudget(LuaThread thread, int instructions) {
+        thread.instructionBudget -= instructions;
+        if (thread.instructionBudget < 0) {
+            thread.onInstructionBudgetExhausted();
+        }
+    }
+
+}
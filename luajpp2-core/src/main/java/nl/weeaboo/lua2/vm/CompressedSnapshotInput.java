@@ -0,0 +1,124 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the chunks written by {@link CompressedSnapshotOutput}, decompressing several chunks ahead in parallel. Never
+ * reads beyond the end marker of the compressed snapshot.
+ */
+final class CompressedSnapshotInput extends InputStream {
+
+    /**
+     * Upper limit for the uncompressed and compressed size of a chunk, to avoid huge allocations for corrupt data.
+     */
+    private static final int MAX_CHUNK_SIZE = 64 << 20;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DataInputStream in;
+    private final ExecutorService executor;
+    private final int maxPending;
+
+    /** Chunks being decompressed, in the order they should be read. */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean endOfChunks;
+
+    private byte[] chunk = EMPTY;
+    private int pos;
+
+    /**
+     * @param in The input stream, positioned just after {@link SnapshotFormat#COMPRESSED_MAGIC}.
+     */
+    CompressedSnapshotInput(InputStream in, ExecutorService executor) {
+        this.in = new DataInputStream(in);
+        this.executor = executor;
+        this.maxPending = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == chunk.length && !nextChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == chunk.length && !nextChunk()) {
+            return -1;
+        }
+
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - pos;
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (!endOfChunks && pending.size() < maxPending) {
+            readChunk();
+        }
+        if (pending.isEmpty()) {
+            return false;
+        }
+
+        chunk = CompressedSnapshotOutput.await(pending.remove());
+        pos = 0;
+        return true;
+    }
+
+    private void readChunk() throws IOException {
+        final int length = in.readInt();
+        int compressedLength = in.readInt();
+        if (length == 0) {
+            endOfChunks = true;
+            return;
+        }
+        if (length < 0 || length > MAX_CHUNK_SIZE || compressedLength < 0 || compressedLength > MAX_CHUNK_SIZE) {
+            throw new IOException("Corrupt snapshot: invalid chunk length");
+        }
+
+        final byte[] compressed = new byte[compressedLength];
+        in.readFully(compressed);
+        pending.add(executor.submit(() -> decompress(compressed, length)));
+    }
+
+    private static byte[] decompress(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+
+            byte[] result = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int r = inflater.inflate(result, n, length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt snapshot: compressed chunk is too short");
+                }
+                n += r;
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt snapshot: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Splits a snapshot into chunks and compresses them in parallel, in the compressed format described by
+ * {@link SnapshotFormat}.
+ *
+ * @see CompressedSnapshotInput
+ */
+final class CompressedSnapshotOutput extends OutputStream {
+
+    /** Uncompressed size of each chunk (except the last). */
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private final DataOutputStream out;
+    private final ExecutorService executor;
+
+    /** Limits the number of chunks in memory while the compression is slower than the snapshot writer. */
+    private final int maxPending;
+
+    /** Chunks being compressed, in the order they should be written. */
+    private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+
+    private byte[] buf = new byte[CHUNK_SIZE];
+    private int pos;
+
+    CompressedSnapshotOutput(OutputStream out, ExecutorService executor) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.executor = executor;
+        this.maxPending = 2 * Runtime.getRuntime().availableProcessors();
+
+        this.out.writeInt(SnapshotFormat.COMPRESSED_MAGIC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buf.length) {
+            submitChunk();
+        }
+        buf[pos++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == buf.length) {
+                submitChunk();
+            }
+
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses and writes all buffered data. This ends the current chunk, so flushing often reduces the compression
+     * ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitChunk();
+        while (!pending.isEmpty()) {
+            writeChunk(pending.remove());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data, followed by the end marker. The underlying output stream is flushed, but not closed.
+     */
+    void finish() throws IOException {
+        flush();
+        out.writeInt(0);
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private void submitChunk() throws IOException {
+        if (pos == 0) {
+            return;
+        }
+
+        final byte[] data = buf;
+        final int length = pos;
+        buf = new byte[CHUNK_SIZE];
+        pos = 0;
+
+        pending.add(executor.submit(() -> compress(data, length)));
+        while (pending.size() > maxPending) {
+            writeChunk(pending.remove());
+        }
+    }
+
+    private void writeChunk(Future<Chunk> task) throws IOException {
+        Chunk chunk = await(task);
+        out.writeInt(chunk.length);
+        out.writeInt(chunk.compressedLength);
+        out.write(chunk.compressed, 0, chunk.compressedLength);
+    }
+
+    /**
+     * Waits for a compression or decompression task to finish, and returns its result. An {@link IOException} thrown
+     * by the task is rethrown as is.
+     */
+    static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for snapshot compression");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static Chunk compress(byte[] data, int length) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            byte[] compressed = new byte[length / 2 + 64];
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.length - compressedLength);
+            }
+            return new Chunk(length, compressed, compressedLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class Chunk {
+
+        final int length;
+        final byte[] compressed;
+        final int compressedLength;
+
+        Chunk(int length, byte[] compressed, int compressedLength) {
+            this.length = length;
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+        }
+
+    }
+
+}
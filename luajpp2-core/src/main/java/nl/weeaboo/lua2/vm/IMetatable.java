@@ -22,8 +22,6 @@
 
 package nl.weeaboo.lua2.vm;
 
-import javax.annotation.Nullable;
-
 /**
  * Provides operations that depend on the __mode key of the metatable.
  */
@@ -38,8 +36,8 @@ interface IMetatable {
     /** Return this metatable as a LuaValue. */
     LuaValue toLuaValue();
 
-    /** Return an instance of Slot appropriate for the given key and value. */
-    @Nullable ISlot entry(LuaValue key, LuaValue value);
+    /** Returns the given key wrapped in a weak reference if appropriate. */
+    LuaValue wrapKey(LuaValue key);
 
     /** Returns the given value wrapped in a weak reference if appropriate. */
     LuaValue wrap(LuaValue value);
@@ -0,0 +1,135 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.TSTRING;
+
+import javax.annotation.Nullable;
+
+/**
+ * Monomorphic inline cache for a table lookup with a constant string key ({@code OP_GETGLOBAL}, {@code OP_GETTABLE},
+ * {@code OP_SELF}). Remembers the table, its {@link LuaTable#shape shape} and the hash slot the key was found in, so
+ * repeated lookups don't need to hash the key. Lookups which are resolved through a single {@code __index} table (the
+ * common {@code object:method()} case) are cached as well.
+ * <p>
+ * Instances are immutable, so prototypes can be shared between threads.
+ */
+final class InlineCache {
+
+    /** After this many lookups on a different table, a call site is considered polymorphic and no longer updated. */
+    private static final int MAX_MISSES = 8;
+
+    private final LuaTable table;
+    private final int shape;
+
+    /** Metatable of {@link #table}, or {@code null} if the key was found in {@link #table} itself. */
+    private final @Nullable LuaTable metatable;
+    private final int metatableShape;
+    /** The hash slot of the {@code __index} entry of {@link #metatable}. */
+    private final int indexSlot;
+
+    /** The table containing the key. */
+    private final LuaTable holder;
+    private final int holderShape;
+    /** The hash slot of the key in {@link #holder}. */
+    private final int slot;
+
+    private final int misses;
+
+    private InlineCache(LuaTable table, @Nullable LuaTable metatable, int indexSlot, LuaTable holder, int slot,
+            int misses) {
+        this.table = table;
+        this.shape = table.shape;
+        this.metatable = metatable;
+        this.metatableShape = (metatable != null ? metatable.shape : 0);
+        this.indexSlot = indexSlot;
+        this.holder = holder;
+        this.holderShape = holder.shape;
+        this.slot = slot;
+        this.misses = misses;
+    }
+
+    /**
+     * Equivalent to {@code t.get(key)}, but uses the inline cache of the instruction at {@code pc}.
+     *
+     * @param key A constant from {@link Prototype#k}.
+     */
+    static LuaValue get(Prototype p, int pc, LuaValue t, LuaValue key) {
+        InlineCache[] caches = p.inlineCaches;
+        if (caches != null) {
+            InlineCache cache = caches[pc];
+            if (cache != null && cache.table == t) {
+                LuaValue v = cache.value();
+                if (v != null) {
+                    return v;
+                }
+            }
+        }
+        return miss(p, pc, t, key);
+    }
+
+    private @Nullable LuaValue value() {
+        if (table.shape != shape) {
+            return null;
+        }
+        if (metatable != null) {
+            if (metatable.shape != metatableShape || metatable.hashValues[indexSlot] != holder
+                    || holder.shape != holderShape) {
+                return null;
+            }
+        }
+        return holder.hashValues[slot];
+    }
+
+    private static LuaValue miss(Prototype p, int pc, LuaValue t, LuaValue key) {
+        final LuaValue result = t.get(key);
+        if (key.type() != TSTRING || !(t instanceof LuaTable)) {
+            return result;
+        }
+
+        InlineCache[] caches = p.inlineCaches;
+        if (caches == null) {
+            caches = new InlineCache[p.code.length];
+            p.inlineCaches = caches;
+        }
+
+        int misses = 0;
+        InlineCache old = caches[pc];
+        if (old != null) {
+            if (old.misses >= MAX_MISSES) {
+                return result;
+            }
+            // Invalidation due to a shape change doesn't count as a miss
+            misses = (old.table == t ? old.misses : old.misses + 1);
+        }
+
+        LuaTable table = (LuaTable)t;
+        if (!table.isPlainTable()) {
+            return result;
+        }
+
+        int slot = table.findSlot(key);
+        if (slot >= 0) {
+            caches[pc] = new InlineCache(table, null, -1, table, slot, misses);
+            return result;
+        }
+
+        // Not stored in the table itself, try the __index table
+        LuaTable metatable = (LuaTable)table.metatable;
+        if (metatable == null || !metatable.isPlainTable()) {
+            return result;
+        }
+        int indexSlot = metatable.findSlot(LuaConstants.META_INDEX);
+        if (indexSlot < 0 || !(metatable.hashValues[indexSlot] instanceof LuaTable)) {
+            return result;
+        }
+        LuaTable holder = (LuaTable)metatable.hashValues[indexSlot];
+        if (!holder.isPlainTable()) {
+            return result;
+        }
+        slot = holder.findSlot(key);
+        if (slot >= 0) {
+            caches[pc] = new InlineCache(table, metatable, indexSlot, holder, slot, misses);
+        }
+        return result;
+    }
+
+}
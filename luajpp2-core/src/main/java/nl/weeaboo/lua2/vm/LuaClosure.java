@@ -24,6 +24,8 @@ package nl.weeaboo.lua2.vm;
 
 import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
 
+import java.io.IOException;
+
 import nl.weeaboo.lua2.compiler.ILuaCompiler;
 import nl.weeaboo.lua2.compiler.LuaC;
 import nl.weeaboo.lua2.io.LuaSerializable;
@@ -96,6 +98,13 @@ public final class LuaClosure extends LuaFunction {
     private final Prototype p;
     private final UpValue[] upValues;
 
+    /**
+     * Set whenever the environment changes. Cleared when the closure is written to a delta snapshot.
+     *
+     * @see SnapshotBase
+     */
+    transient boolean dirty;
+
     /** Supply the initial environment. */
     public LuaClosure(Prototype p, LuaValue env) {
         super(env);
@@ -152,6 +161,31 @@ public final class LuaClosure extends LuaFunction {
         return thread.callFunctionInThread(this, varargs);
     }
 
+    @Override
+    public void setfenv(LuaValue env) {
+        super.setfenv(env);
+        dirty = true;
+    }
+
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeValue(env);
+        out.writeVarint(upValues.length);
+        for (UpValue upValue : upValues) {
+            out.writeValue(upValue);
+        }
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        env = in.readLuaValue();
+        int count = in.readVarint();
+        if (count != upValues.length) {
+            throw new IOException("Corrupt snapshot: upvalue count mismatch for " + p);
+        }
+        for (int n = 0; n < count; n++) {
+            upValues[n] = (UpValue)in.readValue();
+        }
+    }
+
     /** Returns the prototype for this closure. */
     public Prototype getPrototype() {
         return p;
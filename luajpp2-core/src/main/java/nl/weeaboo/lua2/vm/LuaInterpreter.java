@@ -7,6 +7,8 @@ import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
 import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
@@ -16,8 +18,8 @@ import com.google.errorprone.annotations.CheckReturnValue;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.JavaBytecodeCompiler;
 import nl.weeaboo.lua2.stdlib.DebugLib;
-import nl.weeaboo.lua2.stdlib.DebugTrace;
 import nl.weeaboo.lua2.vm.StackFrame.Status;
 
 final class LuaInterpreter {
@@ -37,39 +39,41 @@ final class LuaInterpreter {
         }
 
         Varargs result = NONE;
-        while (thread.isRunning() && thread.callstackSize() > callstackBase) {
-            StackFrame sf = thread.callstack;
-            if (sf == null) {
-                throw new IllegalStateException("StackFrame on callstack is unexpectedly null");
-            }
-            if (sf.status == Status.FRESH) {
-                startCall(thread, sf);
-                sf.status = Status.RUNNING;
-            }
+        final FrameState frameState = acquireFrameState(thread);
+        try {
+            while (thread.isRunning() && thread.callstackSize() > callstackBase) {
+                StackFrame sf = thread.callstack;
+                if (sf == null) {
+                    throw new IllegalStateException("StackFrame on callstack is unexpectedly null");
+                }
+                if (sf.status == Status.FRESH) {
+                    startCall(thread, sf);
+                    sf.status = Status.RUNNING;
+                }
 
-            try {
-                result = resume(thread, sf);
-            } finally {
-                if (sf.status == Status.FINISHED) {
-                    finishCall(thread, sf, result);
+                try {
+                    result = resume(frameState, sf);
+                } finally {
+                    if (sf.status == Status.FINISHED) {
+                        finishCall(thread, sf, result);
+                    }
                 }
             }
+        } finally {
+            releaseFrameState(thread, frameState);
         }
 
         return result;
     }
 
-    private static Varargs resume(LuaThread thread, StackFrame sf) {
+    private static Varargs resume(FrameState frameState, StackFrame sf) {
         if (sf.status != Status.RUNNING) {
             throw new LuaException("StackFrame isn't running: status=" + sf.status + ", stackFrame=" + sf);
         }
 
-        sf.status = Status.RUNNING;
-
         Varargs result;
 
-        final FrameState frameState = new FrameState();
-        frameState.startRunning(thread, sf);
+        frameState.startRunning(sf);
         try {
             result = frameState.run();
         } finally {
@@ -79,6 +83,57 @@ final class LuaInterpreter {
         return result;
     }
 
+    /**
+     * Returns a {@link FrameState} bound to the given thread. Frame states are owned by the thread and reused
+     * between calls. Java functions may call back into Lua on the same thread, so the interpreter may be
+     * re-entered; each level of re-entry gets its own frame state.
+     */
+    private static FrameState acquireFrameState(LuaThread thread) {
+        FrameState[] pool = thread.frameStates;
+        final int depth = thread.frameStateDepth;
+        if (pool == null || depth >= pool.length) {
+            int newLength = Math.max(4, depth * 2);
+            pool = (pool == null ? new FrameState[newLength] : Arrays.copyOf(pool, newLength));
+            thread.frameStates = pool;
+        }
+
+        FrameState frameState = pool[depth];
+        if (frameState == null) {
+            frameState = new FrameState(thread);
+            pool[depth] = frameState;
+        }
+        thread.frameStateDepth = depth + 1;
+
+        frameState.bind(LuaRunState.getCurrent());
+        return frameState;
+    }
+
+    private static void releaseFrameState(LuaThread thread, FrameState frameState) {
+        frameState.unbind();
+        thread.frameStateDepth--;
+    }
+
+    /**
+     * Returns the program counter of the given stack frame if it's the frame currently being interpreted by the
+     * thread, or {@code -1} otherwise. While a frame is being interpreted, its program counter is kept in the frame
+     * state and only written back to the frame when the interpreter leaves the frame.
+     * <p>
+     * May be called from another Java thread, in which case the result is a best-effort estimate.
+     */
+    static int getRunningPc(LuaThread thread, StackFrame sf) {
+        final FrameState[] states = thread.frameStates;
+        final int depth = thread.frameStateDepth;
+        if (states == null || depth <= 0 || depth > states.length) {
+            return -1;
+        }
+
+        FrameState state = states[depth - 1];
+        if (state == null || state.stackFrame != sf) {
+            return -1;
+        }
+        return state.pc;
+    }
+
     private static void startCall(LuaThread thread, StackFrame sf) {
         thread.preCall(sf);
     }
@@ -128,10 +183,17 @@ final class LuaInterpreter {
         }
     }
 
-    private static final class FrameState {
+    /**
+     * Interpreter registers for the stack frame that's currently running. Instances are reused, see
+     * {@link LuaInterpreter#acquireFrameState(LuaThread)}.
+     */
+    static final class FrameState {
 
+        private final LuaThread thread;
         private LuaRunState lrs;
-        private LuaThread thread;
+        private boolean debugEnabled;
+        private boolean budgeted;
+        private int compileThreshold;
         private StackFrame stackFrame;
 
         private LuaClosure closure;
@@ -148,16 +210,53 @@ final class LuaInterpreter {
         private int pc;
         private Varargs v;
 
-        public void startRunning(LuaThread thread, StackFrame sf) {
-            this.lrs = LuaRunState.getCurrent();
+        FrameState(LuaThread thread) {
             this.thread = thread;
+        }
+
+        void bind(LuaRunState lrs) {
+            this.lrs = lrs;
+            this.debugEnabled = lrs.isDebugEnabled();
+            this.compileThreshold = (debugEnabled ? 0 : lrs.getCompileThreshold());
+            updateBudgeted();
+        }
+
+        /**
+         * Unless a line or count hook needs to see every instruction, the instruction limit is checked at backward
+         * jumps and calls only. Hooks are installed by calling a Java function, so this is updated after each call.
+         */
+        private void updateBudgeted() {
+            budgeted = !debugEnabled || !DebugLib.hasInstructionHook(thread);
+        }
+
+        /** Clears references to the last executed frame, so they don't outlive the call. */
+        void unbind() {
+            lrs = null;
+            stackFrame = null;
+
+            closure = null;
+            p = null;
+            code = null;
+            k = null;
+            upValues = null;
+
+            stack = null;
+            openups = null;
+            varargs = null;
+            v = null;
+        }
+
+        public void startRunning(StackFrame sf) {
             this.stackFrame = sf;
 
-            closure = sf.func.checkclosure();
-            p = closure.getPrototype();
-            code = p.code;
-            k = p.k;
-            upValues = closure.getUpValues();
+            if (sf.func != closure) {
+                // Recursive calls and returns into the same function can skip this part
+                closure = sf.func.checkclosure();
+                p = closure.getPrototype();
+                code = p.code;
+                k = p.k;
+                upValues = closure.getUpValues();
+            }
 
             stack = sf.stack;
             openups = sf.openups;
@@ -169,9 +268,6 @@ final class LuaInterpreter {
         }
 
         public Varargs run() {
-            // Only check this flag once, and not between every instruction
-            final boolean debugEnabled = lrs.isDebugEnabled();
-
             while (thread.isRunning()) {
                 // Pull out instruction
                 int i;
@@ -181,13 +277,13 @@ final class LuaInterpreter {
                     throw new LuaException("Program Counter outside code range: " + pc + " for " + closure);
                 }
 
-                if (debugEnabled) {
-                    lrs.onInstruction(pc);
-                    DebugLib.debugBytecode(thread, pc, varargs, top);
-                }
-
                 pc++;
 
+                if (!budgeted) {
+                    lrs.onInstruction(pc - 1);
+                    DebugLib.debugBytecode(thread, pc - 1, varargs, top);
+                }
+
                 // Process the opcode
                 final int opcode = i & 0x3f;
                 int a = ((i >> 6) & 0xff);
@@ -214,11 +310,15 @@ final class LuaInterpreter {
                     stack[a] = upValues[i >>> 23].getValue();
                     continue;
                 case Lua.OP_GETGLOBAL: /* A Bx R(A):= Gbl[Kst(Bx)] */
-                    stack[a] = closure.getfenv().get(k[i >>> 14]);
+                    stack[a] = InlineCache.get(p, pc - 1, closure.getfenv(), k[i >>> 14]);
                     continue;
                 case Lua.OP_GETTABLE: { /* A B C R(A):= R(B)[RK(C)] */
                     int c = (i >> 14) & 0x1ff;
-                    stack[a] = stack[i >>> 23].get(c > 0xff ? k[c & 0x0ff] : stack[c]);
+                    if (c > 0xff) {
+                        stack[a] = InlineCache.get(p, pc - 1, stack[i >>> 23], k[c & 0x0ff]);
+                    } else {
+                        stack[a] = stack[i >>> 23].get(stack[c]);
+                    }
                     continue;
                 }
                 case Lua.OP_SETGLOBAL: /* A Bx Gbl[Kst(Bx)]:= R(A) */
@@ -261,9 +361,14 @@ final class LuaInterpreter {
                 case Lua.OP_CONCAT:
                     opConcat(i, a);
                     continue;
-                case Lua.OP_JMP: /* sBx pc+=sBx */
-                    pc += (i >>> 14) - 0x1ffff;
+                case Lua.OP_JMP: { /* sBx pc+=sBx */
+                    int sbx = (i >>> 14) - 0x1ffff;
+                    pc += sbx;
+                    if (sbx < 0 && budgeted) {
+                        consumeInstructionBudget(-sbx);
+                    }
                     continue;
+                }
                 case Lua.OP_EQ:
                 case Lua.OP_LT:
                 case Lua.OP_LE:
@@ -340,20 +445,42 @@ final class LuaInterpreter {
         private @Nullable Varargs opCall(int i, int a) {
             int b = i >>> 23;
             int c = (i >> 14) & 0x1ff;
-            if (b > 0) {
-                v = varargsOf(stack, a + 1, b - 1); // exact arg count
-            } else {
-                v = varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
-            }
 
             LuaValue f = stack[a];
-            if (f.isclosure()) {
-                thread.pushPending(f.checkclosure(), v, a, c - 1);
-                return NONE;
+            if (budgeted) {
+                consumeCallBudget();
             }
+            if (f.isclosure()) {
+                LuaClosure closure = f.checkclosure();
+                Prototype calledProto = closure.getPrototype();
+                CompiledFunction compiled = getCompiledFunction(calledProto);
+                if (compiled == null) {
+                    if (b > 0 && !debugEnabled && calledProto.isVararg == 0) {
+                        /*
+                         * Pass the args in place. The debug lib needs the args as a Varargs, so this is only done
+                         * when debug mode is disabled.
+                         */
+                        v = NONE;
+                        thread.pushPending(closure, stack, a + 1, b - 1, a, c - 1);
+                    } else {
+                        v = callArgs(b, a);
+                        thread.pushPending(closure, v, a, c - 1);
+                    }
+                    return NONE;
+                }
 
-            // Call immediately
-            invoke(f, v);
+                v = callArgs(b, a);
+
+                // Compiled functions can't yield, so they don't need a stack frame
+                stackFrame.top = top;
+                stackFrame.pc = pc;
+                stackFrame.v = v;
+                v = compiled.call(closure, v, thread);
+            } else {
+                // Call immediately
+                v = callArgs(b, a);
+                invoke(f, v);
+            }
 
             if (thread.getStatus() == LuaThreadStatus.SUSPENDED) {
                 return v; // Yield
@@ -365,6 +492,17 @@ final class LuaInterpreter {
             return null;
         }
 
+        /**
+         * Returns the args for a call to R(A), as a view of the stack.
+         */
+        private Varargs callArgs(int b, int a) {
+            if (b > 0) {
+                return varargsOf(stack, a + 1, b - 1); // exact arg count
+            } else {
+                return varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+            }
+        }
+
         /**
          * A B C return R(A)(R(A+1), ... ,R(A+B-1))
          *
@@ -379,14 +517,18 @@ final class LuaInterpreter {
             }
 
             LuaValue f = stack[a];
+            if (budgeted) {
+                consumeCallBudget();
+            }
             if (f.isclosure()) {
-                String functionName = DebugTrace.getCalledFunctionName(thread);
+                thread.preTailcall();
                 thread.postReturn(stackFrame);
 
-                stackFrame.prepareTailcall(f.checkclosure(), v, functionName);
+                stackFrame.prepareTailcall(f.checkclosure(), v, null);
                 top = stackFrame.top;
                 pc = stackFrame.pc;
                 v = stackFrame.v;
+                thread.profileCall(stackFrame, null);
 
                 startCall(thread, stackFrame);
                 return NONE;
@@ -530,7 +672,9 @@ final class LuaInterpreter {
             int b = i >>> 23;
             int c = (i >> 14) & 0x1ff;
 
-            if (c > b + 1) {
+            if (isConcatenable(b, c)) {
+                stack[a] = LuaString.concat(stack, b, c + 1);
+            } else if (c > b + 1) {
                 Buffer buffer = stack[c].buffer();
                 while (--c >= b) {
                     buffer = stack[c].concat(buffer);
@@ -541,6 +685,16 @@ final class LuaInterpreter {
             }
         }
 
+        /** Checks if R(B) to R(C) can all be concatenated without invoking any metamethods. */
+        private boolean isConcatenable(int b, int c) {
+            for (int n = b; n <= c; n++) {
+                if (!stack[n].isstring()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /** A sBx R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) } */
         private void opForLoop(int i, int a) {
             LuaValue limit = stack[a + 1];
@@ -549,7 +703,12 @@ final class LuaInterpreter {
             if (step.gt_b(0) ? idx.lteq_b(limit) : idx.gteq_b(limit)) {
                 stack[a] = idx;
                 stack[a + 3] = idx;
-                pc += (i >>> 14) - 0x1ffff;
+
+                int sbx = (i >>> 14) - 0x1ffff;
+                pc += sbx;
+                if (budgeted) {
+                    consumeInstructionBudget(-sbx);
+                }
             }
         }
 
@@ -569,6 +728,9 @@ final class LuaInterpreter {
          * if R(A+3) ~= nil then R(A+2)=R(A+3) else pc++
          */
         private void opTForLoop(int i, int a) {
+            if (budgeted) {
+                consumeCallBudget();
+            }
             invoke(stack[a], varargsOf(stack[a + 1], stack[a + 2]));
 
             LuaValue object = v.arg1();
@@ -590,7 +752,11 @@ final class LuaInterpreter {
             stack[a + 1] = object;
 
             int c = (i >> 14) & 0x1ff;
-            stack[a] = object.get(c > 0xff ? k[c & 0x0ff] : stack[c]);
+            if (c > 0xff) {
+                stack[a] = InlineCache.get(p, pc - 1, object, k[c & 0x0ff]);
+            } else {
+                stack[a] = object.get(stack[c]);
+            }
         }
 
         /** A B C R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B */
@@ -674,6 +840,44 @@ final class LuaInterpreter {
             }
         }
 
+        /**
+         * Returns the compiled version of the prototype, compiling it if it's been called often enough.
+         *
+         * @return The compiled function, or {@code null} if the function should be interpreted.
+         */
+        private @Nullable CompiledFunction getCompiledFunction(Prototype p) {
+            if (compileThreshold <= 0) {
+                return null;
+            }
+
+            CompiledFunction compiled = p.compiled;
+            if (compiled == null && p.callCount < compileThreshold) {
+                p.callCount++;
+                if (p.callCount == compileThreshold) {
+                    // Returns null if the prototype can't be compiled, the call count ensures we don't try again
+                    compiled = JavaBytecodeCompiler.compile(p);
+                    p.compiled = compiled;
+                }
+            }
+            return compiled;
+        }
+
+        /**
+         * Charges a call against the instruction budget. Loops are charged separately at their backward jumps, so
+         * only a constant is charged here: charging the callee's full code length would count instructions that are
+         * skipped by an early return.
+         */
+        private void consumeCallBudget() {
+            consumeInstructionBudget(1);
+        }
+
+        private void consumeInstructionBudget(int instructions) {
+            thread.instructionBudget -= instructions;
+            if (thread.instructionBudget < 0) {
+                thread.onInstructionBudgetExhausted();
+            }
+        }
+
         private void invoke(LuaValue function, Varargs args) {
             stackFrame.top = top;
             stackFrame.pc = pc;
@@ -683,6 +887,9 @@ final class LuaInterpreter {
 
             top = stackFrame.top;
             pc = stackFrame.pc;
+            if (debugEnabled) {
+                updateBudgeted();
+            }
         }
     }
 }
@@ -34,6 +34,8 @@ import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
@@ -77,6 +79,8 @@ public final class LuaString extends LuaValue implements Externalizable {
     private /*final*/ int strOffset;
     private /*final*/ int strLength;
     private transient /*final*/ int hashCode;
+    /** If true, this is the canonical instance from the {@link LuaStringPool}. */
+    transient boolean interned;
     //--- Uses manual serialization, don't add variables ---
 
     /**
@@ -88,6 +92,11 @@ public final class LuaString extends LuaValue implements Externalizable {
      *         String
      */
     public static LuaString valueOf(String string) {
+        LuaString cached = LuaStringPool.getCached(string);
+        if (cached != null) {
+            return cached;
+        }
+
         //Calculate length
         final int charLength = string.length();
         int length = charLength;
@@ -116,7 +125,15 @@ public final class LuaString extends LuaValue implements Externalizable {
             }
         }
 
-        return valueOf(b, offset, length);
+        LuaString str = valueOf(b, offset, length);
+        LuaString pooled = LuaStringPool.autoIntern(str);
+        if (pooled != str) {
+            sba.unreserve(offset, length);
+        }
+        if (pooled.interned) {
+            LuaStringPool.putCached(string, pooled);
+        }
+        return pooled;
     }
 
     /**
@@ -184,6 +201,19 @@ public final class LuaString extends LuaValue implements Externalizable {
         }
     }
 
+    /**
+     * Returns the canonical instance of this string from the {@link LuaStringPool}, adding this string to the pool
+     * if it isn't pooled yet. The returned instance can be compared to other pooled strings by identity.
+     *
+     * @see String#intern()
+     */
+    public LuaString intern() {
+        if (interned) {
+            return this;
+        }
+        return LuaStringPool.intern(this);
+    }
+
     @Override
     public boolean isstring() {
         return true;
@@ -495,13 +525,48 @@ public final class LuaString extends LuaValue implements Externalizable {
     public LuaValue concatTo(LuaString lhs) {
         SharedByteAlloc sba = SharedByteAlloc.getInstance();
         int len = lhs.strLength + this.strLength;
-        int offset = sba.reserve(len);
-        byte[] b = sba.getReserved();
-        System.arraycopy(lhs.strBytes, lhs.strOffset, b, offset, lhs.strLength);
+        byte[] b = sba.reserveConcat(lhs.strBytes, lhs.strOffset, lhs.strLength, len);
+        int offset = sba.getConcatOffset();
+        if (b != lhs.strBytes || offset != lhs.strOffset) {
+            System.arraycopy(lhs.strBytes, lhs.strOffset, b, offset, lhs.strLength);
+        }
         System.arraycopy(this.strBytes, this.strOffset, b, offset + lhs.strLength, this.strLength);
         return new LuaString(b, offset, len);
     }
 
+    /**
+     * Concatenates {@code values[start]} up to (but not including) {@code values[end]}, which must all be strings
+     * or numbers. Numbers are replaced by their string value in the array. The result is allocated at its final
+     * size, so the bytes of each part are only copied once.
+     */
+    static LuaString concat(LuaValue[] values, int start, int end) {
+        int len = 0;
+        for (int n = start; n < end; n++) {
+            LuaString str = values[n].strvalue();
+            values[n] = str;
+            len += str.strLength;
+            if (len > MAX_STRING_LENGTH) {
+                assertValidStringLength(len);
+            }
+        }
+
+        LuaString first = (LuaString)values[start];
+        SharedByteAlloc sba = SharedByteAlloc.getInstance();
+        byte[] b = sba.reserveConcat(first.strBytes, first.strOffset, first.strLength, len);
+        int offset = sba.getConcatOffset();
+        if (b != first.strBytes || offset != first.strOffset) {
+            System.arraycopy(first.strBytes, first.strOffset, b, offset, first.strLength);
+        }
+
+        int pos = offset + first.strLength;
+        for (int n = start + 1; n < end; n++) {
+            LuaString str = (LuaString)values[n];
+            System.arraycopy(str.strBytes, str.strOffset, b, pos, str.strLength);
+            pos += str.strLength;
+        }
+        return new LuaString(b, offset, len);
+    }
+
     // string comparison
     @Override
     public int strcmp(LuaValue lhs) {
@@ -696,15 +761,16 @@ public final class LuaString extends LuaValue implements Externalizable {
 
     @Override
     public int hashCode() {
-        if (hashCode == 0) { //If the calculated hashCode by chance is also zero, caching doesn't work
-            int h = strLength; //seed
-            int step = (strLength >> 5) + 1; //If string is too long, don't hash all its chars
-            for (int l1 = strLength; l1 >= step; l1 -= step) {
-                h = h ^ ((h << 5) + (h >> 2) + (strBytes[strOffset + l1 - 1] & 0x0FF));
+        int h = hashCode;
+        if (h == 0) {
+            // Hashes all bytes using a random key, so hash collisions can't be forced (see StringHash)
+            h = StringHash.hash(strBytes, strOffset, strLength);
+            if (h == 0) {
+                h = 1; // Zero means the hash code hasn't been calculated yet
             }
             hashCode = h;
         }
-        return hashCode;
+        return h;
     }
 
     // object comparison, used in key comparison
@@ -762,6 +828,10 @@ public final class LuaString extends LuaValue implements Externalizable {
         if (this == s) {
             return true;
         }
+        if (interned && s.interned) {
+            // There's only one pooled instance for each string
+            return false;
+        }
         if (s.strLength != strLength) {
             return false;
         }
@@ -789,6 +859,13 @@ public final class LuaString extends LuaValue implements Externalizable {
         out.write(strBytes, strOffset + i, len);
     }
 
+    /**
+     * Returns a read-only {@link ByteBuffer} view of part of this string. The bytes are not copied.
+     */
+    public ByteBuffer toByteBuffer(int offset, int len) {
+        return ByteBuffer.wrap(strBytes, strOffset + offset, len).asReadOnlyBuffer();
+    }
+
     @Override
     public LuaValue len() {
         return LuaInteger.valueOf(strLength);
@@ -877,7 +954,7 @@ public final class LuaString extends LuaValue implements Externalizable {
      * @return index of first match found, or -1 if not found.
      */
     public int indexOf(byte b, int start) {
-        for (int i = 0, j = strOffset + start; i < strLength; ++i) {
+        for (int i = 0, j = strOffset + start, n = strLength - start; i < n; ++i) {
             if (strBytes[j++] == b) {
                 return i + start;
             }
@@ -903,6 +980,46 @@ public final class LuaString extends LuaValue implements Externalizable {
         return -1;
     }
 
+    /**
+     * Find the index of a string starting at a point in this string, using the Boyer-Moore-Horspool algorithm.
+     *
+     * @param s the non-empty string to search for
+     * @param start the first index in the string
+     * @param skipTable the result of calling {@link #horspoolSkipTable()} on {@code s}
+     * @return index of first match found, or -1 if not found.
+     */
+    public int indexOf(LuaString s, int start, int[] skipTable) {
+        final byte[] needle = s.strBytes;
+        final int needleOffset = s.strOffset;
+        final int last = s.strLength - 1;
+        final int limit = strOffset + strLength - s.strLength;
+        int i = strOffset + start;
+        while (i <= limit) {
+            int j = last;
+            while (strBytes[i + j] == needle[needleOffset + j]) {
+                if (j == 0) {
+                    return i - strOffset;
+                }
+                j--;
+            }
+            i += skipTable[strBytes[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Creates the bad character shift table for {@link #indexOf(LuaString, int, int[])}, when searching for this
+     * string.
+     */
+    public int[] horspoolSkipTable() {
+        int[] table = new int[256];
+        Arrays.fill(table, strLength);
+        for (int i = 0; i < strLength - 1; i++) {
+            table[strBytes[strOffset + i] & 0xFF] = strLength - 1 - i;
+        }
+        return table;
+    }
+
     /**
      * Find the last index of a string in this string
      *
@@ -1157,6 +1274,24 @@ public final class LuaString extends LuaValue implements Externalizable {
         in.readFully(strBytes, strOffset, strLength);
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeVarint(strLength);
+        out.writeBytes(strBytes, strOffset, strLength);
+    }
+
+    static LuaString readSnapshot(SnapshotReader in) throws IOException {
+        int length = in.readVarint();
+        if (length < 0) {
+            throw new IOException("Corrupt snapshot: invalid string length: " + length);
+        }
+
+        SharedByteAlloc sba = SharedByteAlloc.getInstance();
+        int offset = sba.reserve(length);
+        byte[] bytes = sba.getReserved();
+        in.readBytes(bytes, offset, length);
+        return new LuaString(bytes, offset, length);
+    }
+
     /**
      * Checks if the given length is a valid Lua string length, throwing an exception if it isn't.
      * @throws LuaException If the given length isn't valid.
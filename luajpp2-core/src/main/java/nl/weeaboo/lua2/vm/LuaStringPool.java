@@ -0,0 +1,136 @@
+package nl.weeaboo.lua2.vm;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Global pool of canonical {@link LuaString} instances, used to share short strings like table keys, method names
+ * and constants. Pooled strings are only weakly referenced, so strings that are no longer used elsewhere can be
+ * garbage collected.
+ * <p>
+ * Two distinct pooled strings are never equal, which allows {@link LuaString#raweq(LuaString)} to compare them by
+ * identity.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @see LuaString#intern()
+ */
+public final class LuaStringPool {
+
+    /** Longer strings are not pooled automatically. */
+    public static final int MAX_AUTO_INTERN_LENGTH = 32;
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final int JAVA_STRING_CACHE_SIZE = 256;
+
+    private static final Segment[] segments;
+    /** Small direct-mapped cache for {@link LuaString#valueOf(String)}, so frequently used strings aren't encoded. */
+    private static final JavaStringMapping[] javaStringCache = new JavaStringMapping[JAVA_STRING_CACHE_SIZE];
+    private static volatile boolean enabled = true;
+
+    static {
+        segments = new Segment[SEGMENT_COUNT];
+        for (int n = 0; n < segments.length; n++) {
+            segments[n] = new Segment();
+        }
+    }
+
+    private LuaStringPool() {
+    }
+
+    /**
+     * Enables or disables automatic interning of short strings (created by {@link LuaString#valueOf(String)}, or
+     * constants in loaded Lua code). Strings can still be interned explicitly using {@link LuaString#intern()}.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * @return {@code true} if short strings are interned automatically.
+     * @see #setEnabled(boolean)
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the pooled instance for the given string if automatic interning is enabled and the string is short
+     * enough.
+     *
+     * @return The pooled instance, or {@code str} itself if it shouldn't be pooled or wasn't pooled before.
+     */
+    public static LuaString autoIntern(LuaString str) {
+        if (!enabled || str.rawlen() > MAX_AUTO_INTERN_LENGTH) {
+            return str;
+        }
+        return str.intern();
+    }
+
+    static @Nullable LuaString getCached(String javaString) {
+        if (!enabled) {
+            return null;
+        }
+        JavaStringMapping mapping = javaStringCache[javaString.hashCode() & (JAVA_STRING_CACHE_SIZE - 1)];
+        if (mapping != null && mapping.javaString.equals(javaString)) {
+            return mapping.luaString;
+        }
+        return null;
+    }
+
+    static void putCached(String javaString, LuaString luaString) {
+        int index = javaString.hashCode() & (JAVA_STRING_CACHE_SIZE - 1);
+        javaStringCache[index] = new JavaStringMapping(javaString, luaString);
+    }
+
+    /**
+     * @see LuaString#intern()
+     */
+    static LuaString intern(LuaString str) {
+        Segment segment = segments[str.hashCode() & (SEGMENT_COUNT - 1)];
+        synchronized (segment) {
+            WeakReference<LuaString> ref = segment.strings.get(str);
+            LuaString existing = (ref != null ? ref.get() : null);
+            if (existing != null) {
+                return existing;
+            }
+            str.interned = true;
+            segment.strings.put(str, new WeakReference<>(str));
+            return str;
+        }
+    }
+
+    /** Returns the number of strings currently in the pool. */
+    static int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.strings.size();
+            }
+        }
+        return size;
+    }
+
+    /** Immutable, so it can be safely shared between threads without synchronization. */
+    private static final class JavaStringMapping {
+
+        final String javaString;
+        final LuaString luaString;
+
+        JavaStringMapping(String javaString, LuaString luaString) {
+            this.javaString = javaString;
+            this.luaString = luaString;
+        }
+    }
+
+    private static final class Segment {
+
+        /** Values are weak as well, because they refer to their own key. */
+        final Map<LuaString, WeakReference<LuaString>> strings = new WeakHashMap<>();
+
+    }
+
+}
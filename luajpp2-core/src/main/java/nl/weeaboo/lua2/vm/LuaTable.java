@@ -22,6 +22,7 @@
 
 package nl.weeaboo.lua2.vm;
 
+import static nl.weeaboo.lua2.vm.LuaConstants.EMPTYSTRING;
 import static nl.weeaboo.lua2.vm.LuaConstants.META_LEN;
 import static nl.weeaboo.lua2.vm.LuaConstants.META_NEWINDEX;
 import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
@@ -40,10 +41,12 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
+import nl.weeaboo.lua2.internal.SharedByteAlloc;
 import nl.weeaboo.lua2.io.DelayedReader;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.io.LuaSerializer;
@@ -103,24 +106,56 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
     private static final int MIN_HASH_CAPACITY = 2;
     private static final LuaString N = valueOf("n");
 
-    private static final ISlot[] NOBUCKETS = {};
-
-    /** the array values. */
+    /** the array values, or {@link LuaConstants#NOVALS} if the array part is stored in {@link #numbers}. */
     protected LuaValue[] array;
 
-    /** the hash part. */
-    protected ISlot[] hash;
+    /**
+     * the array values if the array part only contains numbers, or null. Unused elements are {@code NaN}.
+     *
+     * @see #isPlainTable()
+     */
+    protected @Nullable double[] numbers;
+
+    /**
+     * the keys of the hash part, using open addressing with linear probing. There are twice as many slots as the
+     * {@link #getHashLength() capacity} of the hash part. A removed key stays in place (with a {@code null} value)
+     * until the next rehash, so {@link #next(LuaValue)} keeps working while clearing fields.
+     */
+    protected LuaValue[] hashKeys;
+
+    /** the values of the hash part, or {@code null} for removed keys. */
+    protected LuaValue[] hashValues;
 
     /** the number of hash entries. */
     protected int hashEntries;
 
+    /** the number of non-empty slots in the hash part, including removed keys. */
+    private int hashSlotsUsed;
+
     /** metatable for this table, or null. */
     protected @Nullable IMetatable metatable;
 
+    /**
+     * Incremented whenever a key is added to or removed from the hash part, the hash part is rebuilt, or the
+     * metatable changes. Updating the value of an existing key doesn't change the shape.
+     *
+     * @see InlineCache
+     */
+    transient int shape;
+
+    /**
+     * Set whenever the contents or metatable of this table change. Cleared when the table is written to a delta
+     * snapshot.
+     *
+     * @see SnapshotBase
+     */
+    transient boolean dirty;
+
     /** Construct empty table. */
     public LuaTable() {
         array = NOVALS;
-        hash = NOBUCKETS;
+        hashKeys = NOVALS;
+        hashValues = NOVALS;
     }
 
     /**
@@ -219,29 +254,28 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
 
         out.writeObject(metatable);
 
-        out.writeInt(array.length);
-        int lastNonNil = array.length - 1;
-        while (lastNonNil >= 0 && array[lastNonNil] == null) {
+        final int arrayLength = getArrayLength();
+        out.writeInt(arrayLength);
+        int lastNonNil = arrayLength - 1;
+        while (lastNonNil >= 0 && rawArrayValue(lastNonNil) == null) {
             lastNonNil--;
         }
         out.writeInt(lastNonNil + 1);
         for (int n = 0; n <= lastNonNil; n++) {
-            out.writeObject(array[n]);
+            out.writeObject(rawArrayValue(n));
         }
 
-        writeHashEntries(out, hash);
+        writeHashEntries(out);
     }
 
-    private void writeHashEntries(ObjectOutput out, ISlot[] hashSlots) throws IOException {
+    private void writeHashEntries(ObjectOutput out) throws IOException {
         List<LuaValue> keysAndValues = new ArrayList<>();
-        for (ISlot chain : hashSlots) {
-            while (chain != null) {
-                IStrongSlot cur = chain.first();
-                if (cur != null) {
-                    keysAndValues.add(cur.key());
-                    keysAndValues.add(cur.value());
-                }
-                chain = chain.rest();
+        for (int i = 0; i < hashKeys.length; i++) {
+            LuaValue key = hashKey(i);
+            LuaValue value = hashValue(i);
+            if (key != null && value != null) {
+                keysAndValues.add(key);
+                keysAndValues.add(value);
             }
         }
 
@@ -258,6 +292,8 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         metatable = (IMetatable)in.readObject();
+        hashKeys = NOVALS;
+        hashValues = NOVALS;
 
         int arrayLength = in.readInt();
         int arrayUsed = in.readInt();
@@ -265,6 +301,7 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         for (int n = 0; n < arrayUsed; n++) {
             array[n] = (LuaValue)in.readObject();
         }
+        useNumberArrayIfPossible();
 
         readHashEntries(in);
     }
@@ -288,6 +325,66 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeValue(metatable);
+
+        final int arrayLength = getArrayLength();
+        int arrayUsed = arrayLength;
+        while (arrayUsed > 0 && !rawArrayValueExists(arrayUsed - 1)) {
+            arrayUsed--;
+        }
+        out.writeVarint(arrayLength);
+        out.writeVarint(arrayUsed);
+        for (int n = 0; n < arrayUsed; n++) {
+            out.writeValue(rawArrayValue(n));
+        }
+
+        // Collect the entries first, weak references may be cleared at any time
+        LuaValue[] keysAndValues = new LuaValue[hashEntries << 1];
+        int used = 0;
+        for (int i = 0; i < hashKeys.length && used < keysAndValues.length; i++) {
+            LuaValue key = hashKey(i);
+            LuaValue value = hashValue(i);
+            if (key != null && value != null) {
+                keysAndValues[used++] = key;
+                keysAndValues[used++] = value;
+            }
+        }
+        out.writeVarint(used >> 1);
+        for (int n = 0; n < used; n++) {
+            out.writeValue(keysAndValues[n]);
+        }
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        metatable = (IMetatable)in.readValue();
+
+        int arrayLength = in.readVarint();
+        int arrayUsed = in.readVarint();
+        array = (arrayLength > 0 ? new LuaValue[arrayLength] : NOVALS);
+        numbers = null;
+        for (int n = 0; n < arrayUsed; n++) {
+            array[n] = in.readLuaValue();
+        }
+        useNumberArrayIfPossible();
+
+        // Size the hash part up front, so it doesn't need to be rehashed while the entries are added
+        int hashCount = in.readVarint();
+        int nhash = (hashCount > 0 ? Math.max(hashCount, MIN_HASH_CAPACITY) : 0);
+        hashKeys = (nhash > 0 ? new LuaValue[2 << log2(nhash)] : NOVALS);
+        hashValues = (nhash > 0 ? new LuaValue[hashKeys.length] : NOVALS);
+        hashEntries = 0;
+        hashSlotsUsed = 0;
+        for (int n = 0; n < hashCount; n++) {
+            LuaValue key = in.readLuaValue();
+            LuaValue value = in.readLuaValue();
+            hashset(key, value);
+        }
+
+        // The table may have been read into an existing instance (delta snapshot), invalidate any cached slots
+        shape++;
+    }
+
     @Override
     public int type() {
         return LuaConstants.TTABLE;
@@ -315,7 +412,11 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
 
     @Override
     public void presize(int narray) {
-        if (narray > array.length) {
+        if (numbers != null) {
+            if (narray > numbers.length) {
+                numbers = resize(numbers, 1 << log2(narray));
+            }
+        } else if (narray > array.length) {
             array = resize(array, 1 << log2(narray));
         }
     }
@@ -326,8 +427,10 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
         // Size of both parts must be a power of two.
         array = (narray > 0 ? new LuaValue[1 << log2(narray)] : NOVALS);
-        hash = (nhash > 0 ? new ISlot[1 << log2(nhash)] : NOBUCKETS);
+        hashKeys = (nhash > 0 ? new LuaValue[2 << log2(nhash)] : NOVALS);
+        hashValues = (nhash > 0 ? new LuaValue[hashKeys.length] : NOVALS);
         hashEntries = 0;
+        hashSlotsUsed = 0;
     }
 
     /** Resize the table. */
@@ -337,11 +440,105 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         return v;
     }
 
+    private static double[] resize(double[] old, int n) {
+        double[] v = Arrays.copyOf(old, n);
+        if (n > old.length) {
+            Arrays.fill(v, old.length, n, Double.NaN);
+        }
+        return v;
+    }
+
+    /**
+     * Returns {@code true} if this is a plain {@link LuaTable} (not a subclass) without weak keys or values. Only
+     * plain tables may store their array part in {@link #numbers}, or have hash slots which can be cached by an
+     * {@link InlineCache}.
+     */
+    boolean isPlainTable() {
+        return getClass() == LuaTable.class && (metatable == null || metatable.getClass() == LuaTable.class);
+    }
+
+    /** Returns {@code true} if the value can be stored in {@link #numbers}. */
+    private static boolean isArrayNumber(LuaValue value) {
+        return value.type() == TNUMBER && !Double.isNaN(value.todouble());
+    }
+
+    /** Switches the array part to {@link #numbers} if it only contains numbers. */
+    private void useNumberArrayIfPossible() {
+        if (numbers != null || !isPlainTable()) {
+            return;
+        }
+
+        boolean anyNumbers = false;
+        for (LuaValue value : array) {
+            if (value != null) {
+                if (!isArrayNumber(value)) {
+                    return;
+                }
+                anyNumbers = true;
+            }
+        }
+        if (!anyNumbers) {
+            return;
+        }
+
+        double[] newNumbers = new double[array.length];
+        for (int i = 0; i < array.length; i++) {
+            newNumbers[i] = (array[i] != null ? array[i].todouble() : Double.NaN);
+        }
+        numbers = newNumbers;
+        array = NOVALS;
+    }
+
+    /** Switches the array part from {@link #numbers} back to regular values. */
+    private void useValueArray() {
+        if (numbers == null) {
+            return;
+        }
+
+        LuaValue[] newArray = new LuaValue[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            double d = numbers[i];
+            if (!Double.isNaN(d)) {
+                newArray[i] = valueOf(d);
+            }
+        }
+        array = newArray;
+        numbers = null;
+    }
+
+    /**
+     * Returns the value stored in the array part, without resolving weak references.
+     *
+     * @return The value, or {@code null} if empty.
+     */
+    private @Nullable LuaValue rawArrayValue(int index) {
+        if (numbers != null) {
+            double d = numbers[index];
+            return Double.isNaN(d) ? null : valueOf(d);
+        }
+        return array[index];
+    }
+
+    private boolean rawArrayValueExists(int index) {
+        if (numbers != null) {
+            return !Double.isNaN(numbers[index]);
+        }
+        return array[index] != null;
+    }
+
+    /** Equivalent to {@code !rawget(key).isnil()}, but avoids creating number objects. */
+    private boolean rawhas(int key) {
+        if (numbers != null && key > 0 && key <= numbers.length) {
+            return !Double.isNaN(numbers[key - 1]);
+        }
+        return !rawget(key).isnil();
+    }
+
     @Override
     public LuaValue getn() {
         int count = 0;
         for (int n = 1; n <= getArrayLength(); n++) {
-            if (rawget(n).isnil()) {
+            if (!rawhas(n)) {
                 break;
             }
             count++;
@@ -355,16 +552,17 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
      * @return length of the array part, does not relate to count of objects in the table.
      */
     protected int getArrayLength() {
-        return array.length;
+        return (numbers != null ? numbers.length : array.length);
     }
 
     /**
      * Get the length of the hash part of the table.
      *
-     * @return length of the hash part, does not relate to count of objects in the table.
+     * @return the number of entries the hash part can hold before it needs to grow, does not relate to count of
+     *         objects in the table.
      */
     protected int getHashLength() {
-        return hash.length;
+        return hashKeys.length >> 1;
     }
 
     @Override
@@ -378,6 +576,11 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         boolean oldWeakValues = metatable != null && metatable.useWeakValues();
 
         metatable = metatableOf(mt);
+        shape++;
+        dirty = true;
+        if (!isPlainTable()) {
+            useValueArray();
+        }
 
         boolean newWeakKeys = metatable != null && metatable.useWeakKeys();
         boolean newWeakValues = metatable != null && metatable.useWeakValues();
@@ -403,7 +606,12 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
 
     @Override
     public LuaValue rawget(int key) {
-        if (key > 0 && key <= array.length) {
+        if (numbers != null) {
+            if (key > 0 && key <= numbers.length) {
+                double d = numbers[key - 1];
+                return Double.isNaN(d) ? NIL : valueOf(d);
+            }
+        } else if (key > 0 && key <= array.length) {
             LuaValue v = metatable == null ? array[key - 1] : metatable.arrayget(array, key - 1);
             return v != null ? v : NIL;
         }
@@ -414,7 +622,12 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
     public LuaValue rawget(LuaValue key) {
         if (key.isinttype()) {
             int ikey = key.toint();
-            if (ikey > 0 && ikey <= array.length) {
+            if (numbers != null) {
+                if (ikey > 0 && ikey <= numbers.length) {
+                    double d = numbers[ikey - 1];
+                    return Double.isNaN(d) ? NIL : valueOf(d);
+                }
+            } else if (ikey > 0 && ikey <= array.length) {
                 LuaValue v = metatable == null ? array[ikey - 1] : metatable.arrayget(array, ikey - 1);
                 return v != null ? v : NIL;
             }
@@ -424,16 +637,68 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
 
     protected LuaValue hashget(LuaValue key) {
         if (hashEntries > 0) {
-            for (ISlot slot = hash[hashSlot(key)]; slot != null; slot = slot.rest()) {
-                IStrongSlot foundSlot;
-                if ((foundSlot = slot.find(key)) != null) {
-                    return foundSlot.value();
-                }
+            int index = hashFind(key);
+            if (index >= 0) {
+                LuaValue value = hashValue(index);
+                return (value != null ? value : NIL);
             }
         }
         return NIL;
     }
 
+    /**
+     * Finds the hash slot containing a key.
+     *
+     * @return The slot index, or {@code -1} if not found. The value in the slot may be {@code null} if the key was
+     *         removed.
+     */
+    private int hashFind(LuaValue key) {
+        final LuaValue[] keys = hashKeys;
+        final int mask = keys.length - 1;
+        final boolean weakKeys = (metatable != null && metatable.useWeakKeys());
+        for (int i = hashSlot(key, mask); ; i = (i + 1) & mask) {
+            LuaValue k = keys[i];
+            if (k == null) {
+                return -1;
+            } else if (k == key || k.raweq(key)) {
+                return i;
+            } else if (weakKeys && k.strongvalue() == null) {
+                // The key was garbage collected, release the value
+                hashValues[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Finds the hash slot for a key. The slot index remains valid until the {@link #shape} of this table changes.
+     *
+     * @return The slot index, or {@code -1} if the key isn't stored in the hash part.
+     * @see #isPlainTable()
+     */
+    int findSlot(LuaValue key) {
+        if (hashEntries > 0) {
+            int index = hashFind(key);
+            if (index >= 0 && hashValues[index] != null) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the key in a hash slot, or {@code null} if empty or no longer referenced (weak keys). */
+    private @Nullable LuaValue hashKey(int index) {
+        LuaValue key = hashKeys[index];
+        return (key != null ? key.strongvalue() : null);
+    }
+
+    /** Returns the value in a hash slot, or {@code null} if empty or no longer referenced (weak values). */
+    private @Nullable LuaValue hashValue(int index) {
+        if (metatable == null) {
+            return hashValues[index];
+        }
+        return (hashValues[index] != null ? metatable.arrayget(hashValues, index) : null);
+    }
+
     /** caller must ensure key is not nil. */
     @Override
     public void set(LuaValue key, LuaValue value) {
@@ -460,6 +725,21 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
 
     /** Set an array element. */
     private boolean arrayset(int key, LuaValue value) {
+        dirty = true;
+        if (numbers != null) {
+            if (key <= 0 || key > numbers.length) {
+                return false;
+            }
+            if (value.isnil()) {
+                numbers[key - 1] = Double.NaN;
+                return true;
+            } else if (isArrayNumber(value)) {
+                numbers[key - 1] = value.todouble();
+                return true;
+            }
+            useValueArray();
+        }
+
         if (key > 0 && key <= array.length) {
             array[key - 1] = value.isnil() ? null : wrap(value);
             return true;
@@ -506,7 +786,8 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
     }
 
     /**
-     * Concatenate the contents of a table efficiently, using {@link Buffer}.
+     * Concatenate the contents of a table efficiently. The total length is determined before copying any bytes, so
+     * each element is copied exactly once.
      *
      * @param sep {@link LuaString} separater to apply between elements
      * @param i the first element index
@@ -514,15 +795,36 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
      * @return {@link LuaString} value of the concatenation
      */
     public LuaValue concat(LuaString sep, int i, int j) {
-        Buffer sb = new Buffer();
-        if (i <= j) {
-            sb.append(get(i).checkstring());
-            while (++i <= j) {
-                sb.append(sep);
-                sb.append(get(i).checkstring());
+        if (i > j) {
+            return EMPTYSTRING;
+        }
+
+        List<LuaString> parts = new ArrayList<>();
+        int len = 0;
+        for (int n = i; n <= j; n++) {
+            LuaString part = get(n).checkstring();
+            parts.add(part);
+            len += part.length();
+            if (n < j) {
+                len += sep.length();
+            }
+            LuaString.assertValidStringLength(len);
+        }
+
+        SharedByteAlloc sba = SharedByteAlloc.getInstance();
+        final int offset = sba.reserve(len);
+        final byte[] bytes = sba.getReserved();
+        int pos = offset;
+        for (int n = 0; n < parts.size(); n++) {
+            if (n > 0) {
+                sep.copyInto(0, bytes, pos, sep.length());
+                pos += sep.length();
             }
+            LuaString part = parts.get(n);
+            part.copyInto(0, bytes, pos, part.length());
+            pos += part.length();
         }
-        return sb.tostring();
+        return LuaString.valueOf(bytes, offset, len);
     }
 
     @Override
@@ -544,13 +846,13 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         int a = getArrayLength();
         int n = a + 1;
         int m = 0;
-        while (!rawget(n).isnil()) {
+        while (rawhas(n)) {
             m = n;
             n += a + getHashLength() + 1;
         }
         while (n > m + 1) {
             int k = (n + m) / 2;
-            if (!rawget(k).isnil()) {
+            if (rawhas(k)) {
                 m = k;
             } else {
                 n = k;
@@ -566,39 +868,36 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
      */
     @Override
     public Varargs next(LuaValue key) {
+        final int arrayLength = getArrayLength();
         int i = 0;
         do {
             // find current key index
             if (!key.isnil()) {
                 if (key.isinttype()) {
                     i = key.toint();
-                    if (i > 0 && i <= array.length) {
+                    if (i > 0 && i <= arrayLength) {
                         break;
                     }
                 }
-                if (hash.length == 0) {
+                if (hashKeys.length == 0) {
                     error("invalid key to 'next'");
                 }
-                i = hashSlot(key);
-                boolean found = false;
-                for (ISlot slot = hash[i]; slot != null; slot = slot.rest()) {
-                    if (found) {
-                        IStrongSlot nextEntry = slot.first();
-                        if (nextEntry != null) {
-                            return nextEntry.toVarargs();
-                        }
-                    } else if (slot.keyeq(key)) {
-                        found = true;
-                    }
-                }
-                if (!found) {
+                i = hashFind(key);
+                if (i < 0) {
                     error("invalid key to 'next'");
                 }
-                i += 1 + array.length;
+                i += 1 + arrayLength;
             }
         } while (false);
 
         // check array part
+        if (numbers != null) {
+            for (; i < arrayLength; ++i) {
+                if (!Double.isNaN(numbers[i])) {
+                    return varargsOf(LuaInteger.valueOf(i + 1), valueOf(numbers[i]));
+                }
+            }
+        }
         for (; i < array.length; ++i) {
             if (array[i] != null) {
                 LuaValue value = metatable == null ? array[i] : metatable.arrayget(array, i);
@@ -609,14 +908,13 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
-            ISlot slot = hash[i];
-            while (slot != null) {
-                IStrongSlot first = slot.first();
-                if (first != null) {
-                    return first.toVarargs();
+        for (i -= arrayLength; i < hashKeys.length; ++i) {
+            if (hashValues[i] != null) {
+                LuaValue k = hashKey(i);
+                LuaValue v = hashValue(i);
+                if (k != null && v != null) {
+                    return varargsOf(k, v);
                 }
-                slot = slot.rest();
             }
         }
 
@@ -643,39 +941,82 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
      * @param value value to set
      */
     public void hashset(LuaValue key, LuaValue value) {
+        dirty = true;
         if (value.isnil()) {
             hashRemove(key);
         } else {
-            int index = 0;
-            if (hash.length > 0) {
-                index = hashSlot(key);
-                for (ISlot slot = hash[index]; slot != null; slot = slot.rest()) {
-                    IStrongSlot foundSlot;
-                    if ((foundSlot = slot.find(key)) != null) {
-                        hash[index] = hash[index].set(foundSlot, value);
-                        return;
+            // Find the key, or the first free slot in its probe sequence
+            int index = -1;
+            if (hashKeys.length > 0) {
+                final LuaValue[] keys = hashKeys;
+                final int mask = keys.length - 1;
+                for (int i = hashSlot(key, mask); ; i = (i + 1) & mask) {
+                    LuaValue k = keys[i];
+                    if (k == null) {
+                        if (index < 0) {
+                            index = i;
+                        }
+                        break;
+                    } else if (k == key || k.raweq(key)) {
+                        if (hashValues[i] != null) {
+                            hashValues[i] = wrap(value);
+                            return;
+                        }
+                        index = i;
+                        break;
+                    } else if (index < 0 && hashValues[i] == null) {
+                        index = i;
                     }
                 }
             }
-            if (checkLoadFactor()) {
-                if (key.isinttype() && key.toint() > 0) {
-                    // a rehash might make room in the array portion for this key.
-                    rehash(key.toint());
-                    if (arrayset(key.toint(), value)) {
-                        return;
-                    }
-                } else {
-                    rehash(-1);
-                }
-                index = hashSlot(key);
+            if (index < 0 || checkLoadFactor()) {
+                rehashAndSet(key, value);
+                return;
             }
-
-            ISlot entry = entry(key, value);
-            hash[index] = (hash[index] != null) ? hash[index].add(entry) : entry;
+            if (hashKeys[index] == null) {
+                hashSlotsUsed++;
+            }
+            hashKeys[index] = wrapKey(key);
+            hashValues[index] = wrap(value);
             ++hashEntries;
+            shape++;
         }
     }
 
+    private void rehashAndSet(LuaValue key, LuaValue value) {
+        if (key.isinttype() && key.toint() > 0) {
+            // a rehash might make room in the array portion for this key.
+            rehash(key.toint());
+            if (arrayset(key.toint(), value)) {
+                return;
+            }
+        } else {
+            rehash(-1);
+        }
+        hashInsert(key, wrapKey(key), wrap(value));
+        ++hashEntries;
+        shape++;
+    }
+
+    /** Stores a key that isn't in the hash part yet. */
+    private void hashInsert(LuaValue key, LuaValue storedKey, LuaValue storedValue) {
+        final LuaValue[] keys = hashKeys;
+        final int mask = keys.length - 1;
+        int i = hashSlot(key, mask);
+        while (keys[i] != null) {
+            if (hashValues[i] == null) {
+                // Reuse the slot of a removed key
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == null) {
+            hashSlotsUsed++;
+        }
+        keys[i] = storedKey;
+        hashValues[i] = storedValue;
+    }
+
     private static int hashpow2(int hashCode, int mask) {
         return hashCode & mask;
     }
@@ -704,43 +1045,33 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
     }
 
-    /**
-     * Find the hashtable slot to use.
-     *
-     * @param key key to look for
-     * @return slot to use
-     */
-    private int hashSlot(LuaValue key) {
-        return hashSlot(key, hash.length - 1);
-    }
-
     private void hashRemove(LuaValue key) {
-        if (hash.length == 0) {
+        if (hashKeys.length == 0) {
             return;
         }
 
-        int index = hashSlot(key);
-        for (ISlot slot = hash[index]; slot != null; slot = slot.rest()) {
-            IStrongSlot foundSlot;
-            if ((foundSlot = slot.find(key)) != null) {
-                hash[index] = hash[index].remove(foundSlot);
-                --hashEntries;
-                return;
+        int index = hashFind(key);
+        if (index >= 0 && hashValues[index] != null) {
+            hashValues[index] = null;
+            if (isLargeKey(key) && (metatable == null || !metatable.useWeakKeys())) {
+                // Don't let the removed key keep a large object alive
+                hashKeys[index] = WeakTable.weaken(key);
             }
+            --hashEntries;
+            shape++;
         }
     }
 
     private boolean checkLoadFactor() {
-        return hashEntries >= hash.length;
+        // Rebuild when more than 3/4 of the slots are in use, to keep the probe sequences short
+        return hashEntries >= getHashLength() || hashSlotsUsed >= hashKeys.length - (hashKeys.length >> 2);
     }
 
     private int countHashKeys() {
         int keys = 0;
-        for (int i = 0; i < hash.length; ++i) {
-            for (ISlot slot = hash[i]; slot != null; slot = slot.rest()) {
-                if (slot.first() != null) {
-                    keys++;
-                }
+        for (int i = 0; i < hashKeys.length; ++i) {
+            if (hashKey(i) != null && hashValue(i) != null) {
+                keys++;
             }
         }
         return keys;
@@ -759,14 +1090,15 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         int i = 1;
 
         // Count integer keys in array part
+        final int arrayLength = getArrayLength();
         for (int bit = 0; bit < 31; ++bit) {
-            if (i > array.length) {
+            if (i > arrayLength) {
                 break;
             }
-            int j = Math.min(array.length, 1 << bit);
+            int j = Math.min(arrayLength, 1 << bit);
             int c = 0;
             while (i <= j) {
-                if (array[i++ - 1] != null) {
+                if (rawArrayValueExists(i++ - 1)) {
                     c++;
                 }
             }
@@ -775,13 +1107,11 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
 
         // Count integer keys in hash part
-        for (i = 0; i < hash.length; ++i) {
-            for (ISlot s = hash[i]; s != null; s = s.rest()) {
-                int k;
-                if ((k = s.arraykey(Integer.MAX_VALUE)) > 0) {
-                    nums[log2(k)]++;
-                    total++;
-                }
+        for (i = 0; i < hashKeys.length; ++i) {
+            int k;
+            if (hashValues[i] != null && (k = arraykey(hashKeys[i], Integer.MAX_VALUE)) > 0) {
+                nums[log2(k)]++;
+                total++;
             }
         }
 
@@ -892,94 +1222,133 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
             }
         }
 
+        if (numbers != null && !hashArrayValuesAreNumbers(newArraySize)) {
+            useValueArray();
+        }
+
+        final int oldArrayLength = getArrayLength();
         final LuaValue[] oldArray = array;
-        final ISlot[] oldHash = hash;
+        final double[] oldNumbers = numbers;
+        final LuaValue[] oldHashKeys = hashKeys;
+        final LuaValue[] oldHashValues = hashValues;
         final LuaValue[] newArray;
-        final ISlot[] newHash;
+        final double[] newNumbers;
 
         // Copy existing array entries and compute number of moving entries.
         int movingToArray = 0;
         if (newKey > 0 && newKey <= newArraySize) {
             movingToArray--;
         }
-        if (newArraySize != oldArray.length) {
-            newArray = new LuaValue[newArraySize];
-            if (newArraySize > oldArray.length) {
-                for (int i = log2(oldArray.length + 1), j = log2(newArraySize) + 1; i < j; ++i) {
+        if (newArraySize != oldArrayLength) {
+            if (newArraySize > oldArrayLength) {
+                for (int i = log2(oldArrayLength + 1), j = log2(newArraySize) + 1; i < j; ++i) {
                     movingToArray += nums[i];
                 }
-            } else if (oldArray.length > newArraySize) {
-                for (int i = log2(newArraySize + 1), j = log2(oldArray.length) + 1; i < j; ++i) {
+            } else if (oldArrayLength > newArraySize) {
+                for (int i = log2(newArraySize + 1), j = log2(oldArrayLength) + 1; i < j; ++i) {
                     movingToArray -= nums[i];
                 }
             }
-            System.arraycopy(oldArray, 0, newArray, 0, Math.min(oldArray.length, newArraySize));
+            if (oldNumbers != null) {
+                newArray = NOVALS;
+                newNumbers = resize(oldNumbers, newArraySize);
+            } else {
+                newArray = new LuaValue[newArraySize];
+                newNumbers = null;
+                System.arraycopy(oldArray, 0, newArray, 0, Math.min(oldArrayLength, newArraySize));
+            }
         } else {
             newArray = array;
+            newNumbers = numbers;
         }
 
         // Make room for the new entry
         final int newHashSize = hashEntries - movingToArray + ((newKey < 0 || newKey > newArraySize) ? 1 : 0);
-        final int oldCapacity = oldHash.length;
-        final int newCapacity;
-        final int newHashMask;
-
         if (newHashSize > 0) {
             // round up to next power of 2.
-            newCapacity = (newHashSize < MIN_HASH_CAPACITY) ? MIN_HASH_CAPACITY : 1 << log2(newHashSize);
-            newHashMask = newCapacity - 1;
-            newHash = new ISlot[newCapacity];
+            int newCapacity = (newHashSize < MIN_HASH_CAPACITY) ? MIN_HASH_CAPACITY : 1 << log2(newHashSize);
+            hashKeys = new LuaValue[newCapacity << 1];
+            hashValues = new LuaValue[newCapacity << 1];
         } else {
-            newCapacity = 0;
-            newHashMask = 0;
-            newHash = NOBUCKETS;
-        }
-
-        // Move hash buckets
-        for (int i = 0; i < oldCapacity; ++i) {
-            for (ISlot slot = oldHash[i]; slot != null; slot = slot.rest()) {
-                int k;
-                if ((k = slot.arraykey(newArraySize)) > 0) {
-                    IStrongSlot entry = slot.first();
-                    if (entry != null) {
-                        newArray[k - 1] = wrap(entry.value());
-                    }
+            hashKeys = NOVALS;
+            hashValues = NOVALS;
+        }
+        hashEntries = 0;
+        hashSlotsUsed = 0;
+
+        // Move hash entries, dropping removed keys
+        for (int i = 0; i < oldHashKeys.length; ++i) {
+            LuaValue storedValue = oldHashValues[i];
+            if (storedValue == null) {
+                continue;
+            }
+            LuaValue k = oldHashKeys[i].strongvalue();
+            LuaValue v = (metatable != null ? metatable.arrayget(oldHashValues, i) : storedValue);
+            if (k == null || v == null) {
+                continue;
+            }
+
+            int ak;
+            if ((ak = arraykey(k, newArraySize)) > 0) {
+                if (newNumbers != null) {
+                    newNumbers[ak - 1] = v.todouble();
                 } else {
-                    int j = slot.keyindex(newHashMask);
-                    newHash[j] = slot.relink(newHash[j]);
+                    newArray[ak - 1] = storedValue;
                 }
+            } else {
+                hashInsert(k, oldHashKeys[i], storedValue);
+                hashEntries++;
             }
         }
 
         // Move array values into hash portion
-        for (int i = newArraySize; i < oldArray.length;) {
+        for (int i = newArraySize; i < oldArrayLength;) {
             LuaValue v;
-            if ((v = oldArray[i++]) != null) {
-                int slot = hashmod(LuaInteger.hashCode(i), newHashMask);
-                ISlot newEntry;
-                if (metatable != null) {
-                    newEntry = metatable.entry(valueOf(i), v);
-                    if (newEntry == null) {
-                        continue;
-                    }
-                } else {
-                    newEntry = defaultEntry(valueOf(i), v);
-                }
-                newHash[slot] = (newHash[slot] != null) ? newHash[slot].add(newEntry) : newEntry;
+            if ((v = rawArrayValue(i++)) != null) {
+                LuaValue k = valueOf(i);
+                hashInsert(k, wrapKey(k), wrap(v));
+                hashEntries++;
             }
         }
 
-        hash = newHash;
         array = newArray;
-        hashEntries -= movingToArray;
+        numbers = (newNumbers != null && newNumbers.length > 0 ? newNumbers : null);
+        shape++;
+
+        useNumberArrayIfPossible();
+    }
+
+    /** Checks if all hash entries which would move to an array part of the given size have number values. */
+    private boolean hashArrayValuesAreNumbers(int arraySize) {
+        for (int i = 0; i < hashKeys.length; ++i) {
+            if (hashValues[i] != null && arraykey(hashKeys[i], arraySize) > 0 && !isArrayNumber(hashValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the array index for a key.
+     *
+     * @return The (one-based) array index, or {@code 0} if the key isn't an integer in the range {@code [1, max]}.
+     */
+    private static int arraykey(LuaValue key, int max) {
+        if (key.isinttype()) {
+            int k = key.toint();
+            if (k >= 1 && k <= max) {
+                return k;
+            }
+        }
+        return 0;
     }
 
     @Override
-    public @Nullable ISlot entry(LuaValue key, LuaValue value) {
+    public LuaValue wrapKey(LuaValue key) {
         if (metatable != null) {
-            return metatable.entry(key, value);
+            return metatable.wrapKey(key);
         }
-        return defaultEntry(key, value);
+        return key;
     }
 
     static boolean isLargeKey(LuaValue key) {
@@ -994,16 +1363,6 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
     }
 
-    protected static Entry defaultEntry(LuaValue key, LuaValue value) {
-        if (key.isinttype()) {
-            return new IntKeyEntry(key.toint(), value);
-        } else if (value.type() == TNUMBER) {
-            return new NumberValueEntry(key, value.todouble());
-        } else {
-            return new NormalEntry(key, value);
-        }
-    }
-
     // ----------------- sort support -----------------------------
     //
     // implemented heap sort from wikipedia
@@ -1016,6 +1375,19 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
      * @param comparator {@link LuaValue} to be called to compare elements.
      */
     public void sort(final LuaValue comparator) {
+        dirty = true;
+        if (numbers != null) {
+            int n = numbers.length;
+            while (n > 0 && Double.isNaN(numbers[n - 1])) {
+                --n;
+            }
+            if (comparator.isnil() && !containsNaN(numbers, n)) {
+                Arrays.sort(numbers, 0, n);
+                return;
+            }
+            useValueArray();
+        }
+
         if (metatable != null && metatable.useWeakValues()) {
             dropWeakArrayValues();
         }
@@ -1028,6 +1400,15 @@ public class LuaTable extends LuaValue implements IMetatable, Externalizable {
         }
     }
 
+    private static boolean containsNaN(double[] values, int length) {
+        for (int i = 0; i < length; i++) {
+            if (Double.isNaN(values[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void heapSort(int count, LuaValue cmpfunc) {
         heapify(count, cmpfunc);
 
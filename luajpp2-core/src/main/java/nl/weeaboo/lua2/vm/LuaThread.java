@@ -24,6 +24,7 @@ package nl.weeaboo.lua2.vm;
 
 import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,9 +36,9 @@ import org.slf4j.LoggerFactory;
 import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.profiler.LuaProfiler;
 import nl.weeaboo.lua2.stdlib.CoroutineLib;
 import nl.weeaboo.lua2.stdlib.DebugLib;
-import nl.weeaboo.lua2.stdlib.DebugTrace;
 
 /**
  * Lua thread object
@@ -48,9 +49,12 @@ public final class LuaThread extends LuaValue implements Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(LuaThread.class);
     private static final long serialVersionUID = 4L;
 
+    /** Maximum number of closed stack frames to keep for reuse. */
+    private static final int FRAME_POOL_SIZE = 32;
+
     private static final AtomicInteger threadIdGenerator = new AtomicInteger();
 
-    private final int threadId = threadIdGenerator.incrementAndGet();
+    private int threadId = threadIdGenerator.incrementAndGet();
     private LuaRunState luaRunState;
     private LuaValue env;
     private String name = Integer.toString(threadId);
@@ -65,6 +69,30 @@ public final class LuaThread extends LuaValue implements Serializable {
     @Nullable StackFrame callstack;
     public @Nullable Object debugState;
 
+    /** Reusable interpreter state, indexed by interpreter re-entry depth. */
+    transient @Nullable LuaInterpreter.FrameState[] frameStates;
+    transient int frameStateDepth;
+
+    /** Closed stack frames, kept for reuse so calls don't need to allocate new frames and stacks. */
+    private transient @Nullable StackFrame[] framePool;
+    private transient int framePoolSize;
+
+    /**
+     * Remaining number of instructions before the instruction limit is exceeded. Only used when debug mode is
+     * disabled.
+     *
+     * @see LuaRunState#getInstructionCountLimit()
+     */
+    transient int instructionBudget;
+
+    /**
+     * Set whenever the thread runs, or its state or call stack changes in some other way. Cleared when the thread
+     * is written to a delta snapshot while it's not running.
+     *
+     * @see SnapshotBase
+     */
+    transient boolean dirty;
+
     /**
      * Do not use. Required for efficient serialization.
      */
@@ -105,8 +133,37 @@ public final class LuaThread extends LuaValue implements Serializable {
         return thread;
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeVarint(threadId);
+        out.writeValue(luaRunState);
+        out.writeValue(env);
+        out.writeString(name);
+        out.writeVarint(status.ordinal());
+        out.writeVarint(callstackMin);
+        out.writeBoolean(isMainThread);
+        out.writeBoolean(isPersistent);
+        out.writeSignedVarint(sleep);
+        out.writeValue(callstack);
+        out.writeValue(debugState);
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        threadId = in.readVarint();
+        luaRunState = (LuaRunState)in.readValue();
+        env = in.readLuaValue();
+        name = in.readString();
+        status = LuaThreadStatus.values()[in.readVarint()];
+        callstackMin = in.readVarint();
+        isMainThread = in.readBoolean();
+        isPersistent = in.readBoolean();
+        sleep = in.readSignedVarint();
+        callstack = (StackFrame)in.readValue();
+        debugState = in.readValue();
+    }
+
     /** Resets the thread to its initial state. */
     public void reset() {
+        dirty = true;
         StackFrame.releaseCallstack(callstack);
 
         status = LuaThreadStatus.INITIAL;
@@ -125,6 +182,7 @@ public final class LuaThread extends LuaValue implements Serializable {
 
     public void setName(String name) {
         this.name = name;
+        dirty = true;
     }
 
     @Override
@@ -170,6 +228,7 @@ public final class LuaThread extends LuaValue implements Serializable {
     @Override
     public void setfenv(LuaValue env) {
         this.env = env;
+        dirty = true;
     }
 
     /** Returns the thread's status. */
@@ -195,6 +254,7 @@ public final class LuaThread extends LuaValue implements Serializable {
     /** Destroys the thread, making it dead. */
     public void destroy() {
         status = LuaThreadStatus.DEAD;
+        dirty = true;
     }
 
     /** Returns the number of frames on the thread's call stack. */
@@ -203,7 +263,7 @@ public final class LuaThread extends LuaValue implements Serializable {
     }
 
     void preCall(StackFrame sf) {
-        if (DebugLib.isDebugEnabled()) {
+        if (luaRunState.isDebugEnabled()) {
             DebugLib.debugSetupCall(this, sf.args, sf.stack);
             DebugLib.debugOnCall(this, sf.func, sf.functionName);
 
@@ -211,11 +271,21 @@ public final class LuaThread extends LuaValue implements Serializable {
         }
     }
 
+    /**
+     * Called when the function in the top stack frame is about to make a tail call, before the frame is reused for
+     * the called function.
+     */
+    void preTailcall() {
+        if (luaRunState.isDebugEnabled()) {
+            DebugLib.debugOnTailCall(this);
+        }
+    }
+
     /**
      * @param sf The stack frame that was just popped from the callstack.
      */
     void postReturn(StackFrame sf) {
-        if (DebugLib.isDebugEnabled()) {
+        if (luaRunState.isDebugEnabled()) {
             LOG.trace("<<({}) {}", sf.size(), sf);
 
             DebugLib.debugOnReturn(this);
@@ -234,13 +304,33 @@ public final class LuaThread extends LuaValue implements Serializable {
     }
 
     void pushPending(LuaClosure func, Varargs args, int returnBase, int returnCount) {
+        StackFrame frame = acquireStackFrame();
+        frame.prepareCall(func, args, null, callstack, returnBase, returnCount);
+        pushStackFrame(frame);
+    }
+
+    /**
+     * Pushes a Lua closure onto the call stack, copying its args directly from the caller's stack.
+     *
+     * @see StackFrame#prepareCall(LuaClosure, LuaValue[], int, int, String, StackFrame, int, int)
+     */
+    void pushPending(LuaClosure func, LuaValue[] argStack, int argOffset, int argCount, int returnBase,
+            int returnCount) {
+
+        StackFrame frame = acquireStackFrame();
+        frame.prepareCall(func, argStack, argOffset, argCount, null, callstack, returnBase, returnCount);
+        pushStackFrame(frame);
+    }
+
+    private void pushStackFrame(StackFrame frame) {
         if (callstack != null && callstack.status == StackFrame.Status.FINISHED) {
             LOG.error("Callstack was corrupted -- parent stack frame is finished :: parent={}",
                     callstack);
         }
 
-        String funcName = DebugTrace.getCalledFunctionName(this);
-        callstack = StackFrame.newInstance(func, args, funcName, callstack, returnBase, returnCount);
+        callstack = frame;
+        dirty = true;
+        profileCall(frame, frame.parent);
 
         /*
          * When adding something to the call stack, change the status from initial to something else.
@@ -252,6 +342,79 @@ public final class LuaThread extends LuaValue implements Serializable {
         }
     }
 
+    /**
+     * Notifies the profiler (if one is attached) of a call to the function in the given stack frame.
+     *
+     * @param caller The stack frame making the call, or {@code null} if unknown.
+     */
+    void profileCall(StackFrame frame, @Nullable StackFrame caller) {
+        final LuaProfiler profiler = luaRunState.getProfiler();
+        if (profiler == null || !frame.func.isclosure()) {
+            return;
+        }
+
+        Prototype callerPrototype = null;
+        int callerPc = -1;
+        if (caller != null && caller.func.isclosure()) {
+            callerPrototype = caller.func.checkclosure().getPrototype();
+            int pc = LuaInterpreter.getRunningPc(this, caller);
+            callerPc = (pc >= 0 ? pc : caller.pc) - 1;
+        }
+        profiler.onCall(frame.func.checkclosure().getPrototype(), callerPrototype, callerPc);
+    }
+
+    /**
+     * Returns the index of the instruction being executed by the innermost running stack frame, if that frame uses
+     * the given registers. Returns {@code -1} otherwise.
+     *
+     * @deprecated For internal use only.
+     */
+    @Deprecated
+    public int getCurrentPc(LuaValue[] registers) {
+        StackFrame sf = callstack;
+        if (sf != null && sf.status == StackFrame.Status.FRESH) {
+            // The frame is about to be called, its caller is still the current function
+            sf = sf.parent;
+        }
+        if (sf == null || sf.stack != registers) {
+            return -1;
+        }
+
+        // The program counter points to the instruction after the one being executed
+        int pc = LuaInterpreter.getRunningPc(this, sf);
+        return (pc >= 0 ? pc : sf.pc) - 1;
+    }
+
+    /**
+     * Copies the prototypes of the Lua functions on the call stack into {@code outPrototypes}, starting with the
+     * innermost function, and the index of the instruction each of them is executing into {@code outPcs}.
+     * <p>
+     * Unlike the other methods of this class, this method may be called from another Java thread while this thread
+     * is running, which is how {@link LuaProfiler} samples the call stack. The result is then a best-effort
+     * snapshot, which may not correspond to any single moment in time.
+     *
+     * @return The number of entries written, at most the length of the shortest array.
+     */
+    public int sampleCallstack(Prototype[] outPrototypes, int[] outPcs) {
+        final int limit = Math.min(outPrototypes.length, outPcs.length);
+
+        StackFrame sf = callstack;
+        int pc = (sf != null ? LuaInterpreter.getRunningPc(this, sf) : -1);
+        int count = 0;
+        while (sf != null && count < limit) {
+            LuaFunction func = sf.func;
+            if (func instanceof LuaClosure) {
+                outPrototypes[count] = ((LuaClosure)func).getPrototype();
+                // The program counter points to the instruction after the one being executed
+                outPcs[count] = Math.max(0, (pc >= 0 ? pc : sf.pc) - 1);
+                count++;
+            }
+            pc = -1;
+            sf = sf.parent;
+        }
+        return count;
+    }
+
     /**
      * Pushes a function on the call stack of this thread, then runs the thread until that function returns or
      * yields. This method ignores the sleep count of the thread.
@@ -319,6 +482,7 @@ public final class LuaThread extends LuaValue implements Serializable {
         }
 
         status = LuaThreadStatus.SUSPENDED;
+        dirty = true;
         return args;
     }
 
@@ -366,6 +530,7 @@ public final class LuaThread extends LuaValue implements Serializable {
         if (isDead()) {
             throw new LuaException("cannot resume dead thread");
         }
+        dirty = true;
 
         if (sleep != 0) {
             if (sleep > 0) {
@@ -377,6 +542,10 @@ public final class LuaThread extends LuaValue implements Serializable {
         final int oldCallstackMin = callstackMin;
         final LuaThread prior = luaRunState.getRunningThread();
         final LuaThreadStatus priorStatus = prior.getStatus();
+        if (!isRunning()) {
+            // The instruction limit applies to each resume, not to nested calls into the running thread
+            instructionBudget = luaRunState.getInstructionCountLimit();
+        }
 
         Varargs result;
         try {
@@ -406,12 +575,28 @@ public final class LuaThread extends LuaValue implements Serializable {
 
             if (prior.status == LuaThreadStatus.SUSPENDED && priorStatus == LuaThreadStatus.RUNNING) {
                 prior.status = LuaThreadStatus.RUNNING;
+                prior.dirty = true;
             }
         }
 
         return result;
     }
 
+    /**
+     * Called by the interpreter when {@link #instructionBudget} drops below zero.
+     *
+     * @throws LuaException If the instruction limit is exceeded.
+     */
+    void onInstructionBudgetExhausted() throws LuaException {
+        int limit = luaRunState.getInstructionCountLimit();
+        if (limit == Integer.MAX_VALUE) {
+            // No limit, just refill the budget
+            instructionBudget = limit;
+            return;
+        }
+        throw new LuaException("Lua thread instruction limit exceeded (is there an infinite loop somewhere)?");
+    }
+
     @SuppressWarnings("deprecation")
     private void setRunningThread(LuaThread thread) {
         luaRunState.setRunningThread(thread);
@@ -432,9 +617,14 @@ public final class LuaThread extends LuaValue implements Serializable {
 
         // Pop from call stack
         callstack = sf.parent;
+        dirty = true;
 
         // Close stack frame
-        sf.close();
+        if (sf.pinned) {
+            sf.close();
+        } else {
+            sf.closeForReuse();
+        }
 
         // Notify debuglib that we've returned from our current call
         postReturn(sf);
@@ -443,6 +633,47 @@ public final class LuaThread extends LuaValue implements Serializable {
             LOG.error("Callstack was corrupted -- parent stack frame is finished :: popped={}, parent={}",
                     sf, callstack);
         }
+
+        if (!sf.pinned) {
+            releaseStackFrame(sf);
+        }
+    }
+
+    /**
+     * @return A previously released stack frame, or a new stack frame if there are none available.
+     */
+    private StackFrame acquireStackFrame() {
+        if (framePoolSize == 0) {
+            return StackFrame.newInstance();
+        }
+
+        StackFrame frame = framePool[--framePoolSize];
+        framePool[framePoolSize] = null;
+        return frame;
+    }
+
+    /** Keeps a closed stack frame for reuse by {@link #pushPending(LuaClosure, Varargs, int, int)}. */
+    private void releaseStackFrame(StackFrame frame) {
+        frame.clearReferences();
+
+        StackFrame[] pool = framePool;
+        if (pool == null) {
+            pool = new StackFrame[FRAME_POOL_SIZE];
+            framePool = pool;
+        }
+        if (framePoolSize < pool.length) {
+            pool[framePoolSize++] = frame;
+        }
+    }
+
+    /**
+     * Marks the thread as changed, for changes to its call stack made outside of the thread itself.
+     *
+     * @deprecated For internal use only.
+     */
+    @Deprecated
+    public void markDirty() {
+        dirty = true;
     }
 
     /**
@@ -474,6 +705,7 @@ public final class LuaThread extends LuaValue implements Serializable {
      */
     public void setSleep(int count) {
         sleep = count;
+        dirty = true;
     }
 
     /**
@@ -498,6 +730,7 @@ public final class LuaThread extends LuaValue implements Serializable {
      */
     public void setPersistent(boolean isPersistent) {
         this.isPersistent = isPersistent;
+        dirty = true;
     }
 
 }
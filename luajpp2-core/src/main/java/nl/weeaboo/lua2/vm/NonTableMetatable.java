@@ -24,8 +24,8 @@ final class NonTableMetatable implements IMetatable {
     }
 
     @Override
-    public ISlot entry(LuaValue key, LuaValue value) {
-        return LuaTable.defaultEntry(key, value);
+    public LuaValue wrapKey(LuaValue key) {
+        return key;
     }
 
     @Override
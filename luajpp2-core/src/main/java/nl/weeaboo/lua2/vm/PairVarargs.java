@@ -17,8 +17,8 @@ final class PairVarargs extends Varargs implements Serializable {
 
     private static final long serialVersionUID = 6823725326763743125L;
 
-    private final LuaValue v1;
-    private final Varargs v2;
+    final LuaValue v1;
+    final Varargs v2;
 
     /**
      * Construct a Varargs from an two LuaValue.
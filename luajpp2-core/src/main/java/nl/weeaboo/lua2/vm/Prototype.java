@@ -64,10 +64,43 @@ public final class Prototype implements Externalizable {
     public int isVararg;
     public int maxstacksize;
 
+    /** Number of interpreted calls, used to decide when to compile this prototype. */
+    transient int callCount;
+    /** Compiled version of this prototype, or {@code null} if not compiled. */
+    transient @Nullable CompiledFunction compiled;
+    /** Inline caches for table lookups with a constant key, indexed by pc. Created on first use. */
+    transient @Nullable InlineCache[] inlineCaches;
+
     public Prototype() {
         // A no-arg constructor is required for Externalizable
     }
 
+    /**
+     * Returns a copy of this prototype and its nested prototypes. The copy shares the code, constants and debug
+     * information with the original (which are never modified after compilation), but not the state the interpreter
+     * collects while running it (call counts, compiled code and inline caches).
+     */
+    public Prototype copy() {
+        Prototype result = new Prototype();
+        result.k = k;
+        result.code = code;
+        result.p = new Prototype[p.length];
+        for (int n = 0; n < p.length; n++) {
+            result.p[n] = p[n].copy();
+        }
+        result.lineinfo = lineinfo;
+        result.locvars = locvars;
+        result.upvalues = upvalues;
+        result.source = source;
+        result.nups = nups;
+        result.linedefined = linedefined;
+        result.lastlinedefined = lastlinedefined;
+        result.numparams = numparams;
+        result.isVararg = isVararg;
+        result.maxstacksize = maxstacksize;
+        return result;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeObject(k);
@@ -102,6 +135,79 @@ public final class Prototype implements Externalizable {
         maxstacksize = in.readInt();
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeVarint(k.length);
+        for (LuaValue value : k) {
+            out.writeValue(value);
+        }
+        out.writeVarint(code.length);
+        for (int instruction : code) {
+            out.writeInt(instruction);
+        }
+        out.writeVarint(lineinfo.length);
+        for (int line : lineinfo) {
+            out.writeVarint(line);
+        }
+        out.writeVarint(locvars.length);
+        for (LocVars locvar : locvars) {
+            out.writeValue(locvar.varname);
+            out.writeVarint(locvar.startpc);
+            out.writeVarint(locvar.endpc);
+        }
+        out.writeVarint(upvalues.length);
+        for (LuaString name : upvalues) {
+            out.writeValue(name);
+        }
+        out.writeValue(source);
+        out.writeVarint(nups);
+        out.writeVarint(linedefined);
+        out.writeVarint(lastlinedefined);
+        out.writeVarint(numparams);
+        out.writeVarint(isVararg);
+        out.writeVarint(maxstacksize);
+
+        // Nested prototypes are written last, since they're written inline
+        out.writeVarint(p.length);
+        for (Prototype child : p) {
+            out.writeValue(child);
+        }
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        k = new LuaValue[in.readVarint()];
+        for (int n = 0; n < k.length; n++) {
+            k[n] = in.readLuaValue();
+        }
+        code = new int[in.readVarint()];
+        for (int n = 0; n < code.length; n++) {
+            code[n] = in.readInt();
+        }
+        lineinfo = new int[in.readVarint()];
+        for (int n = 0; n < lineinfo.length; n++) {
+            lineinfo[n] = in.readVarint();
+        }
+        locvars = new LocVars[in.readVarint()];
+        for (int n = 0; n < locvars.length; n++) {
+            locvars[n] = new LocVars((LuaString)in.readValue(), in.readVarint(), in.readVarint());
+        }
+        upvalues = new LuaString[in.readVarint()];
+        for (int n = 0; n < upvalues.length; n++) {
+            upvalues[n] = (LuaString)in.readValue();
+        }
+        source = (LuaString)in.readValue();
+        nups = in.readVarint();
+        linedefined = in.readVarint();
+        lastlinedefined = in.readVarint();
+        numparams = in.readVarint();
+        isVararg = in.readVarint();
+        maxstacksize = in.readVarint();
+
+        p = new Prototype[in.readVarint()];
+        for (int n = 0; n < p.length; n++) {
+            p[n] = (Prototype)in.readValue();
+        }
+    }
+
     @Override
     public String toString() {
         return source + ":" + linedefined + "-" + lastlinedefined;
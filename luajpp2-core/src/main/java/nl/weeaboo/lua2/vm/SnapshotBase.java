@@ -0,0 +1,85 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the objects written by a chain of snapshots, so later snapshots in the chain only need to contain the
+ * objects that changed (delta snapshots).
+ * <p>
+ * Tables, closures, upvalues and threads track whether they were changed since they were last written to a delta
+ * snapshot. Objects not directly supported by the snapshot format (which are written using Java serialization)
+ * can't be tracked. Instead, their serialized form is compared to the one from the previous snapshot. When it
+ * differs, the object is written again as a new object, together with all objects that reference it. Only one base
+ * should be used for the same object graph at a time, because writing a delta snapshot resets the change tracking
+ * of the objects it contains.
+ * <p>
+ * The base keeps every object it has written reachable. Call {@link #reset()} every once in a while to start a new
+ * chain with a full snapshot.
+ *
+ * @see SnapshotSerializer#writeDeltaSnapshot(OutputStream, Object, SnapshotBase)
+ * @see SnapshotSerializer#readSnapshotChain(List)
+ */
+public final class SnapshotBase {
+
+    /** If {@code true}, the dirty flags of objects are cleared when they're written. */
+    final boolean trackChanges;
+
+    final Map<Object, Integer> ids = new IdentityHashMap<>();
+    final Map<LuaString, Integer> strings = new HashMap<>();
+    int nextId;
+
+    /** The serialized form of each object that can't be tracked, as of the last snapshot it was written in. */
+    final Map<Object, byte[]> untrackedState = new IdentityHashMap<>();
+
+    /**
+     * For each object that can't be tracked, the objects that referenced it in any of the snapshots. This may include
+     * objects that no longer reference it.
+     */
+    final Map<Object, Set<Object>> referrers = new IdentityHashMap<>();
+
+    /**
+     * Creates an empty base. The first snapshot written using this base will be a full snapshot.
+     */
+    public SnapshotBase() {
+        this(true);
+    }
+
+    SnapshotBase(boolean trackChanges) {
+        this.trackChanges = trackChanges;
+    }
+
+    /**
+     * Forgets all previously written objects, so the next snapshot written using this base will be a full
+     * snapshot.
+     *
+     * @see SnapshotSerializer#readSnapshotChain(List)
+     */
+    public void reset() {
+        ids.clear();
+        strings.clear();
+        nextId = 0;
+        untrackedState.clear();
+        referrers.clear();
+    }
+
+    /** Returns {@code true} if the next snapshot written using this base will be a full snapshot. */
+    public boolean isEmpty() {
+        return nextId == 0 && strings.isEmpty();
+    }
+
+    void addReferrer(Object untracked, Object referrer) {
+        Set<Object> set = referrers.get(untracked);
+        if (set == null) {
+            set = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            referrers.put(untracked, set);
+        }
+        set.add(referrer);
+    }
+
+}
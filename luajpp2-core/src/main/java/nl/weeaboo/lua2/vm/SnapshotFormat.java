@@ -0,0 +1,70 @@
+package nl.weeaboo.lua2.vm;
+
+/**
+ * Constants for the binary format used by {@link SnapshotSerializer}.
+ * <p>
+ * A snapshot starts with {@link #MAGIC} and {@link #VERSION}, followed by the number of objects and strings in the
+ * snapshots it's based on (both zero for a full snapshot), the root value, the ids of objects from previous
+ * snapshots whose body is written again (delta snapshots), and the bodies. Each value starts with a one-byte tag:
+ * <ul>
+ * <li>Immediate values (nil, booleans, numbers) are stored inline.
+ * <li>Strings are added to a string table the first time they're written, and referenced by index after that.
+ * <li>Objects with an identity (tables, closures, threads, etc.) are assigned an id the first time they're
+ * written. Their first occurrence only contains the information needed to allocate them ({@code NEW_*} tags), the
+ * rest of their contents is written later as a separate body. Bodies are written in the order they were
+ * scheduled, so the graph is traversed breadth-first.
+ * <li>Objects not known to the snapshot format ({@code FOREIGN}) are written using Java serialization, inline.
+ * Lua objects referenced by a foreign object are replaced by their id. Any ids newly assigned while writing the
+ * foreign object are declared before its data ({@code FOREIGN_DATA}).
+ * </ul>
+ * Integers are stored as variable-length quantities (7 bits per byte, least significant group first). Signed
+ * integers use zigzag encoding.
+ * <p>
+ * A compressed snapshot starts with {@link #COMPRESSED_MAGIC}, followed by a sequence of chunks. Each chunk consists
+ * of its uncompressed and compressed length (both as 32-bit ints) and its Deflate compressed data. Chunks are
+ * compressed independently, so they can be compressed and decompressed in parallel. A chunk with an uncompressed
+ * length of zero marks the end. The uncompressed chunks together form a regular snapshot.
+ */
+final class SnapshotFormat {
+
+    static final int MAGIC = 0x4C534E50; // "LSNP"
+    static final int VERSION = 1;
+    static final int COMPRESSED_MAGIC = 0x4C534E5A; // "LSNZ"
+
+    static final int END = 0;
+    static final int NULL = 1;
+    static final int NIL = 2;
+    static final int NONE = 3;
+    static final int FALSE = 4;
+    static final int TRUE = 5;
+    static final int INT = 6;
+    static final int DOUBLE = 7;
+    static final int NEW_STRING = 8;
+    static final int STRING = 9;
+    static final int REF = 10;
+    static final int ENV = 11;
+
+    static final int NEW_TABLE = 12;
+    static final int NEW_CLOSURE = 13;
+    static final int NEW_THREAD = 14;
+    static final int NEW_UPVALUE = 15;
+    static final int NEW_FRAME = 16;
+    static final int NEW_ARRAY = 17;
+    static final int NEW_PROTOTYPE = 18;
+    static final int EMPTY_ARRAY = 19;
+
+    static final int ARRAY_VARARGS = 20;
+    static final int ARRAY_PART_VARARGS = 21;
+    static final int PAIR_VARARGS = 22;
+
+    static final int FOREIGN = 23;
+    static final int FOREIGN_DATA = 24;
+
+    /** Tags starting at this value encode small non-negative integers. */
+    static final int SMALL_INT = 0x80;
+    static final int SMALL_INT_MAX = 0xFF - SMALL_INT;
+
+    private SnapshotFormat() {
+    }
+
+}
@@ -0,0 +1,412 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.io.DelayedReader;
+import nl.weeaboo.lua2.io.Environment;
+import nl.weeaboo.lua2.io.ObjectDeserializer;
+
+/**
+ * Reads an object graph written by {@link SnapshotWriter}. When reading a chain of snapshots, each delta snapshot is
+ * applied to the objects read from the previous snapshots.
+ */
+final class SnapshotReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Environment env;
+    private final @Nullable ExecutorService decompressionExecutor;
+    private InputStream in;
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    private final List<Object> objects = new ArrayList<>();
+    private final List<LuaString> strings = new ArrayList<>();
+
+    /** Objects which have been allocated, but whose body hasn't been read yet. */
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    private final ArrayDeque<DelayedReader> delayed = new ArrayDeque<>();
+    private final ForeignBuffer foreignBuffer = new ForeignBuffer();
+    private @Nullable ForeignInput foreign;
+
+    /**
+     * @param decompressionExecutor Executor for decompressing compressed snapshots, or {@code null} to use the shared
+     *        executor.
+     */
+    SnapshotReader(Environment env, @Nullable ExecutorService decompressionExecutor) {
+        this.env = env;
+        this.decompressionExecutor = decompressionExecutor;
+        this.in = new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Reads the next snapshot in a chain and returns its root object. A full snapshot starts a new chain, a delta
+     * snapshot must be based on the previous snapshot read by this reader.
+     *
+     * @throws IOException If an I/O error occurs, or if the snapshot is invalid.
+     */
+    @Nullable Object readSnapshot(InputStream in) throws IOException {
+        this.in = in;
+        pos = 0;
+        limit = 0;
+        pending.clear();
+        delayed.clear();
+        foreign = null;
+        try {
+            int magic = readInt();
+            if (magic == SnapshotFormat.COMPRESSED_MAGIC) {
+                // Continue with the decompressed data, starting with the compressed data that's already buffered
+                InputStream buffered = new ByteArrayInputStream(Arrays.copyOfRange(buf, pos, limit));
+                ExecutorService executor = (decompressionExecutor != null ? decompressionExecutor
+                        : SnapshotSerializer.getSharedCompressionExecutor());
+                this.in = new CompressedSnapshotInput(new SequenceInputStream(buffered, in), executor);
+                pos = 0;
+                limit = 0;
+                magic = readInt();
+            }
+            if (magic != SnapshotFormat.MAGIC) {
+                throw new IOException("Not a Lua snapshot");
+            }
+            int version = readVarint();
+            if (version != SnapshotFormat.VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+
+            int baseObjects = readVarint();
+            int baseStrings = readVarint();
+            if (baseObjects == 0 && baseStrings == 0) {
+                objects.clear();
+                strings.clear();
+            } else if (baseObjects != objects.size() || baseStrings != strings.size()) {
+                throw new IOException("Delta snapshot doesn't match the previous snapshot: expected " + baseObjects
+                        + " objects and " + baseStrings + " strings, found " + objects.size() + " objects and "
+                        + strings.size() + " strings");
+            }
+
+            Object root = readValue();
+
+            // Objects from previous snapshots which changed are read again
+            int updateCount = readVarint();
+            for (int n = 0; n < updateCount; n++) {
+                int id = readVarint();
+                Object obj = (id >= 0 && id < objects.size() ? objects.get(id) : null);
+                if (obj == null) {
+                    throw new IOException("Corrupt snapshot: invalid object id");
+                }
+                pending.add(obj);
+            }
+
+            for (Object obj = pending.poll(); obj != null; obj = pending.poll()) {
+                readBody(obj);
+            }
+            if (readByte() != SnapshotFormat.END) {
+                throw new IOException("Corrupt snapshot: end marker not found");
+            }
+            return root;
+        } catch (ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt snapshot", e);
+        } finally {
+            if (foreign != null) {
+                foreign.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a callback to be notified when its matching delayed object is read by the Java serialization of a
+     * foreign object.
+     *
+     * @see SnapshotSerializer#readDelayed(DelayedReader)
+     */
+    void readDelayed(DelayedReader reader) {
+        delayed.add(reader);
+    }
+
+    /** Reads a value of any type. */
+    @Nullable Object readValue() throws IOException {
+        return readValue(readByte());
+    }
+
+    /** Reads a value which must be a {@link LuaValue}, or {@code null}. */
+    @Nullable LuaValue readLuaValue() throws IOException {
+        return (LuaValue)readValue();
+    }
+
+    /** Reads a value which must be a {@link Varargs}, or {@code null}. */
+    @Nullable Varargs readVarargs() throws IOException {
+        return (Varargs)readValue();
+    }
+
+    private @Nullable Object readValue(int tag) throws IOException {
+        if (tag >= SnapshotFormat.SMALL_INT) {
+            return LuaInteger.valueOf(tag - SnapshotFormat.SMALL_INT);
+        }
+
+        switch (tag) {
+        case SnapshotFormat.NULL:
+            return null;
+        case SnapshotFormat.NIL:
+            return NIL;
+        case SnapshotFormat.NONE:
+            return LuaConstants.NONE;
+        case SnapshotFormat.FALSE:
+            return LuaBoolean.FALSE;
+        case SnapshotFormat.TRUE:
+            return LuaBoolean.TRUE;
+        case SnapshotFormat.INT:
+            return LuaInteger.valueOf(readSignedVarint());
+        case SnapshotFormat.DOUBLE:
+            return LuaDouble.valueOf(Double.longBitsToDouble(readLong()));
+        case SnapshotFormat.NEW_STRING: {
+            LuaString str = LuaString.readSnapshot(this);
+            strings.add(str);
+            return str;
+        }
+        case SnapshotFormat.STRING:
+            return strings.get(readVarint());
+        case SnapshotFormat.REF:
+            return objects.get(readVarint());
+        case SnapshotFormat.ENV:
+            return readEnvironmentRef();
+        case SnapshotFormat.NEW_TABLE:
+            return readNew(new LuaTable());
+        case SnapshotFormat.NEW_CLOSURE: {
+            int id = reserveId();
+            Prototype p = (Prototype)readValue();
+            LuaClosure closure = new LuaClosure(p, NIL);
+            objects.set(id, closure);
+            pending.add(closure);
+            return closure;
+        }
+        case SnapshotFormat.NEW_ARRAY:
+            return readNew(new LuaValue[readVarint()]);
+        case SnapshotFormat.EMPTY_ARRAY:
+            return LuaConstants.NOVALS;
+        case SnapshotFormat.NEW_UPVALUE:
+            return readNew(newUpValue());
+        case SnapshotFormat.NEW_FRAME:
+            return readNew(StackFrame.newInstance());
+        case SnapshotFormat.NEW_THREAD:
+            return readNew(newThread());
+        case SnapshotFormat.NEW_PROTOTYPE: {
+            Prototype p = new Prototype();
+            objects.add(p);
+            p.readSnapshot(this);
+            return p;
+        }
+        case SnapshotFormat.ARRAY_VARARGS:
+            return new ArrayVarargs((LuaValue[])readValue(), readVarargs());
+        case SnapshotFormat.ARRAY_PART_VARARGS:
+            return new ArrayPartVarargs((LuaValue[])readValue(), readVarint(), readVarint(), readVarargs());
+        case SnapshotFormat.PAIR_VARARGS:
+            return new PairVarargs(readLuaValue(), readVarargs());
+        case SnapshotFormat.FOREIGN:
+            return readForeign();
+        default:
+            throw new IOException("Corrupt snapshot: unknown tag " + tag);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static UpValue newUpValue() {
+        return new UpValue();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static LuaThread newThread() {
+        return new LuaThread();
+    }
+
+    private Object readEnvironmentRef() throws IOException {
+        String envId = ((LuaString)readValue()).tojstring();
+        Object obj = env.getObject(envId);
+        if (obj == null) {
+            throw new IOException("Object not found in environment: " + envId);
+        }
+        return obj;
+    }
+
+    private int reserveId() {
+        objects.add(null);
+        return objects.size() - 1;
+    }
+
+    private Object readNew(Object obj) {
+        objects.add(obj);
+        pending.add(obj);
+        return obj;
+    }
+
+    private void readBody(Object obj) throws IOException {
+        Class<?> clazz = obj.getClass();
+        if (clazz == LuaTable.class) {
+            ((LuaTable)obj).readSnapshot(this);
+        } else if (clazz == LuaClosure.class) {
+            ((LuaClosure)obj).readSnapshot(this);
+        } else if (clazz == LuaValue[].class) {
+            LuaValue[] array = (LuaValue[])obj;
+            for (int n = 0; n < array.length; n++) {
+                array[n] = readLuaValue();
+            }
+        } else if (clazz == UpValue.class) {
+            ((UpValue)obj).readSnapshot(this);
+        } else if (clazz == StackFrame.class) {
+            ((StackFrame)obj).readSnapshot(this);
+        } else if (clazz == LuaThread.class) {
+            ((LuaThread)obj).readSnapshot(this);
+        } else {
+            throw new IOException("Corrupt snapshot: unexpected object type " + clazz.getName());
+        }
+    }
+
+    private Object readForeign() throws IOException {
+        int id = reserveId();
+
+        // Objects referenced by the foreign object are declared before its data
+        for (int tag = readByte(); tag != SnapshotFormat.FOREIGN_DATA; tag = readByte()) {
+            readValue(tag);
+        }
+
+        byte[] data = new byte[readVarint()];
+        readBytes(data, 0, data.length);
+        foreignBuffer.setData(data);
+
+        Object obj;
+        try {
+            ForeignInput fin = foreign;
+            if (fin == null) {
+                fin = new ForeignInput(foreignBuffer, env);
+                foreign = fin;
+            }
+
+            obj = fin.readObject();
+            for (DelayedReader reader = delayed.poll(); reader != null; reader = delayed.poll()) {
+                reader.onRead(fin.readObject());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+
+        objects.set(id, obj);
+        return obj;
+    }
+
+    /** Reads a Java string, or {@code null}. */
+    @Nullable String readString() throws IOException {
+        LuaValue str = readLuaValue();
+        return (str != null ? str.tojstring() : null);
+    }
+
+    boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    int readByte() throws IOException {
+        if (pos == limit) {
+            fillBuffer();
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    /** Reads an int written by {@link SnapshotWriter#writeVarint(int)}. */
+    int readVarint() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Corrupt snapshot: malformed varint");
+    }
+
+    /** Reads an int written by {@link SnapshotWriter#writeSignedVarint(int)}. */
+    int readSignedVarint() throws IOException {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    long readLong() throws IOException {
+        return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    void readBytes(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == limit) {
+                fillBuffer();
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void fillBuffer() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of snapshot");
+        }
+        pos = 0;
+        limit = n;
+    }
+
+    /** Reads objects unknown to the snapshot format using Java serialization. */
+    private final class ForeignInput extends ObjectDeserializer {
+
+        ForeignInput(InputStream in, Environment env) throws IOException {
+            super(in, env);
+
+            setCollectStats(false);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (obj instanceof SnapshotRef) {
+                return objects.get(((SnapshotRef)obj).id);
+            }
+            return super.resolveObject(obj);
+        }
+
+    }
+
+    /** Provides the data of each foreign object to {@link ForeignInput}. */
+    private static final class ForeignBuffer extends ByteArrayInputStream {
+
+        ForeignBuffer() {
+            super(new byte[0]);
+        }
+
+        void setData(byte[] data) {
+            buf = data;
+            pos = 0;
+            count = data.length;
+            mark = 0;
+        }
+
+    }
+
+}
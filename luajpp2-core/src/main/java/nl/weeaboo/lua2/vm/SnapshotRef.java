@@ -0,0 +1,24 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.Serializable;
+
+import nl.weeaboo.lua2.io.LuaSerializable;
+
+/**
+ * Placeholder for an object stored in the snapshot format, used when a foreign (Java serialized) object references
+ * it.
+ *
+ * @see SnapshotFormat#FOREIGN
+ */
+@LuaSerializable
+final class SnapshotRef implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final int id;
+
+    SnapshotRef(int id) {
+        this.id = id;
+    }
+
+}
@@ -0,0 +1,220 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.io.DelayedReader;
+import nl.weeaboo.lua2.io.Environment;
+import nl.weeaboo.lua2.io.IWriteReplaceSerializable;
+import nl.weeaboo.lua2.io.LuaSerializer;
+
+/**
+ * Reads/writes snapshots of a Lua object graph (typically an entire {@link LuaRunState}) in a compact binary format.
+ * <p>
+ * Compared to the Java serialization used by {@link #openSerializer(OutputStream)}, numbers, strings, tables,
+ * closures, prototypes, upvalues and threads are written without class descriptors or per-object headers. Strings
+ * are only written once, and integers are written using a variable number of bytes. The object graph is traversed
+ * breadth-first, so deep object graphs don't require a deep call stack.
+ * <p>
+ * Objects not directly supported by the snapshot format are written using Java serialization (via
+ * {@link #openSerializer(OutputStream)}'s {@link nl.weeaboo.lua2.io.ObjectSerializer}), so the same type
+ * restrictions apply. Objects in the {@link #getEnvironment() environment} are written by id, and
+ * {@link IWriteReplaceSerializable#writeReplace()} is called for objects that implement it.
+ * <p>
+ * Delta snapshots ({@link #writeDeltaSnapshot(OutputStream, Object, SnapshotBase)}) only contain the objects that
+ * changed since the previous snapshot written using the same {@link SnapshotBase}. Unchanged objects are referenced
+ * by their id in the previous snapshots, similar to how objects in the environment are referenced by name.
+ * <p>
+ * Snapshots can optionally be {@link #setCompressed(boolean) compressed}. The snapshot is split into chunks which are
+ * compressed in parallel, so compression doesn't slow down writing large snapshots much. Compressed snapshots are
+ * recognized automatically when reading.
+ */
+public class SnapshotSerializer extends LuaSerializer {
+
+    private @Nullable SnapshotWriter activeWriter;
+    private @Nullable SnapshotReader activeReader;
+
+    private boolean compressed;
+    private @Nullable ExecutorService compressionExecutor;
+
+    /**
+     * Returns {@code true} if snapshots are written in compressed form.
+     *
+     * @see #setCompressed(boolean)
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * If {@code true}, snapshots are written in compressed form. The default is {@code false}.
+     *
+     * @see #setCompressionExecutor(ExecutorService)
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Returns the executor used to compress and decompress snapshots, or {@code null} if the shared executor is used.
+     *
+     * @see #setCompressionExecutor(ExecutorService)
+     */
+    public @Nullable ExecutorService getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    /**
+     * Sets the executor used to compress and decompress snapshots. The default ({@code null}) is a shared executor
+     * with one daemon thread per processor, which is created when a compressed snapshot is first written or read.
+     */
+    public void setCompressionExecutor(@Nullable ExecutorService executor) {
+        this.compressionExecutor = executor;
+    }
+
+    static ExecutorService getSharedCompressionExecutor() {
+        return SharedCompressionExecutor.INSTANCE;
+    }
+
+    /**
+     * Writes a snapshot of the object graph reachable from {@code root} to the output stream. The output stream is
+     * flushed, but not closed.
+     *
+     * @throws IOException If an I/O error occurs, or if one of the objects can't be serialized.
+     */
+    public void writeSnapshot(OutputStream out, @Nullable Object root) throws IOException {
+        writeSnapshot(out, root, new SnapshotBase(false));
+    }
+
+    /**
+     * Writes a snapshot containing only the objects that changed since the previous snapshot written using the same
+     * base. If the base is empty, a full snapshot is written instead. The base is updated to include the objects in
+     * the new snapshot. The output stream is flushed, but not closed.
+     * <p>
+     * If writing the snapshot fails, the base is {@link SnapshotBase#reset() reset}.
+     *
+     * @throws IOException If an I/O error occurs, or if one of the objects can't be serialized.
+     * @see #readSnapshotChain(List)
+     */
+    public void writeDeltaSnapshot(OutputStream out, @Nullable Object root, SnapshotBase base) throws IOException {
+        boolean success = false;
+        try {
+            writeSnapshot(out, root, base);
+            success = true;
+        } finally {
+            if (!success) {
+                // The base may refer to objects which were never written
+                base.reset();
+            }
+        }
+    }
+
+    private void writeSnapshot(OutputStream out, @Nullable Object root, SnapshotBase base) throws IOException {
+        if (activeWriter != null) {
+            throw new IllegalStateException("Already writing a snapshot");
+        }
+
+        CompressedSnapshotOutput cout = null;
+        if (compressed) {
+            ExecutorService executor = compressionExecutor;
+            cout = new CompressedSnapshotOutput(out, executor != null ? executor : getSharedCompressionExecutor());
+            out = cout;
+        }
+
+        Environment env = getEnvironment();
+        LuaSerializer previous = makeCurrent();
+        activeWriter = new SnapshotWriter(out, env, base);
+        try {
+            activeWriter.writeSnapshot(root);
+            if (cout != null) {
+                cout.finish();
+            }
+        } finally {
+            activeWriter = null;
+            restoreCurrent(previous);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeSnapshot(OutputStream, Object)}, and returns its root object. The
+     * input stream isn't closed, but may have been read beyond the end of the snapshot.
+     *
+     * @throws IOException If an I/O error occurs, or if the snapshot is invalid.
+     */
+    public @Nullable Object readSnapshot(InputStream in) throws IOException {
+        return readSnapshotChain(Collections.singletonList(in));
+    }
+
+    /**
+     * Reads a full snapshot followed by a chain of delta snapshots, each based on the snapshot before it, and
+     * returns the root object of the last snapshot. The input streams aren't closed, but may have been read beyond
+     * the end of their snapshot.
+     *
+     * @throws IOException If an I/O error occurs, if one of the snapshots is invalid, or if a delta snapshot isn't
+     *         based on the snapshot before it.
+     * @see #writeDeltaSnapshot(OutputStream, Object, SnapshotBase)
+     */
+    public @Nullable Object readSnapshotChain(List<? extends InputStream> snapshots) throws IOException {
+        if (snapshots.isEmpty()) {
+            throw new IllegalArgumentException("No snapshots to read");
+        }
+        if (activeReader != null) {
+            throw new IllegalStateException("Already reading a snapshot");
+        }
+
+        Environment env = getEnvironment();
+        LuaSerializer previous = makeCurrent();
+        activeReader = new SnapshotReader(env, compressionExecutor);
+        try {
+            Object root = null;
+            for (InputStream in : snapshots) {
+                root = activeReader.readSnapshot(in);
+            }
+            return root;
+        } finally {
+            activeReader = null;
+            restoreCurrent(previous);
+        }
+    }
+
+    @Override
+    public void writeDelayed(Object obj) {
+        SnapshotWriter writer = activeWriter;
+        if (writer != null) {
+            writer.writeDelayed(obj);
+        } else {
+            super.writeDelayed(obj);
+        }
+    }
+
+    @Override
+    public void readDelayed(DelayedReader reader) {
+        SnapshotReader snapshotReader = activeReader;
+        if (snapshotReader != null) {
+            snapshotReader.readDelayed(reader);
+        } else {
+            super.readDelayed(reader);
+        }
+    }
+
+    /** Lazy holder for the shared compression executor, so it's only created when it's actually used. */
+    private static final class SharedCompressionExecutor {
+
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread thread = new Thread(r, "SnapshotCompression");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+    }
+
+}
@@ -0,0 +1,633 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import nl.weeaboo.lua2.io.Environment;
+import nl.weeaboo.lua2.io.IWriteReplaceSerializable;
+import nl.weeaboo.lua2.io.ObjectSerializer;
+
+/**
+ * Writes an object graph in the format described by {@link SnapshotFormat}.
+ */
+final class SnapshotWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final Environment env;
+    private final boolean useEnv;
+    private final SnapshotBase base;
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+
+    private final Map<Object, Integer> ids;
+    private final Map<LuaString, Integer> strings;
+
+    /** Objects which have been assigned an id, but whose body hasn't been written yet. */
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    private final ArrayDeque<Object> delayed = new ArrayDeque<>();
+    private final ForeignBuffer foreignBuffer = new ForeignBuffer();
+    private @Nullable ForeignOutput foreign;
+    private boolean writingForeign;
+
+    /** The object whose body is currently being written, or {@code null} while writing the root. */
+    private @Nullable Object currentBody;
+
+    /** Foreign objects written by this snapshot. */
+    private final List<Object> newForeign = new ArrayList<>();
+
+    private final ForeignBuffer stateBuffer = new ForeignBuffer();
+    private @Nullable ForeignOutput stateOutput;
+
+    SnapshotWriter(OutputStream out, Environment env, SnapshotBase base) {
+        this.out = out;
+        this.env = env;
+        this.useEnv = (env.size() != 0);
+        this.base = base;
+        this.ids = base.ids;
+        this.strings = base.strings;
+    }
+
+    /**
+     * Writes a snapshot of the object graph reachable from {@code root}. Objects written by previous snapshots using
+     * the same base are only written again if they changed.
+     *
+     * @throws IOException If an I/O error occurs, or if one of the objects can't be serialized.
+     */
+    void writeSnapshot(@Nullable Object root) throws IOException {
+        try {
+            writeInt(SnapshotFormat.MAGIC);
+            writeVarint(SnapshotFormat.VERSION);
+            writeVarint(base.nextId);
+            writeVarint(strings.size());
+
+            List<Object> updates = collectUpdates();
+            writeValue(root);
+            writeVarint(updates.size());
+            for (Object obj : updates) {
+                writeVarint(ids.get(obj));
+                pending.add(obj);
+            }
+
+            for (Object obj = pending.poll(); obj != null; obj = pending.poll()) {
+                writeBody(obj);
+            }
+            currentBody = null;
+            writeByte(SnapshotFormat.END);
+            flush();
+
+            if (base.trackChanges) {
+                for (Object obj : newForeign) {
+                    base.untrackedState.put(obj, serializeState(obj));
+                }
+            }
+        } finally {
+            if (foreign != null) {
+                foreign.close();
+            }
+            if (stateOutput != null) {
+                stateOutput.close();
+            }
+        }
+
+        if (foreign != null) {
+            foreign.checkErrors();
+        }
+    }
+
+    /**
+     * Returns the objects written by previous snapshots which need to be written again, because they changed or
+     * because they reference objects that can't be tracked which changed.
+     */
+    private List<Object> collectUpdates() throws IOException {
+        if (base.nextId == 0) {
+            return Collections.emptyList();
+        }
+
+        Map<Object, Boolean> updates = new IdentityHashMap<>();
+        collectUntrackedChanges(updates);
+        for (Object obj : ids.keySet()) {
+            Class<?> clazz = obj.getClass();
+            if (clazz == LuaTable.class) {
+                if (((LuaTable)obj).dirty) {
+                    updates.put(obj, Boolean.TRUE);
+                }
+            } else if (clazz == LuaClosure.class) {
+                if (((LuaClosure)obj).dirty) {
+                    updates.put(obj, Boolean.TRUE);
+                }
+            } else if (clazz == UpValue.class) {
+                UpValue upValue = (UpValue)obj;
+                if (upValue.dirty) {
+                    // The value of an open upvalue is stored in the stack of another thread
+                    updates.put(upValue, Boolean.TRUE);
+                    addIfWritten(updates, upValue.getArray());
+                }
+            } else if (clazz == LuaThread.class) {
+                LuaThread thread = (LuaThread)obj;
+                if (thread.dirty) {
+                    // Stack frames and their stacks are only changed by the thread they belong to
+                    updates.put(thread, Boolean.TRUE);
+                    for (StackFrame frame = thread.callstack; frame != null; frame = frame.parent) {
+                        addIfWritten(updates, frame);
+                        addIfWritten(updates, frame.stack);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(updates.keySet());
+    }
+
+    /**
+     * Objects that can't be tracked are compared to their serialized form in the previous snapshot. Changed objects
+     * are forgotten, so they're written again as new objects when they're referenced. The objects that reference them
+     * are written again as well.
+     */
+    private void collectUntrackedChanges(Map<Object, Boolean> updates) throws IOException {
+        ArrayDeque<Object> changed = new ArrayDeque<>();
+        for (Object obj : ids.keySet()) {
+            if (!hasIdentity(obj)) {
+                // Objects replaced by IWriteReplaceSerializable.writeReplace() have no stored state
+                byte[] state = base.untrackedState.get(obj);
+                if (state == null || !Arrays.equals(state, serializeState(obj))) {
+                    changed.add(obj);
+                }
+            }
+        }
+
+        for (Object obj = changed.poll(); obj != null; obj = changed.poll()) {
+            if (ids.remove(obj) == null) {
+                continue; // Already handled
+            }
+            base.untrackedState.remove(obj);
+
+            Set<Object> referrers = base.referrers.remove(obj);
+            if (referrers != null) {
+                for (Object referrer : referrers) {
+                    if (hasIdentity(referrer)) {
+                        updates.put(referrer, Boolean.TRUE);
+                    } else {
+                        changed.add(referrer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Java serialized form of a foreign object, with references to other objects written by the snapshot
+     * replaced by their id.
+     */
+    private byte[] serializeState(Object obj) throws IOException {
+        ForeignOutput sout = stateOutput;
+        if (sout == null) {
+            sout = new ForeignOutput(stateBuffer, env, false);
+            stateOutput = sout;
+        }
+
+        // Each object is serialized independently of the objects before it
+        sout.reset();
+        sout.flush();
+        stateBuffer.reset();
+
+        writeForeignData(sout, obj);
+        return stateBuffer.toByteArray();
+    }
+
+    private void addReferrer(Object untracked) {
+        if (base.trackChanges && currentBody != null) {
+            base.addReferrer(untracked, currentBody);
+        }
+    }
+
+    private void addIfWritten(Map<Object, Boolean> updates, Object obj) {
+        if (ids.containsKey(obj)) {
+            updates.put(obj, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Schedules an object for delayed writing by the Java serialization of a foreign object.
+     *
+     * @see SnapshotSerializer#writeDelayed(Object)
+     */
+    void writeDelayed(Object obj) {
+        delayed.add(obj);
+    }
+
+    /** Writes a value of any type. */
+    void writeValue(@Nullable Object obj) throws IOException {
+        if (obj == null) {
+            writeByte(SnapshotFormat.NULL);
+            return;
+        }
+
+        if (useEnv) {
+            String envId = env.getId(obj);
+            if (envId != null) {
+                writeByte(SnapshotFormat.ENV);
+                writeString(LuaString.valueOf(envId));
+                return;
+            }
+        }
+
+        // Immediate values
+        if (obj instanceof LuaString) {
+            writeString((LuaString)obj);
+            return;
+        } else if (obj instanceof LuaInteger) {
+            writeInteger(((LuaInteger)obj).toint());
+            return;
+        } else if (obj instanceof LuaDouble) {
+            writeByte(SnapshotFormat.DOUBLE);
+            writeLong(Double.doubleToRawLongBits(((LuaDouble)obj).todouble()));
+            return;
+        } else if (obj instanceof LuaBoolean) {
+            writeByte(((LuaBoolean)obj).toboolean() ? SnapshotFormat.TRUE : SnapshotFormat.FALSE);
+            return;
+        } else if (obj == NIL) {
+            writeByte(SnapshotFormat.NIL);
+            return;
+        } else if (obj == NONE) {
+            writeByte(SnapshotFormat.NONE);
+            return;
+        }
+
+        // Objects with an identity
+        Integer id = ids.get(obj);
+        if (id != null) {
+            if (!hasIdentity(obj)) {
+                addReferrer(obj);
+            }
+            writeByte(SnapshotFormat.REF);
+            writeVarint(id);
+            return;
+        }
+
+        if (obj instanceof IWriteReplaceSerializable) {
+            Object replacement = writeReplace((IWriteReplaceSerializable)obj);
+            if (replacement != obj) {
+                addReferrer(obj);
+                writeValue(replacement);
+
+                // Further references to the original object should reference the replacement
+                Integer replacementId = ids.get(replacement);
+                if (replacementId != null) {
+                    ids.put(obj, replacementId);
+                }
+                return;
+            }
+        }
+
+        Class<?> clazz = obj.getClass();
+        if (clazz == LuaTable.class) {
+            writeNew(SnapshotFormat.NEW_TABLE, obj);
+        } else if (clazz == LuaClosure.class) {
+            writeNew(SnapshotFormat.NEW_CLOSURE, obj);
+            writeValue(((LuaClosure)obj).getPrototype());
+        } else if (clazz == LuaValue[].class) {
+            LuaValue[] array = (LuaValue[])obj;
+            if (array.length == 0) {
+                writeByte(SnapshotFormat.EMPTY_ARRAY);
+            } else {
+                writeNew(SnapshotFormat.NEW_ARRAY, obj);
+                writeVarint(array.length);
+            }
+        } else if (clazz == UpValue.class) {
+            writeNew(SnapshotFormat.NEW_UPVALUE, obj);
+        } else if (clazz == StackFrame.class) {
+            writeNew(SnapshotFormat.NEW_FRAME, obj);
+        } else if (clazz == LuaThread.class) {
+            writeNew(SnapshotFormat.NEW_THREAD, obj);
+        } else if (clazz == Prototype.class) {
+            // Prototypes don't reference any other objects with an identity, so they're written inline
+            ids.put(obj, base.nextId++);
+            writeByte(SnapshotFormat.NEW_PROTOTYPE);
+            ((Prototype)obj).writeSnapshot(this);
+        } else if (clazz == ArrayVarargs.class) {
+            ArrayVarargs varargs = (ArrayVarargs)obj;
+            writeByte(SnapshotFormat.ARRAY_VARARGS);
+            writeValue(varargs.v);
+            writeValue(varargs.r);
+        } else if (clazz == ArrayPartVarargs.class) {
+            ArrayPartVarargs varargs = (ArrayPartVarargs)obj;
+            writeByte(SnapshotFormat.ARRAY_PART_VARARGS);
+            writeValue(varargs.v);
+            writeVarint(varargs.offset);
+            writeVarint(varargs.length);
+            writeValue(varargs.more);
+        } else if (clazz == PairVarargs.class) {
+            PairVarargs varargs = (PairVarargs)obj;
+            writeByte(SnapshotFormat.PAIR_VARARGS);
+            writeValue(varargs.v1);
+            writeValue(varargs.v2);
+        } else {
+            writeForeign(obj);
+        }
+    }
+
+    private static Object writeReplace(IWriteReplaceSerializable obj) throws IOException {
+        try {
+            return obj.writeReplace();
+        } catch (ObjectStreamException e) {
+            throw new IOException("Error replacing object: " + obj, e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the object is written using a {@code NEW_*} tag, which means it can also be referenced
+     * from a foreign object.
+     */
+    private static boolean hasIdentity(Object obj) {
+        Class<?> clazz = obj.getClass();
+        return clazz == LuaTable.class
+                || clazz == LuaClosure.class
+                || clazz == UpValue.class
+                || clazz == StackFrame.class
+                || clazz == LuaThread.class
+                || clazz == Prototype.class
+                || (clazz == LuaValue[].class && ((LuaValue[])obj).length > 0);
+    }
+
+    private void writeNew(int tag, Object obj) throws IOException {
+        ids.put(obj, base.nextId++);
+        pending.add(obj);
+        writeByte(tag);
+    }
+
+    private void writeBody(Object obj) throws IOException {
+        final boolean trackChanges = base.trackChanges;
+        currentBody = obj;
+
+        Class<?> clazz = obj.getClass();
+        if (clazz == LuaTable.class) {
+            LuaTable table = (LuaTable)obj;
+            table.writeSnapshot(this);
+            if (trackChanges) {
+                table.dirty = false;
+            }
+        } else if (clazz == LuaClosure.class) {
+            LuaClosure closure = (LuaClosure)obj;
+            closure.writeSnapshot(this);
+            if (trackChanges) {
+                closure.dirty = false;
+            }
+        } else if (clazz == LuaValue[].class) {
+            for (LuaValue value : (LuaValue[])obj) {
+                writeValue(value);
+            }
+        } else if (clazz == UpValue.class) {
+            UpValue upValue = (UpValue)obj;
+            upValue.writeSnapshot(this);
+            if (trackChanges) {
+                upValue.dirty = false;
+            }
+        } else if (clazz == StackFrame.class) {
+            ((StackFrame)obj).writeSnapshot(this);
+        } else if (clazz == LuaThread.class) {
+            LuaThread thread = (LuaThread)obj;
+            thread.writeSnapshot(this);
+            if (trackChanges && !thread.isRunning()) {
+                // A running thread keeps changing its call stack without resuming again
+                thread.dirty = false;
+            }
+        } else {
+            throw new IllegalStateException("Unexpected object type: " + clazz.getName());
+        }
+    }
+
+    private void writeForeign(Object obj) throws IOException {
+        if (writingForeign) {
+            // Can't happen, objects with an identity never require a foreign object to be allocated
+            throw new IllegalStateException("Nested foreign object: " + obj);
+        }
+
+        ids.put(obj, base.nextId++);
+        newForeign.add(obj);
+        addReferrer(obj);
+        writeByte(SnapshotFormat.FOREIGN);
+
+        writingForeign = true;
+        try {
+            ForeignOutput fout = foreign;
+            if (fout == null) {
+                fout = new ForeignOutput(foreignBuffer, env, true);
+                foreign = fout;
+            }
+            writeForeignData(fout, obj);
+        } finally {
+            writingForeign = false;
+        }
+
+        writeByte(SnapshotFormat.FOREIGN_DATA);
+        writeVarint(foreignBuffer.size());
+        writeBytes(foreignBuffer.getBuffer(), 0, foreignBuffer.size());
+        foreignBuffer.reset();
+    }
+
+    private void writeForeignData(ForeignOutput fout, Object obj) throws IOException {
+        fout.current = obj;
+        try {
+            fout.writeObject(obj);
+            for (Object delayedObj = delayed.poll(); delayedObj != null; delayedObj = delayed.poll()) {
+                fout.writeObject(delayedObj);
+            }
+            fout.flush();
+        } catch (ForeignIOException e) {
+            throw e.getIOException();
+        } finally {
+            fout.current = null;
+            delayed.clear();
+        }
+    }
+
+    private void writeString(LuaString str) throws IOException {
+        Integer index = strings.get(str);
+        if (index != null) {
+            writeByte(SnapshotFormat.STRING);
+            writeVarint(index);
+        } else {
+            strings.put(str, strings.size());
+            writeByte(SnapshotFormat.NEW_STRING);
+            str.writeSnapshot(this);
+        }
+    }
+
+    private void writeInteger(int value) throws IOException {
+        if (value >= 0 && value <= SnapshotFormat.SMALL_INT_MAX) {
+            writeByte(SnapshotFormat.SMALL_INT + value);
+        } else {
+            writeByte(SnapshotFormat.INT);
+            writeSignedVarint(value);
+        }
+    }
+
+    /** Writes a Java string, or {@code null}. */
+    void writeString(@Nullable String str) throws IOException {
+        writeValue(str != null ? LuaString.valueOf(str) : null);
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeByte(int value) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte)value;
+    }
+
+    /** Writes an int as a variable-length quantity. Negative values always take five bytes. */
+    void writeVarint(int value) throws IOException {
+        if (buf.length - pos < 5) {
+            flushBuffer();
+        }
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte)value;
+    }
+
+    /** Writes an int as a zigzag encoded variable-length quantity, so small negative values take less space. */
+    void writeSignedVarint(int value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    void writeInt(int value) throws IOException {
+        if (buf.length - pos < 4) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte)(value >>> 24);
+        buf[pos++] = (byte)(value >>> 16);
+        buf[pos++] = (byte)(value >>> 8);
+        buf[pos++] = (byte)value;
+    }
+
+    void writeLong(long value) throws IOException {
+        writeInt((int)(value >>> 32));
+        writeInt((int)value);
+    }
+
+    void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - pos) {
+            flushBuffer();
+            if (len > buf.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    private void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /** Carries an {@link IOException} out of {@link ForeignOutput#replaceObject(Object)}, which can't throw it. */
+    private static final class ForeignIOException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ForeignIOException(IOException cause) {
+            super(cause);
+        }
+
+        IOException getIOException() {
+            return (IOException)getCause();
+        }
+
+    }
+
+    /** Writes objects unknown to the snapshot format using Java serialization. */
+    private final class ForeignOutput extends ObjectSerializer {
+
+        /** If {@code false}, objects which haven't been written yet are replaced by an invalid id. */
+        private final boolean declareNew;
+
+        /** The foreign object currently being written. */
+        @Nullable Object current;
+
+        ForeignOutput(OutputStream out, Environment env, boolean declareNew) throws IOException {
+            super(out, env);
+
+            this.declareNew = declareNew;
+
+            setCollectStats(false);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected @Nullable Object replaceObject(Object obj) {
+            Object result = super.replaceObject(obj);
+            if (result != obj || obj == current) {
+                return result;
+            }
+
+            Integer id = ids.get(obj);
+            if (!hasIdentity(obj)) {
+                if (id == null) {
+                    return result;
+                }
+
+                // Another foreign object, written separately
+                if (current != null && base.trackChanges) {
+                    base.addReferrer(obj, current);
+                }
+                return new SnapshotRef(id);
+            }
+
+            if (id == null) {
+                if (!declareNew) {
+                    return new SnapshotRef(-1);
+                }
+
+                // Declare the object before the foreign data
+                try {
+                    writeValue(obj);
+                } catch (IOException ioe) {
+                    throw new ForeignIOException(ioe);
+                }
+                id = ids.get(obj);
+            }
+            return new SnapshotRef(id);
+        }
+
+    }
+
+    /** Exposes the internal buffer, to avoid making a copy. */
+    private static final class ForeignBuffer extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+}
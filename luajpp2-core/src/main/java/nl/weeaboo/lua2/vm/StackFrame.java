@@ -23,7 +23,7 @@ final class StackFrame implements Externalizable {
     // --- Uses manual serialization, don't add variables ---
     Status status;
     LuaFunction func;  //The function that's being called
-    String functionName; // The name of 'func' at the place where it's being called from
+    @Nullable String functionName; // The name of 'func', or null to determine it from the call site if needed
     Varargs args;      //The args given
     Varargs varargs;   //The varargs part of the arguments given
 
@@ -39,11 +39,19 @@ final class StackFrame implements Externalizable {
     int pc;
     // --- Uses manual serialization, don't add variables ---
 
+    /** Set when something outside the callstack holds on to this frame, so it mustn't be reused. */
+    transient boolean pinned;
+
     @Deprecated
     public StackFrame() {
     }
 
-    static StackFrame newInstance(LuaFunction func, Varargs args, String functionName,
+    /** Creates an empty frame, which must be initialized using one of the {@code prepareCall} methods. */
+    static StackFrame newInstance() {
+        return new StackFrame();
+    }
+
+    static StackFrame newInstance(LuaFunction func, Varargs args, @Nullable String functionName,
             StackFrame parent, int returnBase, int returnCount) {
 
         StackFrame frame = new StackFrame();
@@ -64,7 +72,7 @@ final class StackFrame implements Externalizable {
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeObject(status);
         out.writeObject(func);
-        out.writeUTF(functionName);
+        out.writeUTF(functionName != null ? functionName : "");
         out.writeObject(args);
         out.writeObject(varargs);
 
@@ -85,6 +93,9 @@ final class StackFrame implements Externalizable {
         status = (Status)in.readObject();
         func = (LuaClosure)in.readObject();
         functionName = in.readUTF();
+        if (functionName.isEmpty()) {
+            functionName = null;
+        }
         args = (Varargs)in.readObject();
         varargs = (Varargs)in.readObject();
 
@@ -100,6 +111,51 @@ final class StackFrame implements Externalizable {
         returnCount = in.readInt();
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        out.writeVarint(status.ordinal());
+        out.writeValue(func);
+        out.writeString(functionName);
+        out.writeValue(args);
+        out.writeValue(varargs);
+
+        out.writeValue(stack);
+        out.writeVarint(openups.length);
+        for (UpValue upValue : openups) {
+            out.writeValue(upValue);
+        }
+        out.writeValue(v);
+        out.writeVarint(top);
+        out.writeVarint(pc);
+
+        out.writeValue(parent);
+        out.writeVarint(parentCount);
+        out.writeSignedVarint(returnBase);
+        out.writeSignedVarint(returnCount);
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        status = Status.values()[in.readVarint()];
+        func = (LuaFunction)in.readValue();
+        functionName = in.readString();
+        args = in.readVarargs();
+        varargs = in.readVarargs();
+
+        stack = (LuaValue[])in.readValue();
+        int openupsLength = in.readVarint();
+        openups = (openupsLength > 0 ? new UpValue[openupsLength] : UpValue.NOUPVALUES);
+        for (int n = 0; n < openupsLength; n++) {
+            openups[n] = (UpValue)in.readValue();
+        }
+        v = in.readVarargs();
+        top = in.readVarint();
+        pc = in.readVarint();
+
+        parent = (StackFrame)in.readValue();
+        parentCount = in.readVarint();
+        returnBase = in.readSignedVarint();
+        returnCount = in.readSignedVarint();
+    }
+
     public void close() {
         status = Status.CLOSED;
 
@@ -108,6 +164,33 @@ final class StackFrame implements Externalizable {
         stack = LuaConstants.NOVALS;
     }
 
+    /**
+     * Closes this frame so it can be reused for another call. Unlike {@link #close()}, the stack arrays are kept
+     * (cleared) so they don't need to be reallocated.
+     *
+     * @see #clearReferences()
+     */
+    void closeForReuse() {
+        status = Status.CLOSED;
+
+        closeUpValues();
+
+        // The function can't have used any stack slots beyond its max stack size, so those are still cleared
+        Prototype p = getPrototype(func);
+        int used = (p != null ? Math.min(p.maxstacksize, stack.length) : stack.length);
+        Arrays.fill(stack, 0, used, NIL);
+    }
+
+    /** Clears references to other objects, so they aren't kept alive while the frame is unused. */
+    void clearReferences() {
+        func = null;
+        functionName = null;
+        args = NONE;
+        varargs = NONE;
+        parent = null;
+        v = NONE;
+    }
+
     public void closeUpValues() {
         for (int u = openups.length; --u >= 0;) {
             if (openups[u] != null) {
@@ -117,17 +200,18 @@ final class StackFrame implements Externalizable {
         }
     }
 
+    /**
+     * Prepares the stack for a new call. The stack must already be cleared, and the up values closed.
+     */
     private void resetExecutionState(int minStackSize) {
         if (stack.length < minStackSize) {
             stack = new LuaValue[minStackSize];
+            Arrays.fill(stack, NIL);
         }
-        Arrays.fill(stack, NIL);
 
         // (re)size upValue array
         if (openups.length < stack.length) {
             openups = new UpValue[stack.length];
-        } else {
-            Arrays.fill(openups, null);
         }
 
         v = NONE;
@@ -166,19 +250,12 @@ final class StackFrame implements Externalizable {
         }
     }
 
-    public final void prepareCall(LuaFunction func, Varargs args, String functionName,
+    public final void prepareCall(LuaFunction func, Varargs args, @Nullable String functionName,
             StackFrame parent, int returnBase, int returnCount) {
 
         final Prototype p = getPrototype(func);
 
-        this.status = Status.FRESH;
-        this.func = func;
-        this.functionName = functionName;
-
-        this.parent = parent;
-        this.parentCount = (parent != null ? parent.size() : 0);
-        this.returnBase = returnBase;
-        this.returnCount = returnCount;
+        initCall(func, functionName, parent, returnBase, returnCount);
 
         if (p == null) {
             resetExecutionState(0);
@@ -189,6 +266,42 @@ final class StackFrame implements Externalizable {
         setArgs(args);
     }
 
+    /**
+     * Alternative to {@link #prepareCall(LuaFunction, Varargs, String, StackFrame, int, int)} which copies the args
+     * straight from the caller's stack, without creating a {@link Varargs}. Only supports functions which don't take
+     * varargs. The args aren't stored separately, so {@link #args} is empty.
+     */
+    final void prepareCall(LuaClosure func, LuaValue[] argStack, int argOffset, int argCount,
+            @Nullable String functionName, StackFrame parent, int returnBase, int returnCount) {
+
+        final Prototype p = func.getPrototype();
+
+        initCall(func, functionName, parent, returnBase, returnCount);
+        resetExecutionState(p.maxstacksize);
+
+        this.args = NONE;
+        this.varargs = NONE;
+
+        // Params that aren't passed are nil, but the stack was already cleared
+        final int count = Math.min(argCount, p.numparams);
+        for (int i = 0; i < count; i++) {
+            stack[i] = argStack[argOffset + i];
+        }
+    }
+
+    private void initCall(LuaFunction func, @Nullable String functionName, StackFrame parent, int returnBase,
+            int returnCount) {
+
+        this.status = Status.FRESH;
+        this.func = func;
+        this.functionName = functionName;
+
+        this.parent = parent;
+        this.parentCount = (parent != null ? parent.size() : 0);
+        this.returnBase = returnBase;
+        this.returnCount = returnCount;
+    }
+
     public void setArgs(Varargs args) {
         final Prototype p = getPrototype(func);
 
@@ -206,8 +319,9 @@ final class StackFrame implements Externalizable {
         }
     }
 
-    public final void prepareTailcall(LuaFunction func, Varargs args, String functionName) {
+    public final void prepareTailcall(LuaFunction func, Varargs args, @Nullable String functionName) {
         closeUpValues(); // We're clobbering the stack, save the upvalues first
+        Arrays.fill(stack, NIL);
 
         final Prototype p = getPrototype(func);
 
@@ -0,0 +1,94 @@
+package nl.weeaboo.lua2.vm;
+
+import java.security.SecureRandom;
+
+/**
+ * Keyed hash function for {@link LuaString}.
+ * <p>
+ * Strings are hashed using SipHash-1-3 with a random key that's generated once per JVM. Every byte of the string
+ * contributes to the hash, and since the key is unknown outside the process, it's infeasible to construct a large
+ * set of strings that collide in a {@link LuaTable} (hash flooding). The 64-bit result is folded to 32 bits.
+ * <p>
+ * The key is kept in this class instead of in {@link LuaString} itself, so it's guaranteed to be initialized before
+ * the first string is hashed.
+ */
+final class StringHash {
+
+    private static final long K0;
+    private static final long K1;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        K0 = random.nextLong();
+        K1 = random.nextLong();
+    }
+
+    private StringHash() {
+    }
+
+    /**
+     * Hashes {@code len} bytes of {@code b}, starting at {@code off}.
+     */
+    static int hash(byte[] b, int off, int len) {
+        return hash(K0, K1, b, off, len);
+    }
+
+    static int hash(long k0, long k1, byte[] b, int off, int len) {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+
+        // The last block contains the remaining bytes and the length of the input
+        final int blockCount = len >>> 3;
+        final int tailOffset = off + (blockCount << 3);
+        long tail = ((long)len) << 56;
+        for (int i = (len & 7) - 1; i >= 0; i--) {
+            tail |= (b[tailOffset + i] & 0xFFL) << (i << 3);
+        }
+
+        // One SipRound per 8-byte block (little endian), followed by three finalization rounds
+        for (int n = 0; n <= blockCount + 3; n++) {
+            long m = 0;
+            if (n < blockCount) {
+                m = readLong(b, off + (n << 3));
+            } else if (n == blockCount) {
+                m = tail;
+            } else if (n == blockCount + 1) {
+                v2 ^= 0xFF;
+            }
+
+            v3 ^= m;
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+}
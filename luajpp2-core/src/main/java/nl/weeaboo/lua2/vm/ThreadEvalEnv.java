@@ -1,5 +1,8 @@
 package nl.weeaboo.lua2.vm;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
 import javax.annotation.Nullable;
 
 import nl.weeaboo.lua2.compiler.LuaEval;
@@ -22,6 +25,21 @@ public final class ThreadEvalEnv extends VarArgFunction {
         this.thread = thread;
         stackFrame = thread.getStackFrame(1);
         this.isGetter = isGetter;
+
+        pinStackFrame();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        pinStackFrame();
+    }
+
+    /** Prevents the stack frame from being reused by another call after it returns. */
+    private void pinStackFrame() {
+        if (stackFrame != null) {
+            stackFrame.pinned = true;
+        }
     }
 
     public static VarArgFunction getter(LuaThread thread) {
@@ -45,6 +45,14 @@ public final class UpValue implements Externalizable {
     private LuaValue[] array = LuaConstants.NOVALS;
     private int index;
 
+    /**
+     * Set whenever the value changes or the upvalue is closed. Cleared when the upvalue is written to a delta
+     * snapshot.
+     *
+     * @see SnapshotBase
+     */
+    transient boolean dirty;
+
     /**
      * Do not use. Required for efficient serialization.
      */
@@ -91,6 +99,35 @@ public final class UpValue implements Externalizable {
         }
     }
 
+    void writeSnapshot(SnapshotWriter out) throws IOException {
+        if (sealed != null) {
+            out.writeSignedVarint(-1);
+            out.writeValue(sealed);
+        } else {
+            out.writeSignedVarint(index);
+            out.writeValue(array);
+        }
+    }
+
+    void readSnapshot(SnapshotReader in) throws IOException {
+        index = in.readSignedVarint();
+        if (index < 0) {
+            sealed = in.readLuaValue();
+            array = LuaConstants.NOVALS;
+        } else {
+            sealed = null;
+            array = (LuaValue[])in.readValue();
+        }
+    }
+
+    /**
+     * Returns the array storing the value of this upvalue while it's open, or an empty array if the upvalue is
+     * closed.
+     */
+    LuaValue[] getArray() {
+        return array;
+    }
+
     /**
      * Convert this upvalue to a Java String
      *
@@ -116,6 +153,7 @@ public final class UpValue implements Externalizable {
      * @param value the {@link LuaValue} to set it to
      */
     public final void setValue(LuaValue value) {
+        dirty = true;
         if (index < 0) {
             sealed = value;
         } else {
@@ -128,6 +166,7 @@ public final class UpValue implements Externalizable {
      */
     public final void close() {
         if (sealed == null) {
+            dirty = true;
             sealed = array[index];
             array = LuaConstants.NOVALS;
             index = -1;
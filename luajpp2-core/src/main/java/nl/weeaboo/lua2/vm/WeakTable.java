@@ -105,260 +105,11 @@ final class WeakTable implements IMetatable, Serializable {
     }
 
     @Override
-    public @Nullable ISlot entry(LuaValue key, LuaValue value) {
-        value = value.strongvalue();
-        if (value == null) {
-            return null;
-        }
+    public LuaValue wrapKey(LuaValue key) {
         if (weakKeys && !(key.isnumber() || key.isstring() || key.isboolean())) {
-            if (weakValues && !(value.isnumber() || value.isstring() || value.isboolean())) {
-                return new WeakKeyAndValueSlot(key, value, null);
-            } else {
-                return new WeakKeySlot(key, value, null);
-            }
-        }
-        if (weakValues && !(value.isnumber() || value.isstring() || value.isboolean())) {
-            return new WeakValueSlot(key, value, null);
-        }
-        return LuaTable.defaultEntry(key, value);
-    }
-
-    private abstract static class WeakSlot implements ISlot {
-
-        protected @Nullable Object key;
-        protected @Nullable Object value;
-        protected ISlot next;
-
-        protected WeakSlot(Object key, Object value, ISlot next) {
-            this.key = key;
-            this.value = value;
-            this.next = next;
-        }
-
-        @Override
-        public abstract int keyindex(int hashMask);
-
-        public abstract ISlot set(LuaValue value);
-
-        @Override
-        public @Nullable ISlot set(IStrongSlot target, LuaValue value) {
-            LuaValue key = strongkey();
-            if (key != null && target.find(key) != null) {
-                return set(value);
-            } else if (key != null) {
-                // Our key is still good.
-                next = next.set(target, value);
-                return this;
-            } else {
-                // our key was dropped, remove ourselves from the chain.
-                return next.set(target, value);
-            }
-        }
-
-        @Override
-        public @Nullable IStrongSlot first() {
-            LuaValue key = strongkey();
-            LuaValue value = strongvalue();
-            if (key != null && value != null) {
-                return new NormalEntry(key, value);
-            } else {
-                this.key = null;
-                this.value = null;
-                return null;
-            }
-        }
-
-        @Override
-        public @Nullable IStrongSlot find(LuaValue key) {
-            IStrongSlot first = first();
-            return (first != null) ? first.find(key) : null;
-        }
-
-        @Override
-        public boolean keyeq(LuaValue key) {
-            IStrongSlot first = first();
-            return (first != null) && first.keyeq(key);
-        }
-
-        @Override
-        public @Nullable ISlot rest() {
-            return next;
-        }
-
-        @Override
-        public int arraykey(int max) {
-            IStrongSlot first = first();
-            return (first != null ? first.arraykey(max) : 0);
-        }
-
-        @Override
-        public ISlot add(ISlot entry) {
-            ISlot newNext = (next != null) ? next.add(entry) : entry;
-            next = newNext;
-
-            if (strongkey() != null && strongvalue() != null) {
-                return this;
-            } else {
-                return newNext;
-            }
-        }
-
-        @Override
-        public ISlot remove(IStrongSlot target) {
-            LuaValue key = strongkey();
-            if (key == null) {
-                return next.remove(target);
-            } else if (target.keyeq(key)) {
-                this.value = null;
-                return this;
-            } else {
-                next = next.remove(target);
-                return this;
-            }
-        }
-
-        @Override
-        public ISlot relink(ISlot rest) {
-            if (strongkey() != null && strongvalue() != null) {
-                if (rest == null && this.next == null) {
-                    return this;
-                } else {
-                    return copy(rest);
-                }
-            } else {
-                return rest;
-            }
-        }
-
-        public @Nullable LuaValue strongkey() {
-            return (LuaValue)key;
-        }
-
-        public @Nullable LuaValue strongvalue() {
-            return (LuaValue)value;
-        }
-
-        protected abstract WeakSlot copy(ISlot next);
-
-        @Override
-        public String toString() {
-            return String.format("%s[value=%s, next=%s]",
-                    getClass().getSimpleName(), value, next);
-        }
-
-    }
-
-    @LuaSerializable
-    private static class WeakKeySlot extends WeakSlot {
-
-        private final int keyhash;
-
-        protected WeakKeySlot(LuaValue key, LuaValue value, ISlot next) {
-            super(weaken(key), value, next);
-
-            keyhash = key.hashCode();
-        }
-
-        protected WeakKeySlot(WeakKeySlot copyFrom, ISlot next) {
-            super(copyFrom.key, copyFrom.value, next);
-            this.keyhash = copyFrom.keyhash;
-        }
-
-        @Override
-        public int keyindex(int mask) {
-            return LuaTable.hashmod(keyhash, mask);
-        }
-
-        @Override
-        public ISlot set(LuaValue value) {
-            this.value = value;
-            return this;
-        }
-
-        @Override
-        public LuaValue strongkey() {
-            return strengthen(key);
-        }
-
-        @Override
-        protected WeakSlot copy(ISlot rest) {
-            return new WeakKeySlot(this, rest);
-        }
-    }
-
-    @LuaSerializable
-    private static class WeakValueSlot extends WeakSlot {
-
-        protected WeakValueSlot(LuaValue key, LuaValue value, ISlot next) {
-            super(key, weaken(value), next);
-        }
-
-        protected WeakValueSlot(WeakValueSlot copyFrom, ISlot next) {
-            super(copyFrom.key, copyFrom.value, next);
-        }
-
-        @Override
-        public int keyindex(int mask) {
-            return LuaTable.hashSlot(strongkey(), mask);
-        }
-
-        @Override
-        public ISlot set(LuaValue value) {
-            this.value = weaken(value);
-            return this;
-        }
-
-        @Override
-        public LuaValue strongvalue() {
-            return strengthen(value);
-        }
-
-        @Override
-        protected WeakSlot copy(ISlot next) {
-            return new WeakValueSlot(this, next);
-        }
-    }
-
-    @LuaSerializable
-    private static class WeakKeyAndValueSlot extends WeakSlot {
-
-        private final int keyhash;
-
-        protected WeakKeyAndValueSlot(LuaValue key, LuaValue value, ISlot next) {
-            super(weaken(key), weaken(value), next);
-            keyhash = key.hashCode();
-        }
-
-        protected WeakKeyAndValueSlot(WeakKeyAndValueSlot copyFrom, ISlot next) {
-            super(copyFrom.key, copyFrom.value, next);
-            keyhash = copyFrom.keyhash;
-        }
-
-        @Override
-        public int keyindex(int hashMask) {
-            return LuaTable.hashmod(keyhash, hashMask);
-        }
-
-        @Override
-        public ISlot set(LuaValue value) {
-            this.value = weaken(value);
-            return this;
-        }
-
-        @Override
-        public LuaValue strongkey() {
-            return strengthen(key);
-        }
-
-        @Override
-        public LuaValue strongvalue() {
-            return strengthen(value);
-        }
-
-        @Override
-        protected WeakSlot copy(ISlot next) {
-            return new WeakKeyAndValueSlot(this, next);
+            return weaken(key);
         }
+        return key;
     }
 
     /**
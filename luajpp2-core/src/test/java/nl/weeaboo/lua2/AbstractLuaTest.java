@@ -7,6 +7,7 @@ import org.junit.Before;
 import nl.weeaboo.lua2.compiler.ScriptLoader;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.stdlib.DebugTrace;
+import nl.weeaboo.lua2.stdlib.StandardLibrary;
 import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaThread;
 import nl.weeaboo.lua2.vm.Varargs;
@@ -21,10 +22,14 @@ public abstract class AbstractLuaTest {
 
     @Before
     public void initLuaRunState() throws LuaException {
-        luaRunState = LuaRunState.create();
+        luaRunState = LuaRunState.create(createStandardLibrary());
         luaRunState.setExceptionHandler(new FailLuaExceptionHandler());
     }
 
+    protected StandardLibrary createStandardLibrary() {
+        return new StandardLibrary();
+    }
+
     @After
     public void deinitLuaRunState() {
         luaRunState.destroy();
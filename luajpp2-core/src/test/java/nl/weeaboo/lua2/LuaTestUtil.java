@@ -14,6 +14,7 @@ import nl.weeaboo.lua2.io.ObjectSerializer;
 import nl.weeaboo.lua2.luajava.CoerceLuaToJava;
 import nl.weeaboo.lua2.vm.LuaTable;
 import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.SnapshotSerializer;
 
 /**
  * Generic functions useful for automated testing.
@@ -91,4 +92,19 @@ public final class LuaTestUtil {
         return lrs;
     }
 
+    /**
+     * Writes, then immediately reads a snapshot of a {@link LuaRunState} object.
+     * @throws IOException If serialization fails.
+     * @see SnapshotSerializer
+     */
+    public static LuaRunState snapshot(LuaRunState luaRunState) throws IOException {
+        SnapshotSerializer ss = new SnapshotSerializer();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ss.writeSnapshot(bout, luaRunState);
+
+        LuaRunState lrs = (LuaRunState)ss.readSnapshot(new ByteArrayInputStream(bout.toByteArray()));
+        lrs.registerOnThread();
+        return lrs;
+    }
+
 }
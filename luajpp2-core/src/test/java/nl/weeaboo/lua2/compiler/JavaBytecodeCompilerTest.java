@@ -0,0 +1,144 @@
+package nl.weeaboo.lua2.compiler;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.vm.CompiledFunction;
+import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.Prototype;
+import nl.weeaboo.lua2.vm.Varargs;
+
+public final class JavaBytecodeCompilerTest extends AbstractLuaTest {
+
+    @Before
+    public void before() {
+        luaRunState.setDebugEnabled(false);
+    }
+
+    @Test
+    public void numericFor() throws IOException {
+        assertSameResult("local function f(n) local s = 0 for i=1,n do s = s + i * 2 end return s end",
+                "f(100)");
+        assertSameResult("local function f(n) local s = 0 for i=n,1,-0.5 do s = s + i end return s end",
+                "f(10)");
+    }
+
+    @Test
+    public void whileLoop() throws IOException {
+        assertSameResult("local function f(a, b)"
+                + " local r = 0"
+                + " while a < b do"
+                + "  if a % 2 == 0 and a ~= 4 then r = r + a else r = r - 1 end"
+                + "  a = a + 1"
+                + " end"
+                + " return r"
+                + " end",
+                "f(-5, 20)");
+    }
+
+    @Test
+    public void comparisons() throws IOException {
+        assertSameResult("local function f(a, b) return a < b, a <= b, a > b, a >= b, a == b, a ~= b end",
+                "f(1, 2)");
+        assertSameResult("local function f(a, b) return a < b, a <= b, a > b, a >= b, a == b, a ~= b end",
+                "f('b', 'a')");
+        assertSameResult("local function f(a, b) return a and b, a or b, not a, -b end",
+                "f(false, 3)");
+    }
+
+    @Test
+    public void tables() throws IOException {
+        assertSameResult("local function f(n)"
+                + " local t = {1, 2, 3, n, x = 'y'}"
+                + " t.x = n"
+                + " t[5] = t.x * 2"
+                + " return t[1] + t[4] + t[5] + #t, t.y"
+                + " end",
+                "f(7)");
+    }
+
+    @Test
+    public void concat() throws IOException {
+        assertSameResult("local function f(a, b) return a .. b, a .. '-' .. b .. '!' end", "f('x', 1)");
+    }
+
+    @Test
+    public void upvaluesAndGlobals() throws IOException {
+        assertSameResult("local up = 10"
+                + " local function f(a) up = up + a G = up return up, G, H end",
+                "f(5)");
+    }
+
+    @Test
+    public void error() throws IOException {
+        String code = "local function f(a) return a + {} end return f(1)";
+        try {
+            run(code, 1);
+            Assert.fail("Expected an exception");
+        } catch (LuaException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("arithmetic"));
+        }
+    }
+
+    @Test
+    public void instructionLimit() throws IOException {
+        luaRunState.setInstructionCountLimit(10_000);
+        try {
+            run("local function f() while true do end end return f()", 1);
+            Assert.fail("Expected an exception");
+        } catch (LuaException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("instruction limit exceeded"));
+        }
+    }
+
+    @Test
+    public void compilable() throws IOException {
+        Prototype leaf = compileNested("local function f(a) return a + 1 end");
+        Assert.assertTrue(JavaBytecodeCompiler.isCompilable(leaf));
+
+        CompiledFunction compiled = JavaBytecodeCompiler.compile(leaf);
+        Assert.assertNotNull(compiled);
+
+        LuaClosure closure = new LuaClosure(leaf, luaRunState.getGlobalEnvironment());
+        Varargs result = compiled.call(closure, LuaInteger.valueOf(41), luaRunState.getMainThread());
+        Assert.assertEquals(42, result.toint(1));
+    }
+
+    /** Functions that may yield must stay in the interpreter. */
+    @Test
+    public void notCompilable() throws IOException {
+        Assert.assertFalse(JavaBytecodeCompiler.isCompilable(
+                compileNested("local function f() coroutine.yield() end")));
+        Assert.assertFalse(JavaBytecodeCompiler.isCompilable(
+                compileNested("local function f(...) return ... end")));
+        Assert.assertFalse(JavaBytecodeCompiler.isCompilable(
+                compileNested("local function f() return function() end end")));
+    }
+
+    private Prototype compileNested(String code) throws IOException {
+        LuaClosure closure = LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+        return closure.getPrototype().p[0];
+    }
+
+    private void assertSameResult(String functionDef, String call) throws IOException {
+        String code = functionDef + " return " + call;
+        String expected = run(code, 0).tojstring();
+        String actual = run(code, 1).tojstring();
+        Assert.assertEquals(expected, actual);
+    }
+
+    private Varargs run(String code, int compileThreshold) throws IOException {
+        luaRunState.setCompileThreshold(compileThreshold);
+        LuaClosure closure = LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+        return luaRunState.newThread(closure, NONE).resume(NONE);
+    }
+
+}
@@ -0,0 +1,122 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.lib.LibFunctionInvoker;
+import nl.weeaboo.lua2.lib.LuaBoundFunction;
+import nl.weeaboo.lua2.lib.LuaLib;
+import nl.weeaboo.lua2.vm.LuaConstants;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.LuaTable;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Varargs;
+
+public final class LibInvokerCompilerTest extends AbstractLuaTest {
+
+    @Test
+    public void invoke() throws ReflectiveOperationException {
+        TestLib lib = new TestLib();
+        LibFunctionInvoker invoker = compile("add");
+        Assert.assertEquals(LuaInteger.valueOf(3), invoker.invoke(lib, LuaValue.varargsOf(
+                LuaInteger.valueOf(1), LuaInteger.valueOf(2))));
+    }
+
+    @Test
+    public void invokeVoid() throws ReflectiveOperationException {
+        TestLib lib = new TestLib();
+        LibFunctionInvoker invoker = compile("store");
+        Assert.assertSame(LuaConstants.NONE, invoker.invoke(lib, LuaInteger.valueOf(7)));
+        Assert.assertEquals(7, lib.stored);
+    }
+
+    /** Exceptions are thrown as-is, instead of being wrapped like with reflection. */
+    @Test
+    public void exception() throws ReflectiveOperationException {
+        LibFunctionInvoker invoker = compile("fail");
+        try {
+            invoker.invoke(new TestLib(), LuaConstants.NONE);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("fail", e.getMessage());
+        }
+    }
+
+    @Test
+    public void notCompilable() throws ReflectiveOperationException {
+        Method method = PrivateLib.class.getMethod("f", Varargs.class);
+        Assert.assertFalse(LibInvokerCompiler.isCompilable(method));
+        Assert.assertNull(LibInvokerCompiler.compile(method));
+    }
+
+    /** Exceptions thrown by library functions are still wrapped when called from Lua. */
+    @Test
+    public void callFromLua() throws IOException {
+        new TestLib().register();
+        LuaValue result = LoadState.load("return add(1, 2)", "?", luaRunState.getGlobalEnvironment()).call();
+        Assert.assertEquals(3, result.toint());
+
+        try {
+            LoadState.load("fail()", "?", luaRunState.getGlobalEnvironment()).call();
+            Assert.fail();
+        } catch (LuaException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("Error invoking Java method: fail"));
+        }
+    }
+
+    private static LibFunctionInvoker compile(String methodName) throws ReflectiveOperationException {
+        Method method = TestLib.class.getMethod(methodName, Varargs.class);
+        Assert.assertTrue(LibInvokerCompiler.isCompilable(method));
+        LibFunctionInvoker invoker = LibInvokerCompiler.compile(method);
+        Assert.assertNotNull(invoker);
+        return invoker;
+    }
+
+    public static final class TestLib extends LuaLib {
+
+        private static final long serialVersionUID = 1L;
+
+        int stored;
+
+        @Override
+        public void register() {
+            LuaTable globals = LuaRunState.getCurrent().getGlobalEnvironment();
+            registerFunctions(globals, globals);
+        }
+
+        @LuaBoundFunction
+        public Varargs add(Varargs args) {
+            return LuaInteger.valueOf(args.toint(1) + args.toint(2));
+        }
+
+        @LuaBoundFunction
+        public void store(Varargs args) {
+            stored = args.toint(1);
+        }
+
+        @LuaBoundFunction
+        public Varargs fail(Varargs args) {
+            throw new IllegalStateException("fail");
+        }
+    }
+
+    private static final class PrivateLib extends LuaLib {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void register() {
+        }
+
+        @LuaBoundFunction
+        public Varargs f(Varargs args) {
+            return LuaInteger.valueOf(10);
+        }
+    }
+}
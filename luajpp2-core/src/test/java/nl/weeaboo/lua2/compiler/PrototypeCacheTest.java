@@ -0,0 +1,112 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public final class PrototypeCacheTest extends AbstractLuaTest {
+
+    private final PrototypeCache cache = new PrototypeCache(2);
+
+    /**
+     * Loading the same chunk again returns a copy of the cached prototype, sharing its code.
+     */
+    @Test
+    public void sameChunk() throws IOException {
+        Prototype a = compile("return function() return 1 end", "a");
+        Prototype b = compile("return function() return 1 end", "a");
+        Assert.assertEquals(1, cache.size());
+
+        Assert.assertNotSame(a, b);
+        Assert.assertSame(a.code, b.code);
+        Assert.assertSame(a.k, b.k);
+
+        // Nested prototypes are copied as well
+        Assert.assertNotSame(a.p[0], b.p[0]);
+        Assert.assertSame(a.p[0].code, b.p[0].code);
+    }
+
+    /**
+     * Chunks with a different name or different contents are compiled separately.
+     */
+    @Test
+    public void differentChunk() throws IOException {
+        Prototype a = compile("return 1", "a");
+        Prototype b = compile("return 2", "a");
+        Prototype c = compile("return 1", "c");
+        Assert.assertNotSame(a.k, b.k);
+        Assert.assertNotSame(a.k, c.k);
+    }
+
+    /**
+     * When the cache is full, the least recently used prototype is removed.
+     */
+    @Test
+    public void eviction() throws IOException {
+        Prototype a = compile("return 1", "a");
+        compile("return 2", "b");
+        compile("return 1", "a");
+        compile("return 3", "c");
+        Assert.assertEquals(2, cache.size());
+
+        // 'a' was used more recently than 'b'
+        Assert.assertSame(a.code, compile("return 1", "a").code);
+
+        cache.setMaxSize(0);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNotSame(a.code, compile("return 1", "a").code);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /**
+     * Chunks with syntax errors aren't cached.
+     */
+    @Test
+    public void compileError() throws IOException {
+        try {
+            compile("return (", "a");
+            Assert.fail();
+        } catch (LuaException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /**
+     * Files loaded using {@link ScriptLoader} share their compiled code through the default cache.
+     */
+    @Test
+    public void loadFile() {
+        Prototype a = ScriptLoader.loadFile("compiler/eval-locals.lua").checkclosure(1).getPrototype();
+        Prototype b = ScriptLoader.loadFile("compiler/eval-locals.lua").checkclosure(1).getPrototype();
+        Assert.assertNotSame(a, b);
+        Assert.assertSame(a.code, b.code);
+    }
+
+    /**
+     * Strings loaded using {@link LoadState}, such as evaluated expressions, aren't cached.
+     */
+    @Test
+    public void loadString() throws IOException {
+        int size = PrototypeCache.getDefault().size();
+        LuaValue env = LuaRunState.getCurrent().getGlobalEnvironment();
+        Prototype a = LoadState.load("return 1", "a", env).checkclosure().getPrototype();
+        Prototype b = LoadState.load("return 1", "a", env).checkclosure().getPrototype();
+        Assert.assertNotSame(a.code, b.code);
+        Assert.assertEquals(size, PrototypeCache.getDefault().size());
+    }
+
+    private Prototype compile(String source, String name) throws IOException {
+        return cache.compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), name);
+    }
+
+}
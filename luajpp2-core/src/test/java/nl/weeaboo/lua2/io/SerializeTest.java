@@ -26,6 +26,9 @@ public final class SerializeTest extends AbstractLuaTest {
 
         LuaRunState lrs2 = LuaTestUtil.serialize(luaRunState);
         assertSerialize1(lrs2);
+
+        LuaRunState lrs3 = LuaTestUtil.snapshot(luaRunState);
+        assertSerialize1(lrs3);
     }
 
     /**
@@ -39,6 +42,24 @@ public final class SerializeTest extends AbstractLuaTest {
         luaRunState = LuaTestUtil.serialize(luaRunState);
         luaRunState.registerOnThread();
 
+        assertWeakTables();
+    }
+
+    /**
+     * Test snapshots of weak tables.
+     */
+    @Test
+    public void testWeakTableSnapshot() throws IOException {
+        loadScript("io/serialize1.lua");
+        runToCompletion();
+
+        luaRunState = LuaTestUtil.snapshot(luaRunState);
+        luaRunState.registerOnThread();
+
+        assertWeakTables();
+    }
+
+    private void assertWeakTables() {
         // Collect globals
         final LuaTable weakKeys1 = LuaTestUtil.getGlobal("weakKeys1").checktable();
         final LuaTable weakValues1 = LuaTestUtil.getGlobal("weakValues1").checktable();
@@ -1,18 +1,25 @@
 package nl.weeaboo.lua2.lib;
 
-import org.junit.Before;
+import org.junit.Test;
 
 import nl.weeaboo.lua2.AbstractLuaTest;
-import nl.weeaboo.lua2.LuaException;
-import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.stdlib.StandardLibrary;
 
 public class IoLibTest extends AbstractLuaTest {
 
-    @Before
-    public void before() throws LuaException {
-        LuaRunState.create();
+    @Override
+    protected StandardLibrary createStandardLibrary() {
+        StandardLibrary stdlib = super.createStandardLibrary();
+        stdlib.setAllowUnsafeIO(true);
+        // Files of 64 KiB or more are memory-mapped when opened in read-only mode
+        stdlib.setMappedReadThreshold(64 << 10);
+        return stdlib;
     }
 
-    // TODO: Implement unit tests
+    @Test
+    public void readWriteFile() {
+        loadScript("lib/io/readwrite.lua");
+        runToCompletion();
+    }
 
 }
@@ -2,6 +2,9 @@ package nl.weeaboo.lua2.lib;
 
 import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 
+import static nl.weeaboo.lua2.vm.LuaValue.valueOf;
+import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -10,6 +13,7 @@ import nl.weeaboo.lua2.LuaException;
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Varargs;
 
 public class StringLibTest {
 
@@ -47,4 +51,54 @@ public class StringLibTest {
         Assert.assertEquals(NIL, axbya.substring(2, 5).invokemethod("match", args));
     }
 
+    /** Patterns without special characters are searched for as plain substrings. */
+    @Test
+    public void testLiteralPatterns() {
+        LuaString str = LuaString.valueOf("abcabcabcabd");
+
+        assertVarargs(varargsOf(valueOf(10), valueOf(12)), str.invokemethod("find", valueOf("abd")));
+        assertVarargs(varargsOf(valueOf(4), valueOf(9)), str.invokemethod("find",
+                varargsOf(valueOf("abcabc"), valueOf(2))));
+        Assert.assertEquals(NIL, str.invokemethod("find", valueOf("abcd")));
+        Assert.assertEquals(valueOf("cab"), str.invokemethod("match", valueOf("cab")));
+        assertVarargs(varargsOf(valueOf("XXXabd"), valueOf(3)), str.invokemethod("gsub",
+                varargsOf(valueOf("abc"), valueOf("X"))));
+        assertVarargs(varargsOf(valueOf("-a-b-"), valueOf(3)), LuaString.valueOf("ab").invokemethod("gsub",
+                varargsOf(valueOf(""), valueOf("-"))));
+    }
+
+    /** Malformed patterns raise a Lua error once the matcher reaches the malformed part. */
+    @Test
+    public void testMalformedPattern() {
+        LuaString str = LuaString.valueOf("abc");
+
+        Assert.assertEquals(NIL, str.invokemethod("match", valueOf("x[a")));
+        try {
+            str.invokemethod("match", valueOf("a[b"));
+            Assert.fail();
+        } catch (LuaException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("malformed pattern (missing ])"));
+        }
+    }
+
+    /** Parsed format strings and the output buffer are reused between calls. */
+    @Test
+    public void testFormatReuse() {
+        LuaString fmt = LuaString.valueOf("%5d|%-4s|%.2f|%x%%");
+
+        Varargs first = fmt.invokemethod("format",
+                varargsOf(valueOf(42), valueOf("ab"), valueOf(1.0 / 3), valueOf(255)));
+        Varargs second = fmt.invokemethod("format",
+                varargsOf(valueOf(-7), valueOf("c"), valueOf(-2.5), valueOf(16)));
+        Assert.assertEquals(valueOf("   42|ab  |0.33|ff%"), first.arg1());
+        Assert.assertEquals(valueOf("   -7|c   |-2.50|10%"), second.arg1());
+    }
+
+    private static void assertVarargs(Varargs expected, Varargs actual) {
+        Assert.assertEquals(expected.narg(), actual.narg());
+        for (int n = 1; n <= expected.narg(); n++) {
+            Assert.assertEquals(expected.arg(n), actual.arg(n));
+        }
+    }
+
 }
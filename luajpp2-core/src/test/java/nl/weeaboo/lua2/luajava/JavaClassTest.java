@@ -0,0 +1,87 @@
+package nl.weeaboo.lua2.luajava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+public final class JavaClassTest {
+
+    @Test
+    public void methods() {
+        JavaClass classInfo = LuajavaLib.getClassInfo(TestB.class);
+        Assert.assertEquals(1, classInfo.getMethods(LuaString.valueOf("getId")).length);
+        Assert.assertNull(classInfo.getMethods(LuaString.valueOf("missing")));
+
+        ClassMetaTable metaTable = classInfo.getMetatable();
+        LuaMethod method = metaTable.getMethod(LuaString.valueOf("override"));
+        Assert.assertNotNull(method);
+        Assert.assertSame(method, metaTable.getMethod(LuaString.valueOf("override")));
+    }
+
+    /**
+     * Methods of non-public JDK classes can't be made accessible on Java 9+, so the public interface methods are used.
+     */
+    @Test
+    public void nonPublicClass() {
+        LuaRunState runState = LuaRunState.create();
+        try {
+            LuaValue list = CoerceJavaToLua.coerce(Collections.unmodifiableList(new ArrayList<String>()));
+            Assert.assertTrue(list.isuserdata());
+            Assert.assertEquals(0, list.invokemethod("size").toint(1));
+
+            LuaValue asList = CoerceJavaToLua.coerce(Arrays.asList("a", "b"));
+            Assert.assertEquals("b", asList.invokemethod("get", LuaValue.valueOf(1)).tojstring(1));
+        } finally {
+            runState.destroy();
+        }
+    }
+
+    /**
+     * Class metadata is shared between threads, each with their own run state.
+     */
+    @Test
+    public void sharedBetweenThreads() throws Exception {
+        final int threadCount = 4;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<JavaClass>> futures = new ArrayList<>();
+            for (int n = 0; n < threadCount; n++) {
+                final int id = n;
+                futures.add(executor.submit(new Callable<JavaClass>() {
+                    @Override
+                    public JavaClass call() {
+                        LuaRunState runState = LuaRunState.create();
+                        try {
+                            LuaValue userdata = LuajavaLib.toUserdata(new TestA(id), TestA.class);
+                            Assert.assertEquals(id, userdata.invokemethod("getId").toint(1));
+                            return LuajavaLib.getClassInfo(TestA.class);
+                        } finally {
+                            runState.destroy();
+                        }
+                    }
+                }));
+            }
+
+            JavaClass expected = LuajavaLib.getClassInfo(TestA.class);
+            for (Future<JavaClass> future : futures) {
+                Assert.assertSame(expected, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
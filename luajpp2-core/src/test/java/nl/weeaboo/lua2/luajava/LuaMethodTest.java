@@ -10,8 +10,11 @@ import nl.weeaboo.lua2.AbstractLuaTest;
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.LuaTestUtil;
 import nl.weeaboo.lua2.luajava.test.PublicClass;
+import nl.weeaboo.lua2.vm.LuaBoolean;
+import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaTable;
 import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Varargs;
 
 public class LuaMethodTest extends AbstractLuaTest {
 
@@ -58,6 +61,44 @@ public class LuaMethodTest extends AbstractLuaTest {
         LuaTestUtil.assertGlobal("result", 42);
     }
 
+    /**
+     * Overload resolution is cached per argument signature; calls with different signatures must still select the
+     * correct overload.
+     */
+    @Test
+    public void overloadSignatures() {
+        LuaValue overloads = LuajavaLib.toUserdata(new Overloads(), Overloads.class);
+        LuaValue testA = LuajavaLib.toUserdata(new TestA(1), TestA.class);
+
+        // Repeat, so the results are also checked after they've been cached
+        for (int n = 0; n < 3; n++) {
+            assertOverload("boolean", overloads, LuaBoolean.TRUE);
+            assertOverload("String", overloads, LuaString.valueOf("abc"));
+            assertOverload("String", overloads, LuaString.valueOf("12"));
+            assertOverload("TestA", overloads, testA);
+            assertOverload("boolean,boolean", overloads, LuaValue.varargsOf(LuaBoolean.TRUE, LuaBoolean.FALSE));
+        }
+    }
+
+    /**
+     * When passing a table for an array param, the contents of the table determine the selected overload.
+     */
+    @Test
+    public void overloadArrayParams() {
+        LuaValue overloads = LuajavaLib.toUserdata(new Overloads(), Overloads.class);
+
+        LuaTable booleans = LuaValue.listOf(new LuaValue[] { LuaBoolean.TRUE });
+        LuaTable strings = LuaValue.listOf(new LuaValue[] { LuaString.valueOf("a") });
+        for (int n = 0; n < 3; n++) {
+            Assert.assertEquals("boolean[]", overloads.invokemethod("describeArray", booleans).tojstring());
+            Assert.assertEquals("String[]", overloads.invokemethod("describeArray", strings).tojstring());
+        }
+    }
+
+    private static void assertOverload(String expected, LuaValue overloads, Varargs args) {
+        Assert.assertEquals(expected, overloads.invokemethod("describe", args).tojstring());
+    }
+
     /**
      * Serialize a userdata object.
      */
@@ -82,4 +123,32 @@ public class LuaMethodTest extends AbstractLuaTest {
         runToCompletion();
     }
 
+    @SuppressWarnings("unused")
+    public static final class Overloads {
+
+        public String describe(boolean b) {
+            return "boolean";
+        }
+
+        public String describe(String s) {
+            return "String";
+        }
+
+        public String describe(TestA a) {
+            return "TestA";
+        }
+
+        public String describe(boolean a, boolean b) {
+            return "boolean,boolean";
+        }
+
+        public String describeArray(boolean[] array) {
+            return "boolean[]";
+        }
+
+        public String describeArray(String[] array) {
+            return "String[]";
+        }
+    }
+
 }
@@ -0,0 +1,192 @@
+package nl.weeaboo.lua2.profiler;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.lib.ZeroArgFunction;
+import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaThread;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+public final class LuaProfilerTest extends AbstractLuaTest {
+
+    private static final String SCRIPT = "local function leaf()\n"
+            + "    sample()\n"
+            + "end\n"
+            + "local function outer()\n"
+            + "    for i = 1, 3 do leaf() end\n"
+            + "    sample()\n"
+            + "end\n"
+            + "outer()\n";
+
+    private LuaProfiler profiler;
+
+    @Before
+    public void before() {
+        profiler = new LuaProfiler(luaRunState);
+
+        // Takes a sample at a known point in the script
+        LuaTestUtil.setGlobal("sample", new ZeroArgFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LuaValue call() {
+                profiler.sample();
+                return NIL;
+            }
+        });
+    }
+
+    @Test
+    public void functionStats() throws IOException {
+        profile(SCRIPT);
+
+        ProfileReport report = profiler.getReport();
+        Assert.assertEquals(4, report.getSampleCount());
+        assertStats(Arrays.asList(
+                "leaf (test:1) calls=3, self=3, total=3",
+                "outer (test:4) calls=1, self=1, total=4",
+                "main chunk (test:0) calls=1, self=0, total=4"),
+                report.getFunctions());
+    }
+
+    @Test
+    public void lineStats() throws IOException {
+        profile(SCRIPT);
+
+        ProfileReport report = profiler.getReport();
+        assertStats(Arrays.asList(
+                "leaf (test:2) calls=0, self=3, total=3",
+                "outer (test:6) calls=0, self=1, total=1",
+                "main chunk (test:8) calls=1, self=0, total=4",
+                "outer (test:5) calls=3, self=0, total=3"),
+                report.getLines());
+    }
+
+    @Test
+    public void collapsedStacks() throws IOException {
+        profile(SCRIPT);
+
+        ProfileReport report = profiler.getReport();
+        StringBuilder functions = new StringBuilder();
+        report.writeCollapsedStacks(functions, false);
+        Assert.assertEquals("main chunk (test:0);outer (test:4) 1\n"
+                + "main chunk (test:0);outer (test:4);leaf (test:1) 3\n",
+                functions.toString());
+
+        StringBuilder lines = new StringBuilder();
+        report.writeCollapsedStacks(lines, true);
+        Assert.assertEquals("main chunk (test:8);outer (test:5);leaf (test:2) 3\n"
+                + "main chunk (test:8);outer (test:6) 1\n",
+                lines.toString());
+    }
+
+    /** Recursive calls only count once towards the total time of a function. */
+    @Test
+    public void recursion() throws IOException {
+        profile("local function rec(n)\n"
+                + "    if n == 0 then sample() else rec(n - 1) end\n"
+                + "end\n"
+                + "rec(3)\n");
+
+        ProfileReport report = profiler.getReport();
+        assertStats(Arrays.asList(
+                "rec (test:1) calls=4, self=1, total=1",
+                "main chunk (test:0) calls=1, self=0, total=1"),
+                report.getFunctions());
+    }
+
+    /** The sampler thread samples the running Lua code in the background. */
+    @Test
+    public void backgroundSampling() throws IOException {
+        luaRunState.setDebugEnabled(false);
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+        profiler.setSampleInterval(100, TimeUnit.MICROSECONDS);
+        profiler.start();
+        Assert.assertSame(profiler, luaRunState.getProfiler());
+
+        LuaTestUtil.setGlobal("sampleCount", new ZeroArgFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LuaValue call() {
+                return valueOf(profiler.getReport().getSampleCount());
+            }
+        });
+
+        run("local function busy()\n"
+                + "    local x = 0\n"
+                + "    for i = 1, 10000 do x = x + i % 7 end\n"
+                + "    return x\n"
+                + "end\n"
+                + "while sampleCount() < 10 do busy() end\n");
+
+        profiler.stop();
+        Assert.assertFalse(profiler.isRunning());
+        Assert.assertNull(luaRunState.getProfiler());
+
+        ProfileReport report = profiler.getReport();
+        Assert.assertTrue(report.getSampleCount() >= 10);
+
+        // Where the samples land depends on thread scheduling, so only check that 'busy' was sampled at all
+        FunctionStats busy = findFunction(report, "busy");
+        Assert.assertEquals(1, busy.getLineDefined());
+        Assert.assertTrue(busy.getCalls() > 0);
+        Assert.assertTrue(busy.getTotalSamples() > 0);
+    }
+
+    /** Resetting the profiler discards the call counts as well as the samples. */
+    @Test
+    public void reset() throws IOException {
+        profile(SCRIPT);
+
+        profiler.reset();
+        ProfileReport report = profiler.getReport();
+        Assert.assertEquals(0, report.getSampleCount());
+        Assert.assertEquals(Arrays.asList(), report.getFunctions());
+        Assert.assertEquals(Arrays.asList(), report.getLines());
+    }
+
+    @SuppressWarnings("deprecation")
+    private void profile(String code) throws IOException {
+        luaRunState.setProfiler(profiler);
+        try {
+            run(code);
+        } finally {
+            luaRunState.setProfiler(null);
+        }
+    }
+
+    private void run(String code) throws IOException {
+        LuaClosure closure = LoadState.load(code, "@test", luaRunState.getGlobalEnvironment()).checkclosure();
+        LuaThread thread = luaRunState.newThread(closure, NONE);
+        thread.resume(NONE);
+    }
+
+    private static FunctionStats findFunction(ProfileReport report, String name) {
+        for (FunctionStats stats : report.getFunctions()) {
+            if (stats.getName().equals(name)) {
+                return stats;
+            }
+        }
+        throw new AssertionError("Function not found: " + name + " in " + report.getFunctions());
+    }
+
+    private static void assertStats(List<String> expected, List<?> actual) {
+        Assert.assertEquals(expected, actual.stream().map(String::valueOf).collect(Collectors.toList()));
+    }
+
+}
@@ -37,6 +37,20 @@ public class DebugTraceTest extends AbstractLuaTest {
                 "? (/stdlib/stacktrace.lua:32)");
     }
 
+    /** Function names are determined from the code at the call site. */
+    @Test
+    public void calledFunctionNames() throws LuaException {
+        LuaThread thread = loadScript("/stdlib/stacktrace-names.lua");
+        thread.resume(NONE);
+
+        assertStackTrace(thread,
+                "method (/stdlib/stacktrace-names.lua:6)",
+                "field (/stdlib/stacktrace-names.lua:11)",
+                "localFunc (/stdlib/stacktrace-names.lua:16)",
+                "caller (/stdlib/stacktrace-names.lua:20)",
+                "? (/stdlib/stacktrace-names.lua:23)");
+    }
+
     private void assertStackTrace(LuaThread thread, String... expected) {
         Assert.assertEquals(Arrays.asList(expected), DebugTrace.stackTrace(thread).stream()
                 .map(e -> e.toString())
@@ -0,0 +1,164 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.LuaTestUtil;
+
+public final class DeltaSnapshotTest extends AbstractLuaTest {
+
+    private final SnapshotSerializer serializer = new SnapshotSerializer();
+    private final SnapshotBase base = new SnapshotBase();
+    private final List<byte[]> chain = new ArrayList<>();
+
+    @Before
+    public void before() {
+        loadScript("io/delta1.lua");
+        luaRunState.update();
+    }
+
+    /**
+     * Delta snapshots only contain the objects that changed.
+     */
+    @Test
+    public void deltaIsSmall() throws IOException {
+        byte[] full = writeSnapshot();
+        call("change", 5);
+        byte[] delta = writeSnapshot();
+
+        Assert.assertTrue(delta.length + " vs " + full.length, delta.length * 4 < full.length);
+    }
+
+    /**
+     * Changes to tables, upvalues and suspended threads are applied when reading a chain of delta snapshots.
+     */
+    @Test
+    public void readChain() throws IOException {
+        writeSnapshot();
+        call("bump");
+        call("change", 5);
+        resumeWorker(7);
+        writeSnapshot();
+        call("bump");
+        call("change", 6);
+        resumeWorker(3);
+        writeSnapshot();
+
+        // Changes after the last snapshot are lost
+        call("bump");
+
+        LuaRunState lrs = readChain(chain);
+        try {
+            LuaTestUtil.assertGlobal("counter", 2);
+            LuaTestUtil.assertEquals(20, call("getHidden"));
+
+            LuaTable items = LuaTestUtil.getGlobal("items").checktable();
+            Assert.assertEquals(1002, items.length());
+            Assert.assertTrue(items.get(5).get("changed").toboolean());
+            Assert.assertTrue(items.get(6).get("changed").toboolean());
+            Assert.assertTrue(items.get(7).get("changed").isnil());
+            LuaTestUtil.assertEquals("item7", items.get(7).get("name"));
+
+            // The coroutine continues with the total it had in the last snapshot
+            LuaTestUtil.assertEquals(20, resumeWorker(10));
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    /**
+     * Changes to objects which can't be tracked (in this case, the thread group) are included in delta snapshots.
+     */
+    @Test
+    public void newThread() throws IOException {
+        writeSnapshot();
+        call("spawn");
+        writeSnapshot();
+
+        LuaRunState lrs = readChain(chain);
+        try {
+            lrs.update();
+            LuaTestUtil.assertGlobal("spawned", true);
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    /**
+     * Each delta snapshot in a chain must be based on the snapshot before it.
+     */
+    @Test(expected = IOException.class)
+    public void missingDelta() throws IOException {
+        writeSnapshot();
+        call("change", 5);
+        writeSnapshot();
+        call("change", 6);
+        writeSnapshot();
+
+        chain.remove(1);
+        readChain(chain);
+    }
+
+    /**
+     * After resetting the base, the next snapshot is a full snapshot again.
+     */
+    @Test
+    public void reset() throws IOException {
+        writeSnapshot();
+        call("bump");
+        base.reset();
+        writeSnapshot();
+
+        LuaRunState lrs = readChain(chain.subList(1, 2));
+        try {
+            LuaTestUtil.assertGlobal("counter", 1);
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    private byte[] writeSnapshot() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        serializer.writeDeltaSnapshot(bout, luaRunState, base);
+        byte[] bytes = bout.toByteArray();
+        chain.add(bytes);
+        return bytes;
+    }
+
+    private LuaRunState readChain(List<byte[]> snapshots) throws IOException {
+        List<InputStream> inputs = new ArrayList<>();
+        for (byte[] bytes : snapshots) {
+            inputs.add(new ByteArrayInputStream(bytes));
+        }
+
+        LuaRunState lrs = (LuaRunState)serializer.readSnapshotChain(inputs);
+        lrs.registerOnThread();
+        return lrs;
+    }
+
+    private static LuaValue call(String function) {
+        return LuaTestUtil.getGlobal(function).call();
+    }
+
+    private static LuaValue call(String function, int arg) {
+        return LuaTestUtil.getGlobal(function).call(LuaInteger.valueOf(arg));
+    }
+
+    private static LuaValue resumeWorker(int value) {
+        LuaValue resume = LuaTestUtil.getGlobal("coroutine").get("resume");
+        Varargs result = resume.invoke(LuaTestUtil.getGlobal("worker"), LuaInteger.valueOf(value));
+        Assert.assertTrue(result.arg1().toboolean());
+        return result.arg(2);
+    }
+
+}
@@ -0,0 +1,93 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+public final class InlineCacheTest extends AbstractLuaTest {
+
+    private static final String CLASS_DEF = "local A = {} A.__index = A"
+            + " function A.name() return 'a' end"
+            + " local B = {} B.__index = B"
+            + " function B.name() return 'b' end"
+            + " local obj = setmetatable({}, A)"
+            + " local function get(t) return t:name() end";
+
+    @Test
+    public void globals() throws IOException {
+        assertResult("15nila", "x = 1"
+                + " local function f() return x end"
+                + " local r = f()"
+                + " x = 5 r = r .. f()" // Value changed
+                + " for i=1,50 do _G['g' .. i] = i end" // Hash part resized
+                + " x = nil r = r .. tostring(f())" // Key removed
+                + " x = 'a' r = r .. f()" // Key added again
+                + " return r");
+        assertResult("1str2", "x = 1"
+                + " local function f() return x end"
+                + " local r = f()"
+                + " x = 'str' r = r .. f()" // Number entry replaced by a regular entry
+                + " x = 2 r = r .. f()"
+                + " return r");
+    }
+
+    @Test
+    public void methodViaIndex() throws IOException {
+        assertResult("aa", CLASS_DEF + " return get(obj) .. get(obj)");
+
+        // Change a method in the __index table
+        assertResult("ac", CLASS_DEF + " local r = get(obj) function A.name() return 'c' end return r .. get(obj)");
+
+        // Shadow the method in the object itself
+        assertResult("ab", CLASS_DEF + " local r = get(obj) obj.name = B.name return r .. get(obj)");
+
+        // Change the metatable
+        assertResult("ab", CLASS_DEF + " local r = get(obj) setmetatable(obj, B) return r .. get(obj)");
+
+        // Change the __index field of the metatable
+        assertResult("ab", CLASS_DEF + " local r = get(obj) A.__index = B return r .. get(obj)");
+
+        // Remove the method
+        assertResult("anil", CLASS_DEF + " local function field(t) return t.name end"
+                + " local r = field(obj)() A.name = nil"
+                + " return r .. tostring(field(obj))");
+    }
+
+    @Test
+    public void polymorphic() throws IOException {
+        assertResult("aabaabaabaabaabaabaabaabaabaab", CLASS_DEF + " local b = setmetatable({}, B)"
+                + " local r = ''"
+                + " for i=1,30 do r = r .. get(i % 3 == 0 and b or obj) end"
+                + " return r");
+    }
+
+    @Test
+    public void indexFunction() throws IOException {
+        assertResult("6", "local n = 0"
+                + " local t = setmetatable({}, {__index = function(t, k) n = n + 1 return n end})"
+                + " local function f() return t.x end"
+                + " return f() + f() + f()");
+    }
+
+    @Test
+    public void weakTable() throws IOException {
+        assertResult("abnil", "local t = setmetatable({}, {__mode = 'v'})"
+                + " t.x = 'a'"
+                + " local function f() return t.x end"
+                + " local r = f() t.x = 'b' r = r .. f() t.x = nil"
+                + " return r .. tostring(f())");
+    }
+
+    private void assertResult(String expected, String code) throws IOException {
+        LuaClosure closure = LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+        Varargs result = luaRunState.newThread(closure, NONE).resume(NONE);
+        Assert.assertEquals(expected, result.tojstring(1));
+    }
+
+}
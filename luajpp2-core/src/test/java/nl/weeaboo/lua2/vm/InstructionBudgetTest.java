@@ -0,0 +1,145 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+public final class InstructionBudgetTest extends AbstractLuaTest {
+
+    @Before
+    public void before() {
+        luaRunState.setDebugEnabled(false);
+        luaRunState.setInstructionCountLimit(10_000);
+    }
+
+    @Test
+    public void infiniteWhileLoop() throws IOException {
+        assertLimitExceeded("while true do end");
+    }
+
+    @Test
+    public void infiniteRepeatLoop() throws IOException {
+        assertLimitExceeded("local x = 0 repeat x = x + 1 until false");
+    }
+
+    @Test
+    public void longForLoop() throws IOException {
+        assertLimitExceeded("local x = 0 for i=1,1000000 do x = x + i end");
+    }
+
+    @Test
+    public void longGenericForLoop() throws IOException {
+        assertLimitExceeded("local function iter(s, i) return i + 1 end for i in iter, nil, 0 do end");
+    }
+
+    @Test
+    public void manyCalls() throws IOException {
+        luaRunState.setInstructionCountLimit(1000);
+
+        // No loops, so only the calls are counted
+        assertLimitExceeded("local function f() return 1 end"
+                + " local function g() f() f() f() f() f() f() f() f() f() f() end"
+                + " local function h() g() g() g() g() g() g() g() g() g() g() end"
+                + " h() h() h() h() h() h() h() h() h() h() h() h() h() h() h() h()");
+    }
+
+    /**
+     * Calls are charged as a single instruction, not the full code length of the called function. A function that
+     * returns early doesn't run the rest of its code.
+     */
+    @Test
+    public void earlyReturn() throws IOException {
+        StringBuilder code = new StringBuilder("local function f(x)\n    if x > 0 then return x end\n");
+        for (int n = 0; n < 400; n++) {
+            code.append("    x = x + 1\n");
+        }
+        code.append("    return x\nend\n");
+        code.append("total = 0 for i = 1, 100000 do total = total + f(i) end");
+
+        luaRunState.setInstructionCountLimit(10_000_000);
+        run(code.toString());
+        LuaTestUtil.assertGlobal("total", 5000050000L);
+
+        // Debug mode without hooks uses the same budget
+        luaRunState.setDebugEnabled(true);
+        run(code.toString());
+        LuaTestUtil.assertGlobal("total", 5000050000L);
+    }
+
+    @Test
+    public void withinLimit() throws IOException {
+        run("x = 0 for i=1,100 do x = x + i end");
+
+        LuaTestUtil.assertGlobal("x", 5050);
+    }
+
+    /** The budget is refilled every time a thread is resumed. */
+    @Test
+    public void budgetPerResume() throws IOException {
+        LuaThread thread = luaRunState.newThread(load("x = 0 while true do"
+                + " for i=1,100 do x = x + 1 end"
+                + " coroutine.yield()"
+                + " end"), NONE);
+
+        for (int n = 0; n < 1000; n++) {
+            thread.resume(NONE);
+        }
+
+        LuaTestUtil.assertGlobal("x", 100 * 1000);
+    }
+
+    @Test
+    public void unlimited() throws IOException {
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+
+        run("x = 0 for i=1,100000 do x = x + 1 end");
+
+        LuaTestUtil.assertGlobal("x", 100000);
+    }
+
+    /**
+     * In debug mode, the interpreter is only switched out of budgeted mode while a line or count hook is installed.
+     */
+    @Test
+    public void debugLineHook() throws IOException {
+        luaRunState.setDebugEnabled(true);
+
+        run("n = 0\n"
+                + "debug.sethook(function() n = n + 1 end, 'l')\n"
+                + "local x = 1\n"
+                + "local y = 2\n"
+                + "debug.sethook()\n"
+                + "local z = 3\n");
+
+        // Lines 3-5 are reported
+        LuaTestUtil.assertGlobal("n", 3);
+    }
+
+    private void assertLimitExceeded(String code) throws IOException {
+        try {
+            run(code);
+            Assert.fail("Expected an exception");
+        } catch (LuaException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("instruction limit exceeded"));
+        }
+    }
+
+    private void run(String code) throws IOException {
+        LuaThread thread = luaRunState.newThread(load(code), NONE);
+        thread.resume(NONE);
+    }
+
+    private LuaClosure load(String code) throws IOException {
+        return LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+    }
+
+}
@@ -0,0 +1,71 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+public final class LuaStringPoolTest extends AbstractLuaTest {
+
+    @After
+    public void after() {
+        LuaStringPool.setEnabled(true);
+    }
+
+    @Test
+    public void shortStringsArePooled() {
+        LuaString a = LuaString.valueOf("pooled");
+        Assert.assertSame(a, LuaString.valueOf("pooled"));
+        Assert.assertSame(a, LuaString.valueOf(new String("pooled")));
+        Assert.assertSame(a, LuaString.valueOf(new byte[] {'p', 'o', 'o', 'l', 'e', 'd'}).intern());
+    }
+
+    @Test
+    public void longStringsAreNotPooled() {
+        String str = "a string which is longer than the maximum length for automatic interning";
+        LuaString a = LuaString.valueOf(str);
+        LuaString b = LuaString.valueOf(str);
+        Assert.assertNotSame(a, b);
+        Assert.assertEquals(a, b);
+
+        // Explicit interning works regardless of the length
+        Assert.assertSame(a.intern(), b.intern());
+    }
+
+    @Test
+    public void disabled() {
+        LuaStringPool.setEnabled(false);
+        LuaString a = LuaString.valueOf("disabled");
+        LuaString b = LuaString.valueOf("disabled");
+        Assert.assertNotSame(a, b);
+        Assert.assertTrue(a.raweq(b));
+    }
+
+    @Test
+    public void equality() {
+        LuaString a = LuaString.valueOf("abc");
+        LuaString b = LuaString.valueOf("abd");
+        LuaString notPooled = LuaString.valueOf(new byte[] {'a', 'b', 'c'});
+
+        Assert.assertFalse(a.raweq(b));
+        Assert.assertTrue(a.raweq(notPooled));
+        Assert.assertTrue(notPooled.raweq(a));
+    }
+
+    /** String constants in compiled code are shared with strings created from Java. */
+    @Test
+    public void constants() throws IOException {
+        LuaTable table = new LuaTable();
+        LuaValue env = luaRunState.getGlobalEnvironment();
+        env.rawset("t", table);
+        LoadState.load("t.someKey = 1", "?", env).call();
+
+        LuaValue key = table.next(LuaNil.NIL).arg1();
+        Assert.assertSame(LuaString.valueOf("someKey"), key);
+    }
+
+}
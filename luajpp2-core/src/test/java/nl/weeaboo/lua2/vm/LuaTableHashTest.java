@@ -0,0 +1,112 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+
+public final class LuaTableHashTest extends AbstractLuaTest {
+
+    /** Clearing fields during traversal is allowed, and doesn't affect the traversal order. */
+    @Test
+    public void clearDuringNext() {
+        LuaTable table = newStringTable(100);
+
+        int count = 0;
+        LuaValue key = NIL;
+        while (!(key = table.next(key).arg1()).isnil()) {
+            table.rawset(key, NIL);
+            count++;
+        }
+        Assert.assertEquals(100, count);
+        Assert.assertEquals(0, table.keyCount());
+    }
+
+    /** Removed keys are reused by later inserts, so alternating inserts and removes don't grow the table. */
+    @Test
+    public void reuseRemovedSlots() {
+        LuaTable table = newStringTable(10);
+        int hashLength = table.getHashLength();
+
+        for (int n = 0; n < 1000; n++) {
+            LuaString key = LuaString.valueOf("x" + n);
+            table.rawset(key, LuaValue.valueOf(n));
+            Assert.assertEquals(LuaValue.valueOf(n), table.rawget(key));
+            table.rawset(key, NIL);
+            Assert.assertEquals(NIL, table.rawget(key));
+        }
+        Assert.assertEquals(hashLength, table.getHashLength());
+        Assert.assertEquals(10, table.keyCount());
+        for (int n = 0; n < 10; n++) {
+            Assert.assertEquals(LuaValue.valueOf(n), table.rawget("k" + n));
+        }
+    }
+
+    /** Mixed key types are stored next to each other in the same probe sequence. */
+    @Test
+    public void mixedKeys() {
+        LuaTable table = new LuaTable();
+        LuaTable tableKey = new LuaTable();
+        table.rawset(LuaValue.valueOf(-1), LuaValue.valueOf("int"));
+        table.rawset(LuaValue.valueOf(0.5), LuaValue.valueOf("double"));
+        table.rawset(LuaValue.valueOf("s"), LuaValue.valueOf("string"));
+        table.rawset(LuaBoolean.TRUE, LuaValue.valueOf("boolean"));
+        table.rawset(tableKey, LuaValue.valueOf("table"));
+
+        Assert.assertEquals("int", table.rawget(-1).tojstring());
+        Assert.assertEquals("double", table.rawget(LuaValue.valueOf(0.5)).tojstring());
+        Assert.assertEquals("string", table.rawget("s").tojstring());
+        Assert.assertEquals("boolean", table.rawget(LuaBoolean.TRUE).tojstring());
+        Assert.assertEquals("table", table.rawget(tableKey).tojstring());
+        Assert.assertEquals(NIL, table.rawget(new LuaTable()));
+        Assert.assertEquals(5, table.keyCount());
+    }
+
+    /** Long keys which only differ in a few bytes don't end up in the same probe sequence. */
+    @Test
+    public void longSimilarKeys() {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+
+        LuaTable table = new LuaTable();
+        Set<Integer> hashCodes = new HashSet<>();
+        for (char a = 'a'; a <= 'z'; a++) {
+            for (char b = 'a'; b <= 'z'; b++) {
+                chars[0] = a;
+                chars[1] = b;
+                LuaString key = LuaString.valueOf(new String(chars));
+                hashCodes.add(key.hashCode());
+                table.rawset(key, LuaValue.valueOf(a * 256 + b));
+            }
+        }
+        Assert.assertTrue(hashCodes.size() > 26 * 26 - 5);
+
+        chars[0] = 'q';
+        chars[1] = 'r';
+        Assert.assertEquals(LuaValue.valueOf('q' * 256 + 'r'), table.rawget(new String(chars)));
+    }
+
+    /** Equal strings have the same hash code, regardless of where their bytes are stored. */
+    @Test
+    public void substringHashCode() {
+        LuaString str = LuaString.valueOf("prefix.some.key.suffix");
+        LuaString sub = str.substring(7, 15);
+        Assert.assertEquals(LuaString.valueOf("some.key"), sub);
+        Assert.assertEquals(LuaString.valueOf("some.key").hashCode(), sub.hashCode());
+    }
+
+    private static LuaTable newStringTable(int length) {
+        LuaTable table = new LuaTable();
+        for (int n = 0; n < length; n++) {
+            table.rawset("k" + n, LuaValue.valueOf(n));
+        }
+        return table;
+    }
+
+}
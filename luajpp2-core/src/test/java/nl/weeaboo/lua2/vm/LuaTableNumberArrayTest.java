@@ -0,0 +1,116 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.testing.SerializableTester;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+
+public final class LuaTableNumberArrayTest extends AbstractLuaTest {
+
+    @Test
+    public void numbersOnly() {
+        LuaTable table = newNumberTable(100);
+        Assert.assertNotNull(table.numbers);
+        Assert.assertEquals(100, table.rawlen());
+        for (int n = 1; n <= 100; n++) {
+            Assert.assertEquals(LuaValue.valueOf(n * 0.5), table.rawget(n));
+            Assert.assertEquals(LuaValue.valueOf(n * 0.5), table.get(LuaInteger.valueOf(n)));
+        }
+        Assert.assertEquals(NIL, table.rawget(0));
+        Assert.assertEquals(NIL, table.rawget(101));
+    }
+
+    @Test
+    public void holes() {
+        LuaTable table = newNumberTable(100);
+        table.rawset(50, NIL);
+        Assert.assertEquals(NIL, table.rawget(50));
+        Assert.assertNotNull(table.numbers);
+
+        // Iteration skips the hole
+        Assert.assertEquals(99, table.keyCount());
+        Assert.assertEquals(LuaInteger.valueOf(51), table.next(LuaInteger.valueOf(49)).arg1());
+    }
+
+    /** Storing anything other than a number switches the array part back to regular values. */
+    @Test
+    public void switchToValues() {
+        LuaTable table = newNumberTable(100);
+        table.rawset(10, LuaValue.valueOf("x"));
+        Assert.assertNull(table.numbers);
+        Assert.assertEquals(LuaValue.valueOf("x"), table.rawget(10));
+        Assert.assertEquals(LuaValue.valueOf(11 * 0.5), table.rawget(11));
+
+        // NaN can't be stored in the number array
+        table = newNumberTable(100);
+        table.rawset(10, LuaValue.valueOf(Double.NaN));
+        Assert.assertNull(table.numbers);
+        Assert.assertTrue(Double.isNaN(table.rawget(10).todouble()));
+    }
+
+    @Test
+    public void iterationOrder() {
+        LuaTable table = newNumberTable(4);
+        table.rawset("a", LuaValue.valueOf("b"));
+
+        LuaValue key = NIL;
+        for (int n = 1; n <= 4; n++) {
+            Varargs next = table.next(key);
+            key = next.arg1();
+            Assert.assertEquals(LuaInteger.valueOf(n), key);
+            Assert.assertEquals(LuaValue.valueOf(n * 0.5), next.arg(2));
+        }
+        Assert.assertEquals(LuaValue.valueOf("a"), table.next(key).arg1());
+    }
+
+    @Test
+    public void sort() {
+        LuaTable table = new LuaTable();
+        for (int n = 1; n <= 100; n++) {
+            table.rawset(n, LuaValue.valueOf((n * 37) % 101));
+        }
+        Assert.assertNotNull(table.numbers);
+
+        table.sort(NIL);
+        assertSorted(table, 100);
+    }
+
+    @Test
+    public void weakTable() {
+        LuaTable table = newNumberTable(100);
+        table.setmetatable(LuaValue.tableOf(new LuaValue[] {LuaConstants.META_MODE, LuaValue.valueOf("v")}));
+        Assert.assertNull(table.numbers);
+        Assert.assertEquals(LuaValue.valueOf(0.5), table.rawget(1));
+    }
+
+    @Test
+    public void serialize() {
+        LuaTable table = newNumberTable(100);
+        table.rawset(50, NIL);
+
+        LuaTable copy = SerializableTester.reserialize(table);
+        Assert.assertNotNull(copy.numbers);
+        for (int n = 1; n <= 100; n++) {
+            Assert.assertEquals(table.rawget(n), copy.rawget(n));
+        }
+    }
+
+    private static LuaTable newNumberTable(int length) {
+        LuaTable table = new LuaTable();
+        for (int n = 1; n <= length; n++) {
+            table.rawset(n, LuaValue.valueOf(n * 0.5));
+        }
+        return table;
+    }
+
+    private static void assertSorted(LuaTable table, int length) {
+        for (int n = 1; n < length; n++) {
+            Assert.assertTrue(table.rawget(n).todouble() <= table.rawget(n + 1).todouble());
+        }
+    }
+
+}
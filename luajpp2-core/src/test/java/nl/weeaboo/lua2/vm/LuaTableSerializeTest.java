@@ -33,14 +33,15 @@ public final class LuaTableSerializeTest extends AbstractLuaTest {
     }
 
     private void checkHashSlots(LuaTable table) {
-        ISlot[] slots = table.hash;
-        for (int n = 0; n < slots.length; n++) {
-            ISlot slot = slots[n];
-            while (slot != null) {
-                LuaValue key = slot.first().key();
-                int expectedSlot = LuaTable.hashSlot(key, slots.length - 1);
-                Assert.assertEquals(expectedSlot, n);
-                slot = slot.rest();
+        LuaValue[] keys = table.hashKeys;
+        int mask = keys.length - 1;
+        for (int n = 0; n < keys.length; n++) {
+            if (keys[n] == null) {
+                continue;
+            }
+            // Each key must be reachable from its hash slot without passing an empty slot
+            for (int i = LuaTable.hashSlot(keys[n], mask); i != n; i = (i + 1) & mask) {
+                Assert.assertNotNull(keys[i]);
             }
         }
     }
@@ -0,0 +1,299 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.io.IReadResolveSerializable;
+import nl.weeaboo.lua2.io.IWriteReplaceSerializable;
+import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.io.LuaSerializer;
+import nl.weeaboo.lua2.io.ObjectSerializer;
+
+public final class SnapshotSerializerTest extends AbstractLuaTest {
+
+    private static final LuaTable REPLACEMENT = new LuaTable();
+
+    /**
+     * Closures, upvalues and suspended threads keep working after loading a snapshot.
+     */
+    @Test
+    public void closuresAndThreads() throws IOException {
+        loadScript("io/snapshot1.lua");
+        luaRunState.update();
+
+        LuaRunState lrs = LuaTestUtil.snapshot(luaRunState);
+        try {
+            // Both functions still share the same upvalue
+            LuaTestUtil.assertEquals(3, LuaTestUtil.getGlobal("increment").call());
+            LuaTestUtil.assertEquals(3, LuaTestUtil.getGlobal("getCounter").call());
+
+            // The coroutine continues where it left off, including its open upvalue
+            LuaValue resume = LuaTestUtil.getGlobal("coroutine").get("resume");
+            Varargs result = resume.invoke(LuaTestUtil.getGlobal("producer"), LuaInteger.valueOf(10));
+            Assert.assertEquals(true, result.arg1().toboolean());
+            LuaTestUtil.assertEquals(13, result.arg(2));
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    /**
+     * Shared references and cycles are preserved, and long chains of tables don't require a deep call stack.
+     */
+    @Test
+    public void tables() throws IOException {
+        loadScript("io/snapshot1.lua");
+        luaRunState.update();
+
+        LuaRunState lrs = LuaTestUtil.snapshot(luaRunState);
+        try {
+            LuaTable cycle = LuaTestUtil.getGlobal("cycle").checktable();
+            Assert.assertSame(cycle, cycle.get("self"));
+
+            LuaTable chain = LuaTestUtil.getGlobal("chain").checktable();
+            LuaValue tail = chain;
+            for (int n = 1; n <= 10000; n++) {
+                tail = tail.get("next");
+                LuaTestUtil.assertEquals(n, tail.get("value"));
+            }
+            Assert.assertTrue(tail.get("next").isnil());
+
+            LuaTable mixed = LuaTestUtil.getGlobal("mixed").checktable();
+            LuaTestUtil.assertEquals(1, mixed.get(1));
+            LuaTestUtil.assertEquals(2.5, mixed.get(2));
+            LuaTestUtil.assertEquals(-3, mixed.get(3));
+            LuaTestUtil.assertEquals(1e100, mixed.get(4));
+            LuaTestUtil.assertEquals("four", mixed.get(5));
+            LuaTestUtil.assertEquals(true, mixed.get(LuaValue.valueOf(0.5)));
+            LuaTestUtil.assertEquals("no", mixed.get(LuaBoolean.FALSE));
+            LuaTestUtil.assertEquals(-8, mixed.get(-7));
+            Assert.assertSame(cycle, mixed.get(chain));
+
+            LuaTable numbers = LuaTestUtil.getGlobal("numbers").checktable();
+            for (int n = 1; n <= 100; n++) {
+                LuaTestUtil.assertEquals(n / 4.0, numbers.get(n));
+            }
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    /**
+     * Deep object graphs are traversed using a work queue instead of recursion, so they can be written and read on a
+     * thread with a small stack.
+     */
+    @Test
+    public void smallStack() throws Exception {
+        final int depth = 100000;
+        final LuaTable root = new LuaTable();
+        LuaTable tail = root;
+        for (int n = 0; n < depth; n++) {
+            LuaTable next = new LuaTable();
+            if (n % 2 == 0) {
+                tail.rawset(1, next);
+            } else {
+                tail.rawset("next", next);
+            }
+            tail = next;
+        }
+
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                result.set(roundTrip(new SnapshotSerializer(), root));
+            } catch (IOException | RuntimeException | StackOverflowError e) {
+                result.set(e);
+            }
+        }, "small-stack", 128 * 1024);
+        thread.start();
+        thread.join();
+
+        Object copy = result.get();
+        if (copy instanceof Throwable) {
+            throw new AssertionError("Round trip failed", (Throwable)copy);
+        }
+
+        LuaValue value = (LuaTable)copy;
+        for (int n = 0; n < depth; n++) {
+            value = value.get(n % 2 == 0 ? LuaInteger.valueOf(1) : LuaString.valueOf("next"));
+            Assert.assertTrue(value.istable());
+        }
+        Assert.assertTrue(value.get(1).isnil());
+    }
+
+    /**
+     * Compressed snapshots consisting of many chunks are compressed and decompressed in parallel, and are recognized
+     * automatically when reading.
+     */
+    @Test
+    public void compressed() throws IOException {
+        LuaTable root = new LuaTable();
+        for (int n = 1; n <= 100000; n++) {
+            LuaTable entry = new LuaTable();
+            entry.rawset("name", LuaString.valueOf("entry" + n));
+            entry.rawset("value", LuaInteger.valueOf(n));
+            root.rawset(n, entry);
+        }
+
+        SnapshotSerializer ss = new SnapshotSerializer();
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        ss.writeSnapshot(plainOut, root);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ss.setCompressed(true);
+            ss.setCompressionExecutor(executor);
+            ByteArrayOutputStream compressedOut = new ByteArrayOutputStream();
+            ss.writeSnapshot(compressedOut, root);
+
+            Assert.assertTrue(plainOut.size() > 4 * CompressedSnapshotOutput.CHUNK_SIZE);
+            Assert.assertTrue(compressedOut.size() + " vs " + plainOut.size(),
+                    compressedOut.size() * 2 < plainOut.size());
+
+            LuaTable copy = (LuaTable)ss.readSnapshot(new ByteArrayInputStream(compressedOut.toByteArray()));
+            Assert.assertEquals(100000, copy.length());
+            for (int n = 1; n <= 100000; n++) {
+                LuaValue entry = copy.get(n);
+                LuaTestUtil.assertEquals("entry" + n, entry.get("name"));
+                LuaTestUtil.assertEquals(n, entry.get("value"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Without an executor, compressed snapshots use the shared executor. Errors while decompressing are reported as
+     * {@link IOException}.
+     */
+    @Test
+    public void compressedCorrupt() throws IOException {
+        LuaTable root = new LuaTable();
+        root.rawset(1, LuaString.valueOf("abc"));
+
+        SnapshotSerializer ss = new SnapshotSerializer();
+        ss.setCompressed(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ss.writeSnapshot(out, root);
+
+        byte[] bytes = out.toByteArray();
+        LuaTable copy = (LuaTable)ss.readSnapshot(new ByteArrayInputStream(bytes));
+        LuaTestUtil.assertEquals("abc", copy.get(1));
+
+        // A compressed length that's out of range is rejected before allocating a buffer for it
+        byte[] badLength = bytes.clone();
+        badLength[8] = 0x7f;
+        assertCorrupt(ss, badLength);
+
+        // Break the header of the compressed data of the first chunk
+        bytes[12] = 0;
+        bytes[13] = 0;
+        assertCorrupt(ss, bytes);
+    }
+
+    /**
+     * Objects in the {@link LuaSerializer#getEnvironment() environment} are stored by id.
+     */
+    @Test
+    public void environment() throws IOException {
+        LuaTable shared = new LuaTable();
+        LuaTable root = new LuaTable();
+        root.set("a", shared);
+        root.set("b", shared);
+
+        SnapshotSerializer ss = new SnapshotSerializer();
+        ss.getEnvironment().add("shared", shared);
+
+        LuaTable copy = (LuaTable)roundTrip(ss, root);
+        Assert.assertNotSame(root, copy);
+        Assert.assertSame(shared, copy.get("a"));
+        Assert.assertSame(shared, copy.get("b"));
+    }
+
+    /**
+     * Objects implementing {@link IWriteReplaceSerializable} are replaced before they're written.
+     */
+    @Test
+    public void writeReplace() throws IOException {
+        ReplacedTable replaced = new ReplacedTable();
+        LuaTable root = new LuaTable();
+        root.set("a", replaced);
+        root.set("b", replaced);
+
+        LuaTable copy = (LuaTable)roundTrip(new SnapshotSerializer(), root);
+        Assert.assertSame(REPLACEMENT, copy.get("a"));
+        Assert.assertSame(REPLACEMENT, copy.get("b"));
+    }
+
+    /**
+     * Snapshots are much smaller than the equivalent output of {@link ObjectSerializer}.
+     */
+    @Test
+    public void smallerThanJavaSerialization() throws IOException {
+        loadScript("io/snapshot1.lua");
+        luaRunState.update();
+
+        ByteArrayOutputStream javaOut = new ByteArrayOutputStream();
+        ObjectSerializer out = new LuaSerializer().openSerializer(javaOut);
+        try {
+            out.writeObject(luaRunState);
+        } finally {
+            out.close();
+        }
+
+        ByteArrayOutputStream snapshotOut = new ByteArrayOutputStream();
+        new SnapshotSerializer().writeSnapshot(snapshotOut, luaRunState);
+
+        Assert.assertTrue(snapshotOut.size() + " vs " + javaOut.size(), snapshotOut.size() * 3 < javaOut.size());
+    }
+
+    private static Object roundTrip(SnapshotSerializer ss, Object root) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ss.writeSnapshot(bout, root);
+        return ss.readSnapshot(new ByteArrayInputStream(bout.toByteArray()));
+    }
+
+    private static void assertCorrupt(SnapshotSerializer ss, byte[] bytes) {
+        try {
+            ss.readSnapshot(new ByteArrayInputStream(bytes));
+            Assert.fail("Expected an exception");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt snapshot"));
+        }
+    }
+
+    @LuaSerializable
+    private static final class ReplacedTable extends LuaTable implements IWriteReplaceSerializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object writeReplace() {
+            return new TableRef();
+        }
+
+    }
+
+    @LuaSerializable
+    private static final class TableRef implements IReadResolveSerializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object readResolve() {
+            return REPLACEMENT;
+        }
+
+    }
+
+}
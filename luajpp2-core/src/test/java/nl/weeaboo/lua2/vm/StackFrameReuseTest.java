@@ -0,0 +1,85 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+/**
+ * Stack frames are reused between calls, and with debugging disabled the call arguments are copied directly from the
+ * caller's stack. None of this should be visible from Lua.
+ */
+public final class StackFrameReuseTest extends AbstractLuaTest {
+
+    @Before
+    public void before() {
+        luaRunState.setDebugEnabled(false);
+    }
+
+    @Test
+    public void recursion() throws IOException {
+        run("local function fib(n) if n < 2 then return n end return fib(n-1) + fib(n-2) end"
+                + " x = fib(15)");
+
+        LuaTestUtil.assertGlobal("x", 610);
+    }
+
+    @Test
+    public void missingAndExtraArgs() throws IOException {
+        run("local function f(a, b, c) return c, b, a end"
+                + " local function g(a) return a end"
+                + " local p, q, r = f(1)"
+                + " x = tostring(p) .. tostring(q) .. r"
+                + " y = g(1, 2, 3)");
+
+        LuaTestUtil.assertGlobal("x", "nilnil1");
+        LuaTestUtil.assertGlobal("y", 1);
+    }
+
+    /** Registers of a reused frame must not leak into the next call. */
+    @Test
+    public void clearedRegisters() throws IOException {
+        run("local function a() local p, q, r = 1, 2, 3 return p end"
+                + " local function b() local p, q, r return r end"
+                + " a()"
+                + " x = tostring(b())");
+
+        LuaTestUtil.assertGlobal("x", "nil");
+    }
+
+    /** Upvalues must stay valid after the frame that created them is reused. */
+    @Test
+    public void upvaluesOutliveFrame() throws IOException {
+        run("local function counter(n) return function() n = n + 1 return n end end"
+                + " local c1 = counter(10)"
+                + " local c2 = counter(20)"
+                + " local function overwrite(a, b, c) return a end"
+                + " overwrite(1, 2, 3)"
+                + " c1()"
+                + " x = c1() + c2()");
+
+        LuaTestUtil.assertGlobal("x", 12 + 21);
+    }
+
+    @Test
+    public void varargs() throws IOException {
+        run("local function count(...) return select('#', ...) end"
+                + " local function pass(a, ...) return count(...) end"
+                + " x = pass(1, 2, 3) + count()");
+
+        LuaTestUtil.assertGlobal("x", 2);
+    }
+
+    private void run(String code) throws IOException {
+        LuaClosure closure = LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+        LuaThread thread = luaRunState.newThread(closure, NONE);
+        thread.resume(NONE);
+    }
+
+}
@@ -0,0 +1,59 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+/**
+ * Repeated concatenation appends in-place to the spare capacity behind the previous result. Strings sharing the same
+ * prefix must never see each other's bytes.
+ */
+public final class StringConcatTest extends AbstractLuaTest {
+
+    @Test
+    public void appendLoop() throws IOException {
+        run("local s = '' for i = 1, 1000 do s = s .. 'ab' .. i % 10 end"
+                + " x = #s"
+                + " y = s:sub(-6)");
+
+        LuaTestUtil.assertGlobal("x", 3000);
+        LuaTestUtil.assertGlobal("y", "ab9ab0");
+    }
+
+    @Test
+    public void sharedPrefix() throws IOException {
+        run("local s = string.rep('-', 500)"
+                + " local a = s .. 'a'"
+                + " local b = s .. 'b'"
+                + " local c = a .. 'c'"
+                + " x = a:sub(-1) .. b:sub(-1) .. c:sub(-2)"
+                + " y = #a + #b + #c");
+
+        LuaTestUtil.assertGlobal("x", "abac");
+        LuaTestUtil.assertGlobal("y", 1504);
+    }
+
+    @Test
+    public void tableConcat() throws IOException {
+        run("x = table.concat({1, 'b', 3}, ', ')"
+                + " y = table.concat({'a', 'b', 'c'}, '', 2)"
+                + " z = table.concat({}, ',')");
+
+        LuaTestUtil.assertGlobal("x", "1, b, 3");
+        LuaTestUtil.assertGlobal("y", "bc");
+        LuaTestUtil.assertGlobal("z", "");
+    }
+
+    private void run(String code) throws IOException {
+        LuaClosure closure = LoadState.load(code, "?", luaRunState.getGlobalEnvironment()).checkclosure();
+        LuaThread thread = luaRunState.newThread(closure, NONE);
+        thread.resume(NONE);
+    }
+
+}
@@ -0,0 +1,43 @@
+package nl.weeaboo.lua2.vm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class StringHashTest {
+
+    private static final long K0 = 0x0706050403020100L;
+    private static final long K1 = 0x0f0e0d0c0b0a0908L;
+
+    /** SipHash-1-3 reference results (folded to 32 bits) for the key 00..0f and the message 00, 01, 02, ... */
+    @Test
+    public void referenceValues() {
+        byte[] message = new byte[64];
+        for (int n = 0; n < message.length; n++) {
+            message[n] = (byte)n;
+        }
+
+        assertHash(0xaea3c584, message, 0);
+        assertHash(0xb4a35160, message, 1);
+        assertHash(0x48236cd8, message, 7);
+        assertHash(0xbbb90f9f, message, 8);
+        assertHash(0x49a2b357, message, 9);
+        assertHash(0xf971413b, message, 15);
+        assertHash(0xb1df567c, message, 16);
+        assertHash(0x2aa223ca, message, 63);
+    }
+
+    /** The hash only depends on the hashed bytes, not on their position in the array. */
+    @Test
+    public void offset() {
+        byte[] a = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        byte[] b = ("___" + "abcdefghijklmnopqrstuvwxyz" + "___").getBytes();
+        for (int len = 0; len <= a.length; len++) {
+            Assert.assertEquals(StringHash.hash(a, 0, len), StringHash.hash(b, 3, len));
+        }
+    }
+
+    private static void assertHash(int expected, byte[] message, int length) {
+        Assert.assertEquals(expected, StringHash.hash(K0, K1, message, 0, length));
+    }
+
+}
@@ -26,6 +26,10 @@ import static nl.weeaboo.lua2.vm.LuaConstants.META_INDEX;
 import static nl.weeaboo.lua2.vm.LuaConstants.TNUMBER;
 import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -259,11 +263,15 @@ public class TableHashTest {
         Assert.assertEquals(LuaValue.valueOf("LuaValue.valueOf(1)"), t.next(NIL).arg(2));
         Assert.assertEquals(LuaValue.valueOf(2), t.next(LuaValue.valueOf(1)).arg(1));
         Assert.assertEquals(LuaValue.valueOf("two"), t.next(LuaValue.valueOf(1)).arg(2));
-        Assert.assertEquals(LuaValue.valueOf("aa"), t.next(LuaValue.valueOf(2)).arg(1));
-        Assert.assertEquals(LuaValue.valueOf("aaa"), t.next(LuaValue.valueOf(2)).arg(2));
-        Assert.assertEquals(LuaValue.valueOf("bb"), t.next(LuaValue.valueOf("aa")).arg(1));
-        Assert.assertEquals(LuaValue.valueOf("bbb"), t.next(LuaValue.valueOf("aa")).arg(2));
-        Assert.assertEquals(NIL, t.next(LuaValue.valueOf("bb")));
+
+        // The order of the hash part depends on the per-JVM string hash key
+        Varargs first = t.next(LuaValue.valueOf(2));
+        Varargs second = t.next(first.arg1());
+        Set<String> entries = new HashSet<>();
+        entries.add(first.arg(1).tojstring() + "=" + first.arg(2).tojstring());
+        entries.add(second.arg(1).tojstring() + "=" + second.arg(2).tojstring());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("aa=aaa", "bb=bbb")), entries);
+        Assert.assertEquals(NIL, t.next(second.arg1()));
     }
 
     @Test
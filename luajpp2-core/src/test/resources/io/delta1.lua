@@ -0,0 +1,36 @@
+-- Global and upvalue changed by bump()
+counter = 0
+local hidden = 0
+function bump()
+    counter = counter + 1
+    hidden = hidden + 10
+end
+function getHidden()
+    return hidden
+end
+
+-- Mostly unchanged tables
+items = {}
+for i = 1, 1000 do
+    items[i] = {id = i, name = "item" .. i}
+end
+function change(n)
+    items[n].changed = true
+    items[#items + 1] = {id = #items + 1}
+end
+
+-- Suspended coroutine accumulating the values it's resumed with
+worker = coroutine.create(function()
+    local total = 0
+    while true do
+        total = total + (coroutine.yield(total) or 0)
+    end
+end)
+coroutine.resume(worker)
+
+-- Starts a new thread in the thread group
+function spawn()
+    Thread.new(function()
+        spawned = true
+    end)
+end
@@ -0,0 +1,42 @@
+
+-- Closures sharing an upvalue
+local counter = 0
+function increment()
+    counter = counter + 1
+    return counter
+end
+function getCounter()
+    return counter
+end
+increment()
+increment()
+
+-- Suspended coroutine with an open upvalue (keeps running, so the script never finishes)
+producer = coroutine.create(function()
+    local sum = 3
+    local function add(x)
+        sum = sum + x
+    end
+    while true do
+        add(coroutine.yield(sum) or 0)
+    end
+end)
+coroutine.resume(producer)
+
+-- Cycles and long chains
+cycle = {}
+cycle.self = cycle
+
+chain = {}
+local tail = chain
+for i = 1, 10000 do
+    tail.next = {value = i}
+    tail = tail.next
+end
+
+-- Mixed keys and values
+mixed = {1, 2.5, -3, 1e100, "four", [0.5] = true, [false] = "no", [-7] = -8, [chain] = cycle}
+numbers = {}
+for i = 1, 100 do
+    numbers[i] = i / 4
+end
@@ -0,0 +1,64 @@
+
+local function writeFile(filename, ...)
+    local f = assert(io.open(filename, "wb"))
+    f:setvbuf("line", 16)
+    f:write(...)
+    f:close()
+end
+
+local function checkLines(filename, expected)
+    local i = 0
+    for line in io.lines(filename) do
+        i = i + 1
+        assert(line == expected[i], "line " .. i .. ": " .. tostring(line))
+    end
+    assert(i == #expected, "line count: " .. i)
+end
+
+local function checkFile(filename, contents, lines)
+    checkLines(filename, lines)
+
+    local f = assert(io.open(filename, "rb"))
+    assert(f:read("*a") == contents)
+    assert(f:read("*l") == nil)
+    assert(f:read(0) == nil)
+
+    -- Seek and read parts of the file
+    assert(f:seek("set", 2) == 2)
+    assert(f:read(3) == contents:sub(3, 5))
+    assert(f:seek("cur") == 5)
+    assert(f:seek("end", -4) == #contents - 4)
+    assert(f:read("*a") == contents:sub(-4))
+    f:close()
+end
+
+local longLine = string.rep("abcdefgh", 16384)
+
+-- Small file, read through a buffer
+local small = os.tmpname()
+writeFile(small, "first\r\n", "second\n", "\n", "thi", "rd\n", "last")
+checkFile(small, "first\r\nsecond\n\nthird\nlast", {"first", "second", "", "third", "last"})
+
+-- Large file, memory-mapped
+local large = os.tmpname()
+writeFile(large, "first\n", longLine, "\n", "last\n")
+checkFile(large, "first\n" .. longLine .. "\nlast\n", {"first", longLine, "last"})
+
+-- Appending always writes to the end of the file
+local f = assert(io.open(small, "a+"))
+assert(f:read("*l") == "first")
+f:write("\nappended")
+f:seek("set", 0)
+f:write("!")
+f:close()
+checkLines(small, {"first", "second", "", "third", "last", "appended!"})
+
+-- Numbers
+writeFile(small, "12 34.5\n")
+f = assert(io.open(small, "r"))
+local a, b = f:read("*n", "*n")
+assert(a == 12 and b == 34.5)
+f:close()
+
+os.remove(small)
+os.remove(large)
@@ -0,0 +1,23 @@
+-- Functions called through different kinds of names
+
+local obj = {}
+
+function obj:method()
+    yield()
+end
+
+local t = {
+    field = function()
+        obj:method()
+    end
+}
+
+local function localFunc()
+    t.field()
+end
+
+local function caller()
+    localFunc()
+end
+
+caller()
@@ -0,0 +1,78 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Compile times of the scripts from the Lua 5.1 test suite.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompileBenchmark {
+
+    /** Script from the Lua 5.1 test suite (without the file extension). */
+    @Param({"api", "attrib", "big", "checktable", "closure", "code", "constructs", "db", "errors", "events",
+        "files", "gc", "literals", "locals", "math", "nextvar", "pm", "sort", "strings", "vararg", "verybig"})
+    public String script;
+
+    private LuaRunState luaRunState;
+    private byte[] source;
+
+    @Setup
+    public void setup() throws IOException {
+        luaRunState = LuaRunState.create();
+
+        String path = "/lua51tests/" + script + ".lua";
+        InputStream in = CompileBenchmark.class.getResourceAsStream(path);
+        if (in == null) {
+            throw new FileNotFoundException(path);
+        }
+
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int r; (r = in.read(buf)) >= 0;) {
+                bout.write(buf, 0, r);
+            }
+            source = bout.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Compiles the script from source to a {@link Prototype}. */
+    @Benchmark
+    public Prototype compile() throws IOException {
+        return LuaC.compile(new ByteArrayInputStream(source), script);
+    }
+
+}
@@ -0,0 +1,150 @@
+package nl.weeaboo.lua2.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.vm.LuaFunction;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.SnapshotSerializer;
+
+/**
+ * Round-trips of a large {@link LuaRunState} through {@link LuaSerializer} (Java serialization) or
+ * {@link SnapshotSerializer} (snapshot format, optionally compressed).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializeBenchmark {
+
+    /** Number of objects (each consisting of several tables and strings) in the Lua state. */
+    @Param({"10000"})
+    public int objectCount;
+
+    /** Serialization format: {@code java}, {@code snapshot} or {@code compressed} (compressed snapshot). */
+    @Param({"java", "snapshot", "compressed"})
+    public String format;
+
+    private LuaRunState luaRunState;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        luaRunState = LuaRunState.create();
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+
+        LuaFunction init = LoadState.load("local count = ...\n"
+                + "objects = {}\n"
+                + "lookup = {}\n"
+                + "for i = 1, count do\n"
+                + "  local obj = {id = i, name = 'object' .. i, pos = {x = i * 0.5, y = -i}, tags = {'a', 'b'}}\n"
+                + "  objects[i] = obj\n"
+                + "  lookup[obj.name] = obj\n"
+                + "end\n"
+                + "functions = {}\n"
+                + "for i = 1, 100 do\n"
+                + "  local n = i\n"
+                + "  functions[i] = function(x) return x + n end\n"
+                + "end\n"
+                + "threads = {}\n"
+                + "for i = 1, 10 do\n"
+                + "  threads[i] = coroutine.create(function(a)\n"
+                + "    while true do a = coroutine.yield(a + 1) end\n"
+                + "  end)\n"
+                + "  coroutine.resume(threads[i], i)\n"
+                + "end\n", "init", luaRunState.getGlobalEnvironment());
+
+        luaRunState.getMainThread().pushPending(init.checkclosure(), LuaInteger.valueOf(objectCount));
+        for (int n = 0; n < 1000 && !luaRunState.isFinished(); n++) {
+            luaRunState.update();
+        }
+        if (!luaRunState.isFinished()) {
+            throw new LuaException("Init script didn't finish");
+        }
+
+        serialized = serialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Serializes the Lua state. */
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        luaRunState.registerOnThread();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        if (isSnapshot()) {
+            newSnapshotSerializer().writeSnapshot(bout, luaRunState);
+        } else {
+            ObjectSerializer out = new LuaSerializer().openSerializer(bout);
+            try {
+                out.writeObject(luaRunState);
+            } finally {
+                out.close();
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    /** Deserializes the Lua state. */
+    @Benchmark
+    public LuaRunState deserialize() throws IOException, ClassNotFoundException {
+        return deserialize(serialized);
+    }
+
+    /** Serializes, then deserializes the Lua state. */
+    @Benchmark
+    public LuaRunState roundTrip() throws IOException, ClassNotFoundException {
+        return deserialize(serialize());
+    }
+
+    private LuaRunState deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        LuaRunState result;
+        if (isSnapshot()) {
+            result = (LuaRunState)newSnapshotSerializer().readSnapshot(new ByteArrayInputStream(bytes));
+        } else {
+            ObjectDeserializer in = new LuaSerializer().openDeserializer(new ByteArrayInputStream(bytes));
+            try {
+                result = (LuaRunState)in.readObject();
+            } finally {
+                in.close();
+            }
+        }
+        result.destroy();
+        return result;
+    }
+
+    private boolean isSnapshot() {
+        return "snapshot".equals(format) || "compressed".equals(format);
+    }
+
+    private SnapshotSerializer newSnapshotSerializer() {
+        SnapshotSerializer ss = new SnapshotSerializer();
+        ss.setCompressed("compressed".equals(format));
+        return ss;
+    }
+
+}
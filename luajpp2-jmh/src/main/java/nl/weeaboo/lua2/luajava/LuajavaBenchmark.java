@@ -0,0 +1,128 @@
+package nl.weeaboo.lua2.luajava;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.vm.LuaFunction;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaTable;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Calls to Java methods through luajava, from Java and from Lua code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LuajavaBenchmark {
+
+    private static final int LOOP_COUNT = 1_000;
+
+    private LuaRunState luaRunState;
+
+    private LuaString methodName;
+    private LuaValue luaPotato;
+    private LuaFunction noArgsFromLua;
+    private LuaFunction withArgsFromLua;
+    private LuaFunction fieldFromLua;
+
+    @Setup
+    public void setup() throws IOException {
+        luaRunState = LuaRunState.create();
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+
+        methodName = LuaString.valueOf("noArgs");
+        luaPotato = CoerceJavaToLua.coerce(new Potato());
+
+        LuaTable globals = luaRunState.getGlobalEnvironment();
+        globals.rawset("potato", luaPotato);
+
+        noArgsFromLua = LoadState.load("local potato = potato\n"
+                + "local sum = 0\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  sum = sum + potato:noArgs()\n"
+                + "end\n"
+                + "return sum", "?", globals);
+
+        withArgsFromLua = LoadState.load("local potato = potato\n"
+                + "local sum = 0\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  sum = potato:add(sum, i)\n"
+                + "end\n"
+                + "return sum", "?", globals);
+
+        fieldFromLua = LoadState.load("local potato = potato\n"
+                + "local sum = 0\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  sum = sum + potato.field\n"
+                + "end\n"
+                + "return sum", "?", globals);
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Calls a Java method without arguments from Java. */
+    @Benchmark
+    public Varargs noArgsFromJava() {
+        return luaPotato.invokemethod(methodName);
+    }
+
+    /** Calls a Java method without arguments from Lua. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue noArgsFromLua() {
+        return noArgsFromLua.call();
+    }
+
+    /** Calls a Java method with arguments from Lua, which requires coercion of the arguments. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue withArgsFromLua() {
+        return withArgsFromLua.call();
+    }
+
+    /** Reads a public Java field from Lua. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue fieldFromLua() {
+        return fieldFromLua.call();
+    }
+
+    /** Java object used as the target of the luajava calls. */
+    public static final class Potato {
+
+        public int field = 1;
+
+        public int noArgs() {
+            return 1;
+        }
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+    }
+
+}
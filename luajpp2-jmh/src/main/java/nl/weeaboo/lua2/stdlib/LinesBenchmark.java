@@ -0,0 +1,94 @@
+package nl.weeaboo.lua2.stdlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.vm.LuaFunction;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+/**
+ * Reading a file using {@code io.lines}. Scores are per line; the allocation rate reported by {@code -prof gc} shows
+ * the difference between copied lines and lines sliced out of shared chunks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LinesBenchmark {
+
+    private static final int LINE_COUNT = 100_000;
+
+    /**
+     * Size of the shared chunks lines are sliced out of, or {@code 0} to copy each line.
+     *
+     * @see StandardLibrary#setLineChunkSize(int)
+     */
+    @Param({"0", "8192", "65536"})
+    public int lineChunkSize;
+
+    private File file;
+    private LuaRunState luaRunState;
+    private LuaFunction readLines;
+    private LuaString path;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("lines", ".txt");
+        try (OutputStream out = Files.newOutputStream(file.toPath());
+                PrintStream print = new PrintStream(out, false, StandardCharsets.UTF_8.name())) {
+            for (int n = 0; n < LINE_COUNT; n++) {
+                print.print("2020-01-01 00:00:00 INFO [main] line " + n + '\n');
+            }
+        }
+
+        StandardLibrary stdlib = new StandardLibrary();
+        stdlib.setAllowUnsafeIO(true);
+        stdlib.setLineChunkSize(lineChunkSize);
+
+        luaRunState = LuaRunState.create(stdlib);
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+
+        readLines = LoadState.load("local n = 0\n"
+                + "for line in io.lines(...) do n = n + 1 end\n"
+                + "return n", "?", luaRunState.getGlobalEnvironment());
+        path = LuaString.valueOf(file.getAbsolutePath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        luaRunState.destroy();
+        Files.delete(file.toPath());
+    }
+
+    /** Counts the lines in the file. */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public LuaValue lines() {
+        return readLines.call(path);
+    }
+
+}
@@ -0,0 +1,116 @@
+package nl.weeaboo.lua2.stdlib;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Lua pattern matching, both directly through {@link MatchState} and through the string library functions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatternBenchmark {
+
+    private static final String SUBJECT = "[window] title = \"Main window\" ; width=1280, height=720 ;"
+            + " fullscreen = false ; vsync=true # trailing comment with some more words in it";
+
+    /** Pattern to match against a short line of text. */
+    @Param({"vsync", "%a+", "(%w+)%s*=%s*(%w+)", "[%w_]+%s*=", "%b[]", "#.*$"})
+    public String pattern;
+
+    private LuaRunState luaRunState;
+
+    private LuaString subject;
+    private LuaString replacement;
+    private LuaString luaPattern;
+    private LuaPattern compiledPattern;
+    private MatchState matchState;
+
+    @Setup
+    public void setup() {
+        luaRunState = LuaRunState.create();
+
+        subject = LuaString.valueOf(SUBJECT);
+        replacement = LuaString.valueOf("<%1>");
+        luaPattern = LuaString.valueOf(pattern);
+        compiledPattern = LuaPattern.compile(luaPattern);
+        matchState = new MatchState(NONE, subject, compiledPattern.program(false));
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Finds the first match using the pre-compiled pattern, without going through the string library. */
+    @Benchmark
+    public int matchState() {
+        final int length = subject.length();
+        for (int soff = 0; soff <= length; soff++) {
+            matchState.reset();
+            int end = matchState.match(soff, 0);
+            if (end >= 0) {
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    /** {@code string.find(s, pattern)} */
+    @Benchmark
+    public Varargs find() {
+        return subject.invokemethod("find", luaPattern);
+    }
+
+    /** {@code string.match(s, pattern)} */
+    @Benchmark
+    public Varargs match() {
+        return subject.invokemethod("match", luaPattern);
+    }
+
+    /** {@code string.gsub(s, pattern, "<%1>")} */
+    @Benchmark
+    public Varargs gsub() {
+        return subject.invokemethod("gsub", varargsOf(luaPattern, replacement));
+    }
+
+    /** Iterates over all matches of {@code string.gmatch(s, pattern)}. */
+    @Benchmark
+    public int gmatch() {
+        Varargs iterator = subject.invokemethod("gmatch", luaPattern);
+        int count = 0;
+        while (!iterator.arg1().call().isnil()) {
+            count++;
+        }
+        return count;
+    }
+
+    /** Parses the pattern, without matching it against anything. */
+    @Benchmark
+    public Object compile() {
+        return LuaPattern.compile(luaPattern).program(false);
+    }
+
+}
@@ -0,0 +1,139 @@
+package nl.weeaboo.lua2.vm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.LoadState;
+
+/**
+ * Opcode dispatch in the interpreter, for a number of typical instruction mixes. Scores are per loop iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+
+    private static final int LOOP_COUNT = 10_000;
+
+    /**
+     * Execution mode:
+     * <ul>
+     * <li>debug: Debug mode enabled (default).
+     * <li>budgeted: Debug mode disabled.
+     * <li>compiled: Debug mode disabled, functions are compiled to Java bytecode.
+     * </ul>
+     */
+    @Param({"debug", "budgeted", "compiled"})
+    public String mode;
+
+    private LuaRunState luaRunState;
+
+    private LuaFunction arithmetic;
+    private LuaFunction tableAccess;
+    private LuaFunction calls;
+    private LuaFunction upvalues;
+
+    @Setup
+    public void setup() throws IOException {
+        luaRunState = LuaRunState.create();
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+        if (mode.equals("debug")) {
+            luaRunState.setDebugEnabled(true);
+        } else if (mode.equals("budgeted")) {
+            luaRunState.setDebugEnabled(false);
+        } else if (mode.equals("compiled")) {
+            luaRunState.setDebugEnabled(false);
+            luaRunState.setCompileThreshold(1);
+        } else {
+            throw new IllegalArgumentException("Unsupported mode: " + mode);
+        }
+
+        arithmetic = load("local sum = 0\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  sum = sum + i * 2 - (i % 7) / 3\n"
+                + "end\n"
+                + "return sum");
+
+        tableAccess = load("local t = {x = 0}\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  t[i] = i\n"
+                + "  t.x = t.x + t[i]\n"
+                + "end\n"
+                + "return t.x");
+
+        calls = load("local obj = {}\n"
+                + "function obj:add(a) return a + 1 end\n"
+                + "local function f(a, b) return a + b end\n"
+                + "local sum = 0\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  sum = f(sum, obj:add(i))\n"
+                + "end\n"
+                + "return sum");
+
+        upvalues = load("local count = 0\n"
+                + "local function inc() count = count + 1 end\n"
+                + "for i = 1, " + LOOP_COUNT + " do\n"
+                + "  inc()\n"
+                + "end\n"
+                + "return count");
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    private LuaFunction load(String code) throws IOException {
+        return LoadState.load(code, "?", luaRunState.getGlobalEnvironment());
+    }
+
+    /** Arithmetic on local variables. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue arithmetic() {
+        return arithmetic.call();
+    }
+
+    /** Table reads and writes, using both the array part and the hash part. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue tableAccess() {
+        return tableAccess.call();
+    }
+
+    /**
+     * Calls to local functions and methods. Calls reuse the thread's stack frames, so the allocation rate reported by
+     * {@code -prof gc} only contains the numbers created by the loop itself.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue calls() {
+        return calls.call();
+    }
+
+    /** Calls to a closure which modifies an upvalue. */
+    @Benchmark
+    @OperationsPerInvocation(LOOP_COUNT)
+    public LuaValue upvalues() {
+        return upvalues.call();
+    }
+
+}
@@ -0,0 +1,98 @@
+package nl.weeaboo.lua2.vm;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.weeaboo.lua2.LuaRunState;
+
+/**
+ * {@link LuaString} hashing and comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LuaStringBenchmark {
+
+    /** String length in bytes. */
+    @Param({"8", "64", "1024"})
+    public int length;
+
+    private LuaRunState luaRunState;
+
+    private byte[] bytes;
+    private LuaString string;
+    private LuaString equalString;
+    private LuaString differentString;
+    private String javaString;
+
+    @Setup
+    public void setup() {
+        luaRunState = LuaRunState.create();
+
+        bytes = new byte[length];
+        for (int n = 0; n < length; n++) {
+            bytes[n] = (byte)('a' + n % 26);
+        }
+        string = LuaString.valueOf(bytes);
+        equalString = LuaString.valueOf(Arrays.copyOf(bytes, length));
+
+        // Only differs in the last byte
+        byte[] different = Arrays.copyOf(bytes, length);
+        different[length - 1]++;
+        differentString = LuaString.valueOf(different);
+
+        javaString = string.tojstring();
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Computes the hash code of a new string (hash codes are cached, so this also includes the allocation). */
+    @Benchmark
+    public int hash() {
+        return LuaString.valueOf(bytes).hashCode();
+    }
+
+    /** Compares two strings with the same contents, but a different backing array. */
+    @Benchmark
+    public boolean equalsSameContents() {
+        return string.raweq(equalString);
+    }
+
+    /** Compares two strings which only differ in the last byte. */
+    @Benchmark
+    public boolean equalsDifferentContents() {
+        return string.raweq(differentString);
+    }
+
+    /** Orders two strings which only differ in the last byte. */
+    @Benchmark
+    public int compare() {
+        return string.strcmp(differentString);
+    }
+
+    /** Converts a Java string to a Lua string, which goes through the string pool for short strings. */
+    @Benchmark
+    public LuaString fromJavaString() {
+        return LuaString.valueOf(javaString);
+    }
+
+}
@@ -0,0 +1,148 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nl.weeaboo.lua2.LuaRunState;
+
+/**
+ * {@link LuaTable} operations. Each benchmark processes all {@link #size} entries of a table, so scores are per
+ * table rather than per entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LuaTableBenchmark {
+
+    /** Number of entries in the table. */
+    @Param({"16", "1024"})
+    public int size;
+
+    private LuaRunState luaRunState;
+
+    private LuaString[] keys;
+    private LuaValue[] values;
+    private LuaTable arrayTable;
+    private LuaTable hashTable;
+
+    @Setup
+    public void setup() {
+        luaRunState = LuaRunState.create();
+
+        keys = new LuaString[size];
+        values = new LuaValue[size];
+        arrayTable = new LuaTable();
+        hashTable = new LuaTable();
+        for (int n = 0; n < size; n++) {
+            keys[n] = LuaString.valueOf("key" + n);
+            values[n] = LuaInteger.valueOf(n);
+
+            arrayTable.rawset(n + 1, values[n]);
+            hashTable.rawset(keys[n], values[n]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        luaRunState.destroy();
+    }
+
+    /** Reads all elements from the array part. */
+    @Benchmark
+    public void getArray(Blackhole bh) {
+        for (int n = 1; n <= size; n++) {
+            bh.consume(arrayTable.rawget(n));
+        }
+    }
+
+    /** Reads all string keys from the hash part. */
+    @Benchmark
+    public void getHash(Blackhole bh) {
+        for (LuaString key : keys) {
+            bh.consume(hashTable.rawget(key));
+        }
+    }
+
+    /** Reads all string keys from the hash part, including metatable handling. */
+    @Benchmark
+    public void getHashWithMeta(Blackhole bh) {
+        for (LuaString key : keys) {
+            bh.consume(hashTable.get(key));
+        }
+    }
+
+    /** Overwrites all existing string keys in the hash part. */
+    @Benchmark
+    public void setHash() {
+        for (int n = 0; n < size; n++) {
+            hashTable.rawset(keys[n], values[n]);
+        }
+    }
+
+    /** Iterates over all entries of the hash part using {@link LuaTable#next(LuaValue)}. */
+    @Benchmark
+    public void nextHash(Blackhole bh) {
+        LuaValue key = NIL;
+        while (true) {
+            Varargs entry = hashTable.next(key);
+            key = entry.arg1();
+            if (key.isnil()) {
+                break;
+            }
+            bh.consume(entry.arg(2));
+        }
+    }
+
+    /** Iterates over all entries of the array part using {@link LuaTable#next(LuaValue)}. */
+    @Benchmark
+    public void nextArray(Blackhole bh) {
+        LuaValue key = NIL;
+        while (true) {
+            Varargs entry = arrayTable.next(key);
+            key = entry.arg1();
+            if (key.isnil()) {
+                break;
+            }
+            bh.consume(entry.arg(2));
+        }
+    }
+
+    /** Fills a new table with string keys, which requires multiple rehashes. */
+    @Benchmark
+    public LuaTable rehashHash() {
+        LuaTable table = new LuaTable();
+        for (int n = 0; n < size; n++) {
+            table.rawset(keys[n], values[n]);
+        }
+        return table;
+    }
+
+    /** Appends elements to a new table, which requires multiple resizes of the array part. */
+    @Benchmark
+    public LuaTable rehashArray() {
+        LuaTable table = new LuaTable();
+        for (int n = 0; n < size; n++) {
+            table.rawset(n + 1, values[n]);
+        }
+        return table;
+    }
+
+}